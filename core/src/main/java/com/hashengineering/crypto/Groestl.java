@@ -4,8 +4,10 @@ import fr.cryptohash.Groestl512;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+import static com.google.common.base.Preconditions.checkArgument;
 
 /**
  * Created by Hash Engineering on 12/24/14 for the Groestl algorithm
@@ -14,6 +16,15 @@ public class Groestl {
 
     private static final Logger log = LoggerFactory.getLogger(Groestl.class);
     private static boolean native_library_loaded = false;
+    // Cleared if the native library was built without groestld_native_many or groestld_native_direct, e.g. the one
+    // from contrib/groestld.
+    private static volatile boolean native_many_loaded = true;
+    private static volatile boolean native_direct_loaded = true;
+
+    /** Length in bytes of a Groestl (double Groestl-512, truncated) hash. */
+    public static final int HASH_LENGTH = 32;
+
+    private static final ThreadLocal<Engine> ENGINE = ThreadLocal.withInitial(Engine::new);
 
     static {
 
@@ -45,28 +56,184 @@ public class Groestl {
         }
     }
 
+    /**
+     * Hashes {@code length} bytes of {@code input} starting at {@code offset} and writes the 32 byte result into
+     * {@code out} at {@code outOffset}. When the native library is not loaded this uses the calling thread's
+     * {@link Engine} and does not allocate.
+     */
+    public static void digestInto(byte[] input, int offset, int length, byte[] out, int outOffset) {
+        if (native_library_loaded)
+            System.arraycopy(groestld_native(input, offset, length), 0, out, outOffset, HASH_LENGTH);
+        else
+            engine().digestInto(input, offset, length, out, outOffset);
+    }
+
+    /**
+     * Hashes the remaining bytes of {@code input} and writes the 32 byte result into {@code out} at
+     * {@code outOffset}. The position of the buffer is advanced to its limit. With the native library, heap buffers
+     * are hashed in their backing array and direct buffers in place. Otherwise, or if the native library predates
+     * direct buffer support, a direct buffer is copied through the engine's scratch space: that doesn't allocate,
+     * but the pure-Java hash is slower than the native one.
+     */
+    public static void digestInto(ByteBuffer input, byte[] out, int outOffset) {
+        int length = input.remaining();
+        if (native_library_loaded && input.hasArray()) {
+            digestInto(input.array(), input.arrayOffset() + input.position(), length, out, outOffset);
+            input.position(input.position() + length);
+        } else if (native_library_loaded && native_direct_loaded && input.isDirect()) {
+            checkArgument(outOffset >= 0 && out.length - outOffset >= HASH_LENGTH, "output too small");
+            try {
+                groestld_native_direct(input, input.position(), length, out, outOffset);
+                input.position(input.position() + length);
+            } catch (UnsatisfiedLinkError x) {
+                native_direct_loaded = false;
+                engine().digestInto(input, out, outOffset);
+            }
+        } else {
+            engine().digestInto(input, out, outOffset);
+        }
+    }
+
+    /**
+     * Hashes {@code count} consecutive records of {@code stride} bytes each, starting at the position of
+     * {@code input}, and writes the 32 byte results one after another into {@code out}.
+     *
+     * @see #digestMany(ByteBuffer, int, int, int, byte[])
+     */
+    public static void digestMany(ByteBuffer input, int count, int stride, byte[] out) {
+        digestMany(input, count, stride, stride, out);
+    }
+
+    /**
+     * Hashes {@code count} records, starting at the position of {@code input}. Record {@code i} consists of the
+     * {@code length} bytes at offset {@code i * stride}, so {@code stride} may be larger than {@code length} to skip
+     * trailing bytes of each record (e.g. the transaction count following each header of a {@code headers}
+     * message). The 32 byte results are written one after another into {@code out}. This amortizes the per-call
+     * overhead (and, with the native library, the JNI transition) across the whole batch. The position of the
+     * buffer is not changed.
+     *
+     * @throws BufferUnderflowException if the buffer does not contain all records
+     */
+    public static void digestMany(ByteBuffer input, int count, int length, int stride, byte[] out)
+            throws BufferUnderflowException {
+        checkArgument(count >= 0 && length >= 0 && stride >= length, "invalid count, length or stride");
+        checkArgument(out.length >= (long) count * HASH_LENGTH, "output too small for %s hashes", count);
+        long span = count == 0 ? 0 : (long) (count - 1) * stride + length;
+        if (input.remaining() < span)
+            throw new BufferUnderflowException();
+        if (native_library_loaded && native_many_loaded && input.hasArray()) {
+            try {
+                groestld_native_many(input.array(), input.arrayOffset() + input.position(), count, length, stride,
+                        out);
+                return;
+            } catch (UnsatisfiedLinkError x) {
+                native_many_loaded = false;
+            }
+        }
+        engine().digestMany(input, count, length, stride, out);
+    }
+
+    /**
+     * Returns the Groestl engine bound to the calling thread. The engine must not be shared with other threads.
+     */
+    public static Engine engine() {
+        return ENGINE.get();
+    }
+
     static native byte [] groestld_native(byte [] input, int offset, int len);
 
+    static native void groestld_native_many(byte [] input, int offset, int count, int len, int stride, byte [] out);
+
+    static native void groestld_native_direct(ByteBuffer input, int offset, int len, byte [] out, int outOffset);
+
     static byte [] groestl(byte[] header)
     {
-        Groestl512 hasher1 = new Groestl512();
-        Groestl512 hasher2 = new Groestl512();
-
-        byte [] hash1 = hasher1.digest(header);
-        byte [] hash2 = hasher2.digest(hash1);
-        return new Sha512Hash(hash2).trim256().getBytes();
+        return groestl(header, 0, header.length);
     }
 
     static byte [] groestl(byte[] header, int offset, int length)
     {
-        final Groestl512 digestGroestl = new Groestl512();
-        digestGroestl.reset();
-        digestGroestl.update(header, offset, length);
-        byte [] hash512 = digestGroestl.digest();
+        byte[] result = new byte[HASH_LENGTH];
+        engine().digestInto(header, offset, length, result, 0);
+        return result;
+    }
 
-        Sha512Hash doubleHash512 = new Sha512Hash(digestGroestl.digest(hash512));
+    /**
+     * A reusable pure-Java Groestl hasher. It keeps one {@link Groestl512} instance and scratch space for the
+     * intermediate hash, so that hashing does no allocation. Instances are not thread safe; use
+     * {@link Groestl#engine()} to get one for the current thread.
+     */
+    public static final class Engine {
+        private static final int SCRATCH_SIZE = 256;
 
-        return doubleHash512.trim256().getBytes();
-    }
+        private final Groestl512 groestl512 = new Groestl512();
+        private final byte[] hash512 = new byte[64];
+        private final byte[] scratch = new byte[SCRATCH_SIZE];
+
+        Engine() {
+        }
+
+        /**
+         * Hashes {@code length} bytes of {@code input} starting at {@code offset} and writes the 32 byte result
+         * into {@code out} at {@code outOffset}.
+         */
+        public void digestInto(byte[] input, int offset, int length, byte[] out, int outOffset) {
+            groestl512.reset();
+            groestl512.update(input, offset, length);
+            finish(out, outOffset);
+        }
 
+        /**
+         * Hashes the remaining bytes of {@code input} and writes the 32 byte result into {@code out} at
+         * {@code outOffset}. The position of the buffer is advanced to its limit.
+         */
+        public void digestInto(ByteBuffer input, byte[] out, int outOffset) {
+            groestl512.reset();
+            update(input, input.remaining());
+            finish(out, outOffset);
+        }
+
+        /**
+         * Hashes {@code count} records of {@code length} bytes, {@code stride} bytes apart, starting at the position
+         * of {@code input}. The 32 byte results are written one after another into {@code out}. The position of the
+         * buffer is not changed.
+         */
+        public void digestMany(ByteBuffer input, int count, int length, int stride, byte[] out) {
+            int start = input.position();
+            try {
+                for (int i = 0; i < count; i++) {
+                    input.position(start + i * stride);
+                    groestl512.reset();
+                    update(input, length);
+                    finish(out, i * HASH_LENGTH);
+                }
+            } finally {
+                input.position(start);
+            }
+        }
+
+        private void update(ByteBuffer input, int length) {
+            if (input.remaining() < length)
+                throw new BufferUnderflowException();
+            if (input.hasArray()) {
+                groestl512.update(input.array(), input.arrayOffset() + input.position(), length);
+                input.position(input.position() + length);
+            } else {
+                while (length > 0) {
+                    int chunk = Math.min(length, SCRATCH_SIZE);
+                    input.get(scratch, 0, chunk);
+                    groestl512.update(scratch, 0, chunk);
+                    length -= chunk;
+                }
+            }
+        }
+
+        private void finish(byte[] out, int outOffset) {
+            // digest(byte[], int, int) resets the engine, so it is ready for the second round
+            groestl512.digest(hash512, 0, hash512.length);
+            groestl512.update(hash512, 0, hash512.length);
+            groestl512.digest(hash512, 0, hash512.length);
+            System.arraycopy(hash512, 0, out, outOffset, HASH_LENGTH);
+        }
+    }
 }
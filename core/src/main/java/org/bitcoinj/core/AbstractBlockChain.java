@@ -23,13 +23,13 @@ import org.bitcoinj.base.Sha256Hash;
 import org.bitcoinj.core.listeners.NewBestBlockListener;
 import org.bitcoinj.core.listeners.ReorganizeListener;
 import org.bitcoinj.core.listeners.TransactionReceivedInBlockListener;
-import org.bitcoinj.script.ScriptException;
 import org.bitcoinj.store.BlockStore;
 import org.bitcoinj.store.BlockStoreException;
 import org.bitcoinj.store.SPVBlockStore;
 import org.bitcoinj.utils.ListenableCompletableFuture;
 import org.bitcoinj.utils.ListenerRegistration;
 import org.bitcoinj.utils.Threading;
+import org.bitcoinj.utils.DifficultyWindow;
 import org.bitcoinj.utils.VersionTally;
 import org.bitcoinj.wallet.Wallet;
 import org.slf4j.Logger;
@@ -40,8 +40,8 @@ import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.Date;
 import java.util.EnumSet;
 import java.util.HashSet;
@@ -162,6 +162,9 @@ public abstract class AbstractBlockChain {
 
     private final VersionTally versionTally;
 
+    // Recent blocks for the difficulty check, so they don't need to be read back from the store for every block.
+    private final DifficultyWindow difficultyWindow = new DifficultyWindow();
+
     /**
      * Constructs a BlockChain connected to the given list of listeners (wallets) and a store.
      * @param network network for this chain
@@ -549,7 +552,7 @@ public abstract class AbstractBlockChain {
             } else {
                 checkState(lock.isHeldByCurrentThread());
                 // It connects to somewhere on the chain. Not necessarily the top of the best known chain.
-                params.checkDifficultyTransitions(storedPrev, block, blockStore);
+                params.checkDifficultyTransitions(storedPrev, block, blockStore, difficultyWindow);
                 connectBlock(block, storedPrev, shouldVerifyTransactions(), filteredTxHashList, filteredTxn);
                 if (tryConnecting)
                     tryConnectingOrphans();
@@ -752,19 +755,28 @@ public abstract class AbstractBlockChain {
             // We must send transactions to listeners in the order they appeared in the block - thus we iterate over the
             // set of hashes and call sendTransactionsToListener with individual txn when they have not already been
             // seen in loose broadcasts - otherwise notifyTransactionIsInBlock on the hash.
+            // Consecutive transactions we have are sent together.
+            List<Transaction> run = new ArrayList<>();
             int relativityOffset = 0;
             for (Sha256Hash hash : filteredTxHashList) {
                 Transaction tx = filteredTxn.get(hash);
                 if (tx != null) {
-                    sendTransactionsToListener(newStoredBlock, newBlockType, listener, relativityOffset,
-                            Collections.singletonList(tx), !first, falsePositives);
+                    run.add(tx);
                 } else {
+                    if (!run.isEmpty()) {
+                        sendTransactionsToListener(newStoredBlock, newBlockType, listener,
+                                relativityOffset - run.size(), run, !first, falsePositives);
+                        run = new ArrayList<>();
+                    }
                     if (listener.notifyTransactionIsInBlock(hash, newStoredBlock, newBlockType, relativityOffset)) {
                         falsePositives.remove(hash);
                     }
                 }
                 relativityOffset++;
             }
+            if (!run.isEmpty())
+                sendTransactionsToListener(newStoredBlock, newBlockType, listener, relativityOffset - run.size(),
+                        run, !first, falsePositives);
         }
     }
 
@@ -933,21 +945,20 @@ public abstract class AbstractBlockChain {
                                                    List<Transaction> transactions,
                                                    boolean clone,
                                                    Set<Sha256Hash> falsePositives) throws VerificationException {
+        List<Transaction> txns = clone ? new ArrayList<>(transactions.size()) : transactions;
         for (Transaction tx : transactions) {
-            try {
-                falsePositives.remove(tx.getTxId());
-                if (clone)
-                    tx = Transaction.read(ByteBuffer.wrap(tx.serialize()));
-                listener.receiveFromBlock(tx, block, blockType, relativityOffset++);
-            } catch (ScriptException e) {
-                // We don't want scripts we don't understand to break the block chain so just note that this tx was
-                // not scanned here and continue.
-                log.warn("Failed to parse a script: " + e.toString());
-            } catch (ProtocolException e) {
-                // Failed to duplicate tx, should never happen.
-                throw new RuntimeException(e);
+            falsePositives.remove(tx.getTxId());
+            if (clone) {
+                try {
+                    txns.add(Transaction.read(ByteBuffer.wrap(tx.serialize())));
+                } catch (ProtocolException e) {
+                    // Failed to duplicate tx, should never happen.
+                    throw new RuntimeException(e);
+                }
             }
         }
+        // Listeners skip transactions with scripts they don't understand, so they don't break the block chain.
+        listener.receiveFromBlock(txns, block, blockType, relativityOffset);
     }
 
     /**
@@ -20,11 +20,13 @@ package org.bitcoinj.core;
 import org.bitcoinj.base.Sha256Hash;
 import org.bitcoinj.base.internal.ByteUtils;
 import com.hashengineering.crypto.Groestl;
+import org.bitcoinj.net.ByteBufferPool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.Buffer;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
@@ -53,6 +55,7 @@ public class BitcoinSerializer extends MessageSerializer {
     private final NetworkParameters params;
     private final int packetMagic;
     private final int protocolVersion;
+    private final boolean lazyParsing;
 
     private static final Map<Class<? extends Message>, String> names = new HashMap<>();
 
@@ -97,15 +100,20 @@ public class BitcoinSerializer extends MessageSerializer {
      * @param protocolVersion the protocol version to use
      */
     public BitcoinSerializer(NetworkParameters params, int protocolVersion) {
+        this(params, protocolVersion, false);
+    }
+
+    private BitcoinSerializer(NetworkParameters params, int protocolVersion, boolean lazyParsing) {
         this.params = params;
         this.packetMagic = params.getPacketMagic();
         this.protocolVersion = protocolVersion;
+        this.lazyParsing = lazyParsing;
     }
 
     @Override
     public BitcoinSerializer withProtocolVersion(int protocolVersion) {
         return protocolVersion == this.protocolVersion ?
-                this : new BitcoinSerializer(params, protocolVersion);
+                this : new BitcoinSerializer(params, protocolVersion, lazyParsing);
     }
 
     @Override
@@ -113,6 +121,17 @@ public class BitcoinSerializer extends MessageSerializer {
         return protocolVersion;
     }
 
+    @Override
+    public BitcoinSerializer withLazyParsing(boolean lazyParsing) {
+        return lazyParsing == this.lazyParsing ?
+                this : new BitcoinSerializer(params, protocolVersion, lazyParsing);
+    }
+
+    @Override
+    public boolean isLazyParsing() {
+        return lazyParsing;
+    }
+
     /**
      * Writes message to to the output stream.
      */
@@ -150,6 +169,83 @@ public class BitcoinSerializer extends MessageSerializer {
         serialize(name, message.serialize(), out);
     }
 
+    /**
+     * Writes message into a buffer from the given pool: the payload is serialized straight into the buffer after
+     * room for the header, then the header is filled in with the length and checksum of the payload.
+     */
+    @Override
+    public ByteBuffer serialize(Message message, ByteBufferPool pool) throws IOException {
+        String name = names.get(message.getClass());
+        if (name == null) {
+            throw new Error("BitcoinSerializer doesn't currently know how to serialize " + message.getClass());
+        }
+        int headerLength = 4 + BitcoinPacketHeader.HEADER_LENGTH;
+        PooledBufferOutputStream out = new PooledBufferOutputStream(pool, headerLength);
+        try {
+            if (message instanceof BaseMessage)
+                ((BaseMessage) message).bitcoinSerializeToStream(out);
+            else
+                out.write(message.serialize());
+        } catch (IOException | RuntimeException e) {
+            pool.release(out.buffer);
+            throw e;
+        }
+        ByteBuffer buffer = out.buffer;
+        int payloadLength = buffer.position() - headerLength;
+
+        ((Buffer) buffer).flip();
+        ByteUtils.writeInt32BE(packetMagic, buffer);
+        // Pooled buffers aren't zeroed, so pad the command explicitly.
+        for (int i = 0; i < COMMAND_LEN; i++)
+            buffer.put(i < name.length() ? (byte) (name.codePointAt(i) & 0xFF) : 0);
+        ByteUtils.writeInt32LE(payloadLength, buffer);
+        ByteBuffer payload = buffer.duplicate();
+        ((Buffer) payload).position(headerLength);
+        byte[] hash = new byte[Groestl.HASH_LENGTH];
+        Groestl.digestInto(payload, hash, 0);
+        buffer.put(hash, 0, 4);
+        ((Buffer) buffer).position(0);
+
+        if (log.isDebugEnabled())
+            log.debug("Sending {} message of {} bytes", name, payloadLength);
+        return buffer;
+    }
+
+    /** Writes into a pooled buffer, moving to a buffer twice the size whenever it is full. */
+    private static class PooledBufferOutputStream extends OutputStream {
+        private final ByteBufferPool pool;
+        private ByteBuffer buffer;
+
+        PooledBufferOutputStream(ByteBufferPool pool, int offset) {
+            this.pool = pool;
+            this.buffer = pool.acquire(ByteBufferPool.MIN_CAPACITY);
+            ((Buffer) buffer).position(offset);
+        }
+
+        @Override
+        public void write(int b) {
+            ensureRemaining(1);
+            buffer.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            ensureRemaining(len);
+            buffer.put(b, off, len);
+        }
+
+        private void ensureRemaining(int length) {
+            if (buffer.remaining() >= length)
+                return;
+            int needed = buffer.position() + length;
+            ByteBuffer larger = pool.acquire(Math.max(needed, buffer.capacity() * 2));
+            ((Buffer) buffer).flip();
+            larger.put(buffer);
+            pool.release(buffer);
+            buffer = larger;
+        }
+    }
+
     /**
      * Reads a message from the given ByteBuffer and returns it.
      */
@@ -186,16 +282,22 @@ public class BitcoinSerializer extends MessageSerializer {
 
     /**
      * Deserialize payload only.  You must provide a header, typically obtained by calling
-     * {@link BitcoinSerializer#deserializeHeader}.
+     * {@link BitcoinSerializer#deserializeHeader}. The payload is parsed in place, without copying it out of the
+     * buffer first; the resulting message doesn't refer to the buffer.
      */
     @Override
     public Message deserializePayload(BitcoinPacketHeader header, ByteBuffer in) throws ProtocolException, BufferUnderflowException {
-        byte[] payloadBytes = new byte[header.size];
-        in.get(payloadBytes, 0, header.size);
-
-        // Verify the checksum.
-        byte[] hash;
-        hash = Groestl.digest(payloadBytes);
+        if (in.remaining() < header.size)
+            throw new BufferUnderflowException();
+        ByteBuffer payload = in.slice();
+        ((Buffer) payload).limit(header.size);
+        ((Buffer) in).position(in.position() + header.size);
+
+        // Verify the checksum. The payload is usually a slice of a direct read buffer, which the native library
+        // hashes in place.
+        byte[] hash = new byte[Groestl.HASH_LENGTH];
+        Groestl.digestInto(payload, hash, 0);
+        ((Buffer) payload).rewind();
         if (header.checksum[0] != hash[0] || header.checksum[1] != hash[1] ||
                 header.checksum[2] != hash[2] || header.checksum[3] != hash[3]) {
             throw new ProtocolException("Checksum failed to verify, actual " +
@@ -204,19 +306,23 @@ public class BitcoinSerializer extends MessageSerializer {
         }
 
         if (log.isDebugEnabled()) {
-            log.debug("Received {} byte '{}' message: {}", header.size, header.command,
-                    ByteUtils.formatHex(payloadBytes));
+            log.debug("Received {} byte '{}' message: {}", header.size, header.command, formatHex(payload));
         }
 
         try {
-            return makeMessage(header.command, payloadBytes, hash);
+            return makeMessage(header.command, payload.duplicate());
         } catch (Exception e) {
-            throw new ProtocolException("Error deserializing message " + ByteUtils.formatHex(payloadBytes) + "\n", e);
+            throw new ProtocolException("Error deserializing message " + formatHex(payload) + "\n", e);
         }
     }
 
-    private Message makeMessage(String command, byte[] payloadBytes, byte[] hash) throws ProtocolException {
-        ByteBuffer payload = ByteBuffer.wrap(payloadBytes);
+    private static String formatHex(ByteBuffer payload) {
+        byte[] bytes = new byte[payload.remaining()];
+        payload.duplicate().get(bytes);
+        return ByteUtils.formatHex(bytes);
+    }
+
+    private Message makeMessage(String command, ByteBuffer payload) throws ProtocolException {
         // We use an if ladder rather than reflection because reflection is very slow on Android.
         if (command.equals("version")) {
             return VersionMessage.read(payload);
@@ -300,6 +406,8 @@ public class BitcoinSerializer extends MessageSerializer {
      */
     @Override
     public Block makeBlock(ByteBuffer payload) throws ProtocolException {
+        if (lazyParsing)
+            return Block.readLazily(retain(payload));
         return Block.read(payload);
     }
 
@@ -337,11 +445,24 @@ public class BitcoinSerializer extends MessageSerializer {
     @Override
     public Transaction makeTransaction(ByteBuffer payload)
             throws ProtocolException {
+        if (lazyParsing)
+            return Transaction.readLazily(retain(payload), protocolVersion);
         return Transaction.read(payload, protocolVersion);
         //do not pass the hash from the header because that hash is Groeslt, but it should be SHA256
         //return new Transaction(params, payloadBytes, offset, null, this, length, null);
     }
 
+    /**
+     * Copies the rest of the payload for a message that keeps referring to it, as the payload is usually a pooled or
+     * read buffer that is reused for the next message. The payload is consumed.
+     */
+    private static ByteBuffer retain(ByteBuffer payload) {
+        ByteBuffer copy = ByteBuffer.allocate(payload.remaining());
+        copy.put(payload);
+        ((Buffer) copy).flip();
+        return copy;
+    }
+
     @Override
     public void seekPastMagicBytes(ByteBuffer in) throws BufferUnderflowException {
         int magicCursor = 3;  // Which byte of the magic we're looking for currently.
@@ -148,6 +148,34 @@ public class Block extends BaseMessage {
      * @throws BufferUnderflowException if the read message extends beyond the remaining bytes of the payload
      */
     public static Block read(ByteBuffer payload) throws BufferUnderflowException, ProtocolException {
+        return read(payload, null);
+    }
+
+    /**
+     * Deserialize this message from a given payload, using a block hash that has already been calculated, e.g. by
+     * {@link Groestl#digestMany(ByteBuffer, int, int, int, byte[])}. If the hash is null, it is calculated from the
+     * header.
+     */
+    static Block read(ByteBuffer payload, @Nullable Sha256Hash hash) throws BufferUnderflowException,
+            ProtocolException {
+        return read(payload, hash, false);
+    }
+
+    /**
+     * Deserialize this message from a given payload, reading its transactions with
+     * {@link Transaction#readLazily(ByteBuffer, int)}. They keep referring to the payload, so it must not be changed
+     * afterwards.
+     *
+     * @param payload payload to deserialize from
+     * @return read message
+     * @throws BufferUnderflowException if the read message extends beyond the remaining bytes of the payload
+     */
+    public static Block readLazily(ByteBuffer payload) throws BufferUnderflowException, ProtocolException {
+        return read(payload, null, true);
+    }
+
+    private static Block read(ByteBuffer payload, @Nullable Sha256Hash hash, boolean lazy)
+            throws BufferUnderflowException, ProtocolException {
         // header
         payload.mark();
         long version = ByteUtils.readUint32(payload);
@@ -156,11 +184,13 @@ public class Block extends BaseMessage {
         Instant time = Instant.ofEpochSecond(ByteUtils.readUint32(payload));
         long difficultyTarget = ByteUtils.readUint32(payload);
         long nonce = ByteUtils.readUint32(payload);
-        payload.reset(); // read again from the mark for the hash
-        Sha256Hash hash = Sha256Hash.wrapReversed(Groestl.digest(Buffers.readBytes(payload, HEADER_SIZE)));
+        if (hash == null) {
+            payload.reset(); // read again from the mark for the hash
+            hash = Sha256Hash.wrapReversed(Groestl.digest(Buffers.readBytes(payload, HEADER_SIZE)));
+        }
         // transactions
         List<Transaction> transactions = payload.hasRemaining() ? // otherwise this message is just a header
-                readTransactions(payload) :
+                readTransactions(payload, lazy) :
                 null;
         Block block = new Block(version, prevBlockHash, merkleRoot, time, difficultyTarget, nonce, transactions);
         block.hash = hash;
@@ -170,14 +200,16 @@ public class Block extends BaseMessage {
     /**
      * Parse transactions from the block.
      */
-    private static List<Transaction> readTransactions(ByteBuffer payload) throws BufferUnderflowException,
-            ProtocolException {
+    private static List<Transaction> readTransactions(ByteBuffer payload, boolean lazy)
+            throws BufferUnderflowException, ProtocolException {
         VarInt numTransactionsVarInt = VarInt.read(payload);
         check(numTransactionsVarInt.fitsInt(), BufferUnderflowException::new);
         int numTransactions = numTransactionsVarInt.intValue();
         List<Transaction> transactions = new ArrayList<>(Math.min(numTransactions, Utils.MAX_INITIAL_ARRAY_LENGTH));
         for (int i = 0; i < numTransactions; i++) {
-            Transaction tx = Transaction.read(payload);
+            Transaction tx = lazy ?
+                    Transaction.readLazily(payload, ProtocolVersion.CURRENT.intValue()) :
+                    Transaction.read(payload);
             // Label the transaction as coming from the P2P network, so code that cares where we first saw it knows.
             tx.getConfidence().setSource(TransactionConfidence.Source.NETWORK);
             transactions.add(tx);
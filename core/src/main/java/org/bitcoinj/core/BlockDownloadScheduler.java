@@ -0,0 +1,589 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import net.jcip.annotations.GuardedBy;
+import org.bitcoinj.base.Sha256Hash;
+import org.bitcoinj.base.internal.TimeUtils;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+
+/**
+ * <p>Downloads the block chain headers first: the headers are fetched from one peer, the download peer, and the
+ * bodies of the blocks (or filtered blocks) they announce are requested from all connected peers at once. The
+ * blocks are handed to the {@link AbstractBlockChain} in chain order, whichever peer delivers them first.</p>
+ *
+ * <p>Only a window of the oldest outstanding blocks is requested, so the blocks waiting for their predecessors
+ * are bounded. Each peer has a limit of blocks in flight, which grows by one for each block it delivers and is
+ * halved when a request times out, at which point the block is requested again from another peer.</p>
+ *
+ * <p>The headers are queued here rather than added to the chain, as the chain would ignore the blocks of headers
+ * it already has. Used by the {@link PeerGroup} if enabled with {@link PeerGroup#setParallelBlockDownload(boolean)};
+ * {@link #run()} must be called periodically to notice timeouts.</p>
+ */
+class BlockDownloadScheduler implements Runnable {
+    private static final Logger log = LoggerFactory.getLogger(BlockDownloadScheduler.class);
+
+    /** Maximum number of blocks requested from a single peer at a time. */
+    static final int DEFAULT_MAX_IN_FLIGHT_PER_PEER = 16;
+    /** Number of oldest outstanding blocks that can be requested. */
+    static final int DEFAULT_WINDOW = 1024;
+    /** Time after which a block or headers request is given up on. */
+    static final Duration DEFAULT_TIMEOUT = Duration.ofSeconds(20);
+    // We don't ask for more headers while this many are waiting for their blocks.
+    private static final int MAX_QUEUED_HEADERS = 2 * HeadersMessage.MAX_HEADERS;
+    // Pruning nodes only keep (at least) this many recent blocks.
+    private static final int NODE_NETWORK_LIMITED_MIN_BLOCKS = 288;
+
+    private final NetworkParameters params;
+    private final AbstractBlockChain chain;
+    private final Supplier<List<Peer>> peers;
+    private final BooleanSupplier useFilteredBlocks;
+    private final int maxInFlightPerPeer;
+    private final int window;
+    private final Duration timeout;
+
+    private final ReentrantLock lock = Threading.lock(BlockDownloadScheduler.class);
+    // Held while handing blocks to the chain, so they are added in order. Never taken with lock held.
+    private final ReentrantLock addLock = Threading.lock("BlockDownloadScheduler-add lock");
+
+    private static final class Slot {
+        final Block header;
+        final int height;
+        // The peer the block is currently requested from.
+        @Nullable Peer peer;
+        @Nullable Instant requestTime;
+        boolean filtered;
+        int filterGeneration;
+        // The block once received, and the peer it came from.
+        @Nullable Block block;
+        @Nullable FilteredBlock filteredBlock;
+        @Nullable Peer source;
+
+        Slot(Block header, int height) {
+            this.header = header;
+            this.height = height;
+        }
+
+        boolean received() {
+            return block != null;
+        }
+    }
+
+    private static final class PeerState {
+        int inFlight;
+        int limit;
+
+        PeerState(int limit) {
+            this.limit = limit;
+        }
+    }
+
+    // Headers waiting for their blocks to be added to the chain, in chain order.
+    @GuardedBy("lock") private final ArrayDeque<Slot> slots = new ArrayDeque<>();
+    @GuardedBy("lock") private final Map<Sha256Hash, Slot> slotsByHash = new HashMap<>();
+    @GuardedBy("lock") private final Map<Peer, PeerState> peerStates = new HashMap<>();
+    @GuardedBy("lock") @Nullable private Peer headersPeer;
+    @GuardedBy("lock") @Nullable private Instant headersRequestTime;
+    // Whether the last headers message was full, so the download peer has more.
+    @GuardedBy("lock") private boolean moreHeaders;
+    // Whether new blocks were announced while headers were in flight.
+    @GuardedBy("lock") private boolean headersAgain;
+    // Incremented whenever a new Bloom filter was sent; filtered blocks requested before that are thrown away.
+    @GuardedBy("lock") private int filterGeneration;
+    // Whether a filtered block used up the keys of the filter, so nothing is requested until a new filter is sent.
+    @GuardedBy("lock") private boolean awaitingFilter;
+
+    /**
+     * @param params             network the chain belongs to
+     * @param chain              chain to add the downloaded blocks to
+     * @param peers              connected peers to download blocks from
+     * @param useFilteredBlocks  whether to request filtered blocks from peers that support Bloom filtering
+     */
+    BlockDownloadScheduler(NetworkParameters params, AbstractBlockChain chain, Supplier<List<Peer>> peers,
+                           BooleanSupplier useFilteredBlocks) {
+        this(params, chain, peers, useFilteredBlocks, DEFAULT_MAX_IN_FLIGHT_PER_PEER, DEFAULT_WINDOW,
+                DEFAULT_TIMEOUT);
+    }
+
+    BlockDownloadScheduler(NetworkParameters params, AbstractBlockChain chain, Supplier<List<Peer>> peers,
+                           BooleanSupplier useFilteredBlocks, int maxInFlightPerPeer, int window, Duration timeout) {
+        this.params = params;
+        this.chain = chain;
+        this.peers = peers;
+        this.useFilteredBlocks = useFilteredBlocks;
+        this.maxInFlightPerPeer = maxInFlightPerPeer;
+        this.window = window;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Asks the given peer for the headers following the ones already queued, unless headers are already in flight.
+     * The peer becomes the one headers are accepted from.
+     */
+    void requestHeaders(Peer peer) {
+        GetHeadersMessage message;
+        lock.lock();
+        try {
+            if (headersPeer != peer) {
+                headersPeer = peer;
+                headersRequestTime = null;
+            }
+            if (headersRequestTime != null) {
+                headersAgain = true;
+                return;
+            }
+            message = headersRequestLocked();
+        } finally {
+            lock.unlock();
+        }
+        peer.sendMessage(message);
+    }
+
+    @GuardedBy("lock")
+    private GetHeadersMessage headersRequestLocked() {
+        // Same locator as Peer.blockChainDownloadLocked() uses, preceded by the last header we queued.
+        BlockLocator locator = new BlockLocator();
+        Slot last = slots.peekLast();
+        if (last != null)
+            locator = locator.add(last.header.getHash());
+        BlockStore store = chain.getBlockStore();
+        StoredBlock cursor = chain.getChainHead();
+        try {
+            for (int i = 100; cursor != null && i > 0; i--) {
+                locator = locator.add(cursor.getHeader().getHash());
+                cursor = cursor.getPrev(store);
+            }
+        } catch (BlockStoreException e) {
+            throw new RuntimeException(e);
+        }
+        if (cursor != null)
+            locator = locator.add(params.getGenesisBlock().getHash());
+        headersRequestTime = TimeUtils.currentTime();
+        headersAgain = false;
+        return new GetHeadersMessage(params.getSerializer().getProtocolVersion(), locator, Sha256Hash.ZERO_HASH);
+    }
+
+    /**
+     * Called when the download peer announces new blocks, so their headers are fetched.
+     */
+    void blocksAnnounced(Peer peer) {
+        requestHeaders(peer);
+    }
+
+    /**
+     * Queues the given headers and requests their blocks. If the download peer switched to a fork, the queued headers
+     * above the fork point are dropped in favor of the new ones.
+     *
+     * @throws ProtocolException if the headers don't connect to the ones we have
+     */
+    void headersReceived(Peer peer, List<Block> headers) throws ProtocolException {
+        GetHeadersMessage message = null;
+        lock.lock();
+        try {
+            if (peer != headersPeer) {
+                log.info("{}: Ignoring headers from peer that is not the download peer", peer);
+                return;
+            }
+            headersRequestTime = null;
+            BlockStore store = chain.getBlockStore();
+            int added = 0;
+            for (Block header : headers) {
+                Sha256Hash hash = header.getHash();
+                if (slotsByHash.containsKey(hash) || store.get(hash) != null)
+                    continue; // Overlaps with what we have, in case of a locator that's gone stale.
+                Sha256Hash prevHash = header.getPrevBlockHash();
+                Slot last = slots.peekLast();
+                int height;
+                if (last != null && last.header.getHash().equals(prevHash)) {
+                    height = last.height + 1;
+                } else {
+                    // Either the first header, or a fork off a queued header or a block of the chain.
+                    Slot forkSlot = slotsByHash.get(prevHash);
+                    StoredBlock storedPrev = forkSlot == null ? store.get(prevHash) : null;
+                    if (forkSlot == null && storedPrev == null)
+                        throw new ProtocolException("Got unconnected header from peer: " + header.getHashAsString());
+                    if (last != null) {
+                        log.info("{}: Headers fork off at {}, dropping the queued headers above it", peer, prevHash);
+                        dropSlotsAfterLocked(forkSlot);
+                    }
+                    height = (forkSlot != null ? forkSlot.height : storedPrev.getHeight()) + 1;
+                }
+                Block.verifyHeader(header);
+                Slot slot = new Slot(header, height);
+                slots.addLast(slot);
+                slotsByHash.put(hash, slot);
+                added++;
+            }
+            moreHeaders = headers.size() >= HeadersMessage.MAX_HEADERS;
+            if (log.isDebugEnabled())
+                log.debug("{}: Queued {} of {} headers, {} queued", peer, added, headers.size(), slots.size());
+            if ((moreHeaders && slots.size() < MAX_QUEUED_HEADERS) || headersAgain)
+                message = headersRequestLocked();
+        } catch (BlockStoreException e) {
+            throw new RuntimeException(e);
+        } finally {
+            lock.unlock();
+        }
+        if (message != null)
+            peer.sendMessage(message);
+        fill();
+    }
+
+    // Forgets the queued headers after the given one, or all of them for null. Replies to the requests for their blocks
+    // will be ignored.
+    @GuardedBy("lock")
+    private void dropSlotsAfterLocked(@Nullable Slot fork) {
+        while (!slots.isEmpty() && slots.peekLast() != fork) {
+            Slot slot = slots.pollLast();
+            slotsByHash.remove(slot.header.getHash());
+            if (slot.peer != null)
+                peerStates.get(slot.peer).inFlight--;
+        }
+    }
+
+    /**
+     * Takes a block or filtered block received from the given peer, if it is one we requested. It is added to the
+     * chain once all blocks before it are.
+     *
+     * @param filteredBlock the filtered block, whose header is the given block; or null for a full block
+     * @return false if the block is not one we requested
+     */
+    boolean blockReceived(Peer peer, Block block, @Nullable FilteredBlock filteredBlock) {
+        Sha256Hash hash = block.getHash();
+        lock.lock();
+        try {
+            Slot slot = slotsByHash.get(hash);
+            if (slot == null)
+                return false;
+            if (slot.received()) {
+                if (log.isDebugEnabled())
+                    log.debug("{}: Ignoring duplicate block {}", peer, hash);
+                return true;
+            }
+            if (slot.peer == peer)
+                delivered(peer);
+            else if (slot.peer != null)
+                // Asked someone else after a timeout, but this one came through after all.
+                peerStates.get(slot.peer).inFlight--;
+            boolean stale = slot.filtered && slot.filterGeneration != filterGeneration;
+            slot.peer = null;
+            slot.requestTime = null;
+            if (stale) {
+                log.info("{}: Discarding block {} filtered by an old Bloom filter", peer, hash);
+            } else {
+                slot.block = filteredBlock != null ? filteredBlock.getBlockHeader() : block;
+                slot.filteredBlock = filteredBlock;
+                slot.source = peer;
+            }
+        } finally {
+            lock.unlock();
+        }
+        addReceivedBlocks();
+        fill();
+        return true;
+    }
+
+    @GuardedBy("lock")
+    private void delivered(Peer peer) {
+        PeerState state = peerStates.get(peer);
+        state.inFlight--;
+        state.limit = Math.min(maxInFlightPerPeer, state.limit + 1);
+    }
+
+    // Adds the received blocks at the start of the queue to the chain.
+    private void addReceivedBlocks() {
+        addLock.lock();
+        try {
+            while (true) {
+                Slot slot;
+                int generation;
+                lock.lock();
+                try {
+                    slot = slots.peekFirst();
+                    if (awaitingFilter || slot == null || !slot.received())
+                        return;
+                    generation = filterGeneration;
+                } finally {
+                    lock.unlock();
+                }
+                Peer source = Objects.requireNonNull(slot.source);
+                FilteredBlock filteredBlock = slot.filteredBlock;
+                if (filteredBlock != null && source.checkForFilterExhaustion(filteredBlock)) {
+                    // The wallets have new keys and a new filter is being calculated, see Peer.endFilteredBlock().
+                    lock.lock();
+                    try {
+                        log.info("Bloom filter exhausted whilst processing block {}, discarding", slot.header.getHash());
+                        slot.block = null;
+                        slot.filteredBlock = null;
+                        slot.source = null;
+                        // If the new filter has been sent already, the block can be fetched again right away.
+                        if (filterGeneration == generation)
+                            awaitingFilter = true;
+                    } finally {
+                        lock.unlock();
+                    }
+                    return;
+                }
+                Block block = Objects.requireNonNull(slot.block);
+                boolean added;
+                try {
+                    added = filteredBlock != null ? chain.add(filteredBlock) : chain.add(block);
+                } catch (VerificationException e) {
+                    log.warn("{}: Block verification failed, restarting download", source, e);
+                    restart();
+                    return;
+                } catch (PrunedException e) {
+                    // Unreachable when in SPV mode.
+                    throw new RuntimeException(e);
+                }
+                if (!added) {
+                    // The chain changed under us, e.g. a block was added through another path.
+                    log.warn("Block {} doesn't connect to the chain, restarting download", block.getHashAsString());
+                    restart();
+                    return;
+                }
+                Peer reportingPeer;
+                GetHeadersMessage message = null;
+                lock.lock();
+                try {
+                    if (slots.peekFirst() == slot) {
+                        slots.pollFirst();
+                        slotsByHash.remove(slot.header.getHash());
+                    }
+                    reportingPeer = headersPeer != null ? headersPeer : source;
+                    if (moreHeaders && headersRequestTime == null && headersPeer != null
+                            && slots.size() < MAX_QUEUED_HEADERS)
+                        message = headersRequestLocked();
+                } finally {
+                    lock.unlock();
+                }
+                if (message != null)
+                    reportingPeer.sendMessage(message);
+                // Reported through the download peer, where the chain download listeners are registered.
+                reportingPeer.invokeOnBlocksDownloaded(block, filteredBlock);
+            }
+        } finally {
+            addLock.unlock();
+        }
+    }
+
+    // Forgets all queued headers and asks for them again, starting from the chain head.
+    private void restart() {
+        Peer peer;
+        GetHeadersMessage message = null;
+        lock.lock();
+        try {
+            slots.clear();
+            slotsByHash.clear();
+            // Replies to the outstanding requests will be ignored.
+            peerStates.values().forEach(state -> state.inFlight = 0);
+            moreHeaders = false;
+            peer = headersPeer;
+            if (peer != null)
+                message = headersRequestLocked();
+        } finally {
+            lock.unlock();
+        }
+        if (message != null)
+            peer.sendMessage(message);
+    }
+
+    /**
+     * Called after a new Bloom filter was sent to all peers. Filtered blocks requested before are thrown away and
+     * requested again.
+     */
+    void filterChanged() {
+        lock.lock();
+        try {
+            filterGeneration++;
+            awaitingFilter = false;
+            for (Slot slot : slots) {
+                if (slot.received() && slot.filtered) {
+                    slot.block = null;
+                    slot.filteredBlock = null;
+                    slot.source = null;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        addReceivedBlocks();
+        fill();
+    }
+
+    /** Called when a peer connected, to spread the requests to it too. */
+    void peerConnected(Peer peer) {
+        fill();
+    }
+
+    /** Called when a peer disconnected. Its outstanding requests are sent to other peers. */
+    void peerDisconnected(Peer peer) {
+        lock.lock();
+        try {
+            peerStates.remove(peer);
+            for (Slot slot : slots) {
+                if (slot.peer == peer) {
+                    slot.peer = null;
+                    slot.requestTime = null;
+                }
+            }
+            if (headersPeer == peer) {
+                headersPeer = null;
+                headersRequestTime = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+        fill();
+    }
+
+    /** Requests the blocks that timed out again from other peers. */
+    @Override
+    public void run() {
+        try {
+            checkTimeouts();
+            fill();
+        } catch (Throwable e) {
+            log.error("Error in block download scheduler", e);  // The executor swallows exceptions :(
+        }
+    }
+
+    private void checkTimeouts() {
+        Peer peer = null;
+        GetHeadersMessage message = null;
+        lock.lock();
+        try {
+            Instant deadline = TimeUtils.currentTime().minus(timeout);
+            int i = 0;
+            for (Slot slot : slots) {
+                if (i++ >= window)
+                    break;
+                if (slot.peer != null && slot.requestTime.isBefore(deadline)) {
+                    PeerState state = peerStates.get(slot.peer);
+                    state.inFlight--;
+                    state.limit = Math.max(1, state.limit / 2);
+                    log.info("{}: Block {} timed out, lowering limit to {} blocks in flight", slot.peer,
+                            slot.header.getHash(), state.limit);
+                    slot.peer = null;
+                    slot.requestTime = null;
+                }
+            }
+            if (headersRequestTime != null && headersRequestTime.isBefore(deadline) && headersPeer != null) {
+                log.info("{}: Headers timed out, requesting again", headersPeer);
+                peer = headersPeer;
+                message = headersRequestLocked();
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (message != null)
+            peer.sendMessage(message);
+    }
+
+    // Requests the blocks of the window that aren't in flight, each from the least busy peer that has it.
+    private void fill() {
+        List<Peer> candidates = peers.get();
+        boolean filtered = useFilteredBlocks.getAsBoolean();
+        Map<Peer, GetDataMessage> requests = new LinkedHashMap<>();
+        lock.lock();
+        try {
+            if (awaitingFilter)
+                return;
+            Instant now = TimeUtils.currentTime();
+            int i = 0;
+            for (Slot slot : slots) {
+                if (i++ >= window)
+                    break;
+                if (slot.peer != null || slot.received())
+                    continue;
+                Peer best = null;
+                double bestLoad = 1;
+                for (Peer peer : candidates) {
+                    if (!hasBlock(peer, slot))
+                        continue;
+                    PeerState state = peerStates.computeIfAbsent(peer, p -> new PeerState(maxInFlightPerPeer));
+                    double load = (double) state.inFlight / state.limit;
+                    if (load < bestLoad) {
+                        best = peer;
+                        bestLoad = load;
+                    }
+                }
+                if (best == null)
+                    continue;
+                peerStates.get(best).inFlight++;
+                slot.peer = best;
+                slot.requestTime = now;
+                slot.filtered = filtered && best.isBloomFilteringSupported(best.getPeerVersionMessage());
+                slot.filterGeneration = filterGeneration;
+                GetDataMessage getdata = requests.computeIfAbsent(best, p -> new GetDataMessage());
+                if (slot.filtered)
+                    getdata.addFilteredBlock(slot.header.getHash());
+                else
+                    getdata.addBlock(slot.header.getHash(),
+                            best.getPeerVersionMessage().services().has(Services.NODE_WITNESS));
+            }
+        } finally {
+            lock.unlock();
+        }
+        requests.forEach((peer, getdata) -> {
+            peer.sendMessage(getdata);
+            // Like Peer.processInv(), so the transactions of the last filtered block are followed by a pong.
+            if (getdata.getItems().get(0).type == InventoryItem.Type.FILTERED_BLOCK)
+                peer.sendMessage(Ping.random());
+        });
+    }
+
+    @GuardedBy("lock")
+    private boolean hasBlock(Peer peer, Slot slot) {
+        VersionMessage version = peer.getPeerVersionMessage();
+        if (version == null)
+            return false;
+        long bestHeight = peer.getBestHeight();
+        if (!version.services().has(Services.NODE_NETWORK)
+                && slot.height <= bestHeight - NODE_NETWORK_LIMITED_MIN_BLOCKS)
+            return false;
+        // The download peer has all the blocks it sent us the headers of.
+        return peer == headersPeer || bestHeight >= slot.height;
+    }
+
+    /** Returns the number of headers waiting for their blocks to be added to the chain. */
+    int getQueuedHeaders() {
+        lock.lock();
+        try {
+            return slots.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
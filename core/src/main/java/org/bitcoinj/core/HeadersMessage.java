@@ -17,6 +17,8 @@
 
 package org.bitcoinj.core;
 
+import com.hashengineering.crypto.Groestl;
+import org.bitcoinj.base.Sha256Hash;
 import org.bitcoinj.base.VarInt;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -61,9 +63,25 @@ public class HeadersMessage extends BaseMessage {
             throw new ProtocolException("Too many headers: got " + numHeaders + " which is larger than " +
                     MAX_HEADERS);
 
+        // Each header is followed by a zero transaction count, so in a well-formed message the headers are laid out
+        // at a fixed stride and can be hashed in one batch.
+        int stride = Block.HEADER_SIZE + 1;
+        int start = payload.position();
+        byte[] hashes = null;
+        if (payload.remaining() >= numHeaders * stride) {
+            hashes = new byte[numHeaders * Groestl.HASH_LENGTH];
+            Groestl.digestMany(payload, numHeaders, Block.HEADER_SIZE, stride, hashes);
+        }
+
         List<Block> blockHeaders = new ArrayList<>();
         for (int i = 0; i < numHeaders; ++i) {
-            final Block newBlockHeader = Block.read(payload);
+            Sha256Hash hash = null;
+            // Only use the batch hash if the previous headers were laid out as expected.
+            if (hashes != null && payload.position() == start + i * stride) {
+                int offset = i * Groestl.HASH_LENGTH;
+                hash = Sha256Hash.wrapReversed(Arrays.copyOfRange(hashes, offset, offset + Groestl.HASH_LENGTH));
+            }
+            final Block newBlockHeader = Block.read(payload, hash);
             if (newBlockHeader.hasTransactions()) {
                 throw new ProtocolException("Block header does not end with a null byte");
             }
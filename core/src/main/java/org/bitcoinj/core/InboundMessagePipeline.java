@@ -0,0 +1,231 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import net.jcip.annotations.GuardedBy;
+import org.bitcoinj.net.ByteBufferPool;
+import org.bitcoinj.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Deserializes and processes the messages received from one peer on an executor, in the order they were received.
+ * The network thread only frames the messages into buffers from a {@link ByteBufferPool} before {@link #add}ing
+ * them, so a slow message doesn't hold up the other connections served by that thread. The buffers are released
+ * to the pool once deserialized.
+ * <p>
+ * The queue between the two is bounded: once it is full, reading from the connection is paused until half of it
+ * has been processed. The message that fills the queue is still taken, so a single message larger than the limit
+ * gets through. The pause callback is called with the lock of this pipeline held, so it must not call back into it.
+ */
+class InboundMessagePipeline {
+    private static final Logger log = LoggerFactory.getLogger(InboundMessagePipeline.class);
+
+    static final int DEFAULT_MAX_QUEUED_MESSAGES = 1000;
+    static final int DEFAULT_MAX_QUEUED_BYTES = 4 * 1024 * 1024;
+    // Messages processed per task, so a busy peer doesn't keep a thread of a shared pool to itself.
+    private static final int BATCH_SIZE = 64;
+
+    /** Processes a message, see {@link PeerSocketHandler#processMessage(Message)}. */
+    interface MessageProcessor {
+        void processMessage(Message message) throws Exception;
+    }
+
+    private static final class Frame {
+        final BitcoinSerializer.BitcoinPacketHeader header;
+        final ByteBuffer payload;
+
+        Frame(BitcoinSerializer.BitcoinPacketHeader header, ByteBuffer payload) {
+            this.header = header;
+            this.payload = payload;
+        }
+    }
+
+    private final Executor executor;
+    private final MessageSerializer serializer;
+    private final ByteBufferPool pool;
+    private final Context context;
+    private final MessageProcessor processor;
+    private final Consumer<Exception> onError;
+    private final Consumer<Boolean> setReadingPaused;
+    private final int maxQueuedMessages;
+    private final int maxQueuedBytes;
+
+    private final ReentrantLock lock = Threading.lock(InboundMessagePipeline.class);
+    @GuardedBy("lock") private final ArrayDeque<Frame> queue = new ArrayDeque<>();
+    @GuardedBy("lock") private long queuedBytes;
+    // Whether a task is processing the queue, or has been submitted to.
+    @GuardedBy("lock") private boolean running;
+    @GuardedBy("lock") private boolean readingPaused;
+    // Set once processing a message failed or the pipeline was closed; nothing is processed after that.
+    @GuardedBy("lock") private boolean stopped;
+
+    /**
+     * @param executor         executor to deserialize and process the messages on
+     * @param serializer       serializer to deserialize the messages with
+     * @param pool             pool the payload buffers are released to
+     * @param context          context of the processing threads
+     * @param processor        processes the messages
+     * @param onError          called with the exception a message couldn't be deserialized or processed with
+     * @param setReadingPaused pauses or resumes reading from the connection
+     */
+    InboundMessagePipeline(Executor executor, MessageSerializer serializer, ByteBufferPool pool, Context context,
+                           MessageProcessor processor, Consumer<Exception> onError,
+                           Consumer<Boolean> setReadingPaused) {
+        this(executor, serializer, pool, context, processor, onError, setReadingPaused, DEFAULT_MAX_QUEUED_MESSAGES,
+                DEFAULT_MAX_QUEUED_BYTES);
+    }
+
+    InboundMessagePipeline(Executor executor, MessageSerializer serializer, ByteBufferPool pool, Context context,
+                           MessageProcessor processor, Consumer<Exception> onError,
+                           Consumer<Boolean> setReadingPaused, int maxQueuedMessages, int maxQueuedBytes) {
+        this.executor = executor;
+        this.serializer = serializer;
+        this.pool = pool;
+        this.context = context;
+        this.processor = processor;
+        this.onError = onError;
+        this.setReadingPaused = setReadingPaused;
+        this.maxQueuedMessages = maxQueuedMessages;
+        this.maxQueuedBytes = maxQueuedBytes;
+    }
+
+    /**
+     * Queues a received message for processing. Called on the network thread.
+     *
+     * @param header  header of the message
+     * @param payload buffer from the pool holding the payload of the message, which this pipeline takes over
+     */
+    void add(BitcoinSerializer.BitcoinPacketHeader header, ByteBuffer payload) {
+        boolean start = false;
+        lock.lock();
+        try {
+            if (stopped) {
+                pool.release(payload);
+                return;
+            }
+            queue.add(new Frame(header, payload));
+            queuedBytes += header.size;
+            if (!readingPaused && (queue.size() >= maxQueuedMessages || queuedBytes >= maxQueuedBytes)) {
+                if (log.isDebugEnabled())
+                    log.debug("Processing is behind by {} messages, pausing reading", queue.size());
+                readingPaused = true;
+                // Under the lock, so it can't overtake resuming.
+                setReadingPaused.accept(true);
+            }
+            if (!running)
+                running = start = true;
+        } finally {
+            lock.unlock();
+        }
+        if (start)
+            submit();
+    }
+
+    private void submit() {
+        try {
+            executor.execute(this::processQueue);
+        } catch (RejectedExecutionException e) {
+            fail(e);
+        }
+    }
+
+    private void processQueue() {
+        Context.propagate(context);
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            Frame frame;
+            lock.lock();
+            try {
+                frame = stopped ? null : queue.poll();
+                if (frame == null) {
+                    running = false;
+                    return;
+                }
+                queuedBytes -= frame.header.size;
+                if (readingPaused && queue.size() <= maxQueuedMessages / 2 && queuedBytes <= maxQueuedBytes / 2) {
+                    readingPaused = false;
+                    setReadingPaused.accept(false);
+                }
+            } finally {
+                lock.unlock();
+            }
+            try {
+                Message message;
+                try {
+                    message = serializer.deserializePayload(frame.header, frame.payload);
+                } finally {
+                    pool.release(frame.payload);
+                }
+                processor.processMessage(message);
+            } catch (Exception e) {
+                fail(e);
+                return;
+            }
+        }
+        // Let other peers have a go before continuing.
+        submit();
+    }
+
+    private void fail(Exception e) {
+        lock.lock();
+        try {
+            running = false;
+            stopLocked();
+        } finally {
+            lock.unlock();
+        }
+        onError.accept(e);
+    }
+
+    /**
+     * Stops processing messages once the connection is closed, and releases the buffers of the messages still
+     * waiting to the pool. Messages added after this are dropped.
+     */
+    void close() {
+        lock.lock();
+        try {
+            stopLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private void stopLocked() {
+        stopped = true;
+        queue.forEach(frame -> pool.release(frame.payload));
+        queue.clear();
+        queuedBytes = 0;
+    }
+
+    /** Returns the number of messages waiting to be processed. */
+    int size() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
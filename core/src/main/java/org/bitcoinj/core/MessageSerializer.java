@@ -18,6 +18,8 @@
 
 package org.bitcoinj.core;
 
+import org.bitcoinj.net.ByteBufferPool;
+
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.BufferUnderflowException;
@@ -39,6 +41,17 @@ public abstract class MessageSerializer {
      */
     public abstract int getProtocolVersion();
 
+    /**
+     * Create a new serializer that reads transactions and blocks lazily, see
+     * {@link Transaction#readLazily(java.nio.ByteBuffer, int)}, or eagerly. Eager by default.
+     */
+    public abstract MessageSerializer withLazyParsing(boolean lazyParsing);
+
+    /**
+     * Get whether this serializer reads transactions and blocks lazily.
+     */
+    public abstract boolean isLazyParsing();
+
     /**
      * Reads a message from the given ByteBuffer and returns it.
      */
@@ -124,5 +137,13 @@ public abstract class MessageSerializer {
      * it does not support serializing the given message.
      */
     public abstract void serialize(Message message, OutputStream out) throws IOException, UnsupportedOperationException;
-    
+
+    /**
+     * Writes message, header included, into a buffer acquired from the given pool. The buffer is ready to be read
+     * from and should be released to the pool once written.
+     *
+     * @throws UnsupportedOperationException if this serializer/deserializer
+     * does not support serialization.
+     */
+    public abstract ByteBuffer serialize(Message message, ByteBufferPool pool) throws IOException, UnsupportedOperationException;
 }
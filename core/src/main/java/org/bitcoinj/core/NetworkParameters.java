@@ -30,6 +30,7 @@ import org.bitcoinj.protocols.payments.PaymentProtocol;
 import org.bitcoinj.script.Script;
 import org.bitcoinj.store.BlockStore;
 import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.utils.DifficultyWindow;
 import org.bitcoinj.base.utils.MonetaryFormat;
 import org.bitcoinj.utils.VersionTally;
 
@@ -237,6 +238,24 @@ public abstract class NetworkParameters {
      */
     public abstract void checkDifficultyTransitions(StoredBlock storedPrev, Block next, final BlockStore blockStore) throws VerificationException, BlockStoreException;
 
+    /**
+     * Throws an exception if the block's difficulty is not correct. Difficulty algorithms that look at a moving window
+     * of blocks may use the given window to avoid reading those blocks from the block store for every block. The
+     * default implementation ignores the window and calls {@link #checkDifficultyTransitions(StoredBlock, Block,
+     * BlockStore)}, so overriding that is enough.
+     *
+     * @param storedPrev previous stored block
+     * @param next proposed block
+     * @param blockStore active BlockStore
+     * @param window window of recent blocks, kept across calls by the caller, or null to read from the block store
+     * @throws VerificationException if the block's difficulty is not correct.
+     * @throws BlockStoreException if an error occurred accessing the BlockStore
+     */
+    public void checkDifficultyTransitions(StoredBlock storedPrev, Block next, final BlockStore blockStore,
+                                           @Nullable DifficultyWindow window) throws VerificationException, BlockStoreException {
+        checkDifficultyTransitions(storedPrev, next, blockStore);
+    }
+
     /**
      * Validate the hash for a given block height against checkpoints
      * @param height block height
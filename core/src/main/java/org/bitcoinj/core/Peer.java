@@ -117,6 +117,9 @@ public class Peer extends PeerSocketHandler {
     private final VersionMessage versionMessage;
     // Maximum depth up to which pending transaction dependencies are downloaded, or 0 for disabled.
     private volatile int vDownloadTxDependencyDepth;
+    // If set by the PeerGroup, block bodies are downloaded from all peers through it and this peer only fetches the
+    // headers if it is the download peer.
+    @Nullable private volatile BlockDownloadScheduler vBlockDownloadScheduler;
     // How many block messages the peer has announced to us. Peers only announce blocks that attach to their best chain
     // so we can use this to calculate the height of the peers chain, by adding it to the initial height in the version
     // message. This method can go wrong if the peer re-orgs onto a shorter (but harder) chain, however, this is rare.
@@ -406,6 +409,7 @@ public class Peer extends PeerSocketHandler {
 
     @Override
     public void connectionClosed() {
+        releaseReceiveBuffers();
         for (final ListenerRegistration<PeerDisconnectedEventListener> registration : disconnectedEventListeners) {
             registration.executor.execute(() -> registration.listener.onPeerDisconnected(Peer.this, 0));
         }
@@ -636,6 +640,11 @@ public class Peer extends PeerSocketHandler {
         }
 
         try {
+            BlockDownloadScheduler scheduler = vBlockDownloadScheduler;
+            if (downloadBlockBodies && scheduler != null) {
+                scheduler.headersReceived(this, m.getBlockHeaders());
+                return;
+            }
             checkState(!downloadBlockBodies, () -> toString());
             for (int i = 0; i < m.getBlockHeaders().size(); i++) {
                 Block header = m.getBlockHeaders().get(i);
@@ -941,6 +950,13 @@ public class Peer extends PeerSocketHandler {
                 log.debug("Received block but was not configured with an AbstractBlockChain");
             return;
         }
+        BlockDownloadScheduler scheduler = vBlockDownloadScheduler;
+        if (scheduler != null) {
+            // Blocks are only added to the chain in the order the scheduler requested them.
+            if (!scheduler.blockReceived(this, m, null) && log.isDebugEnabled())
+                log.debug("{}: Received block we did not ask for: {}", getAddress(), m.getHashAsString());
+            return;
+        }
         // Did we lose download peer status after requesting block data?
         if (!vDownloadData) {
             if (log.isDebugEnabled())
@@ -997,6 +1013,12 @@ public class Peer extends PeerSocketHandler {
     protected void endFilteredBlock(FilteredBlock m) {
         if (log.isDebugEnabled())
             log.debug("{}: Received broadcast filtered block {}", getAddress(), m.getHash().toString());
+        BlockDownloadScheduler scheduler = vBlockDownloadScheduler;
+        if (scheduler != null && blockChain != null) {
+            if (!scheduler.blockReceived(this, m.getBlockHeader(), m) && log.isDebugEnabled())
+                log.debug("{}: Received block we did not ask for: {}", getAddress(), m.getHash().toString());
+            return;
+        }
         if (!vDownloadData) {
             if (log.isDebugEnabled())
                 log.debug("{}: Received block we did not ask for: {}", getAddress(), m.getHash().toString());
@@ -1094,7 +1116,7 @@ public class Peer extends PeerSocketHandler {
         }
     }
 
-    private boolean checkForFilterExhaustion(FilteredBlock m) {
+    boolean checkForFilterExhaustion(FilteredBlock m) {
         boolean exhausted = false;
         for (Wallet wallet : wallets) {
             exhausted |= wallet.checkForFilterExhaustion(m);
@@ -1115,7 +1137,7 @@ public class Peer extends PeerSocketHandler {
         return found;
     }
 
-    private void invokeOnBlocksDownloaded(final Block block, @Nullable final FilteredBlock fb) {
+    void invokeOnBlocksDownloaded(final Block block, @Nullable final FilteredBlock fb) {
         // It is possible for the peer block height difference to be negative when blocks have been solved and broadcast
         // since the time we first connected to the peer. However, it's weird and unexpected to receive a callback
         // with negative "blocks left" in this case, so we clamp to zero so the API user doesn't have to think about it.
@@ -1204,7 +1226,13 @@ public class Peer extends PeerSocketHandler {
 
         lock.lock();
         try {
-            if (blocks.size() > 0 && downloadData && blockChain != null) {
+            BlockDownloadScheduler scheduler = vBlockDownloadScheduler;
+            if (blocks.size() > 0 && downloadData && blockChain != null && scheduler != null) {
+                // The blocks are fetched once their headers are in. While still downloading headers before the fast
+                // catchup time, the new ones will be among them.
+                if (downloadBlockBodies)
+                    scheduler.blocksAnnounced(this);
+            } else if (blocks.size() > 0 && downloadData && blockChain != null) {
                 // Ideally, we'd only ask for the data here if we actually needed it. However that can imply a lot of
                 // disk IO to figure out what we've got. Normally peers will not send us inv for things we already have
                 // so we just re-request it here, and if we get duplicates the block chain / wallet will filter them out.
@@ -1415,6 +1443,13 @@ public class Peer extends PeerSocketHandler {
         // headers and then request the blocks from that point onwards. "getheaders" does not send us an inv, it just
         // sends us the data we requested in a "headers" message.
 
+        BlockDownloadScheduler scheduler = vBlockDownloadScheduler;
+        if (downloadBlockBodies && scheduler != null) {
+            // The scheduler keeps track of the headers it asked for, and fetches the blocks from all peers.
+            scheduler.requestHeaders(this);
+            return;
+        }
+
         BlockLocator blockLocator = new BlockLocator();
         // For now we don't do the exponential thinning as suggested here:
         //
@@ -1656,6 +1691,13 @@ public class Peer extends PeerSocketHandler {
         this.vDownloadData = downloadData;
     }
 
+    /**
+     * Hands chain download over to the given scheduler, or back to this peer if null. Set by the {@link PeerGroup}.
+     */
+    void setBlockDownloadScheduler(@Nullable BlockDownloadScheduler scheduler) {
+        this.vBlockDownloadScheduler = scheduler;
+    }
+
     /** Returns version data announced by the remote peer. */
     public VersionMessage getPeerVersionMessage() {
         return vPeerVersionMessage;
@@ -1815,7 +1857,7 @@ public class Peer extends PeerSocketHandler {
     /**
      * Returns true if the peer supports bloom filtering according to BIP37 and BIP111.
      */
-    private boolean isBloomFilteringSupported(VersionMessage version) {
+    boolean isBloomFilteringSupported(VersionMessage version) {
         int clientVersion = version.clientVersion();
         if (clientVersion >= ProtocolVersion.BLOOM_FILTER.intValue()
                 && clientVersion < ProtocolVersion.BLOOM_FILTER_BIP111.intValue())
@@ -40,6 +40,7 @@ import org.bitcoinj.core.listeners.PeerConnectedEventListener;
 import org.bitcoinj.core.listeners.PeerDisconnectedEventListener;
 import org.bitcoinj.core.listeners.PeerDiscoveredEventListener;
 import org.bitcoinj.core.listeners.PreMessageReceivedEventListener;
+import org.bitcoinj.net.ByteBufferPool;
 import org.bitcoinj.net.ClientConnectionManager;
 import org.bitcoinj.net.FilterMerger;
 import org.bitcoinj.net.NioClientManager;
@@ -173,6 +174,13 @@ public class PeerGroup implements TransactionBroadcaster {
     @GuardedBy("lock") private Peer downloadPeer;
     // Callback for events related to chain download.
     @Nullable @GuardedBy("lock") private BlockchainDownloadEventListener downloadListener;
+    // Spreads block downloads across all peers, if enabled.
+    @Nullable private volatile BlockDownloadScheduler vBlockDownloadScheduler;
+    @Nullable @GuardedBy("lock") private ScheduledFuture<?> blockDownloadSchedulerTask;
+    // Executor that received messages are processed on, or null to process them on the network thread.
+    @Nullable private volatile Executor vMessageProcessingExecutor;
+    // Whether received transactions and blocks are parsed lazily.
+    private volatile boolean vLazyParsing;
     private final CopyOnWriteArrayList<ListenerRegistration<BlocksDownloadedEventListener>> peersBlocksDownloadedEventListeners
         = new CopyOnWriteArrayList<>();
     private final CopyOnWriteArrayList<ListenerRegistration<ChainDownloadStartedEventListener>> peersChainDownloadStartedEventListeners
@@ -368,6 +376,11 @@ public class PeerGroup implements TransactionBroadcaster {
     public static final Duration DEFAULT_CONNECT_TIMEOUT = Duration.ofSeconds(5);
     private volatile Duration vConnectTimeout = DEFAULT_CONNECT_TIMEOUT;
 
+    /** The default limit on memory for received messages larger than the read buffer, across all peers */
+    public static final long DEFAULT_MAX_RECEIVE_BUFFER_BYTES = 128 * 1024 * 1024;
+    // Buffers that peers read received messages into, shared so that their memory use is bounded as a whole.
+    private final ByteBufferPool receiveBuffers = new ByteBufferPool(false, 4 * 1024 * 1024, 16 * 1024 * 1024);
+
     /** Whether bloom filter support is enabled when using a non FullPrunedBlockchain*/
     private volatile boolean vBloomFilteringEnabled = true;
 
@@ -439,6 +452,7 @@ public class PeerGroup implements TransactionBroadcaster {
         peerFilterProviders = new CopyOnWriteArrayList<>();
 
         executor = createPrivateExecutor();
+        receiveBuffers.setMaxAcquiredBytes(DEFAULT_MAX_RECEIVE_BUFFER_BYTES);
 
         // This default sentinel value will be overridden by one of two actions:
         //   - adding a peer discovery source sets it to the default
@@ -1406,6 +1420,9 @@ public class PeerGroup implements TransactionBroadcaster {
                     // if the estimate temporarily overshoots our threshold.
                     if (chain != null)
                         chain.resetFalsePositiveEstimate();
+                    BlockDownloadScheduler scheduler = vBlockDownloadScheduler;
+                    if (scheduler != null)
+                        scheduler.filterChanged();
                 }
                 // Do this last so that bloomFilter is already set when it gets called.
                 setFastCatchupTime(result.earliestKeyTime);
@@ -1507,6 +1524,9 @@ public class PeerGroup implements TransactionBroadcaster {
         peer.addConnectedEventListener(Threading.SAME_THREAD, startupListener);
         peer.addDisconnectedEventListener(Threading.SAME_THREAD, startupListener);
         peer.setMinProtocolVersion(vMinRequiredProtocolVersion);
+        peer.setReceiveBufferPool(receiveBuffers);
+        peer.setLazyParsing(vLazyParsing);
+        peer.setMessageProcessingExecutor(vMessageProcessingExecutor);
         pendingPeers.add(peer);
 
         try {
@@ -1578,6 +1598,88 @@ public class PeerGroup implements TransactionBroadcaster {
         }
     }
 
+    /**
+     * <p>If enabled, only the block headers are downloaded from the download peer, and the block bodies (or filtered
+     * blocks) are requested from all connected peers at once, a limited number from each. Blocks that a peer doesn't
+     * deliver in time are requested from another one. This is usually faster than downloading everything from the
+     * download peer, which stalls the download whenever that peer is slow. Disabled by default.</p>
+     *
+     * <p>Call this before starting block chain download.</p>
+     *
+     * @param enabled whether to download blocks from all peers
+     */
+    public void setParallelBlockDownload(boolean enabled) {
+        lock.lock();
+        try {
+            checkState(chain != null, () -> "block download needs a chain");
+            if (enabled == (vBlockDownloadScheduler != null))
+                return;
+            BlockDownloadScheduler scheduler = null;
+            if (enabled) {
+                scheduler = new BlockDownloadScheduler(params, chain, this::getConnectedPeers,
+                        () -> bloomFilterMerger.getLastFilter() != null);
+                // Every second, look for blocks that timed out.
+                blockDownloadSchedulerTask = executor.scheduleAtFixedRate(scheduler, 1, 1, TimeUnit.SECONDS);
+            } else {
+                Objects.requireNonNull(blockDownloadSchedulerTask).cancel(false);
+                blockDownloadSchedulerTask = null;
+            }
+            vBlockDownloadScheduler = scheduler;
+            for (Peer peer : peers)
+                peer.setBlockDownloadScheduler(scheduler);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns whether blocks are downloaded from all peers, see {@link #setParallelBlockDownload(boolean)}. */
+    public boolean isParallelBlockDownload() {
+        return vBlockDownloadScheduler != null;
+    }
+
+    /**
+     * <p>Deserializes and processes the messages received from peers connected from now on on the given executor,
+     * rather than on the network thread, so one peer sending large blocks doesn't hold up the others. Messages from
+     * each peer are still processed one at a time and in order. Reading from a peer pauses while its backlog is too
+     * large.</p>
+     *
+     * <p>{@link Threading#newVirtualThreadExecutor(String)} is a good fit. By default, messages are processed on the
+     * network thread.</p>
+     *
+     * @param executor executor to process messages on, or {@code null} to process them on the network thread
+     */
+    public void setMessageProcessingExecutor(@Nullable Executor executor) {
+        vMessageProcessingExecutor = executor;
+    }
+
+    /**
+     * <p>Limits the memory that connected peers use at once for received messages larger than their read
+     * buffer, typically blocks. A peer that would exceed it pauses reading until memory is released. Defaults to
+     * {@link #DEFAULT_MAX_RECEIVE_BUFFER_BYTES}.</p>
+     *
+     * <p>Only those large messages are held back by the limit. Smaller messages waiting to be processed on the
+     * {@link #setMessageProcessingExecutor(Executor) message processing executor} count towards it, so they make
+     * large messages wait, but they are never refused themselves and may take the total past the limit. They are
+     * bounded per peer instead, by pausing reading from a peer while a few megabytes of its messages are waiting.</p>
+     *
+     * @param maxBytes maximum number of bytes for received messages
+     */
+    public void setMaxReceiveBufferBytes(long maxBytes) {
+        receiveBuffers.setMaxAcquiredBytes(maxBytes);
+    }
+
+    /**
+     * <p>Makes peers connected from now on parse received transactions and blocks lazily: they keep the received bytes
+     * and only build their inputs, outputs and scripts when first needed. Transaction ids, outpoints and output
+     * scripts are available without that, see {@link Transaction#readLazily(java.nio.ByteBuffer, int)}. This saves
+     * a lot of allocation for transactions that turn out to be irrelevant. Off by default.</p>
+     *
+     * @param lazyParsing whether to parse transactions and blocks lazily
+     */
+    public void setLazyParsing(boolean lazyParsing) {
+        vLazyParsing = lazyParsing;
+    }
+
     /**
      * Register a data event listener against a single peer (i.e. for blockchain
      * download). Handling registration/deregistration on peer death/add is
@@ -1631,6 +1733,7 @@ public class PeerGroup implements TransactionBroadcaster {
             // OK because it helps improve wallet privacy. Old nodes will just ignore the message.
             if (bloomFilterMerger.getLastFilter() != null) peer.setBloomFilter(bloomFilterMerger.getLastFilter());
             peer.setDownloadData(false);
+            peer.setBlockDownloadScheduler(vBlockDownloadScheduler);
             // TODO: The peer should calculate the fast catchup time from the added wallets here.
             for (Wallet wallet : wallets)
                 peer.addWallet(wallet);
@@ -1671,6 +1774,10 @@ public class PeerGroup implements TransactionBroadcaster {
             lock.unlock();
         }
 
+        BlockDownloadScheduler scheduler = vBlockDownloadScheduler;
+        if (scheduler != null)
+            scheduler.peerConnected(peer);
+
         final int fNewSize = newSize;
         for (final ListenerRegistration<PeerConnectedEventListener> registration : peerConnectedEventListeners) {
             registration.executor.execute(() -> registration.listener.onPeerConnected(peer, fNewSize));
@@ -1800,6 +1907,9 @@ public class PeerGroup implements TransactionBroadcaster {
             PeerAddress address = peer.getAddress();
 
             log.info("{}: Peer died      ({} connected, {} pending, {} max)", address, peers.size(), pendingPeers.size(), maxConnections);
+            BlockDownloadScheduler scheduler = vBlockDownloadScheduler;
+            if (scheduler != null)
+                scheduler.peerDisconnected(peer);
             if (peer == downloadPeer) {
                 log.info("Download peer died. Picking a new one.");
                 setDownloadPeer(null);
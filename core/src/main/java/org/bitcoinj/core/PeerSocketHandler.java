@@ -17,6 +17,8 @@
 package org.bitcoinj.core;
 
 import com.google.common.annotations.VisibleForTesting;
+import net.jcip.annotations.GuardedBy;
+import org.bitcoinj.net.ByteBufferPool;
 import org.bitcoinj.net.MessageWriteTarget;
 import org.bitcoinj.net.NioClient;
 import org.bitcoinj.net.NioClientManager;
@@ -28,7 +30,7 @@ import org.bitcoinj.utils.Threading;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayOutputStream;
+import javax.annotation.Nullable;
 import java.io.IOException;
 import java.net.ConnectException;
 import java.net.InetSocketAddress;
@@ -38,6 +40,7 @@ import java.nio.ByteBuffer;
 import java.nio.channels.NotYetConnectedException;
 import java.time.Duration;
 import java.util.Objects;
+import java.util.concurrent.Executor;
 import java.util.concurrent.locks.Lock;
 
 import static org.bitcoinj.base.internal.Preconditions.checkArgument;
@@ -49,10 +52,15 @@ import static org.bitcoinj.base.internal.Preconditions.checkState;
  */
 public abstract class PeerSocketHandler implements TimeoutHandler, StreamConnection {
     private static final Logger log = LoggerFactory.getLogger(PeerSocketHandler.class);
+    // Direct buffers that outbound messages are serialized into, shared by all peers.
+    private static final ByteBufferPool OUTBOUND_BUFFERS = new ByteBufferPool(true, 1024 * 1024, 16 * 1024 * 1024);
+    // Heap buffers that received payloads are read into, unless set otherwise.
+    private static final ByteBufferPool DEFAULT_RECEIVE_BUFFERS = new ByteBufferPool(false, 4 * 1024 * 1024,
+            16 * 1024 * 1024);
     private final Lock lock = Threading.lock(PeerSocketHandler.class);
     private final SocketTimeoutTask timeoutTask;
 
-    private final MessageSerializer serializer;
+    private volatile MessageSerializer vSerializer;
     protected final PeerAddress peerAddress;
     // If we close() before we know our writeTarget, set this to true to call writeTarget.closeConnection() right away.
     private boolean closePending = false;
@@ -61,10 +69,18 @@ public abstract class PeerSocketHandler implements TimeoutHandler, StreamConnect
 
     // The ByteBuffers passed to us from the writeTarget are static in size, and usually smaller than some messages we
     // will receive. For SPV clients, this should be rare (ie we're mostly dealing with small transactions), but for
-    // messages which are larger than the read buffer, we have to keep a temporary buffer with its bytes.
-    private byte[] largeReadBuffer;
-    private int largeReadBufferPos;
+    // messages which are larger than the read buffer, we have to keep a temporary buffer with its bytes. It comes
+    // from the receive buffer pool, which may make us wait until other peers are done with theirs.
+    @GuardedBy("lock") private ByteBuffer largeReadBuffer;
     private BitcoinSerializer.BitcoinPacketHeader header;
+    private volatile ByteBufferPool vReceiveBuffers = DEFAULT_RECEIVE_BUFFERS;
+    // If set, received messages are deserialized and processed on an executor instead of the network thread.
+    @Nullable private volatile Executor vMessageProcessingExecutor;
+    @Nullable private volatile InboundMessagePipeline vPipeline;
+    // Reasons for reading from the connection to be paused, and whether it is.
+    @GuardedBy("lock") private boolean processingBehind, waitingForReceiveBuffer, readingPaused;
+    // Set once the connection is closed, after which no more receive buffers are taken.
+    @GuardedBy("lock") private boolean receiveClosed;
 
     public PeerSocketHandler(NetworkParameters params, InetSocketAddress remoteIp) {
         this(params, PeerAddress.simple(remoteIp));
@@ -72,7 +88,7 @@ public abstract class PeerSocketHandler implements TimeoutHandler, StreamConnect
 
     public PeerSocketHandler(NetworkParameters params, PeerAddress peerAddress) {
         Objects.requireNonNull(params);
-        serializer = params.getDefaultSerializer();
+        vSerializer = params.getDefaultSerializer();
         this.peerAddress = Objects.requireNonNull(peerAddress);
         this.timeoutTask = new SocketTimeoutTask(this::timeoutOccurred);
     }
@@ -100,11 +116,8 @@ public abstract class PeerSocketHandler implements TimeoutHandler, StreamConnect
         } finally {
             lock.unlock();
         }
-        // TODO: Some round-tripping could be avoided here
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
         try {
-            serializer.serialize(message, out);
-            return writeTarget.writeBytes(out.toByteArray());
+            return writeTarget.writeBytes(vSerializer.serialize(message, OUTBOUND_BUFFERS), OUTBOUND_BUFFERS);
         } catch (IOException e) {
             exceptionCaught(e);
             return ListenableCompletableFuture.failedFuture(e);
@@ -146,41 +159,49 @@ public abstract class PeerSocketHandler implements TimeoutHandler, StreamConnect
             boolean firstMessage = true;
             while (true) {
                 // If we are in the middle of reading a message, try to fill that one first, before we expect another
-                if (largeReadBuffer != null) {
+                ByteBuffer payload = getLargeReadBuffer();
+                if (payload != null) {
                     // This can only happen in the first iteration
                     checkState(firstMessage);
                     // Read new bytes into the largeReadBuffer
-                    int bytesToGet = Math.min(buff.remaining(), largeReadBuffer.length - largeReadBufferPos);
-                    buff.get(largeReadBuffer, largeReadBufferPos, bytesToGet);
-                    largeReadBufferPos += bytesToGet;
+                    transfer(buff, payload);
                     // Check the largeReadBuffer's status
-                    if (largeReadBufferPos == largeReadBuffer.length) {
+                    if (!payload.hasRemaining() && takeLargeReadBuffer(payload)) {
                         // ...processing a message if one is available
-                        processMessage(serializer.deserializePayload(header, ByteBuffer.wrap(largeReadBuffer)));
-                        largeReadBuffer = null;
+                        BitcoinSerializer.BitcoinPacketHeader payloadHeader = header;
                         header = null;
                         firstMessage = false;
+                        ((Buffer) payload).flip();
+                        dispatchPooled(payloadHeader, payload);
                     } else // ...or just returning if we don't have enough bytes yet
                         return buff.position();
                 }
                 // Now try to deserialize any messages left in buff
-                Message message;
+                BitcoinSerializer.BitcoinPacketHeader messageHeader;
                 int preSerializePosition = buff.position();
                 try {
-                    message = serializer.deserialize(buff);
+                    vSerializer.seekPastMagicBytes(buff);
+                    messageHeader = vSerializer.deserializeHeader(buff);
+                    if (buff.remaining() < messageHeader.size)
+                        throw new BufferUnderflowException();
                 } catch (BufferUnderflowException e) {
                     // If we went through the whole buffer without a full message, we need to use the largeReadBuffer
                     if (firstMessage && buff.limit() == buff.capacity()) {
                         // ...so reposition the buffer to 0 and read the next message header
                         ((Buffer) buff).position(0);
                         try {
-                            serializer.seekPastMagicBytes(buff);
-                            header = serializer.deserializeHeader(buff);
+                            vSerializer.seekPastMagicBytes(buff);
+                            BitcoinSerializer.BitcoinPacketHeader largeHeader = vSerializer.deserializeHeader(buff);
                             // Initialize the largeReadBuffer with the next message's size and fill it with any bytes
                             // left in buff
-                            largeReadBuffer = new byte[header.size];
-                            largeReadBufferPos = buff.remaining();
-                            buff.get(largeReadBuffer, 0, largeReadBufferPos);
+                            ByteBuffer buffer = acquireLargeReadBuffer(largeHeader.size);
+                            if (buffer == null) {
+                                // Leave the bytes in buff until another peer releases its buffer
+                                ((Buffer) buff).position(0);
+                                return 0;
+                            }
+                            header = largeHeader;
+                            transfer(buff, buffer);
                         } catch (BufferUnderflowException e1) {
                             // If we went through a whole buffer's worth of bytes without getting a header, give up
                             // In cases where the buff is just really small, we could create a second largeReadBuffer
@@ -195,9 +216,22 @@ public abstract class PeerSocketHandler implements TimeoutHandler, StreamConnect
                     }
                     return buff.position();
                 }
-                // Process our freshly deserialized message
-                processMessage(message);
+                // Process our freshly received message
                 firstMessage = false;
+                InboundMessagePipeline pipeline = vPipeline;
+                if (pipeline != null) {
+                    // Copy it out, as buff is reused once we return. It fits the read buffer, so don't wait for the
+                    // receive buffer limit: the bytes are still in buff, and only more bytes arriving would offer
+                    // them again. The pipeline bounds these copies per peer instead.
+                    ByteBuffer copy = vReceiveBuffers.acquire(messageHeader.size);
+                    ((Buffer) copy).limit(messageHeader.size);
+                    transfer(buff, copy);
+                    ((Buffer) copy).flip();
+                    pipeline.add(messageHeader, copy);
+                } else {
+                    // Parse it right where it is
+                    processMessage(vSerializer.deserializePayload(messageHeader, buff));
+                }
             }
         } catch (Exception e) {
             exceptionCaught(e);
@@ -205,6 +239,159 @@ public abstract class PeerSocketHandler implements TimeoutHandler, StreamConnect
         }
     }
 
+    // Copies as many bytes as fit from one buffer into the other.
+    private static void transfer(ByteBuffer from, ByteBuffer to) {
+        int length = Math.min(from.remaining(), to.remaining());
+        ByteBuffer chunk = from.duplicate();
+        ((Buffer) chunk).limit(chunk.position() + length);
+        to.put(chunk);
+        ((Buffer) from).position(from.position() + length);
+    }
+
+    private void dispatchPooled(BitcoinSerializer.BitcoinPacketHeader header, ByteBuffer payload) throws Exception {
+        InboundMessagePipeline pipeline = vPipeline;
+        if (pipeline != null) {
+            pipeline.add(header, payload);
+            return;
+        }
+        ByteBufferPool pool = vReceiveBuffers;
+        Message message;
+        try {
+            message = vSerializer.deserializePayload(header, payload);
+        } finally {
+            pool.release(payload);
+        }
+        processMessage(message);
+    }
+
+    @Nullable
+    private ByteBuffer getLargeReadBuffer() {
+        lock.lock();
+        try {
+            return largeReadBuffer;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Takes over the filled largeReadBuffer, unless the connection was closed meanwhile.
+    private boolean takeLargeReadBuffer(ByteBuffer buffer) {
+        lock.lock();
+        try {
+            if (largeReadBuffer != buffer)
+                return false;
+            largeReadBuffer = null;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Sets a largeReadBuffer for a payload larger than the read buffer, or returns null after pausing reading if the
+    // receive buffer limit is reached. Reading resumes once another buffer is released.
+    @Nullable
+    private ByteBuffer acquireLargeReadBuffer(int size) throws IOException {
+        lock.lock();
+        try {
+            if (receiveClosed)
+                throw new IOException("Connection closed");
+            ByteBuffer buffer = vReceiveBuffers.tryAcquire(size, this::receiveBufferReleased);
+            if (buffer == null) {
+                log.debug("{}: Out of receive buffer memory, pausing reading", getAddress());
+                waitingForReceiveBuffer = true;
+                updateReadingPaused();
+                return null;
+            }
+            ((Buffer) buffer).limit(size);
+            largeReadBuffer = buffer;
+            return buffer;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gives up the buffer of a partially received message and those of the messages not processed yet once the
+     * connection is closed, so that they no longer count towards the limit of the receive buffer pool. Called by
+     * subclasses from {@link #connectionClosed()}.
+     */
+    protected void releaseReceiveBuffers() {
+        lock.lock();
+        try {
+            receiveClosed = true;
+            // The network thread may still be writing to it, so don't let it be reused.
+            if (largeReadBuffer != null)
+                vReceiveBuffers.discard(largeReadBuffer);
+            largeReadBuffer = null;
+        } finally {
+            lock.unlock();
+        }
+        InboundMessagePipeline pipeline = vPipeline;
+        if (pipeline != null)
+            pipeline.close();
+    }
+
+    private void receiveBufferReleased() {
+        lock.lock();
+        try {
+            waitingForReceiveBuffer = false;
+            updateReadingPaused();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void setProcessingBehind(boolean behind) {
+        lock.lock();
+        try {
+            processingBehind = behind;
+            updateReadingPaused();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private void updateReadingPaused() {
+        boolean paused = processingBehind || waitingForReceiveBuffer;
+        if (paused != readingPaused && writeTarget != null) {
+            readingPaused = paused;
+            writeTarget.setReadingPaused(paused);
+        }
+    }
+
+    /**
+     * Deserializes and processes received messages on the given executor, in the order they were received, rather
+     * than on the network thread. Reading from the peer is paused while too many messages are waiting to be
+     * processed. Must be called before connecting; {@code null} processes messages on the network thread.
+     */
+    public void setMessageProcessingExecutor(@Nullable Executor executor) {
+        vMessageProcessingExecutor = executor;
+        vPipeline = executor == null ? null : new InboundMessagePipeline(executor, vSerializer, vReceiveBuffers,
+                Context.get(), this::processMessage, this::exceptionCaught, this::setProcessingBehind);
+    }
+
+    /**
+     * Sets the pool that received messages larger than the read buffer (and all received messages, if they are
+     * processed on an executor) are read into. Peers sharing a pool share its
+     * {@link ByteBufferPool#setMaxAcquiredBytes(long) limit}: reading pauses while it is reached. Only messages larger
+     * than the read buffer are refused at the limit; smaller ones count towards it, but are bounded by the queue of
+     * messages waiting to be processed instead. Must be called before connecting.
+     */
+    public void setReceiveBufferPool(ByteBufferPool pool) {
+        vReceiveBuffers = Objects.requireNonNull(pool);
+        setMessageProcessingExecutor(vMessageProcessingExecutor);
+    }
+
+    /**
+     * Sets whether received transactions and blocks are parsed lazily, see
+     * {@link MessageSerializer#withLazyParsing(boolean)}. Must be called before connecting.
+     */
+    public void setLazyParsing(boolean lazyParsing) {
+        vSerializer = vSerializer.withLazyParsing(lazyParsing);
+        setMessageProcessingExecutor(vMessageProcessingExecutor);
+    }
+
     /**
      * Sets the {@link MessageWriteTarget} used to write messages to the peer. This should almost never be called, it is
      * called automatically by {@link NioClient} or
@@ -0,0 +1,270 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.Script.VerifyFlag;
+import org.bitcoinj.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.bitcoinj.base.internal.Preconditions.checkArgument;
+import static org.bitcoinj.base.internal.Preconditions.checkState;
+
+/**
+ * <p>Runs the scripts of the inputs of a block on a {@link ForkJoinPool}. Inputs are grouped into batches of a
+ * configurable size, and each batch is verified by one task, so that large transactions are spread across all cores
+ * and small transactions don't each pay for a task of their own.</p>
+ *
+ * <p>Batches are submitted while the block is still being connected (see {@link BlockVerification#add}), so the
+ * scripts of the first transactions run while the unspent outputs of the later ones are still being looked up.</p>
+ *
+ * <p>A verifier is long-lived and can be shared: by default all verifiers use one pool with a worker per
+ * processor.</p>
+ */
+public class ScriptVerifier {
+    private static final Logger log = LoggerFactory.getLogger(ScriptVerifier.class);
+
+    /** Default number of inputs verified by one task. */
+    public static final int DEFAULT_BATCH_SIZE = 16;
+
+    @Nullable private static ForkJoinPool sharedPool;
+
+    private final ForkJoinPool pool;
+    private final int batchSize;
+
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    private final AtomicLong blocksVerified = new AtomicLong();
+    private final AtomicLong totalVerifyNanos = new AtomicLong();
+    private volatile long lastVerifyNanos;
+
+    /**
+     * Creates a verifier that uses the shared pool and the default batch size.
+     */
+    public ScriptVerifier() {
+        this(sharedPool(), DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Creates a verifier.
+     *
+     * @param pool      pool to run verification tasks on
+     * @param batchSize number of inputs verified by one task
+     */
+    public ScriptVerifier(ForkJoinPool pool, int batchSize) {
+        checkArgument(batchSize > 0, () -> "batchSize must be positive: " + batchSize);
+        this.pool = pool;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Returns the pool used by verifiers that were not given a pool of their own. It is created on first use, with as
+     * many workers as there are processors.
+     */
+    public static synchronized ForkJoinPool sharedPool() {
+        if (sharedPool == null) {
+            ForkJoinPool.ForkJoinWorkerThreadFactory factory = pool -> {
+                ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                thread.setName("Script verification " + thread.getPoolIndex());
+                return thread;
+            };
+            sharedPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors(), factory,
+                    Threading.uncaughtExceptionHandler, false);
+        }
+        return sharedPool;
+    }
+
+    /**
+     * Starts verifying a new block. The returned object is not thread safe, it is meant to be used by the thread that
+     * connects the block.
+     */
+    public BlockVerification begin() {
+        return new BlockVerification();
+    }
+
+    /** Returns the number of batches that have been submitted but not verified yet, across all blocks. */
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    /** Returns the number of blocks whose verification was completed, successfully or not. */
+    public long getBlocksVerified() {
+        return blocksVerified.get();
+    }
+
+    /** Returns how long it took to verify the last block, measured from {@link #begin()}. */
+    public Duration getLastBlockVerifyTime() {
+        return Duration.ofNanos(lastVerifyNanos);
+    }
+
+    /** Returns the time it took to verify all blocks so far. */
+    public Duration getTotalVerifyTime() {
+        return Duration.ofNanos(totalVerifyNanos.get());
+    }
+
+    @Override
+    public String toString() {
+        return "ScriptVerifier{parallelism=" + pool.getParallelism() + ", batchSize=" + batchSize + ", queueDepth="
+                + queueDepth.get() + ", blocksVerified=" + blocksVerified.get() + "}";
+    }
+
+    /**
+     * The verification of the inputs of one block. Inputs are added with {@link #add}, then {@link #complete()}
+     * waits for the result. If the block turns out to be invalid for other reasons, {@link #cancel()} drops the
+     * batches that haven't been started yet.
+     */
+    public class BlockVerification {
+        private final long startNanos = System.nanoTime();
+        private final List<Batch> batches = new ArrayList<>();
+        private final List<ForkJoinTask<VerificationException>> results = new ArrayList<>();
+        private Batch current = new Batch();
+        private boolean done = false;
+
+        private BlockVerification() {
+        }
+
+        /**
+         * Adds an input to be verified. Full batches are submitted right away.
+         *
+         * @param tx           transaction containing the input
+         * @param index        index of the input in the transaction
+         * @param scriptPubKey the connected output script
+         * @param verifyFlags  validation rules to apply
+         */
+        public void add(Transaction tx, int index, Script scriptPubKey, Set<VerifyFlag> verifyFlags) {
+            checkState(!done);
+            current.add(tx, index, scriptPubKey, verifyFlags);
+            if (current.size() >= batchSize)
+                submit();
+        }
+
+        private void submit() {
+            if (current.size() == 0)
+                return;
+            queueDepth.incrementAndGet();
+            batches.add(current);
+            results.add(pool.submit(current));
+            current = new Batch();
+        }
+
+        /**
+         * Waits until all inputs have been verified.
+         *
+         * @throws VerificationException the failure of the first input (in the order they were added) that didn't
+         *                               verify
+         */
+        public void complete() throws VerificationException {
+            checkState(!done);
+            submit();
+            try {
+                for (ForkJoinTask<VerificationException> result : results) {
+                    VerificationException e;
+                    try {
+                        e = result.get();
+                    } catch (InterruptedException thrownE) {
+                        throw new RuntimeException(thrownE); // Shouldn't happen
+                    } catch (ExecutionException thrownE) {
+                        log.error("Script.correctlySpends threw a non-normal exception: " + thrownE.getCause());
+                        throw new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", thrownE);
+                    }
+                    if (e != null)
+                        throw e;
+                }
+            } finally {
+                cancel();
+                long nanos = System.nanoTime() - startNanos;
+                lastVerifyNanos = nanos;
+                totalVerifyNanos.addAndGet(nanos);
+                blocksVerified.incrementAndGet();
+            }
+        }
+
+        /**
+         * Gives up on the block. Batches that have not started yet will not be verified. Does nothing if the
+         * verification is already complete.
+         */
+        public void cancel() {
+            if (done)
+                return;
+            done = true;
+            for (Batch batch : batches)
+                batch.abandon();
+        }
+    }
+
+    /**
+     * A task verifying a number of inputs. It either runs or is abandoned, whichever comes first; both account for the
+     * queue depth.
+     */
+    private class Batch implements Callable<VerificationException> {
+        private final List<Transaction> txns = new ArrayList<>(batchSize);
+        private final int[] indexes = new int[batchSize];
+        private final List<Script> scriptPubKeys = new ArrayList<>(batchSize);
+        private final List<Set<VerifyFlag>> verifyFlags = new ArrayList<>(batchSize);
+        private final AtomicBoolean claimed = new AtomicBoolean();
+
+        void add(Transaction tx, int index, Script scriptPubKey, Set<VerifyFlag> flags) {
+            indexes[txns.size()] = index;
+            txns.add(tx);
+            scriptPubKeys.add(scriptPubKey);
+            verifyFlags.add(flags);
+        }
+
+        int size() {
+            return txns.size();
+        }
+
+        void abandon() {
+            if (claimed.compareAndSet(false, true))
+                queueDepth.decrementAndGet();
+        }
+
+        @Nullable
+        @Override
+        public VerificationException call() {
+            if (!claimed.compareAndSet(false, true))
+                return null; // abandoned
+            try {
+                for (int i = 0; i < txns.size(); i++) {
+                    Transaction tx = txns.get(i);
+                    int index = indexes[i];
+                    tx.getInput(index).getScriptSig().correctlySpends(tx, index, null, null, scriptPubKeys.get(i),
+                            verifyFlags.get(i));
+                }
+            } catch (VerificationException e) {
+                return e;
+            } finally {
+                queueDepth.decrementAndGet();
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.base.Sha256Hash;
+import org.bitcoinj.base.VarInt;
+import org.bitcoinj.base.internal.ByteUtils;
+
+import java.security.MessageDigest;
+
+/**
+ * The parts of a <a href="https://github.com/bitcoin/bips/blob/master/bip-0143.mediawiki">BIP143</a> signature hash
+ * that are the same for every input of a transaction: the hash of all outpoints ({@code hashPrevouts}), of all
+ * sequence numbers ({@code hashSequence}) and of all outputs ({@code hashOutputs}). Calculating them once rather than
+ * for each input makes signing or verifying all inputs of a transaction linear in its size, rather than quadratic.
+ * <p>
+ * Instances are immutable and describe the transaction as it was when they were created. Use
+ * {@link Transaction#getSigHashCache()} to get an instance that is kept up to date with the transaction.
+ */
+public final class SigHashCache {
+    private final Sha256Hash hashPrevouts;
+    private final Sha256Hash hashSequence;
+    private final Sha256Hash hashOutputs;
+
+    /**
+     * Calculates the hashes for the given transaction.
+     *
+     * @param tx transaction to calculate the hashes for
+     */
+    public SigHashCache(Transaction tx) {
+        Writer prevouts = new Writer();
+        Writer sequence = new Writer();
+        for (TransactionInput input : tx.getInputs()) {
+            prevouts.writeOutPoint(input.getOutpoint());
+            sequence.writeInt32(input.getSequenceNumber());
+        }
+        Writer outputs = new Writer();
+        for (TransactionOutput output : tx.getOutputs())
+            outputs.writeOutput(output);
+        this.hashPrevouts = prevouts.hash();
+        this.hashSequence = sequence.hash();
+        this.hashOutputs = outputs.hash();
+    }
+
+    /** Returns the hash of the outpoints of all inputs. */
+    public Sha256Hash hashPrevouts() {
+        return hashPrevouts;
+    }
+
+    /** Returns the hash of the sequence numbers of all inputs. */
+    public Sha256Hash hashSequence() {
+        return hashSequence;
+    }
+
+    /** Returns the hash of all outputs. */
+    public Sha256Hash hashOutputs() {
+        return hashOutputs;
+    }
+
+    /**
+     * Writes parts of a transaction in their wire format straight into a SHA-256 digest, so that signature hashes can
+     * be calculated without serializing (a modified copy of) the transaction first.
+     */
+    static final class Writer {
+        private final MessageDigest digest = Sha256Hash.newDigest();
+        private final byte[] scratch = new byte[8];
+
+        void write(byte[] bytes) {
+            digest.update(bytes);
+        }
+
+        void writeInt32(long val) {
+            ByteUtils.writeInt32LE(val, scratch, 0);
+            digest.update(scratch, 0, 4);
+        }
+
+        void writeInt64(long val) {
+            ByteUtils.writeInt64LE(val, scratch, 0);
+            digest.update(scratch, 0, 8);
+        }
+
+        void writeVarInt(long val) {
+            digest.update(VarInt.of(val).serialize());
+        }
+
+        void writeBytes(byte[] bytes) {
+            writeVarInt(bytes.length);
+            digest.update(bytes);
+        }
+
+        void writeOutPoint(TransactionOutPoint outpoint) {
+            digest.update(outpoint.hash().serialize());
+            writeInt32(outpoint.index());
+        }
+
+        void writeOutput(TransactionOutput output) {
+            writeInt64(output.getValue().getValue());
+            writeBytes(output.getScriptBytes());
+        }
+
+        /** Finishes the digest and returns the hash of everything written. The writer must not be used afterwards. */
+        Sha256Hash hash() {
+            return Sha256Hash.wrap(digest.digest());
+        }
+    }
+}
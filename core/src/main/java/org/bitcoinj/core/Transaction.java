@@ -17,6 +17,7 @@
 
 package org.bitcoinj.core;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.MoreObjects;
 import com.google.common.math.IntMath;
 import org.bitcoinj.base.Address;
@@ -51,10 +52,12 @@ import javax.annotation.Nullable;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.math.BigInteger;
 import java.math.RoundingMode;
+import java.nio.Buffer;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -68,13 +71,13 @@ import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.TreeMap;
+import java.util.stream.Collectors;
 
 import static org.bitcoinj.base.internal.Preconditions.check;
 import static org.bitcoinj.base.internal.Preconditions.checkArgument;
 import static org.bitcoinj.base.internal.Preconditions.checkState;
 import static org.bitcoinj.core.ProtocolVersion.WITNESS_VERSION;
 import static org.bitcoinj.base.internal.ByteUtils.writeInt32LE;
-import static org.bitcoinj.base.internal.ByteUtils.writeInt64LE;
 
 /**
  * <p>A transaction represents the movement of coins from some addresses to some other addresses. It can also represent
@@ -165,6 +168,17 @@ public class Transaction extends BaseMessage {
 
     private volatile LockTime vLockTime;
 
+    // The bytes a transaction read by readLazily() was read from, until they are parsed into the fields above. While
+    // this is set, those fields are not: any method using them must call ensureParsed() first.
+    @Nullable private volatile WireBytes vWire;
+
+    // Cached transaction ids, null if not calculated yet. They are cleared whenever a field that is covered by the ids
+    // changes, including fields of the inputs and outputs.
+    @Nullable private Sha256Hash cachedTxId;
+    @Nullable private Sha256Hash cachedWTxId;
+    // Cached BIP143 midstates, null if not calculated yet. Cleared together with the transaction ids.
+    @Nullable private volatile SigHashCache sigHashCache;
+
     // This is either the time the transaction was broadcast as measured from the local clock, or the time from the
     // block in which it was included. Note that this can be changed by re-orgs so the wallet may update this field.
     // Old serialized transactions don't have this field, thus null is valid. It is used for returning an ordered
@@ -269,34 +283,101 @@ public class Transaction extends BaseMessage {
      */
     public static Transaction read(ByteBuffer payload, int protocolVersion) throws BufferUnderflowException, ProtocolException {
         Transaction tx = new Transaction(protocolVersion);
+        int start = payload.position();
+        tx.parse(payload);
+        tx.cacheTxIdsFromWire(payload, start);
+        return tx;
+    }
+
+    /**
+     * Deserialize this message from a given payload like {@link #read(ByteBuffer, int)}, but without parsing its
+     * inputs, outputs and witnesses yet. The payload is only checked to be well-formed, and the transaction keeps
+     * the bytes it was read from. They are parsed on first access to anything that needs them. Until then,
+     * {@link #getTxId()}, {@link #getWTxId()}, {@link #getOutPoints()}, {@link #getOutputScriptBytes()} and
+     * serializing the transaction work directly on those bytes, which is much cheaper for transactions that end up
+     * being discarded.
+     * <p>
+     * The transaction refers to the payload rather than copying it, so the payload must not be changed afterwards.
+     * A transaction with non-canonical encoding is parsed right away, as its ids can't be calculated from its bytes.
+     *
+     * @param payload         payload to deserialize from
+     * @param protocolVersion protocol version to use for deserialization
+     * @return read message
+     * @throws BufferUnderflowException if the read message extends beyond the remaining bytes of the payload
+     */
+    public static Transaction readLazily(ByteBuffer payload, int protocolVersion) throws BufferUnderflowException,
+            ProtocolException {
+        boolean allowWitness = allowWitness(protocolVersion);
+        WireScanner scanner = new WireScanner(payload.slice());
+
+        // The same steps and checks as parse(), only skipping over the fields.
+        scanner.skip(4); // version
+        byte flags = 0;
+        int numInputs = scanner.skipInputs();
+        if (numInputs == 0 && allowWitness) {
+            flags = scanner.buf.get();
+            if (flags != 0) {
+                numInputs = scanner.skipInputs();
+                scanner.skipOutputs();
+            }
+        } else {
+            scanner.skipOutputs();
+        }
+        int outputsEnd = scanner.buf.position();
+        boolean segwit = false;
+        if (((flags & 1) != 0) && allowWitness) {
+            flags ^= 1;
+            segwit = true;
+            if (!scanner.skipWitnesses(numInputs))
+                throw new ProtocolException("Superfluous witness record");
+        }
+        if (flags != 0)
+            throw new ProtocolException("Unknown transaction optional data");
+        scanner.skip(4); // lock_time
+
+        if (!scanner.canonical)
+            return read(payload, protocolVersion);
+        int length = scanner.buf.position();
+        ByteBuffer bytes = payload.slice();
+        ((Buffer) bytes).limit(length);
+        Buffers.skipBytes(payload, length);
+        Transaction tx = new Transaction(protocolVersion);
+        tx.vWire = new WireBytes(bytes, segwit, outputsEnd);
+        return tx;
+    }
+
+    /**
+     * Reads the fields of this transaction from the payload, in the format given by its protocol version.
+     */
+    private void parse(ByteBuffer payload) throws BufferUnderflowException, ProtocolException {
         boolean allowWitness = allowWitness(protocolVersion);
 
         // version
-        tx.version = ByteUtils.readUint32(payload);
+        version = ByteUtils.readUint32(payload);
         byte flags = 0;
         // Try to parse the inputs. In case the dummy is there, this will be read as an empty array list.
-        tx.readInputs(payload);
-        if (tx.inputs.size() == 0 && allowWitness) {
+        readInputs(payload);
+        if (inputs.size() == 0 && allowWitness) {
             // We read a dummy or an empty input
             flags = payload.get();
 
             if (flags != 0) {
-                tx.readInputs(payload);
-                tx.readOutputs(payload);
+                readInputs(payload);
+                readOutputs(payload);
             } else {
-                tx.outputs = new ArrayList<>(0);
+                outputs = new ArrayList<>(0);
             }
         } else {
             // We read non-empty inputs. Assume normal outputs follows.
-            tx.readOutputs(payload);
+            readOutputs(payload);
         }
 
         if (((flags & 1) != 0) && allowWitness) {
             // The witness flag is present, and we support witnesses.
             flags ^= 1;
             // script_witnesses
-            tx.readWitnesses(payload);
-            if (!tx.hasWitnesses()) {
+            readWitnesses(payload);
+            if (inputs.stream().noneMatch(TransactionInput::hasWitness)) {
                 // It's illegal to encode witnesses when all witness stacks are empty.
                 throw new ProtocolException("Superfluous witness record");
             }
@@ -306,8 +387,78 @@ public class Transaction extends BaseMessage {
             throw new ProtocolException("Unknown transaction optional data");
         }
         // lock_time
-        tx.vLockTime = LockTime.of(ByteUtils.readUint32(payload));
-        return tx;
+        vLockTime = LockTime.of(ByteUtils.readUint32(payload));
+    }
+
+    /**
+     * Parses the bytes kept by {@link #readLazily(ByteBuffer, int)}, if that didn't happen yet. Must be called before
+     * accessing any of the serialized fields.
+     */
+    private void ensureParsed() {
+        if (vWire != null)
+            parseWire();
+    }
+
+    private synchronized void parseWire() {
+        WireBytes wire = vWire;
+        if (wire == null)
+            return; // parsed by another thread meanwhile
+        // Reading the witnesses clears the ids, which still match as the bytes are canonical.
+        Sha256Hash txId = cachedTxId, wTxId = cachedWTxId;
+        parse(wire.view());
+        cachedTxId = txId;
+        cachedWTxId = wTxId;
+        vWire = null;
+    }
+
+    /** Returns whether the fields of a transaction {@link #readLazily(ByteBuffer, int) read lazily} have been parsed. */
+    @VisibleForTesting
+    boolean isParsed() {
+        return vWire == null;
+    }
+
+    /**
+     * Calculates the transaction ids from the bytes the transaction was just read from, rather than serializing it
+     * again. This is only possible if those bytes are exactly what we would serialize, which is the case unless the
+     * encoding was non-canonical (e.g. oversized var ints).
+     */
+    private void cacheTxIdsFromWire(ByteBuffer payload, int start) {
+        int end = payload.position();
+        if (end - start != messageSize())
+            return;
+        ByteBuffer wire = payload.duplicate();
+        ((Buffer) wire).position(start);
+        ((Buffer) wire).limit(end);
+        MessageDigest digest = Sha256Hash.newDigest();
+        digest.update(wire);
+        Sha256Hash hash = Sha256Hash.wrapReversed(digest.digest());
+        if (hasWitnesses()) {
+            cachedWTxId = hash;
+        } else {
+            cachedTxId = hash;
+            cachedWTxId = hash;
+        }
+    }
+
+    /**
+     * Clears the cached transaction ids and signature hash midstates. Must be called whenever a field covered by the
+     * ids changes.
+     */
+    void invalidateCachedHashes() {
+        cachedTxId = null;
+        cachedWTxId = null;
+        sigHashCache = null;
+    }
+
+    /**
+     * Returns the BIP143 signature hash midstates of this transaction. They are calculated on first use and kept until
+     * the transaction is changed.
+     */
+    public SigHashCache getSigHashCache() {
+        SigHashCache cache = sigHashCache;
+        if (cache == null)
+            sigHashCache = cache = new SigHashCache(this);
+        return cache;
     }
 
     private Transaction(int protocolVersion) {
@@ -328,13 +479,24 @@ public class Transaction extends BaseMessage {
      * via outpoints.
      */
     public Sha256Hash getTxId() {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        try {
-            bitcoinSerializeToStream(baos, false);
-        } catch (IOException e) {
-            throw new RuntimeException(e); // cannot happen
+        Sha256Hash txId = cachedTxId;
+        if (txId == null) {
+            WireBytes wire = vWire;
+            if (wire != null) {
+                txId = wire.txId();
+                cachedTxId = txId;
+                return txId;
+            }
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            try {
+                bitcoinSerializeToStream(baos, false);
+            } catch (IOException e) {
+                throw new RuntimeException(e); // cannot happen
+            }
+            txId = Sha256Hash.wrapReversed(Sha256Hash.hash(baos.toByteArray()));
+            cachedTxId = txId;
         }
-        return Sha256Hash.wrapReversed(Sha256Hash.hash(baos.toByteArray()));
+        return txId;
     }
 
     /**
@@ -350,13 +512,26 @@ public class Transaction extends BaseMessage {
      * same as {@link #getTxId()}.
      */
     public Sha256Hash getWTxId() {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        try {
-            bitcoinSerializeToStream(baos, hasWitnesses());
-        } catch (IOException e) {
-            throw new RuntimeException(e); // cannot happen
+        Sha256Hash wTxId = cachedWTxId;
+        if (wTxId == null) {
+            WireBytes wire = vWire;
+            if (wire != null && wire.segwit) {
+                wTxId = wire.wTxId();
+                cachedWTxId = wTxId;
+                return wTxId;
+            }
+            if (!hasWitnesses())
+                return getTxId();
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            try {
+                bitcoinSerializeToStream(baos, true);
+            } catch (IOException e) {
+                throw new RuntimeException(e); // cannot happen
+            }
+            wTxId = Sha256Hash.wrapReversed(Sha256Hash.hash(baos.toByteArray()));
+            cachedWTxId = wTxId;
         }
-        return Sha256Hash.wrapReversed(Sha256Hash.hash(baos.toByteArray()));
+        return wTxId;
     }
 
     /** Gets the transaction weight as defined in BIP141. */
@@ -391,6 +566,7 @@ public class Transaction extends BaseMessage {
      * @return The sum of all inputs with non-null values.
      */
     public Coin getInputSum() {
+        ensureParsed();
         return inputs.stream()
                 .map(TransactionInput::getValue)
                 .filter(Objects::nonNull)
@@ -401,6 +577,7 @@ public class Transaction extends BaseMessage {
      * Calculates the sum of the outputs that are sending coins to a key in the wallet.
      */
     public Coin getValueSentToMe(TransactionBag transactionBag) {
+        ensureParsed();
         // This is tested in WalletTest.
         Coin v = Coin.ZERO;
         for (TransactionOutput o : outputs) {
@@ -473,6 +650,7 @@ public class Transaction extends BaseMessage {
      * @return sum of the inputs that are spending coins with keys in the wallet
      */
     public Coin getValueSentFromMe(TransactionBag wallet) throws ScriptException {
+        ensureParsed();
         // This is tested in WalletTest.
         Coin v = Coin.ZERO;
         for (TransactionInput input : inputs) {
@@ -499,6 +677,7 @@ public class Transaction extends BaseMessage {
      * @return the sum of the outputs regardless of who owns them.
      */
     public Coin getOutputSum() {
+        ensureParsed();
         return outputs.stream()
                 .map(TransactionOutput::getValue)
                 .reduce(Coin.ZERO, Coin::add);
@@ -518,6 +697,7 @@ public class Transaction extends BaseMessage {
      * @return fee, or null if it cannot be determined
      */
     public Coin getFee() {
+        ensureParsed();
         Coin fee = Coin.ZERO;
         if (inputs.isEmpty() || outputs.isEmpty()) // Incomplete transaction
             return null;
@@ -536,6 +716,7 @@ public class Transaction extends BaseMessage {
      * Returns true if any of the outputs is marked as spent.
      */
     public boolean isAnyOutputSpent() {
+        ensureParsed();
         for (TransactionOutput output : outputs) {
             if (!output.isAvailableForSpending())
                 return true;
@@ -548,6 +729,7 @@ public class Transaction extends BaseMessage {
      * otherwise.
      */
     public boolean isEveryOwnedOutputSpent(TransactionBag transactionBag) {
+        ensureParsed();
         for (TransactionOutput output : outputs) {
             if (output.isAvailableForSpending() && output.isMineOrWatched(transactionBag))
                 return false;
@@ -655,8 +837,158 @@ public class Transaction extends BaseMessage {
         }
     }
 
+    /**
+     * The canonically encoded bytes of a transaction, along with where its parts start so they can be found without
+     * parsing it. The buffer itself is never moved; its contents are read through {@link #view()}.
+     */
+    private static final class WireBytes {
+        private final ByteBuffer bytes;
+        private final boolean segwit;
+        private final int outputsEnd;
+
+        private WireBytes(ByteBuffer bytes, boolean segwit, int outputsEnd) {
+            this.bytes = bytes;
+            this.segwit = segwit;
+            this.outputsEnd = outputsEnd;
+        }
+
+        private ByteBuffer view() {
+            return bytes.duplicate();
+        }
+
+        private int size() {
+            return bytes.limit();
+        }
+
+        // The transaction id covers everything except the marker, flag and witnesses.
+        private Sha256Hash txId() {
+            MessageDigest digest = Sha256Hash.newDigest();
+            ByteBuffer view = view();
+            if (segwit) {
+                ((Buffer) view).limit(4);
+                digest.update(view); // version
+                ((Buffer) view).limit(outputsEnd).position(6);
+                digest.update(view); // inputs, outputs
+                ((Buffer) view).limit(size()).position(size() - 4);
+            }
+            digest.update(view);
+            return Sha256Hash.wrapReversed(digest.digest());
+        }
+
+        private Sha256Hash wTxId() {
+            MessageDigest digest = Sha256Hash.newDigest();
+            digest.update(view());
+            return Sha256Hash.wrapReversed(digest.digest());
+        }
+
+        // Returns a view positioned at the inputs count.
+        private ByteBuffer inputs() {
+            ByteBuffer view = view();
+            ((Buffer) view).position(segwit ? 6 : 4);
+            return view;
+        }
+
+        private List<TransactionOutPoint> outPoints() {
+            ByteBuffer view = inputs();
+            int numInputs = VarInt.read(view).intValue();
+            List<TransactionOutPoint> outPoints = new ArrayList<>(numInputs);
+            for (int i = 0; i < numInputs; i++) {
+                outPoints.add(TransactionOutPoint.read(view));
+                Buffers.skipBytes(view, VarInt.read(view).intValue()); // script
+                Buffers.skipBytes(view, 4); // sequence
+            }
+            return outPoints;
+        }
+
+        private List<byte[]> outputScripts() {
+            ByteBuffer view = inputs();
+            int numInputs = VarInt.read(view).intValue();
+            for (int i = 0; i < numInputs; i++) {
+                Buffers.skipBytes(view, 36); // outpoint
+                Buffers.skipBytes(view, VarInt.read(view).intValue()); // script
+                Buffers.skipBytes(view, 4); // sequence
+            }
+            int numOutputs = VarInt.read(view).intValue();
+            List<byte[]> scripts = new ArrayList<>(numOutputs);
+            for (int i = 0; i < numOutputs; i++) {
+                Buffers.skipBytes(view, 8); // value
+                scripts.add(Buffers.readLengthPrefixedBytes(view));
+            }
+            return scripts;
+        }
+
+        private void writeTo(OutputStream stream) throws IOException {
+            ByteBuffer view = view();
+            if (view.hasArray())
+                stream.write(view.array(), view.arrayOffset() + view.position(), view.remaining());
+            else
+                stream.write(Buffers.readBytes(view, view.remaining()));
+        }
+    }
+
+    /**
+     * Skips over the parts of a serialized transaction, checking them the way {@link #parse(ByteBuffer)} does, and
+     * remembers whether all of them were canonically encoded.
+     */
+    private static final class WireScanner {
+        private final ByteBuffer buf;
+        private boolean canonical = true;
+
+        private WireScanner(ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        private int readCount() throws BufferUnderflowException {
+            VarInt count = VarInt.read(buf);
+            check(count.fitsInt(), BufferUnderflowException::new);
+            if (count.getOriginalSizeInBytes() != count.getSizeInBytes())
+                canonical = false;
+            return count.intValue();
+        }
+
+        private void skip(int numBytes) throws BufferUnderflowException {
+            Buffers.skipBytes(buf, numBytes);
+        }
+
+        private int skipInputs() throws BufferUnderflowException {
+            int numInputs = readCount();
+            for (int i = 0; i < numInputs; i++) {
+                skip(36); // outpoint
+                skip(readCount()); // script
+                skip(4); // sequence
+            }
+            return numInputs;
+        }
+
+        private void skipOutputs() throws BufferUnderflowException {
+            int numOutputs = readCount();
+            for (int i = 0; i < numOutputs; i++) {
+                long value = buf.order(ByteOrder.LITTLE_ENDIAN).getLong();
+                checkArgument(value >= 0 || value == Coin.NEGATIVE_SATOSHI.value, () ->
+                        "negative values not allowed");
+                skip(readCount()); // script
+            }
+        }
+
+        // Returns whether any of the witness stacks is non-empty.
+        private boolean skipWitnesses(int numInputs) throws BufferUnderflowException {
+            boolean anyWitness = false;
+            for (int i = 0; i < numInputs; i++) {
+                int pushCount = readCount();
+                if (pushCount != 0)
+                    anyWitness = true;
+                for (int j = 0; j < pushCount; j++)
+                    skip(readCount());
+            }
+            return anyWitness;
+        }
+    }
+
     /** @return true of the transaction has any witnesses in any of its inputs */
     public boolean hasWitnesses() {
+        WireBytes wire = vWire;
+        if (wire != null)
+            return wire.segwit;
         return inputs.stream().anyMatch(TransactionInput::hasWitness);
     }
 
@@ -666,6 +998,7 @@ public class Transaction extends BaseMessage {
      * can do so.
      */
     public int getMessageSizeForPriorityCalc() {
+        ensureParsed();
         int size = this.messageSize();
         for (TransactionInput input : inputs) {
             // 41: min size of an input
@@ -684,6 +1017,7 @@ public class Transaction extends BaseMessage {
      * position in a block but by the data in the inputs.
      */
     public boolean isCoinBase() {
+        ensureParsed();
         return inputs.size() == 1 && inputs.get(0).isCoinBase();
     }
 
@@ -710,6 +1044,7 @@ public class Transaction extends BaseMessage {
      * @param indent characters that will be prepended to each line of the output
      */
     public String toString(@Nullable AbstractBlockChain chain, @Nullable Network network, CharSequence indent) {
+        ensureParsed();
         Objects.requireNonNull(indent);
         StringBuilder s = new StringBuilder();
         Sha256Hash txId = getTxId(), wTxId = getWTxId();
@@ -852,10 +1187,12 @@ public class Transaction extends BaseMessage {
      * Note that this also invalidates the length attribute
      */
     public void clearInputs() {
+        ensureParsed();
         for (TransactionInput input : inputs) {
             input.setParent(null);
         }
         inputs.clear();
+        invalidateCachedHashes();
     }
 
     /**
@@ -874,8 +1211,10 @@ public class Transaction extends BaseMessage {
      * @return the new input.
      */
     public TransactionInput addInput(TransactionInput input) {
+        ensureParsed();
         input.setParent(this);
         inputs.add(input);
+        invalidateCachedHashes();
         return input;
     }
 
@@ -904,6 +1243,7 @@ public class Transaction extends BaseMessage {
      */
     public TransactionInput addSignedInput(TransactionOutPoint prevOut, Script scriptPubKey, Coin amount, ECKey sigKey,
                                            SigHash sigHash, boolean anyoneCanPay) throws ScriptException {
+        ensureParsed();
         // Verify the API user didn't try to do operations out of order.
         checkState(!outputs.isEmpty(), () ->
                 "attempting to sign tx without outputs");
@@ -1012,18 +1352,22 @@ public class Transaction extends BaseMessage {
      * Note that this also invalidates the length attribute
      */
     public void clearOutputs() {
+        ensureParsed();
         for (TransactionOutput output : outputs) {
             output.setParent(null);
         }
         outputs.clear();
+        invalidateCachedHashes();
     }
 
     /**
      * Adds the given output to this transaction. The output must be completely initialized. Returns the given output.
      */
     public TransactionOutput addOutput(TransactionOutput to) {
+        ensureParsed();
         to.setParent(this);
         outputs.add(to);
+        invalidateCachedHashes();
         return to;
     }
 
@@ -1178,91 +1522,102 @@ public class Transaction extends BaseMessage {
      * See transaction c99c49da4c38af669dea436d3e73780dfdb6c1ecf9958baa52960e8baee30e73, which has sigHashType 0
      */
     public Sha256Hash hashForSignature(int inputIndex, byte[] connectedScript, byte sigHashType) {
+        ensureParsed();
         // The SIGHASH flags are used in the design of contracts, please see this page for a further understanding of
         // the purposes of the code in this method:
         //
         //   https://en.bitcoin.it/wiki/Contracts
 
-        try {
-            // Create a copy of this transaction to operate upon because we need make changes to the inputs and outputs.
-            // It would not be thread-safe to change the attributes of the transaction object itself.
-            Transaction tx = Transaction.read(ByteBuffer.wrap(serialize()));
-
-            // Clear input scripts in preparation for signing. If we're signing a fresh
-            // transaction that step isn't very helpful, but it doesn't add much cost relative to the actual
-            // EC math so we'll do it anyway.
-            for (int i = 0; i < tx.inputs.size(); i++) {
-                TransactionInput input = tx.inputs.get(i);
-                input.clearScriptBytes();
-                input.setWitness(null);
+        // Rather than making a modified copy of this transaction and serializing it, the modified serialization is
+        // written straight into the digest. This also leaves the transaction itself untouched, which matters because
+        // it would not be thread-safe to change its attributes.
+        TransactionInput signedInput = inputs.get(inputIndex);
+        int basicSigHashType = sigHashType & 0x1f;
+        boolean anyoneCanPay = (sigHashType & SigHash.ANYONECANPAY.value) == SigHash.ANYONECANPAY.value;
+
+        // This step has no purpose beyond being synchronized with Bitcoin Core's bugs. OP_CODESEPARATOR
+        // is a legacy holdover from a previous, broken design of executing scripts that shipped in Bitcoin 0.1.
+        // It was seriously flawed and would have let anyone take anyone elses money. Later versions switched to
+        // the design we use today where scripts are executed independently but share a stack. This left the
+        // OP_CODESEPARATOR instruction having no purpose as it was only meant to be used internally, not actually
+        // ever put into scripts. Deleting OP_CODESEPARATOR is a step that should never be required but if we don't
+        // do it, we could split off the best chain.
+        connectedScript = Script.removeAllInstancesOfOp(connectedScript, ScriptOpCodes.OP_CODESEPARATOR);
+
+        int outputCount;
+        if (basicSigHashType == SigHash.NONE.value) {
+            // SIGHASH_NONE means no outputs are signed at all - the signature is effectively for a "blank cheque".
+            outputCount = 0;
+        } else if (basicSigHashType == SigHash.SINGLE.value) {
+            // SIGHASH_SINGLE means only sign the output at the same index as the input (ie, my output).
+            if (inputIndex >= outputs.size()) {
+                // The input index is beyond the number of outputs, it's a buggy signature made by a broken
+                // Bitcoin implementation. Bitcoin Core also contains a bug in handling this case:
+                // any transaction output that is signed in this case will result in both the signed output
+                // and any future outputs to this public key being steal-able by anyone who has
+                // the resulting signature and the public key (both of which are part of the signed tx input).
+
+                // Bitcoin Core's bug is that SignatureHash was supposed to return a hash and on this codepath it
+                // actually returns the constant "1" to indicate an error, which is never checked for. Oops.
+                return Sha256Hash.wrap("0100000000000000000000000000000000000000000000000000000000000000");
             }
-
-            // This step has no purpose beyond being synchronized with Bitcoin Core's bugs. OP_CODESEPARATOR
-            // is a legacy holdover from a previous, broken design of executing scripts that shipped in Bitcoin 0.1.
-            // It was seriously flawed and would have let anyone take anyone elses money. Later versions switched to
-            // the design we use today where scripts are executed independently but share a stack. This left the
-            // OP_CODESEPARATOR instruction having no purpose as it was only meant to be used internally, not actually
-            // ever put into scripts. Deleting OP_CODESEPARATOR is a step that should never be required but if we don't
-            // do it, we could split off the best chain.
-            connectedScript = Script.removeAllInstancesOfOp(connectedScript, ScriptOpCodes.OP_CODESEPARATOR);
-
-            // Set the input to the script of its output. Bitcoin Core does this but the step has no obvious purpose as
-            // the signature covers the hash of the prevout transaction which obviously includes the output script
-            // already. Perhaps it felt safer to him in some way, or is another leftover from how the code was written.
-            TransactionInput input = tx.inputs.get(inputIndex);
-            input.setScriptBytes(connectedScript);
-
-            if ((sigHashType & 0x1f) == SigHash.NONE.value) {
-                // SIGHASH_NONE means no outputs are signed at all - the signature is effectively for a "blank cheque".
-                tx.outputs = new ArrayList<>(0);
-                // The signature isn't broken by new versions of the transaction issued by other parties.
-                for (int i = 0; i < tx.inputs.size(); i++)
-                    if (i != inputIndex)
-                        tx.inputs.get(i).setSequenceNumber(0);
-            } else if ((sigHashType & 0x1f) == SigHash.SINGLE.value) {
-                // SIGHASH_SINGLE means only sign the output at the same index as the input (ie, my output).
-                if (inputIndex >= tx.outputs.size()) {
-                    // The input index is beyond the number of outputs, it's a buggy signature made by a broken
-                    // Bitcoin implementation. Bitcoin Core also contains a bug in handling this case:
-                    // any transaction output that is signed in this case will result in both the signed output
-                    // and any future outputs to this public key being steal-able by anyone who has
-                    // the resulting signature and the public key (both of which are part of the signed tx input).
-
-                    // Bitcoin Core's bug is that SignatureHash was supposed to return a hash and on this codepath it
-                    // actually returns the constant "1" to indicate an error, which is never checked for. Oops.
-                    return Sha256Hash.wrap("0100000000000000000000000000000000000000000000000000000000000000");
+            // In SIGHASH_SINGLE the outputs after the matching input index are deleted, and the outputs before
+            // that position are "nulled out".
+            outputCount = inputIndex + 1;
+        } else {
+            outputCount = outputs.size();
+        }
+        // With SIGHASH_NONE and SIGHASH_SINGLE, the signature isn't broken by new versions of the transaction issued
+        // by other parties: the sequence numbers of the other inputs are written as zero.
+        boolean zeroOtherSequences = basicSigHashType == SigHash.NONE.value
+                || basicSigHashType == SigHash.SINGLE.value;
+
+        SigHashCache.Writer writer = new SigHashCache.Writer();
+        writer.writeInt32(version);
+        if (anyoneCanPay) {
+            // SIGHASH_ANYONECANPAY means the signature in the input is not broken by changes/additions/removals
+            // of other inputs. For example, this is useful for building assurance contracts.
+            writer.writeVarInt(1);
+            writeInputForSignature(writer, signedInput, connectedScript);
+        } else {
+            writer.writeVarInt(inputs.size());
+            for (int i = 0; i < inputs.size(); i++) {
+                TransactionInput input = inputs.get(i);
+                if (i == inputIndex) {
+                    // The input being signed gets the script of its output. Bitcoin Core does this but the step has
+                    // no obvious purpose as the signature covers the hash of the prevout transaction which obviously
+                    // includes the output script already.
+                    writeInputForSignature(writer, input, connectedScript);
+                } else {
+                    // All other input scripts are cleared.
+                    writer.writeOutPoint(input.getOutpoint());
+                    writer.writeVarInt(0);
+                    writer.writeInt32(zeroOtherSequences ? 0 : input.getSequenceNumber());
                 }
-                // In SIGHASH_SINGLE the outputs after the matching input index are deleted, and the outputs before
-                // that position are "nulled out". Unintuitively, the value in a "null" transaction is set to -1.
-                tx.outputs = new ArrayList<>(tx.outputs.subList(0, inputIndex + 1));
-                for (int i = 0; i < inputIndex; i++)
-                    tx.outputs.set(i, new TransactionOutput(tx, Coin.NEGATIVE_SATOSHI, new byte[] {}));
-                // The signature isn't broken by new versions of the transaction issued by other parties.
-                for (int i = 0; i < tx.inputs.size(); i++)
-                    if (i != inputIndex)
-                        tx.inputs.get(i).setSequenceNumber(0);
             }
-
-            if ((sigHashType & SigHash.ANYONECANPAY.value) == SigHash.ANYONECANPAY.value) {
-                // SIGHASH_ANYONECANPAY means the signature in the input is not broken by changes/additions/removals
-                // of other inputs. For example, this is useful for building assurance contracts.
-                tx.inputs = new ArrayList<>();
-                tx.inputs.add(input);
+        }
+        writer.writeVarInt(outputCount);
+        for (int i = 0; i < outputCount; i++) {
+            if (basicSigHashType == SigHash.SINGLE.value && i != inputIndex) {
+                // Unintuitively, the value in a "null" output is set to -1.
+                writer.writeInt64(Coin.NEGATIVE_SATOSHI.getValue());
+                writer.writeVarInt(0);
+            } else {
+                writer.writeOutput(outputs.get(i));
             }
-
-            ByteArrayOutputStream bos = new ByteArrayOutputStream(255); // just a guess at an average tx length
-            tx.bitcoinSerializeToStream(bos, false);
-            // We also have to write a hash type (sigHashType is actually an unsigned char)
-            writeInt32LE(0x000000ff & sigHashType, bos);
-            // Note that this is NOT reversed to ensure it will be signed correctly. If it were to be printed out
-            // however then we would expect that it is IS reversed.
-            Sha256Hash hash = Sha256Hash.onceOf(bos.toByteArray());
-            bos.close();
-
-            return hash;
-        } catch (IOException e) {
-            throw new RuntimeException(e);  // Cannot happen.
         }
+        writer.writeInt32(vLockTime.rawValue());
+        // We also have to write a hash type (sigHashType is actually an unsigned char)
+        writer.writeInt32(0x000000ff & sigHashType);
+        // Note that this is NOT reversed to ensure it will be signed correctly. If it were to be printed out
+        // however then we would expect that it is IS reversed.
+        return writer.hash();
+    }
+
+    private static void writeInputForSignature(SigHashCache.Writer writer, TransactionInput input, byte[] script) {
+        writer.writeOutPoint(input.getOutpoint());
+        writer.writeBytes(script);
+        writer.writeInt32(input.getSequenceNumber());
     }
 
     public TransactionSignature calculateWitnessSignature(
@@ -1348,74 +1703,50 @@ public class Transaction extends BaseMessage {
             byte[] scriptCode,
             Coin prevValue,
             byte sigHashType){
-        ByteArrayOutputStream bos = new ByteArrayOutputStream(255); // just a guess at an average tx length
-        try {
-            byte[] hashPrevouts = new byte[32];
-            byte[] hashSequence = new byte[32];
-            byte[] hashOutputs = new byte[32];
-            int basicSigHashType = sigHashType & 0x1f;
-            boolean anyoneCanPay = (sigHashType & SigHash.ANYONECANPAY.value) == SigHash.ANYONECANPAY.value;
-            boolean signAll = (basicSigHashType != SigHash.SINGLE.value) && (basicSigHashType != SigHash.NONE.value);
-
-            if (!anyoneCanPay) {
-                ByteArrayOutputStream bosHashPrevouts = new ByteArrayOutputStream(256);
-                for (TransactionInput input : this.inputs) {
-                    bosHashPrevouts.write(input.getOutpoint().hash().serialize());
-                    writeInt32LE(input.getOutpoint().index(), bosHashPrevouts);
-                }
-                hashPrevouts = Sha256Hash.hash(bosHashPrevouts.toByteArray());
-            }
-
-            if (!anyoneCanPay && signAll) {
-                ByteArrayOutputStream bosSequence = new ByteArrayOutputStream(256);
-                for (TransactionInput input : this.inputs) {
-                    writeInt32LE(input.getSequenceNumber(), bosSequence);
-                }
-                hashSequence = Sha256Hash.hash(bosSequence.toByteArray());
-            }
-
-            if (signAll) {
-                ByteArrayOutputStream bosHashOutputs = new ByteArrayOutputStream(256);
-                for (TransactionOutput output : this.outputs) {
-                    writeInt64LE(
-                            BigInteger.valueOf(output.getValue().getValue()),
-                            bosHashOutputs
-                    );
-                    bosHashOutputs.write(VarInt.of(output.getScriptBytes().length).serialize());
-                    bosHashOutputs.write(output.getScriptBytes());
-                }
-                hashOutputs = Sha256Hash.hash(bosHashOutputs.toByteArray());
-            } else if (basicSigHashType == SigHash.SINGLE.value && inputIndex < outputs.size()) {
-                ByteArrayOutputStream bosHashOutputs = new ByteArrayOutputStream(256);
-                writeInt64LE(
-                        BigInteger.valueOf(this.outputs.get(inputIndex).getValue().getValue()),
-                        bosHashOutputs
-                );
-                bosHashOutputs.write(VarInt.of(this.outputs.get(inputIndex).getScriptBytes().length).serialize());
-                bosHashOutputs.write(this.outputs.get(inputIndex).getScriptBytes());
-                hashOutputs = Sha256Hash.hash(bosHashOutputs.toByteArray());
-            }
-            writeInt32LE(version, bos);
-            bos.write(hashPrevouts);
-            bos.write(hashSequence);
-            bos.write(inputs.get(inputIndex).getOutpoint().hash().serialize());
-            writeInt32LE(inputs.get(inputIndex).getOutpoint().index(), bos);
-            bos.write(VarInt.of(scriptCode.length).serialize());
-            bos.write(scriptCode);
-            writeInt64LE(BigInteger.valueOf(prevValue.getValue()), bos);
-            writeInt32LE(inputs.get(inputIndex).getSequenceNumber(), bos);
-            bos.write(hashOutputs);
-            writeInt32LE(this.vLockTime.rawValue(), bos);
-            writeInt32LE(0x000000ff & sigHashType, bos);
-        } catch (IOException e) {
-            throw new RuntimeException(e);  // Cannot happen.
+        ensureParsed();
+        int basicSigHashType = sigHashType & 0x1f;
+        boolean anyoneCanPay = (sigHashType & SigHash.ANYONECANPAY.value) == SigHash.ANYONECANPAY.value;
+        boolean signAll = (basicSigHashType != SigHash.SINGLE.value) && (basicSigHashType != SigHash.NONE.value);
+        TransactionInput input = inputs.get(inputIndex);
+
+        // The hashes over all inputs and outputs are the same for every input, so they come from the cache.
+        Sha256Hash hashPrevouts = Sha256Hash.ZERO_HASH;
+        Sha256Hash hashSequence = Sha256Hash.ZERO_HASH;
+        Sha256Hash hashOutputs = Sha256Hash.ZERO_HASH;
+        if (!anyoneCanPay || signAll) {
+            SigHashCache cache = getSigHashCache();
+            if (!anyoneCanPay)
+                hashPrevouts = cache.hashPrevouts();
+            if (!anyoneCanPay && signAll)
+                hashSequence = cache.hashSequence();
+            if (signAll)
+                hashOutputs = cache.hashOutputs();
+        }
+        if (basicSigHashType == SigHash.SINGLE.value && inputIndex < outputs.size()) {
+            SigHashCache.Writer outputWriter = new SigHashCache.Writer();
+            outputWriter.writeOutput(outputs.get(inputIndex));
+            hashOutputs = outputWriter.hash();
         }
 
-        return Sha256Hash.of(bos.toByteArray());
+        SigHashCache.Writer writer = new SigHashCache.Writer();
+        writer.writeInt32(version);
+        writer.write(hashPrevouts.getBytes());
+        writer.write(hashSequence.getBytes());
+        writer.writeOutPoint(input.getOutpoint());
+        writer.writeBytes(scriptCode);
+        writer.writeInt64(prevValue.getValue());
+        writer.writeInt32(input.getSequenceNumber());
+        writer.write(hashOutputs.getBytes());
+        writer.writeInt32(this.vLockTime.rawValue());
+        writer.writeInt32(0x000000ff & sigHashType);
+        return writer.hash();
     }
 
     @Override
     public int messageSize() {
+        WireBytes wire = vWire;
+        if (wire != null)
+            return wire.size();
         boolean useSegwit = hasWitnesses() && allowWitness(protocolVersion);
         int size = 4; // version
         if (useSegwit)
@@ -1435,6 +1766,11 @@ public class Transaction extends BaseMessage {
 
     @Override
     protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        WireBytes wire = vWire;
+        if (wire != null) {
+            wire.writeTo(stream);
+            return;
+        }
         boolean useSegwit = hasWitnesses() && allowWitness(protocolVersion);
         bitcoinSerializeToStream(stream, useSegwit);
     }
@@ -1445,6 +1781,12 @@ public class Transaction extends BaseMessage {
      * desired.
      */
     protected void bitcoinSerializeToStream(OutputStream stream, boolean useSegwit) throws IOException {
+        WireBytes wire = vWire;
+        if (wire != null && wire.segwit == useSegwit) {
+            wire.writeTo(stream);
+            return;
+        }
+        ensureParsed();
         // version
         writeInt32LE(version, stream);
         // marker, flag
@@ -1477,6 +1819,7 @@ public class Transaction extends BaseMessage {
      * @return lock time, wrapped in a {@link LockTime}
      */
     public LockTime lockTime() {
+        ensureParsed();
         return vLockTime;
     }
 
@@ -1493,6 +1836,7 @@ public class Transaction extends BaseMessage {
      * standard and won't be relayed or included in the memory pool either.
      */
     public void setLockTime(long lockTime) {
+        ensureParsed();
         boolean seqNumSet = false;
         for (TransactionInput input : inputs) {
             if (input.getSequenceNumber() != TransactionInput.NO_SEQUENCE) {
@@ -1506,26 +1850,60 @@ public class Transaction extends BaseMessage {
             log.warn("You are setting the lock time on a transaction but none of the inputs have non-default sequence numbers. This will not do what you expect!");
         }
         this.vLockTime = LockTime.of(lockTime);
+        invalidateCachedHashes();
     }
 
     public long getVersion() {
+        ensureParsed();
         return version;
     }
 
     public void setVersion(int version) {
+        ensureParsed();
         this.version = version;
+        invalidateCachedHashes();
     }
 
     /** Returns an unmodifiable view of all inputs. */
     public List<TransactionInput> getInputs() {
+        ensureParsed();
         return Collections.unmodifiableList(inputs);
     }
 
     /** Returns an unmodifiable view of all outputs. */
     public List<TransactionOutput> getOutputs() {
+        ensureParsed();
         return Collections.unmodifiableList(outputs);
     }
 
+    /**
+     * Returns the outpoints spent by the inputs, in the order of the inputs. Unlike going through {@link #getInputs()},
+     * this doesn't parse a transaction that was {@link #readLazily(ByteBuffer, int) read lazily}, in which case the
+     * outpoints are new objects not connected to anything.
+     */
+    public List<TransactionOutPoint> getOutPoints() {
+        WireBytes wire = vWire;
+        if (wire != null)
+            return wire.outPoints();
+        return inputs.stream()
+                .map(TransactionInput::getOutpoint)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Returns the scriptPubKey program bytes of the outputs, in the order of the outputs. Unlike going through
+     * {@link #getOutputs()}, this doesn't parse a transaction that was
+     * {@link #readLazily(ByteBuffer, int) read lazily}.
+     */
+    public List<byte[]> getOutputScriptBytes() {
+        WireBytes wire = vWire;
+        if (wire != null)
+            return wire.outputScripts();
+        return outputs.stream()
+                .map(TransactionOutput::getScriptBytes)
+                .collect(Collectors.toList());
+    }
+
     /**
      * <p>Returns the list of transacion outputs, whether spent or unspent, that match a wallet by address or that are
      * watched by a wallet, i.e., transaction outputs whose script's address is controlled by the wallet and transaction
@@ -1535,6 +1913,7 @@ public class Transaction extends BaseMessage {
      * @return linked list of outputs relevant to the wallet in this transaction
      */
     public List<TransactionOutput> getWalletOutputs(TransactionBag transactionBag){
+        ensureParsed();
         List<TransactionOutput> walletOutputs = new LinkedList<>();
         for (TransactionOutput o : outputs) {
             if (!o.isMineOrWatched(transactionBag)) continue;
@@ -1546,16 +1925,20 @@ public class Transaction extends BaseMessage {
 
     /** Randomly re-orders the transaction outputs: good for privacy */
     public void shuffleOutputs() {
+        ensureParsed();
         Collections.shuffle(outputs);
+        invalidateCachedHashes();
     }
 
     /** Same as getInputs().get(index). */
     public TransactionInput getInput(long index) {
+        ensureParsed();
         return inputs.get((int)index);
     }
 
     /** Same as getOutputs().get(index) */
     public TransactionOutput getOutput(long index) {
+        ensureParsed();
         return outputs.get((int)index);
     }
 
@@ -1618,6 +2001,7 @@ public class Transaction extends BaseMessage {
      * Gets the count of regular SigOps in this transactions
      */
     public int getSigOpCount() throws ScriptException {
+        ensureParsed();
         int sigOps = 0;
         for (TransactionInput input : inputs)
             sigOps += Script.getSigOpCount(input.getScriptBytes());
@@ -1632,6 +2016,7 @@ public class Transaction extends BaseMessage {
      */
     public void checkCoinBaseHeight(final int height)
             throws VerificationException {
+        ensureParsed();
         checkArgument(height >= Block.BLOCK_HEIGHT_GENESIS);
         checkState(isCoinBase());
 
@@ -1653,6 +2038,7 @@ public class Transaction extends BaseMessage {
 
     /** Loops the outputs of a coinbase transaction to locate the witness commitment. */
     public Sha256Hash findWitnessCommitment() {
+        ensureParsed();
         checkState(isCoinBase());
         List<TransactionOutput> reversed = new ArrayList<>(outputs);
         Collections.reverse(reversed);
@@ -1686,6 +2072,7 @@ public class Transaction extends BaseMessage {
      * higher and at least one of its inputs has its {@link TransactionInput#SEQUENCE_LOCKTIME_DISABLE_FLAG} cleared.
      */
     public boolean hasRelativeLockTime() {
+        ensureParsed();
         if (version < 2)
             return false;
         for (TransactionInput input : getInputs())
@@ -1803,6 +2190,7 @@ public class Transaction extends BaseMessage {
      * @throws VerificationException if at least one of the rules is violated
      */
     public static void verify(Network network, Transaction tx) throws VerificationException {
+        tx.ensureParsed();
         if (tx.inputs.size() == 0 || tx.outputs.size() == 0)
             throw new VerificationException.EmptyInputsOrOutputs();
         if (tx.messageSize() > Block.MAX_BLOCK_SIZE)
@@ -37,6 +37,7 @@ import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executor;
+import java.util.function.IntSupplier;
 
 import static org.bitcoinj.base.internal.Preconditions.checkState;
 
@@ -67,7 +68,8 @@ import static org.bitcoinj.base.internal.Preconditions.checkState;
  * been double spent and will never confirm unless there is another re-org.</p>
  *
  * <p>TransactionConfidence is updated via the {@link TransactionConfidence#incrementDepthInBlocks()}
- * method to ensure the block depth is up to date.</p>
+ * method to ensure the block depth is up to date. Alternatively, the depth can be derived from the height of the best
+ * chain, see {@link #setBestChainHeightSource(IntSupplier)}.</p>
  * To make a copy that won't be changed, use {@link TransactionConfidence#duplicate()}.
  */
 public class TransactionConfidence {
@@ -93,6 +95,9 @@ public class TransactionConfidence {
 
     // The depth of the transaction on the best chain in blocks. An unconfirmed block has depth 0.
     private int depth;
+    // If set, the depth of a BUILDING transaction is derived from the height of the best chain instead.
+    @Nullable
+    private IntSupplier bestChainHeight;
 
     /** Describes the state of the transaction in general terms. Properties can be read to learn specifics. */
     public enum ConfidenceType {
@@ -422,9 +427,39 @@ public class TransactionConfidence {
      * the depth is zero.</p>
      */
     public synchronized int getDepthInBlocks() {
+        if (bestChainHeight != null)
+            return getDepthInBlocks(bestChainHeight.getAsInt());
         return depth;
     }
 
+    /**
+     * Returns the depth of the transaction given the height of the best chain. If the transaction is not BUILDING,
+     * or the height it appeared at is not known, this is the same as {@link #getDepthInBlocks()}.
+     *
+     * @param bestChainHeight height of the best chain
+     * @return depth in blocks, at least one if the transaction is BUILDING
+     */
+    public synchronized int getDepthInBlocks(int bestChainHeight) {
+        if (confidenceType != ConfidenceType.BUILDING || appearedAtChainHeight < 0)
+            return depth;
+        return Math.max(1, bestChainHeight - appearedAtChainHeight + 1);
+    }
+
+    /**
+     * <p>Derives the depth of the transaction from the given height of the best chain and the height the transaction
+     * appeared at, rather than counting blocks with {@link #incrementDepthInBlocks()}. This way nothing needs to touch
+     * the transaction when a block arrives.</p>
+     *
+     * <p>The source is called with the lock of this object held, so it must not take any locks itself. A BUILDING
+     * transaction whose height isn't known keeps the depth it has, so set that height first, e.g. via
+     * {@link #setAppearedAtChainHeight(int)}.</p>
+     *
+     * @param bestChainHeight source of the height of the best chain, or {@code null} to count blocks again
+     */
+    public synchronized void setBestChainHeightSource(@Nullable IntSupplier bestChainHeight) {
+        this.bestChainHeight = bestChainHeight;
+    }
+
     /*
      * Set the depth in blocks. Having one block confirmation is a depth of one.
      */
@@ -477,6 +512,7 @@ public class TransactionConfidence {
             c.confidenceType = confidenceType;
             c.overridingTransaction = overridingTransaction;
             c.appearedAtChainHeight = appearedAtChainHeight;
+            c.depth = getDepthInBlocks();
         }
         return c;
     }
@@ -22,6 +22,10 @@ import org.bitcoinj.base.Sha256Hash;
 import org.bitcoinj.core.StoredBlock;
 import org.bitcoinj.core.Transaction;
 import org.bitcoinj.core.VerificationException;
+import org.bitcoinj.script.ScriptException;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
 
 /**
  * Listener interface for when we receive a new block that contains a relevant
@@ -44,6 +48,32 @@ public interface TransactionReceivedInBlockListener {
     void receiveFromBlock(Transaction tx, StoredBlock block,
                           BlockChain.NewBlockType blockType,
                           int relativityOffset) throws VerificationException;
+
+    /**
+     * <p>Called by the {@link BlockChain} with several transactions of a new block at once, in the order they appear in
+     * the block: all of them when full blocks are downloaded, or consecutive ones of a {@link FilteredBlock}. The
+     * first transaction has the given relativityOffset, the next one the offset after that, and so on.</p>
+     *
+     * <p>The default implementation calls {@link #receiveFromBlock(Transaction, StoredBlock, BlockChain.NewBlockType, int)}
+     * for each transaction, skipping the ones with scripts that can't be parsed. Implementations that keep state can
+     * override it to do their bookkeeping once for the whole batch.</p>
+     */
+    default void receiveFromBlock(List<Transaction> txns, StoredBlock block,
+                                  BlockChain.NewBlockType blockType,
+                                  int relativityOffset) throws VerificationException {
+        for (Transaction tx : txns) {
+            try {
+                receiveFromBlock(tx, block, blockType, relativityOffset);
+            } catch (ScriptException e) {
+                // We don't want scripts we don't understand to break the block chain so just note that this tx was
+                // not scanned here and continue.
+                LoggerFactory.getLogger(TransactionReceivedInBlockListener.class)
+                        .warn("Failed to parse a script: " + e.toString());
+            }
+            relativityOffset++;
+        }
+    }
+
     /**
      * <p>Called by the {@link BlockChain} when we receive a new {@link FilteredBlock} that contains the given
      * transaction hash in its merkle tree.</p>
@@ -615,11 +615,26 @@ public class ECKey implements EncryptableItem {
      * <p>When using native ECDSA verification, data must be 32 bytes, and no element may be
      * larger than 520 bytes.</p>
      *
+     * <p>Valid signatures are remembered in the {@link SignatureCache}, so verifying them again is cheap.</p>
+     *
      * @param data      Hash of the data to verify.
      * @param signature ASN.1 encoded signature.
      * @param pub       The public key bytes to use.
      */
     public static boolean verify(byte[] data, ECDSASignature signature, byte[] pub) {
+        SignatureCache cache = SignatureCache.get();
+        if (!cache.isEnabled())
+            return verifyUncached(data, signature, pub);
+        Sha256Hash entry = cache.entryFor(data, pub, signature.encodeToDER());
+        if (cache.contains(entry))
+            return true;
+        boolean valid = verifyUncached(data, signature, pub);
+        if (valid)
+            cache.add(entry);
+        return valid;
+    }
+
+    private static boolean verifyUncached(byte[] data, ECDSASignature signature, byte[] pub) {
         if (Secp256k1Context.isEnabled()) {
             try {
                 return NativeSecp256k1.verify(data, signature.encodeToDER(), pub);
@@ -643,7 +658,8 @@ public class ECKey implements EncryptableItem {
     }
 
     /**
-     * Verifies the given ASN.1 encoded ECDSA signature against a hash using the public key.
+     * Verifies the given ASN.1 encoded ECDSA signature against a hash using the public key. Valid signatures are
+     * remembered in the {@link SignatureCache}.
      *
      * @param data      Hash of the data to verify.
      * @param signature ASN.1 encoded signature.
@@ -651,6 +667,19 @@ public class ECKey implements EncryptableItem {
      * @throws SignatureDecodeException if the signature is unparseable in some way.
      */
     public static boolean verify(byte[] data, byte[] signature, byte[] pub) throws SignatureDecodeException {
+        SignatureCache cache = SignatureCache.get();
+        if (!cache.isEnabled())
+            return verifyUncached(data, signature, pub);
+        Sha256Hash entry = cache.entryFor(data, pub, signature);
+        if (cache.contains(entry))
+            return true;
+        boolean valid = verifyUncached(data, signature, pub);
+        if (valid)
+            cache.add(entry);
+        return valid;
+    }
+
+    private static boolean verifyUncached(byte[] data, byte[] signature, byte[] pub) throws SignatureDecodeException {
         if (Secp256k1Context.isEnabled()) {
             try {
                 return NativeSecp256k1.verify(data, signature, pub);
@@ -659,7 +688,7 @@ public class ECKey implements EncryptableItem {
                 return false;
             }
         }
-        return verify(data, ECDSASignature.decodeFromDER(signature), pub);
+        return verifyUncached(data, ECDSASignature.decodeFromDER(signature), pub);
     }
 
     /**
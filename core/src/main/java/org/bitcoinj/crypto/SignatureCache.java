@@ -0,0 +1,184 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.crypto;
+
+import org.bitcoinj.base.Sha256Hash;
+import org.bitcoinj.base.internal.ByteUtils;
+
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static org.bitcoinj.base.internal.Preconditions.checkArgument;
+
+/**
+ * <p>Remembers (sighash, public key, signature) triples that have been verified to be valid, so that verifying them
+ * again is a lookup rather than an ECDSA verification. This pays off for full verification, where the scripts of most
+ * transactions in a block have already been run when the transaction was received as pending.</p>
+ *
+ * <p>Only valid signatures are remembered, which makes the cache safe to consult from anywhere: a signature that is
+ * valid for a given hash and key is always valid. {@link ECKey#verify(byte[], ECKey.ECDSASignature, byte[])} and
+ * {@link ECKey#verify(byte[], byte[], byte[])}, and therefore script execution, use {@link #get()}.</p>
+ *
+ * <p>Entries are the salted SHA-256 of the triple. Each entry can live in one of two slots of a fixed size table;
+ * when both are taken, a new entry replaces whichever of the two was added longer ago, so memory use is bounded by
+ * the capacity and the most recently verified signatures stay. All methods are thread safe and don't block.</p>
+ */
+public class SignatureCache {
+    /** Default number of entries of the cache. */
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+
+    private static volatile SignatureCache instance = new SignatureCache(DEFAULT_CAPACITY);
+
+    private final AtomicReferenceArray<Sha256Hash> slots;
+    // for each slot, the value of addCount when its entry was added
+    private final AtomicIntegerArray added;
+    private final AtomicInteger addCount = new AtomicInteger();
+    private final int mask;
+    private final byte[] salt = new byte[16];
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Creates a cache.
+     *
+     * @param capacity maximum number of entries, rounded up to a power of two, or 0 for a cache that doesn't
+     *                 remember anything
+     */
+    public SignatureCache(int capacity) {
+        checkArgument(capacity >= 0 && capacity <= 1 << 30, () -> "capacity out of range: " + capacity);
+        int size = Integer.highestOneBit(capacity);
+        if (size != capacity)
+            size <<= 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.added = new AtomicIntegerArray(size);
+        this.mask = size - 1;
+        new SecureRandom().nextBytes(salt);
+    }
+
+    /** Returns the cache used when verifying signatures. */
+    public static SignatureCache get() {
+        return instance;
+    }
+
+    /**
+     * Replaces the cache used when verifying signatures, e.g. with a larger one for a fully verifying node, or with
+     * {@code new SignatureCache(0)} to disable caching.
+     */
+    public static void set(SignatureCache cache) {
+        instance = Objects.requireNonNull(cache);
+    }
+
+    /** Returns true if this cache can remember anything at all. */
+    public boolean isEnabled() {
+        return slots.length() > 0;
+    }
+
+    /**
+     * Calculates the cache entry for the given triple.
+     *
+     * @param hash      hash the signature is for
+     * @param pubKey    public key bytes
+     * @param signature encoded signature
+     * @return the entry, to be passed to {@link #contains(Sha256Hash)} and {@link #add(Sha256Hash)}
+     */
+    public Sha256Hash entryFor(byte[] hash, byte[] pubKey, byte[] signature) {
+        MessageDigest digest = Sha256Hash.newDigest();
+        digest.update(salt);
+        digest.update((byte) hash.length);
+        digest.update(hash);
+        digest.update((byte) pubKey.length);
+        digest.update(pubKey);
+        digest.update(signature);
+        return Sha256Hash.wrap(digest.digest());
+    }
+
+    /**
+     * Returns true if the given entry is in the cache, i.e. the signature is known to be valid. Counts a hit or a
+     * miss.
+     */
+    public boolean contains(Sha256Hash entry) {
+        if (isEnabled() && (entry.equals(slots.get(slot1(entry))) || entry.equals(slots.get(slot2(entry))))) {
+            hits.incrementAndGet();
+            return true;
+        }
+        misses.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Adds an entry for a signature that has been verified to be valid. If both slots the entry can live in are
+     * taken, the one that was added longer ago is replaced. Threads adding at the same time may replace a more recent
+     * entry instead, which only costs a verification later.
+     */
+    public void add(Sha256Hash entry) {
+        if (!isEnabled())
+            return;
+        int slot1 = slot1(entry);
+        int slot2 = slot2(entry);
+        if (entry.equals(slots.get(slot1)) || entry.equals(slots.get(slot2)))
+            return;
+        int slot;
+        if (slots.get(slot1) == null)
+            slot = slot1;
+        else if (slots.get(slot2) == null)
+            slot = slot2;
+        else // the difference, unlike a comparison, survives the counter wrapping around
+            slot = added.get(slot1) - added.get(slot2) <= 0 ? slot1 : slot2;
+        added.set(slot, addCount.incrementAndGet());
+        slots.set(slot, entry);
+    }
+
+    /** Removes all entries. The counters are kept. */
+    public void clear() {
+        for (int i = 0; i < slots.length(); i++)
+            slots.set(i, null);
+    }
+
+    /** Returns the maximum number of entries. */
+    public int capacity() {
+        return slots.length();
+    }
+
+    /** Returns the number of lookups that found the signature. */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /** Returns the number of lookups that didn't find the signature. */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private int slot1(Sha256Hash entry) {
+        return entry.hashCode() & mask;
+    }
+
+    private int slot2(Sha256Hash entry) {
+        return (int) ByteUtils.readUint32BE(entry.getBytes(), 0) & mask;
+    }
+
+    @Override
+    public String toString() {
+        return "SignatureCache{capacity=" + capacity() + ", hits=" + hits.get() + ", misses=" + misses.get() + "}";
+    }
+}
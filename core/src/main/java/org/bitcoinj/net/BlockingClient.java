@@ -34,6 +34,7 @@ import java.nio.ByteBuffer;
 import java.time.Duration;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static org.bitcoinj.base.internal.Preconditions.checkState;
 
@@ -52,6 +53,8 @@ public class BlockingClient implements MessageWriteTarget {
 
     private Socket socket;
     private volatile boolean vCloseRequested = false;
+    // Whether the read loop waits before reading more, guarded by itself.
+    private final AtomicBoolean readingPaused = new AtomicBoolean();
     private CompletableFuture<SocketAddress> connectFuture;
 
     /**
@@ -83,7 +86,7 @@ public class BlockingClient implements MessageWriteTarget {
                 connection.connectionOpened();
                 connectFuture.complete(serverAddress);
                 InputStream stream = socket.getInputStream();
-                runReadLoop(stream, connection);
+                runReadLoop(stream, connection, BlockingClient.this);
             } catch (Exception e) {
                 if (!vCloseRequested) {
                     log.error("Error trying to open/read from connection: {}: {}", serverAddress, e.getMessage());
@@ -110,15 +113,29 @@ public class BlockingClient implements MessageWriteTarget {
      * and feeds them to the provided {@link StreamConnection}, for example, a {@link Peer}.
      */
     public static void runReadLoop(InputStream stream, StreamConnection connection) throws Exception {
+        runReadLoop(stream, connection, null);
+    }
+
+    private static void runReadLoop(InputStream stream, StreamConnection connection, @Nullable BlockingClient client)
+            throws Exception {
         ByteBuffer dbuf = ByteBuffer.allocateDirect(Math.min(Math.max(connection.getMaxMessageSize(), BUFFER_SIZE_LOWER_BOUND), BUFFER_SIZE_UPPER_BOUND));
         byte[] readBuff = new byte[dbuf.capacity()];
         while (true) {
             // TODO Kill the message duplication here
-            checkState(dbuf.remaining() > 0 && dbuf.remaining() <= readBuff.length);
-            int read = stream.read(readBuff, 0, Math.max(1, Math.min(dbuf.remaining(), stream.available())));
-            if (read == -1)
-                return;
-            dbuf.put(readBuff, 0, read);
+            checkState(dbuf.remaining() <= readBuff.length);
+            if (client != null) {
+                client.awaitReadingResumed();
+                if (client.vCloseRequested)
+                    return;
+            }
+            // With a full buffer, offer the bytes again: the connection may have paused reading to wait for memory
+            // to read them into.
+            if (dbuf.hasRemaining()) {
+                int read = stream.read(readBuff, 0, Math.max(1, Math.min(dbuf.remaining(), stream.available())));
+                if (read == -1)
+                    return;
+                dbuf.put(readBuff, 0, read);
+            }
             // "flip" the buffer - setting the limit to the current position and setting position to 0
             ((Buffer) dbuf).flip();
             // Use connection.receiveBytes's return value as a double-check that it stopped reading at the right
@@ -131,6 +148,21 @@ public class BlockingClient implements MessageWriteTarget {
         }
     }
 
+    private void awaitReadingResumed() throws InterruptedException {
+        synchronized (readingPaused) {
+            while (readingPaused.get() && !vCloseRequested)
+                readingPaused.wait();
+        }
+    }
+
+    @Override
+    public void setReadingPaused(boolean paused) {
+        synchronized (readingPaused) {
+            readingPaused.set(paused);
+            readingPaused.notifyAll();
+        }
+    }
+
     /**
      * Closes the connection to the server, triggering the {@link StreamConnection#connectionClosed()}
      * event on the network-handling thread where all callbacks occur.
@@ -140,6 +172,7 @@ public class BlockingClient implements MessageWriteTarget {
         // Closes the channel, triggering an exception in the network-handling thread triggering connectionClosed()
         try {
             vCloseRequested = true;
+            setReadingPaused(false);
             socket.close();
         } catch (IOException e) {
             throw new RuntimeException(e);
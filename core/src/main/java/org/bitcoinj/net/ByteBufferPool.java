@@ -0,0 +1,246 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.net;
+
+import net.jcip.annotations.GuardedBy;
+import org.bitcoinj.utils.Threading;
+
+import javax.annotation.Nullable;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static org.bitcoinj.base.internal.Preconditions.checkArgument;
+
+/**
+ * A pool of {@link ByteBuffer}s in power of two size classes, from {@link #MIN_CAPACITY} up to a maximum capacity.
+ * Buffers that are {@link #release(ByteBuffer)}d are kept for reuse until the pool holds {@code maxRetainedBytes};
+ * beyond that, and for buffers larger than the largest size class, they are left to the garbage collector.
+ * <p>
+ * Pooling pays off mostly for direct buffers, which are expensive to allocate and which the channels can write
+ * from without copying, and for large buffers. A buffer must not be used after releasing it, and only buffers
+ * acquired from this pool may be released to it. This class is thread-safe.
+ * <p>
+ * The pool also keeps track of how many bytes are acquired and not yet released, so that
+ * {@link #tryAcquire(int, Runnable)} can bound the memory used by buffers from the pool.
+ */
+public class ByteBufferPool {
+    /** Capacity of the smallest size class. */
+    public static final int MIN_CAPACITY = 4096;
+    private static final int MIN_SHIFT = Integer.numberOfTrailingZeros(MIN_CAPACITY);
+
+    private final boolean direct;
+    private final int maxPooledCapacity;
+    private final long maxRetainedBytes;
+
+    private final ReentrantLock lock = Threading.lock(ByteBufferPool.class);
+    // Free buffers by size class, index i holding buffers of MIN_CAPACITY << i bytes.
+    @GuardedBy("lock") private final ArrayDeque<ByteBuffer>[] free;
+    @GuardedBy("lock") private long retainedBytes;
+    // Bytes of buffers acquired and not released yet.
+    @GuardedBy("lock") private long acquiredBytes;
+    @GuardedBy("lock") private long maxAcquiredBytes = Long.MAX_VALUE;
+    // Called back once buffers are released, after tryAcquire() refused them.
+    @GuardedBy("lock") private final List<Runnable> waiters = new ArrayList<>();
+
+    /**
+     * @param direct            whether to allocate direct buffers
+     * @param maxPooledCapacity capacity of the largest size class, rounded up to a power of two
+     * @param maxRetainedBytes  maximum number of bytes of free buffers kept for reuse
+     */
+    @SuppressWarnings("unchecked")
+    public ByteBufferPool(boolean direct, int maxPooledCapacity, long maxRetainedBytes) {
+        checkArgument(maxPooledCapacity >= MIN_CAPACITY && maxPooledCapacity <= 1 << 30, () ->
+                "maxPooledCapacity out of range: " + maxPooledCapacity);
+        checkArgument(maxRetainedBytes >= 0, () -> "maxRetainedBytes must not be negative: " + maxRetainedBytes);
+        this.direct = direct;
+        this.maxPooledCapacity = roundUp(maxPooledCapacity);
+        this.maxRetainedBytes = maxRetainedBytes;
+        this.free = new ArrayDeque[sizeClass(this.maxPooledCapacity) + 1];
+        for (int i = 0; i < free.length; i++)
+            free[i] = new ArrayDeque<>();
+    }
+
+    /** Returns whether this pool hands out direct buffers. */
+    public boolean isDirect() {
+        return direct;
+    }
+
+    /**
+     * Returns a cleared, big-endian buffer with at least the given capacity. Its contents are undefined.
+     *
+     * @param minCapacity minimum capacity of the buffer
+     * @return buffer, to be given back with {@link #release(ByteBuffer)}
+     */
+    public ByteBuffer acquire(int minCapacity) {
+        checkArgument(minCapacity >= 0, () -> "minCapacity must not be negative: " + minCapacity);
+        int capacity = capacityFor(minCapacity);
+        lock.lock();
+        try {
+            return acquireLocked(capacity);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Like {@link #acquire(int)}, but respects {@link #setMaxAcquiredBytes(long)}: if the buffer would take the
+     * acquired bytes over the limit, returns null and calls {@code onAvailable} once some buffer is released. A
+     * buffer is never refused if no bytes are acquired at all, so a single buffer larger than the limit can be had.
+     *
+     * @param minCapacity minimum capacity of the buffer
+     * @param onAvailable called, on the thread releasing a buffer, when it makes sense to try again
+     * @return buffer, to be given back with {@link #release(ByteBuffer)}, or null if refused
+     */
+    @Nullable
+    public ByteBuffer tryAcquire(int minCapacity, Runnable onAvailable) {
+        checkArgument(minCapacity >= 0, () -> "minCapacity must not be negative: " + minCapacity);
+        int capacity = capacityFor(minCapacity);
+        lock.lock();
+        try {
+            if (acquiredBytes > 0 && acquiredBytes + capacity > maxAcquiredBytes) {
+                waiters.add(onAvailable);
+                return null;
+            }
+            return acquireLocked(capacity);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private ByteBuffer acquireLocked(int capacity) {
+        acquiredBytes += capacity;
+        if (capacity <= maxPooledCapacity) {
+            ByteBuffer buffer = free[sizeClass(capacity)].poll();
+            if (buffer != null) {
+                retainedBytes -= capacity;
+                ((Buffer) buffer).clear();
+                buffer.order(ByteOrder.BIG_ENDIAN);
+                return buffer;
+            }
+        }
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * Gives a buffer obtained from {@link #acquire(int)} back to the pool.
+     *
+     * @param buffer buffer to give back
+     */
+    public void release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        List<Runnable> toNotify;
+        lock.lock();
+        try {
+            acquiredBytes -= capacity;
+            if (capacity <= maxPooledCapacity && retainedBytes + capacity <= maxRetainedBytes) {
+                free[sizeClass(capacity)].push(buffer);
+                retainedBytes += capacity;
+            }
+            toNotify = takeWaiters();
+        } finally {
+            lock.unlock();
+        }
+        toNotify.forEach(Runnable::run);
+    }
+
+    /**
+     * Gives up a buffer that can't be released because it might still be in use. It no longer counts as acquired,
+     * but isn't reused.
+     *
+     * @param buffer buffer obtained from this pool
+     */
+    public void discard(ByteBuffer buffer) {
+        List<Runnable> toNotify;
+        lock.lock();
+        try {
+            acquiredBytes -= buffer.capacity();
+            toNotify = takeWaiters();
+        } finally {
+            lock.unlock();
+        }
+        toNotify.forEach(Runnable::run);
+    }
+
+    /**
+     * Limits the bytes of buffers handed out by {@link #tryAcquire(int, Runnable)} and not released yet. Unlimited
+     * by default.
+     *
+     * @param maxAcquiredBytes maximum number of bytes acquired at once
+     */
+    public void setMaxAcquiredBytes(long maxAcquiredBytes) {
+        checkArgument(maxAcquiredBytes > 0, () -> "maxAcquiredBytes must be positive: " + maxAcquiredBytes);
+        List<Runnable> toNotify;
+        lock.lock();
+        try {
+            this.maxAcquiredBytes = maxAcquiredBytes;
+            toNotify = takeWaiters();
+        } finally {
+            lock.unlock();
+        }
+        toNotify.forEach(Runnable::run);
+    }
+
+    @GuardedBy("lock")
+    private List<Runnable> takeWaiters() {
+        if (waiters.isEmpty())
+            return Collections.emptyList();
+        List<Runnable> taken = new ArrayList<>(waiters);
+        waiters.clear();
+        return taken;
+    }
+
+    /** Returns the number of bytes of buffers acquired and not released yet. */
+    public long getAcquiredBytes() {
+        lock.lock();
+        try {
+            return acquiredBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of bytes of free buffers currently kept for reuse. */
+    public long getRetainedBytes() {
+        lock.lock();
+        try {
+            return retainedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Buffers beyond the largest size class have exactly the requested capacity.
+    private int capacityFor(int minCapacity) {
+        return minCapacity > maxPooledCapacity ? minCapacity : roundUp(Math.max(minCapacity, MIN_CAPACITY));
+    }
+
+    private static int roundUp(int capacity) {
+        return capacity <= 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+    }
+
+    private static int sizeClass(int capacity) {
+        return Integer.numberOfTrailingZeros(capacity) - MIN_SHIFT;
+    }
+}
@@ -56,6 +56,8 @@ class ConnectionHandler implements MessageWriteTarget {
     private static final int BUFFER_SIZE_UPPER_BOUND = 65536;
 
     private static final int OUTBOUND_BUFFER_BYTE_COUNT = Message.MAX_SIZE + 24; // 24 byte message header
+    // Maximum number of queued buffers handed to the channel in one gathering write.
+    private static final int MAX_GATHERED_BUFFERS = 16;
 
     @GuardedBy("lock") private final ByteBuffer readBuff;
     @GuardedBy("lock") private final SocketChannel channel;
@@ -65,15 +67,25 @@ class ConnectionHandler implements MessageWriteTarget {
 
     @GuardedBy("lock") private long bytesToWriteRemaining = 0;
     @GuardedBy("lock") private final LinkedList<BytesAndFuture> bytesToWrite = new LinkedList<>();
+    @GuardedBy("lock") private final ByteBuffer[] gatheredBuffers = new ByteBuffer[MAX_GATHERED_BUFFERS];
 
     private static class BytesAndFuture {
         public final ByteBuffer bytes;
+        // Pool to release bytes to once written, if they came from one.
+        @Nullable public final ByteBufferPool pool;
         public final ListenableCompletableFuture<Void> future;
 
-        public BytesAndFuture(ByteBuffer bytes, ListenableCompletableFuture<Void> future) {
+        public BytesAndFuture(ByteBuffer bytes, @Nullable ByteBufferPool pool,
+                              ListenableCompletableFuture<Void> future) {
             this.bytes = bytes;
+            this.pool = pool;
             this.future = future;
         }
+
+        void release() {
+            if (pool != null)
+                pool.release(bytes);
+        }
     }
 
     private Set<ConnectionHandler> connectedHandlers;
@@ -125,15 +137,26 @@ class ConnectionHandler implements MessageWriteTarget {
     private void tryWriteBytes() throws IOException {
         lock.lock();
         try {
-            // Iterate through the outbound ByteBuff queue, pushing as much as possible into the OS' network buffer.
-            Iterator<BytesAndFuture> iterator = bytesToWrite.iterator();
-            while (iterator.hasNext()) {
-                BytesAndFuture bytesAndFuture = iterator.next();
-                bytesToWriteRemaining -= channel.write(bytesAndFuture.bytes);
-                if (!bytesAndFuture.bytes.hasRemaining()) {
-                    iterator.remove();
+            // Push as much of the outbound ByteBuff queue as possible into the OS' network buffer, handing several
+            // buffers to the channel at once.
+            while (!bytesToWrite.isEmpty()) {
+                int count = 0;
+                for (Iterator<BytesAndFuture> it = bytesToWrite.iterator(); it.hasNext() && count < gatheredBuffers.length; )
+                    gatheredBuffers[count++] = it.next().bytes;
+                try {
+                    bytesToWriteRemaining -= channel.write(gatheredBuffers, 0, count);
+                } finally {
+                    Arrays.fill(gatheredBuffers, 0, count, null);
+                }
+                int written = 0;
+                while (written < count && !bytesToWrite.peek().bytes.hasRemaining()) {
+                    BytesAndFuture bytesAndFuture = bytesToWrite.poll();
+                    bytesAndFuture.release();
                     bytesAndFuture.future.complete(null);
-                } else {
+                    written++;
+                }
+                if (written < count) {
+                    // The OS network buffer is full, wait until there is room again
                     setWriteOps();
                     break;
                 }
@@ -149,6 +172,17 @@ class ConnectionHandler implements MessageWriteTarget {
 
     @Override
     public ListenableCompletableFuture<Void> writeBytes(byte[] message) throws IOException {
+        // Copy, as the caller is free to modify the array after this returns
+        return enqueue(ByteBuffer.wrap(Arrays.copyOf(message, message.length)), null);
+    }
+
+    @Override
+    public ListenableCompletableFuture<Void> writeBytes(ByteBuffer message, ByteBufferPool pool) throws IOException {
+        return enqueue(message, pool);
+    }
+
+    private ListenableCompletableFuture<Void> enqueue(ByteBuffer message, @Nullable ByteBufferPool pool)
+            throws IOException {
         boolean andUnlock = true;
         lock.lock();
         try {
@@ -157,13 +191,16 @@ class ConnectionHandler implements MessageWriteTarget {
             // append to it when we want to send a message. We then let tryWriteBytes() either send the message or
             // register our SelectionKey to wakeup when we have free outbound buffer space available.
 
-            if (bytesToWriteRemaining + message.length > OUTBOUND_BUFFER_BYTE_COUNT)
+            int length = message.remaining();
+            if (bytesToWriteRemaining + length > OUTBOUND_BUFFER_BYTE_COUNT) {
+                if (pool != null)
+                    pool.release(message);
                 throw new IOException("Outbound buffer overflowed");
+            }
             // Just dump the message onto the write buffer and call tryWriteBytes
-            // TODO: Kill the needless message duplication when the write completes right away
             final ListenableCompletableFuture<Void> future = new ListenableCompletableFuture<>();
-            bytesToWrite.offer(new BytesAndFuture(ByteBuffer.wrap(Arrays.copyOf(message, message.length)), future));
-            bytesToWriteRemaining += message.length;
+            bytesToWrite.offer(new BytesAndFuture(message, pool, future));
+            bytesToWriteRemaining += length;
             setWriteOps();
             return future;
         } catch (IOException e) {
@@ -184,6 +221,24 @@ class ConnectionHandler implements MessageWriteTarget {
         }
     }
 
+    @Override
+    public void setReadingPaused(boolean paused) {
+        lock.lock();
+        try {
+            if (paused) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            } else {
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                // Refresh the selector to make sure it gets the new interestOps
+                key.selector().wakeup();
+            }
+        } catch (CancelledKeyException e) {
+            // The connection is being closed anyway.
+        } finally {
+            lock.unlock();
+        }
+    }
+
     // May NOT be called with lock held
     @Override
     public void closeConnection() {
@@ -202,6 +257,11 @@ class ConnectionHandler implements MessageWriteTarget {
         try {
             callClosed = !closeCalled;
             closeCalled = true;
+            // Nothing more will be written
+            for (BytesAndFuture bytesAndFuture : bytesToWrite)
+                bytesAndFuture.release();
+            bytesToWrite.clear();
+            bytesToWriteRemaining = 0;
         } finally {
             lock.unlock();
         }
@@ -226,7 +286,9 @@ class ConnectionHandler implements MessageWriteTarget {
             if (key.isReadable()) {
                 // Do a socket read and invoke the connection's receiveBytes message
                 int read = handler.channel.read(handler.readBuff);
-                if (read == 0)
+                // With a full buffer, offer the bytes again: the connection may have paused reading to wait for
+                // memory to read them into.
+                if (read == 0 && handler.readBuff.hasRemaining())
                     return; // Was probably waiting on a write
                 else if (read == -1) { // Socket was closed
                     key.cancel();
@@ -19,6 +19,7 @@ package org.bitcoinj.net;
 import org.bitcoinj.utils.ListenableCompletableFuture;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * A target to which messages can be written/connection can be closed
@@ -29,9 +30,30 @@ public interface MessageWriteTarget {
      * have been written to the OS network buffer.
      */
     ListenableCompletableFuture<Void> writeBytes(byte[] message) throws IOException;
+
+    /**
+     * Writes the remaining bytes of the given buffer to the remote server, taking ownership of the buffer: it is
+     * released to the given pool once written, or when writing fails. The returned future will complete when all
+     * bytes have been written to the OS network buffer. By default, the bytes are copied and passed to
+     * {@link #writeBytes(byte[])}.
+     */
+    default ListenableCompletableFuture<Void> writeBytes(ByteBuffer message, ByteBufferPool pool) throws IOException {
+        byte[] bytes = new byte[message.remaining()];
+        message.get(bytes);
+        pool.release(message);
+        return writeBytes(bytes);
+    }
+
     /**
      * Closes the connection to the server, triggering the {@link StreamConnection#connectionClosed()}
      * event on the network-handling thread where all callbacks occur.
      */
     void closeConnection();
+
+    /**
+     * Stops or resumes reading from the connection, for when the received data can't be processed as fast as it
+     * arrives. Does nothing by default.
+     */
+    default void setReadingPaused(boolean paused) {
+    }
 }
@@ -132,4 +132,15 @@ public class NioClient implements MessageWriteTarget {
     public synchronized ListenableCompletableFuture<Void> writeBytes(byte[] message) throws IOException {
         return handler.writeTarget.writeBytes(message);
     }
+
+    @Override
+    public synchronized ListenableCompletableFuture<Void> writeBytes(ByteBuffer message, ByteBufferPool pool)
+            throws IOException {
+        return handler.writeTarget.writeBytes(message, pool);
+    }
+
+    @Override
+    public void setReadingPaused(boolean paused) {
+        handler.writeTarget.setReadingPaused(paused);
+    }
 }
@@ -33,6 +33,7 @@ import org.bitcoinj.protocols.payments.PaymentProtocol;
 import org.bitcoinj.store.BlockStore;
 import org.bitcoinj.store.BlockStoreException;
 import org.bitcoinj.base.utils.MonetaryFormat;
+import org.bitcoinj.utils.DifficultyWindow;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -68,6 +69,9 @@ public abstract class BitcoinNetworkParams extends NetworkParameters {
     /** lazy-initialized by the first call to {@link NetworkParameters#getGenesisBlock()} */
     protected Block genesisBlock;
 
+    // Whether a subclass overrides checkDifficultyTransitions() without the window.
+    private final boolean checksDifficultyItself;
+
     /**
      * No-args constructor
      */
@@ -75,6 +79,16 @@ public abstract class BitcoinNetworkParams extends NetworkParameters {
         super(network);
         interval = INTERVAL;
         subsidyDecreaseBlockCount = REWARD_HALVING_INTERVAL;
+        checksDifficultyItself = overridesCheckDifficultyTransitions(getClass());
+    }
+
+    private static boolean overridesCheckDifficultyTransitions(Class<?> paramsClass) {
+        try {
+            return paramsClass.getMethod("checkDifficultyTransitions", StoredBlock.class, Block.class,
+                    BlockStore.class).getDeclaringClass() != BitcoinNetworkParams.class;
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException(e);
+        }
     }
 
     /**
@@ -379,6 +393,55 @@ public abstract class BitcoinNetworkParams extends NetworkParameters {
         verifyDifficulty(bnNew, storedPrev, nextBlock);
 
     }
+    /**
+     * Same as {@link #DarkGravityWave3(StoredBlock, Block, BlockStore)}, but takes the past blocks from the given
+     * window instead of walking back through the block store. The block times telescope, so the actual timespan is
+     * simply the difference between the newest and the oldest block of the window. The averaging of targets is not a
+     * plain mean (the result depends on the order and rounding of each step), so it is still folded over the window.
+     */
+    protected void DarkGravityWave3(final StoredBlock storedPrev, final Block nextBlock,
+                                  final BlockStore blockStore, final DifficultyWindow window) {
+        final int PastBlocksMin = 24;
+        final int PastBlocksMax = 24;
+
+        if (storedPrev == null || storedPrev.getHeight() == 0 || storedPrev.getHeight() < PastBlocksMin) {
+            verifyDifficulty(this.getMaxTarget(), storedPrev, nextBlock);
+            return;
+        }
+
+        try {
+            window.update(storedPrev, blockStore, PastBlocksMax);
+        } catch (BlockStoreException x) {
+            return;
+        }
+        // The original algorithm gives up if it can't find all the blocks it needs.
+        if (!window.isComplete())
+            return;
+
+        long CountBlocks = window.size();
+        BigInteger PastDifficultyAverage = window.getDifficultyTarget(0);
+        for (int i = 1; i < CountBlocks; i++) {
+            // Block i is the (i + 1)th block counting backwards.
+            PastDifficultyAverage = PastDifficultyAverage.multiply(BigInteger.valueOf(i + 1))
+                    .add(window.getDifficultyTarget(i)).divide(BigInteger.valueOf(i + 2));
+        }
+        long nActualTimespan = window.getTimeSeconds(0) - window.getTimeSeconds((int) CountBlocks - 1);
+
+        BigInteger bnNew = PastDifficultyAverage;
+
+        long nTargetTimespan = CountBlocks*this.TARGET_SPACING;//nTargetSpacing;
+
+        if (nActualTimespan < nTargetTimespan/3)
+            nActualTimespan = nTargetTimespan/3;
+        if (nActualTimespan > nTargetTimespan*3)
+            nActualTimespan = nTargetTimespan*3;
+
+        // Retarget
+        bnNew = bnNew.multiply(BigInteger.valueOf(nActualTimespan));
+        bnNew = bnNew.divide(BigInteger.valueOf(nTargetTimespan));
+        verifyDifficulty(bnNew, storedPrev, nextBlock);
+    }
+
     protected void DarkGravityWave(final StoredBlock storedPrev, final Block nextBlock,
                                  final BlockStore blockStore) {
     /* current difficulty formula, limecoin - DarkGravity, written by Evan Duffield - evan@limecoin.io */
@@ -493,4 +556,28 @@ public abstract class BitcoinNetworkParams extends NetworkParameters {
         DarkGravityWave(storedPrev, nextBlock, blockStore);
         return;
     }
+
+    /**
+     * Same as {@link #checkDifficultyTransitions(StoredBlock, Block, BlockStore)}, but uses the window for
+     * DarkGravityWave3. If a subclass overrides the method without the window, that is called instead, so that its
+     * rules still apply.
+     */
+    @Override
+    public void checkDifficultyTransitions(final StoredBlock storedPrev, final Block nextBlock,
+                                           final BlockStore blockStore, @Nullable final DifficultyWindow window)
+            throws VerificationException, BlockStoreException {
+
+        if (window == null || checksDifficultyItself) {
+            checkDifficultyTransitions(storedPrev, nextBlock, blockStore);
+            return;
+        }
+
+        if (storedPrev.getHeight() >= (100000 - 1))
+        {
+                DarkGravityWave3(storedPrev, nextBlock, blockStore, window);
+                return;
+        }
+
+        DarkGravityWave(storedPrev, nextBlock, blockStore);
+    }
 }
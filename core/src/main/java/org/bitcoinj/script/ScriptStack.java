@@ -0,0 +1,109 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.script;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * The main or alt stack of the script interpreter, backed by an array. Elements are addressed by their depth, the top
+ * of the stack being at depth 0.
+ * <p>
+ * The array starts small and grows as needed. It never needs to grow much beyond 1000 elements, as the interpreter
+ * fails a script as soon as its stacks hold more elements than that. Bounds are not checked; the interpreter checks
+ * the size of the stack before each operation.
+ */
+final class ScriptStack {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private byte[][] elements;
+    private int size;
+
+    ScriptStack() {
+        this.elements = new byte[INITIAL_CAPACITY][];
+    }
+
+    /** Creates a stack holding the given elements, the last one being the top. */
+    ScriptStack(Collection<byte[]> elements) {
+        this.elements = elements.toArray(new byte[Math.max(INITIAL_CAPACITY, elements.size())][]);
+        this.size = elements.size();
+    }
+
+    /** Creates a copy of the given stack. */
+    ScriptStack(ScriptStack other) {
+        this.elements = Arrays.copyOf(other.elements, other.elements.length);
+        this.size = other.size;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    void push(byte[] element) {
+        if (size == elements.length)
+            elements = Arrays.copyOf(elements, size * 2);
+        elements[size++] = element;
+    }
+
+    byte[] pop() {
+        byte[] element = elements[--size];
+        elements[size] = null;
+        return element;
+    }
+
+    /** Returns the element on top of the stack. */
+    byte[] peek() {
+        return elements[size - 1];
+    }
+
+    /** Returns the element at the given depth, 0 being the top. */
+    byte[] peek(int depth) {
+        return elements[size - 1 - depth];
+    }
+
+    /** Removes and returns the element at the given depth, 0 being the top. */
+    byte[] remove(int depth) {
+        int index = size - 1 - depth;
+        byte[] element = elements[index];
+        System.arraycopy(elements, index + 1, elements, index, depth);
+        elements[--size] = null;
+        return element;
+    }
+
+    /** Swaps the elements at the given depths. */
+    void swap(int depth1, int depth2) {
+        int index1 = size - 1 - depth1;
+        int index2 = size - 1 - depth2;
+        byte[] element = elements[index1];
+        elements[index1] = elements[index2];
+        elements[index2] = element;
+    }
+
+    /** Returns the elements as a list, the top of the stack being the last element. */
+    List<byte[]> toList() {
+        List<byte[]> list = new ArrayList<>(size);
+        for (int i = 0; i < size; i++)
+            list.add(elements[i]);
+        return list;
+    }
+}
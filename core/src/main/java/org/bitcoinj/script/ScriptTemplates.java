@@ -0,0 +1,170 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.script;
+
+import org.bitcoinj.base.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.crypto.ECKey;
+import org.bitcoinj.crypto.TransactionSignature;
+import org.bitcoinj.crypto.internal.CryptoUtils;
+import org.bitcoinj.script.Script.VerifyFlag;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+import static org.bitcoinj.script.ScriptOpCodes.OP_0;
+import static org.bitcoinj.script.ScriptOpCodes.OP_CHECKMULTISIG;
+import static org.bitcoinj.script.ScriptOpCodes.OP_PUSHDATA4;
+
+/**
+ * Verifies spends of the standard P2PKH, P2PK and P2SH-multisig outputs without running the script interpreter: the
+ * shape of the scriptSig is matched against the template of the output, the hashes are compared and the signatures
+ * are checked directly.
+ * <p>
+ * This is only a shortcut for spends that are valid. Whenever a spend doesn't match a template exactly, or a
+ * signature doesn't verify, {@link #correctlySpends} returns false and the caller must run the interpreter, which then
+ * decides (and reports the precise error). The checks applied mirror what the interpreter does for these scripts,
+ * including the signature encoding rules selected by the verify flags.
+ */
+final class ScriptTemplates {
+    private ScriptTemplates() {
+    }
+
+    /**
+     * Returns true if the scriptSig spends the scriptPubKey according to one of the templates and all signatures are
+     * valid. False means that the interpreter must decide.
+     */
+    static boolean correctlySpends(Script scriptSig, Transaction txContainingThis, int scriptSigIndex,
+                                   Script scriptPubKey, Set<VerifyFlag> verifyFlags) {
+        List<ScriptChunk> sigChunks = scriptSig.chunks();
+        for (ScriptChunk chunk : sigChunks)
+            if (!isMinimalDataPush(chunk))
+                return false;
+        try {
+            if (ScriptPattern.isP2PKH(scriptPubKey)) {
+                if (sigChunks.size() != 2)
+                    return false;
+                byte[] pubKey = dataOf(sigChunks.get(1));
+                return Arrays.equals(CryptoUtils.sha256hash160(pubKey), ScriptPattern.extractHashFromP2PKH(scriptPubKey))
+                        && checkSig(txContainingThis, scriptSigIndex, scriptPubKey, dataOf(sigChunks.get(0)), pubKey,
+                        verifyFlags);
+            } else if (ScriptPattern.isP2PK(scriptPubKey)) {
+                if (sigChunks.size() != 1)
+                    return false;
+                return checkSig(txContainingThis, scriptSigIndex, scriptPubKey, dataOf(sigChunks.get(0)),
+                        ScriptPattern.extractKeyFromP2PK(scriptPubKey), verifyFlags);
+            } else if (ScriptPattern.isP2SH(scriptPubKey) && verifyFlags.contains(VerifyFlag.P2SH)) {
+                return correctlySpendsP2SHMultisig(sigChunks, txContainingThis, scriptSigIndex, scriptPubKey,
+                        verifyFlags);
+            }
+        } catch (ScriptException e) {
+            // e.g. an unparseable redeem script
+        }
+        return false;
+    }
+
+    // scriptSig: OP_0 <sig1> ... <sigM> <redeemScript>, redeemScript: OP_M <pubKey1> ... <pubKeyN> OP_N OP_CHECKMULTISIG
+    private static boolean correctlySpendsP2SHMultisig(List<ScriptChunk> sigChunks, Transaction txContainingThis,
+                                                       int scriptSigIndex, Script scriptPubKey,
+                                                       Set<VerifyFlag> verifyFlags) {
+        if (sigChunks.size() < 3 || !sigChunks.get(0).equalsOpCode(OP_0))
+            return false;
+        byte[] redeemScriptBytes = dataOf(sigChunks.get(sigChunks.size() - 1));
+        if (!Arrays.equals(CryptoUtils.sha256hash160(redeemScriptBytes), ScriptPattern.extractHashFromP2SH(scriptPubKey)))
+            return false;
+        Script redeemScript = Script.parse(redeemScriptBytes);
+        if (!ScriptPattern.isSentToMultisig(redeemScript))
+            return false;
+        List<ScriptChunk> redeemChunks = redeemScript.chunks();
+        if (!redeemChunks.get(redeemChunks.size() - 1).equalsOpCode(OP_CHECKMULTISIG))
+            return false;
+        int sigCount = redeemChunks.get(0).decodeOpN();
+        int pubKeyCount = redeemChunks.get(redeemChunks.size() - 2).decodeOpN();
+        if (sigCount > pubKeyCount || sigChunks.size() != sigCount + 2)
+            return false;
+
+        byte[] connectedScript = redeemScriptBytes;
+        for (int i = 1; i <= sigCount; i++)
+            connectedScript = Script.removeAllInstancesOf(connectedScript, pushOf(dataOf(sigChunks.get(i))));
+        final boolean requireCanonical = requireCanonical(verifyFlags);
+
+        // Like the interpreter, match signatures to keys starting with the last of each. Every signature must be
+        // matched by a key; keys that don't match are skipped.
+        int sig = sigCount;
+        for (int key = pubKeyCount; key >= 1 && sig >= 1; key--) {
+            if (sig > key)
+                return false;
+            byte[] sigBytes = dataOf(sigChunks.get(sig));
+            byte[] pubKey = redeemChunks.get(key).data;
+            try {
+                TransactionSignature signature = TransactionSignature.decodeFromBitcoin(sigBytes, requireCanonical,
+                        false);
+                Sha256Hash hash = txContainingThis.hashForSignature(scriptSigIndex, connectedScript,
+                        (byte) signature.sighashFlags);
+                if (ECKey.verify(hash.getBytes(), signature, pubKey))
+                    sig--;
+            } catch (Exception e) {
+                // not a match, like in the interpreter
+            }
+        }
+        return sig == 0;
+    }
+
+    private static boolean checkSig(Transaction txContainingThis, int scriptSigIndex, Script scriptPubKey,
+                                    byte[] sigBytes, byte[] pubKey, Set<VerifyFlag> verifyFlags) {
+        byte[] connectedScript = Script.removeAllInstancesOf(scriptPubKey.program(), pushOf(sigBytes));
+        try {
+            TransactionSignature signature = TransactionSignature.decodeFromBitcoin(sigBytes,
+                    requireCanonical(verifyFlags), verifyFlags.contains(VerifyFlag.LOW_S));
+            Sha256Hash hash = txContainingThis.hashForSignature(scriptSigIndex, connectedScript,
+                    (byte) signature.sighashFlags);
+            return ECKey.verify(hash.getBytes(), signature, pubKey);
+        } catch (Exception e) {
+            // Let the interpreter decide, and report the error.
+            return false;
+        }
+    }
+
+    private static boolean requireCanonical(Set<VerifyFlag> verifyFlags) {
+        return verifyFlags.contains(VerifyFlag.STRICTENC)
+                || verifyFlags.contains(VerifyFlag.DERSIG)
+                || verifyFlags.contains(VerifyFlag.LOW_S);
+    }
+
+    private static boolean isMinimalDataPush(ScriptChunk chunk) {
+        return chunk.opcode >= OP_0 && chunk.opcode <= OP_PUSHDATA4 && chunk.isShortestPossiblePushData()
+                && (chunk.data == null || chunk.data.length <= Script.MAX_SCRIPT_ELEMENT_SIZE);
+    }
+
+    // ScriptBuilder leaves the data of an OP_0 chunk null, where a parsed one has an empty array.
+    private static byte[] dataOf(ScriptChunk chunk) {
+        return chunk.data == null ? new byte[0] : chunk.data;
+    }
+
+    private static byte[] pushOf(byte[] data) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(data.length + 3);
+        try {
+            Script.writeBytes(bos, data);
+        } catch (IOException e) {
+            throw new RuntimeException(e); // Cannot happen
+        }
+        return bos.toByteArray();
+    }
+}
@@ -35,7 +35,6 @@ import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
 import java.nio.charset.StandardCharsets;
-import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Objects;
@@ -49,7 +48,8 @@ import static org.bitcoinj.base.internal.Preconditions.checkState;
 /**
  * An SPVBlockStore holds a limited number of block headers in a memory mapped ring buffer. With such a store, you
  * may not be able to process very deep re-orgs and could be disconnected from the chain (requiring a replay),
- * but as they are virtually unheard of this is not a significant risk.
+ * but as they are virtually unheard of this is not a significant risk. Lookups by hash are served from an in-memory
+ * index of the ring, so they take constant time even for large capacities.
  */
 public class SPVBlockStore implements BlockStore {
     private static final Logger log = LoggerFactory.getLogger(SPVBlockStore.class);
@@ -88,6 +88,10 @@ public class SPVBlockStore implements BlockStore {
             return size() > 100;  // This was chosen arbitrarily.
         }
     };
+    // Maps block hashes to ring slots, so that a miss in the caches above does not require a scan of the whole ring.
+    // It is built lazily from the file contents on the first lookup and then kept in sync by put().
+    @Nullable
+    private SlotIndex slotIndex = null;
     // Used to stop other applications/processes from opening the store.
     protected FileLock fileLock = null;
     protected RandomAccessFile randomAccessFile = null;
@@ -204,12 +208,22 @@ public class SPVBlockStore implements BlockStore {
                 // Wrapped around.
                 cursor = FILE_PROLOGUE_BYTES;
             }
-            ((Buffer) buffer).position(cursor);
             Sha256Hash hash = block.getHeader().getHash();
+            int slot = (cursor - FILE_PROLOGUE_BYTES) / RECORD_SIZE;
+            // Forget the record we're about to overwrite, so that it can't be read any more.
+            if (slotIndex != null)
+                slotIndex.remove(buffer, slot);
+            byte[] overwritten = new byte[32];
+            ((Buffer) buffer).position(cursor);
+            buffer.get(overwritten);
+            blockCache.remove(Sha256Hash.wrap(overwritten));
+            ((Buffer) buffer).position(cursor);
             notFoundCache.remove(hash);
             buffer.put(hash.getBytes());
             block.serializeCompact(buffer);
             setRingCursor(buffer, buffer.position());
+            if (slotIndex != null)
+                slotIndex.put(buffer, slot);
             blockCache.put(hash, block);
         } finally { lock.unlock(); }
     }
@@ -228,31 +242,19 @@ public class SPVBlockStore implements BlockStore {
             if (notFoundCache.get(hash) != null)
                 return null;
 
-            // Starting from the current tip of the ring work backwards until we have either found the block or
-            // wrapped around.
-            int cursor = getRingCursor(buffer);
-            final int startingPoint = cursor;
-            final byte[] targetHashBytes = hash.getBytes();
-            byte[] scratch = new byte[32];
-            do {
-                cursor -= RECORD_SIZE;
-                if (cursor < FILE_PROLOGUE_BYTES) {
-                    // We hit the start, so wrap around.
-                    cursor = fileLength - RECORD_SIZE;
-                }
-                // Cursor is now at the start of the next record to check, so read the hash and compare it.
-                ((Buffer) buffer).position(cursor);
-                buffer.get(scratch);
-                if (Arrays.equals(scratch, targetHashBytes)) {
-                    // Found the target.
-                    StoredBlock storedBlock = StoredBlock.deserializeCompact(buffer);
-                    blockCache.put(hash, storedBlock);
-                    return storedBlock;
-                }
-            } while (cursor != startingPoint);
-            // Not found.
-            notFoundCache.put(hash, NOT_FOUND_MARKER);
-            return null;
+            if (slotIndex == null)
+                slotIndex = buildSlotIndex(buffer);
+            int slot = slotIndex.find(buffer, hash);
+            if (slot < 0) {
+                // Not found.
+                notFoundCache.put(hash, NOT_FOUND_MARKER);
+                return null;
+            }
+            // Found the target, the compact block follows the hash.
+            ((Buffer) buffer).position(recordOffset(slot) + 32);
+            StoredBlock storedBlock = StoredBlock.deserializeCompact(buffer);
+            blockCache.put(hash, storedBlock);
+            return storedBlock;
         } catch (ProtocolException e) {
             throw new RuntimeException(e);  // Cannot happen.
         } finally { lock.unlock(); }
@@ -303,6 +305,7 @@ public class SPVBlockStore implements BlockStore {
             fileLock.release();
             randomAccessFile.close();
             blockCache.clear();
+            slotIndex = null;
         } catch (IOException e) {
             throw new BlockStoreException(e);
         }
@@ -335,12 +338,127 @@ public class SPVBlockStore implements BlockStore {
         buffer.putInt(4, newCursor);
     }
 
+    private static int recordOffset(int slot) {
+        return FILE_PROLOGUE_BYTES + slot * RECORD_SIZE;
+    }
+
+    /**
+     * Builds the hash index by scanning all records of the ring, from the oldest to the newest so that if a hash was
+     * put more than once, the newest record wins. This is done once per opened store.
+     */
+    private SlotIndex buildSlotIndex(ByteBuffer buffer) {
+        int capacity = (fileLength - FILE_PROLOGUE_BYTES) / RECORD_SIZE;
+        int cursorSlot = (getRingCursor(buffer) - FILE_PROLOGUE_BYTES) / RECORD_SIZE;
+        SlotIndex index = new SlotIndex(capacity);
+        for (int i = 0; i < capacity; i++) {
+            int slot = (cursorSlot + i) % capacity;
+            if (!isEmptyRecord(buffer, slot))
+                index.put(buffer, slot);
+        }
+        return index;
+    }
+
+    private static boolean isEmptyRecord(ByteBuffer buffer, int slot) {
+        int offset = recordOffset(slot);
+        for (int i = 0; i < 32; i += 8)
+            if (buffer.getLong(offset + i) != 0)
+                return false;
+        return true;
+    }
+
+    /**
+     * An open-addressing hash table (linear probing) from block hash to ring slot. Only slot numbers are kept in
+     * memory; the hashes themselves are read back from the ring to resolve collisions. The table is at most half full,
+     * so lookups take constant time regardless of the capacity of the store.
+     */
+    private static class SlotIndex {
+        private final int[] table; // slot + 1, or 0 for an empty bucket
+        private final int mask;
+
+        SlotIndex(int capacity) {
+            // Smallest power of two that is at least twice the capacity.
+            int size = Integer.highestOneBit(capacity * 2 - 1) << 1;
+            table = new int[size];
+            mask = size - 1;
+        }
+
+        /** Returns the slot of the given hash, or -1 if it's not in the ring. */
+        int find(ByteBuffer buffer, Sha256Hash hash) {
+            byte[] hashBytes = hash.getBytes();
+            for (int i = bucket(hash.hashCode()); table[i] != 0; i = (i + 1) & mask) {
+                if (hashEquals(buffer, table[i] - 1, hashBytes))
+                    return table[i] - 1;
+            }
+            return -1;
+        }
+
+        /** Indexes the record at the given slot, replacing an older slot with the same hash. */
+        void put(ByteBuffer buffer, int slot) {
+            int offset = recordOffset(slot);
+            int i = bucket(hashCodeAt(buffer, slot));
+            for (; table[i] != 0; i = (i + 1) & mask) {
+                if (recordEquals(buffer, table[i] - 1, offset))
+                    break;
+            }
+            table[i] = slot + 1;
+        }
+
+        /** Removes the given slot from the index, if it is indexed. */
+        void remove(ByteBuffer buffer, int slot) {
+            int i = bucket(hashCodeAt(buffer, slot));
+            while (table[i] != slot + 1) {
+                if (table[i] == 0)
+                    return; // empty or superseded by a newer record of the same hash
+                i = (i + 1) & mask;
+            }
+            // Shift back entries of the probe sequence so that there is no gap in it.
+            int j = i;
+            while (true) {
+                j = (j + 1) & mask;
+                if (table[j] == 0)
+                    break;
+                int k = bucket(hashCodeAt(buffer, table[j] - 1));
+                if (i <= j ? (k <= i || k > j) : (k <= i && k > j)) {
+                    table[i] = table[j];
+                    i = j;
+                }
+            }
+            table[i] = 0;
+        }
+
+        private int bucket(int hashCode) {
+            return (hashCode * 0x9E3779B9) & mask;
+        }
+
+        // Same as Sha256Hash.hashCode(): the last 4 bytes of the hash, big endian.
+        private static int hashCodeAt(ByteBuffer buffer, int slot) {
+            return buffer.getInt(recordOffset(slot) + 32 - Integer.BYTES);
+        }
+
+        private static boolean hashEquals(ByteBuffer buffer, int slot, byte[] hashBytes) {
+            int offset = recordOffset(slot);
+            for (int i = 31; i >= 0; i--) // the last bytes are the most likely to differ
+                if (buffer.get(offset + i) != hashBytes[i])
+                    return false;
+            return true;
+        }
+
+        private static boolean recordEquals(ByteBuffer buffer, int slot, int otherOffset) {
+            int offset = recordOffset(slot);
+            for (int i = 0; i < 32; i += 8)
+                if (buffer.getLong(offset + i) != buffer.getLong(otherOffset + i))
+                    return false;
+            return true;
+        }
+    }
+
     public void clear() throws Exception {
         lock.lock();
         try {
             // Clear caches
             blockCache.clear();
             notFoundCache.clear();
+            slotIndex = null;
             // Clear file content
             ((Buffer) buffer).position(0);
             long fileLength = randomAccessFile.length();
@@ -0,0 +1,150 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.utils;
+
+import org.bitcoinj.base.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.BlockStoreException;
+
+import java.math.BigInteger;
+
+import static org.bitcoinj.base.internal.Preconditions.checkArgument;
+
+/**
+ * Caches the timestamps and decoded difficulty targets of the most recent blocks of a chain, for difficulty
+ * algorithms that look at a moving window of blocks (such as DarkGravityWave). When the chain is extended by one block,
+ * the window is updated in place; only when the requested block doesn't extend the cached window (after a reorg, on a
+ * side chain or on first use) are the blocks read from the block store again.
+ * <p>
+ * This class is NOT thread safe. {@link org.bitcoinj.core.AbstractBlockChain} only uses it whilst holding its lock.
+ *
+ * @see org.bitcoinj.core.NetworkParameters#checkDifficultyTransitions(StoredBlock, org.bitcoinj.core.Block, BlockStore, DifficultyWindow)
+ */
+public class DifficultyWindow {
+    private Sha256Hash[] hashes = new Sha256Hash[0];
+    private long[] times = new long[0];
+    private BigInteger[] targets = new BigInteger[0];
+
+    /** Index of the newest block in the ring. */
+    private int newest = -1;
+    /** Number of blocks in the window. */
+    private int size = 0;
+    /**
+     * Whether the block preceding the oldest block of the window could be read from the store, or the window reaches
+     * back to the genesis block.
+     */
+    private boolean complete = false;
+
+    private int storeReloads = 0;
+
+    /**
+     * Makes the given block the newest block of the window, and fills the window with up to {@code count} blocks going
+     * backwards from it (excluding the genesis block).
+     *
+     * @param storedPrev the block to be the newest in the window
+     * @param blockStore block store to read preceding blocks from if the window can't be updated in place
+     * @param count number of blocks in the window
+     * @throws BlockStoreException if reading from the block store fails
+     */
+    public void update(StoredBlock storedPrev, BlockStore blockStore, int count) throws BlockStoreException {
+        checkArgument(count > 0);
+        if (count != hashes.length) {
+            hashes = new Sha256Hash[count];
+            times = new long[count];
+            targets = new BigInteger[count];
+            size = 0;
+        }
+        Sha256Hash hash = storedPrev.getHeader().getHash();
+        if (size > 0) {
+            if (hashes[newest].equals(hash))
+                return;
+            if (hashes[newest].equals(storedPrev.getHeader().getPrevBlockHash()) && storedPrev.getHeight() > 0) {
+                add(storedPrev);
+                return;
+            }
+        }
+        reload(storedPrev, blockStore);
+    }
+
+    private void add(StoredBlock block) {
+        newest = (newest + 1) % hashes.length;
+        hashes[newest] = block.getHeader().getHash();
+        times[newest] = block.getHeader().getTimeSeconds();
+        targets[newest] = block.getHeader().getDifficultyTargetAsInteger();
+        if (size < hashes.length)
+            size++;
+        else
+            complete = true; // the block we just dropped precedes the oldest one
+    }
+
+    private void reload(StoredBlock storedPrev, BlockStore blockStore) throws BlockStoreException {
+        storeReloads++;
+        StoredBlock[] blocks = new StoredBlock[hashes.length];
+        int count = 0;
+        StoredBlock cursor = storedPrev;
+        complete = true;
+        while (count < blocks.length && cursor.getHeight() > 0) {
+            blocks[count++] = cursor;
+            cursor = blockStore.get(cursor.getHeader().getPrevBlockHash());
+            if (cursor == null) {
+                complete = false;
+                break;
+            }
+        }
+        size = 0;
+        newest = -1;
+        boolean reloadedComplete = complete;
+        // Replay from oldest to newest.
+        for (int i = count - 1; i >= 0; i--)
+            add(blocks[i]);
+        complete = reloadedComplete;
+    }
+
+    /** Returns the number of blocks in the window. */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns true if all blocks of the window, and the block preceding them, are known. A window can only be
+     * incomplete if the block store doesn't reach back far enough, e.g. after starting from a checkpoint.
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /** Returns the timestamp in seconds of the block at the given age, 0 being the newest block. */
+    public long getTimeSeconds(int age) {
+        return times[index(age)];
+    }
+
+    /** Returns the decoded difficulty target of the block at the given age, 0 being the newest block. */
+    public BigInteger getDifficultyTarget(int age) {
+        return targets[index(age)];
+    }
+
+    /** Returns how often the window had to be reloaded from the block store. */
+    public int getStoreReloads() {
+        return storeReloads;
+    }
+
+    private int index(int age) {
+        checkArgument(age >= 0 && age < size);
+        return (newest - age + hashes.length) % hashes.length;
+    }
+}
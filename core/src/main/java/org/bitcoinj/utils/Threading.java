@@ -29,6 +29,7 @@ import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
@@ -190,4 +191,24 @@ public class Threading {
         t.setDaemon(true);
         return t;
     });
+
+    /**
+     * Returns a new executor that runs each task on its own virtual thread where the JVM supports them (Java 21+),
+     * otherwise a caching pool of daemon threads. Suitable for work that mostly waits, like processing messages
+     * received from peers. The threads are named after the given name.
+     */
+    public static ExecutorService newVirtualThreadExecutor(String name) {
+        try {
+            // Looked up reflectively, as we still compile for Java 8:
+            // Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name, 0).factory())
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name, 0L);
+            ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                    .invoke(null, factory);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(new DaemonThreadFactory(name));
+        }
+    }
 }
@@ -0,0 +1,199 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import com.google.common.math.LongMath;
+import org.bitcoinj.base.Coin;
+import org.bitcoinj.base.Network;
+import org.bitcoinj.core.TransactionOutput;
+
+import javax.annotation.Nullable;
+import java.math.RoundingMode;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.ToIntFunction;
+
+import static org.bitcoinj.base.internal.Preconditions.checkArgument;
+
+/**
+ * <p>A coin selector that looks for coins which pay the target exactly enough that no change output is needed, using
+ * the branch and bound search of Bitcoin Core. Leaving out the change output makes the transaction smaller, and
+ * doesn't leave a small new coin behind that costs fees to spend later. A little more than the target may be
+ * selected, as long as the excess is less than what a change output would cost; the excess goes to the miners.</p>
+ *
+ * <p>The search needs to know what it costs to spend each coin, so it only runs when
+ * {@link Wallet#completeTx(SendRequest)} calls {@link #selectChangeless}, which is the case when this selector is set
+ * as {@link SendRequest#coinSelector}. It is bounded by a number of tries and by time. If no changeless selection is
+ * found, or when used through {@link #select(Coin, List)}, coins are selected like the {@link DefaultCoinSelector}
+ * does.</p>
+ */
+public class BranchAndBoundCoinSelector implements CoinSelector {
+    /** Default maximum number of steps of the search, the same as in Bitcoin Core. */
+    public static final int DEFAULT_MAX_TRIES = 100_000;
+    /** Default maximum time for the search. */
+    public static final Duration DEFAULT_MAX_TIME = Duration.ofMillis(250);
+
+    private final Network network;
+    private final CoinSelector fallback;
+    private final int maxTries;
+    private final Duration maxTime;
+
+    /**
+     * Creates a selector with the default search budget.
+     *
+     * @param network network the coins are on
+     */
+    public BranchAndBoundCoinSelector(Network network) {
+        this(network, DEFAULT_MAX_TRIES, DEFAULT_MAX_TIME);
+    }
+
+    /**
+     * Creates a selector with the given search budget.
+     *
+     * @param network  network the coins are on
+     * @param maxTries maximum number of steps of the search
+     * @param maxTime  maximum time for the search
+     */
+    public BranchAndBoundCoinSelector(Network network, int maxTries, Duration maxTime) {
+        checkArgument(maxTries > 0, () -> "maxTries must be positive: " + maxTries);
+        this.network = Objects.requireNonNull(network);
+        this.fallback = DefaultCoinSelector.get(network);
+        this.maxTries = maxTries;
+        this.maxTime = Objects.requireNonNull(maxTime);
+    }
+
+    /** Selects coins like the {@link DefaultCoinSelector}, as there is no fee information to search with. */
+    @Override
+    public CoinSelection select(Coin target, List<TransactionOutput> candidates) {
+        return fallback.select(target, candidates);
+    }
+
+    /**
+     * Searches for coins whose value, minus the fee for spending them, is at least the target but exceeds it by no
+     * more than the cost of change. Of all solutions found within the budget, the one with the smallest excess is
+     * returned, and of those the one with the fewest coins. Only coins that the {@link DefaultCoinSelector} would
+     * select are considered.
+     *
+     * @param target       value to pay, including the fee for the transaction without the selected inputs
+     * @param feePerKb     fee per 1000 virtual bytes
+     * @param costOfChange what adding a change output and spending it later would cost
+     * @param candidates   coins to select from
+     * @param spendVsize   virtual size that spending a coin adds to the transaction, called once per candidate
+     * @return the selection, or null if none was found
+     */
+    @Nullable
+    public CoinSelection selectChangeless(Coin target, Coin feePerKb, Coin costOfChange,
+                                          List<TransactionOutput> candidates,
+                                          ToIntFunction<TransactionOutput> spendVsize) {
+        // The value of each coin after paying for its input, largest first. After this, every step of the search is
+        // arithmetic on these values only.
+        List<TransactionOutput> usable = new ArrayList<>(candidates.size());
+        List<Long> usableValues = new ArrayList<>(candidates.size());
+        for (TransactionOutput candidate : candidates) {
+            if (candidate.getParentTransaction() != null
+                    && !DefaultCoinSelector.isSelectable(candidate.getParentTransaction(), network))
+                continue;
+            long inputFee = LongMath.divide(feePerKb.value * spendVsize.applyAsInt(candidate), 1000,
+                    RoundingMode.CEILING);
+            long value = candidate.getValue().value - inputFee;
+            if (value <= 0)
+                continue; // uneconomic to spend at this fee rate
+            usable.add(candidate);
+            usableValues.add(value);
+        }
+        Integer[] order = new Integer[usable.size()];
+        for (int i = 0; i < order.length; i++)
+            order[i] = i;
+        Arrays.sort(order, Comparator.comparing((Integer i) -> usableValues.get(i)).reversed());
+        long[] values = new long[order.length];
+        long available = 0;
+        for (int i = 0; i < order.length; i++) {
+            values[i] = usableValues.get(order[i]);
+            available += values[i];
+        }
+
+        boolean[] best = search(values, available, target.value, target.value + costOfChange.value);
+        if (best == null)
+            return null;
+        List<TransactionOutput> selected = new ArrayList<>();
+        for (int i = 0; i < best.length; i++)
+            if (best[i])
+                selected.add(usable.get(order[i]));
+        return new CoinSelection(selected);
+    }
+
+    // Depth first search over including or omitting each value, largest first, as in Bitcoin Core's SelectCoinsBnB().
+    // Returns which values to include, or null if there is no solution within the budget.
+    @Nullable
+    private boolean[] search(long[] values, long available, long target, long upperBound) {
+        if (available < target)
+            return null;
+        long deadline = System.nanoTime() + maxTime.toNanos();
+        boolean[] included = new boolean[values.length];
+        int[] selection = new int[values.length]; // indices of the included values, as a stack
+        int selectionSize = 0;
+        long current = 0;
+        boolean[] best = null;
+        long bestExcess = Long.MAX_VALUE;
+        int bestSize = Integer.MAX_VALUE;
+
+        int index = 0;
+        for (int tries = 0; tries < maxTries; tries++, index++) {
+            boolean backtrack = false;
+            if (current + available < target || current > upperBound) {
+                backtrack = true; // can't reach the target, or already over
+            } else if (current >= target) {
+                long excess = current - target;
+                if (excess < bestExcess || (excess == bestExcess && selectionSize < bestSize)) {
+                    best = included.clone();
+                    bestExcess = excess;
+                    bestSize = selectionSize;
+                }
+                backtrack = true; // adding more can only increase the excess
+            }
+            if (backtrack) {
+                if (selectionSize == 0)
+                    break; // searched everything
+                // Give back the omitted values after the last included one, then omit that one instead.
+                for (index--; index > selection[selectionSize - 1]; index--)
+                    available += values[index];
+                selectionSize--;
+                included[index] = false;
+                current -= values[index];
+                if (best != null && bestExcess == 0)
+                    break; // can't do better
+            } else {
+                available -= values[index];
+                // Omitting a value equal to the previous, omitted one gives the same results as before, so only
+                // try including it if the previous was included.
+                if (selectionSize == 0 || selection[selectionSize - 1] == index - 1
+                        || values[index] != values[index - 1]) {
+                    selection[selectionSize++] = index;
+                    included[index] = true;
+                    current += values[index];
+                }
+            }
+            if ((tries & 0x3ff) == 0 && System.nanoTime() > deadline)
+                break;
+        }
+        return best;
+    }
+}
@@ -27,6 +27,7 @@ import org.bitcoinj.core.TransactionOutput;
 import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 
 /**
@@ -47,20 +48,32 @@ public class DefaultCoinSelector implements CoinSelector {
 
     @Override
     public CoinSelection select(Coin target, List<TransactionOutput> candidates) {
-        ArrayList<TransactionOutput> selected = new ArrayList<>();
         // Sort the inputs by age*value so we get the highest "coindays" spent.
-        // TODO: Consider changing the wallets internal format to track just outputs and keep them ordered.
         ArrayList<TransactionOutput> sortedOutputs = new ArrayList<>(candidates);
         // When calculating the wallet balance, we may be asked to select all possible coins, if so, avoid sorting
         // them in order to improve performance.
         if (!target.equals(BitcoinNetwork.MAX_MONEY)) {
             sortOutputs(sortedOutputs);
         }
+        return selectFromSorted(target, sortedOutputs.iterator());
+    }
+
+    /**
+     * Like {@link #select(Coin, List)}, but for candidates that are already sorted by age*value. Only as many
+     * candidates as needed to reach the target are read. The {@link Wallet} uses this to select directly from its
+     * index of unspent outputs, so sub-classes that override {@link #select(Coin, List)} should override this as well.
+     *
+     * @param target           value to gather
+     * @param sortedCandidates candidates, highest age*value first
+     * @return the selection
+     */
+    public CoinSelection selectFromSorted(Coin target, Iterator<TransactionOutput> sortedCandidates) {
+        ArrayList<TransactionOutput> selected = new ArrayList<>();
         // Now iterate over the sorted outputs until we have got as close to the target as possible or a little
         // bit over (excessive value will be change).
         long total = 0;
-        for (TransactionOutput output : sortedOutputs) {
-            if (total >= target.value) break;
+        while (total < target.value && sortedCandidates.hasNext()) {
+            TransactionOutput output = sortedCandidates.next();
             // Only pick chain-included transactions, or transactions that are ours and pending.
             if (!shouldSelect(output.getParentTransaction())) continue;
             selected.add(output);
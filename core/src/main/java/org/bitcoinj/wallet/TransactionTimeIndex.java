@@ -0,0 +1,111 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.base.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+
+import javax.annotation.Nullable;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import static org.bitcoinj.base.internal.Preconditions.checkArgument;
+
+/**
+ * The transactions of a wallet, most recently updated first and then by id, like
+ * {@link Transaction#SORT_TX_BY_UPDATE_TIME}. Reading a page of the history costs a lookup of where to start and then
+ * a step per transaction, instead of sorting the whole wallet.
+ * <p>
+ * A transaction is filed under the update time it has when it is added or {@link #update(Transaction)}d, so whoever
+ * changes the update time of a transaction in the index has to update it. Until then it is still found, just in its
+ * old place. Not thread safe; the wallet guards it with its lock.
+ */
+final class TransactionTimeIndex implements Iterable<Transaction> {
+    private static final Comparator<Key> ORDER = Comparator
+            .comparing((Key key) -> key.time, Comparator.reverseOrder())
+            .thenComparing(key -> key.txId);
+
+    private static final class Key {
+        final Instant time;
+        final Sha256Hash txId;
+
+        Key(Transaction tx) {
+            this.time = timeOf(tx);
+            this.txId = tx.getTxId();
+        }
+
+        static Instant timeOf(Transaction tx) {
+            return tx.updateTime().orElse(Instant.EPOCH);
+        }
+    }
+
+    private final TreeMap<Key, Transaction> byTime = new TreeMap<>(ORDER);
+    private final Map<Sha256Hash, Key> keys = new HashMap<>();
+
+    /** Adds a transaction, or files it under its current update time if it is already there. */
+    void update(Transaction tx) {
+        Key key = new Key(tx);
+        Key oldKey = keys.put(key.txId, key);
+        if (oldKey != null)
+            byTime.remove(oldKey);
+        byTime.put(key, tx);
+    }
+
+    /** Removes a transaction. Returns false if it wasn't there. */
+    boolean remove(Sha256Hash txId) {
+        Key key = keys.remove(txId);
+        if (key == null)
+            return false;
+        byTime.remove(key);
+        return true;
+    }
+
+    void clear() {
+        byTime.clear();
+        keys.clear();
+    }
+
+    int size() {
+        return keys.size();
+    }
+
+    /** Returns all transactions, most recently updated first. The index must not be changed while iterating. */
+    @Override
+    public Iterator<Transaction> iterator() {
+        return byTime.values().iterator();
+    }
+
+    /**
+     * Returns the transactions that come after the given one, or all if it is null. The index must not be changed
+     * while iterating.
+     *
+     * @throws IllegalArgumentException if the given transaction is not in the index
+     */
+    Iterator<Transaction> iteratorAfter(@Nullable Sha256Hash txId) {
+        if (txId == null)
+            return iterator();
+        Key key = keys.get(txId);
+        checkArgument(key != null, () -> "transaction not in wallet: " + txId);
+        NavigableMap<Key, Transaction> tail = byTime.tailMap(key, false);
+        return tail.values().iterator();
+    }
+}
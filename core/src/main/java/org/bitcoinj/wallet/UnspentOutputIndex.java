@@ -0,0 +1,182 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionConfidence;
+import org.bitcoinj.core.TransactionOutput;
+
+import java.math.BigInteger;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * The unspent outputs of a wallet, filed by the height their parent transaction appeared at in the best chain, and
+ * within each height by value. As all outputs of one height have the same depth, {@link #iterator()} can produce them
+ * in the order of {@link DefaultCoinSelector#sortOutputs} by merging the heights, without sorting all of them: reading
+ * the first few outputs only costs a few steps per height.
+ * <p>
+ * The height an output is filed under is taken when it is added or {@link #update(Transaction)}d. If the confidence of
+ * the parent changes in between, the output is still found, but may come out of the iterator in a slightly different
+ * place. Not thread safe; the wallet guards it with its lock.
+ */
+final class UnspentOutputIndex implements Iterable<TransactionOutput> {
+    // Outputs of transactions that are not in the best chain are filed under this height.
+    private static final int NOT_BUILDING = Integer.MAX_VALUE;
+
+    // Same order as DefaultCoinSelector.sortOutputs() for outputs of the same depth. Outputs of transactions that are
+    // not in the best chain count as depth -1 there, which turns the order by coin*depth into ascending value.
+    private static final Comparator<TransactionOutput> BY_HASH_AND_INDEX = Comparator
+            .comparing((TransactionOutput output) -> output.getParentTransactionHash().getBytes(),
+                    UnspentOutputIndex::compareUnsigned)
+            .thenComparingInt(TransactionOutput::getIndex);
+    private static final Comparator<TransactionOutput> BUILDING_ORDER = Comparator
+            .comparing(TransactionOutput::getValue).reversed().thenComparing(BY_HASH_AND_INDEX);
+    private static final Comparator<TransactionOutput> NOT_BUILDING_ORDER = Comparator
+            .comparing(TransactionOutput::getValue).thenComparing(BY_HASH_AND_INDEX);
+
+    private final TreeMap<Integer, TreeSet<TransactionOutput>> byHeight = new TreeMap<>();
+    private final Map<TransactionOutput, Integer> heights = new HashMap<>();
+
+    /** Adds an output. Returns false if it was already there. */
+    boolean add(TransactionOutput output) {
+        if (heights.containsKey(output))
+            return false;
+        int height = heightOf(output.getParentTransaction());
+        heights.put(output, height);
+        byHeight.computeIfAbsent(height, h -> new TreeSet<>(h == NOT_BUILDING ? NOT_BUILDING_ORDER : BUILDING_ORDER))
+                .add(output);
+        return true;
+    }
+
+    /** Removes an output. Returns false if it wasn't there. */
+    boolean remove(TransactionOutput output) {
+        Integer height = heights.remove(output);
+        if (height == null)
+            return false;
+        TreeSet<TransactionOutput> outputs = byHeight.get(height);
+        outputs.remove(output);
+        if (outputs.isEmpty())
+            byHeight.remove(height);
+        return true;
+    }
+
+    /** Files the outputs of the given transaction that are in the index under its current height. */
+    void update(Transaction tx) {
+        int height = heightOf(tx);
+        for (TransactionOutput output : tx.getOutputs()) {
+            Integer filedHeight = heights.get(output);
+            if (filedHeight != null && filedHeight != height) {
+                remove(output);
+                add(output);
+            }
+        }
+    }
+
+    void clear() {
+        byHeight.clear();
+        heights.clear();
+    }
+
+    int size() {
+        return heights.size();
+    }
+
+    /**
+     * Returns the outputs, highest coin*depth first like {@link DefaultCoinSelector#sortOutputs}. The index must not
+     * be changed while iterating.
+     */
+    @Override
+    public Iterator<TransactionOutput> iterator() {
+        return new Iterator<TransactionOutput>() {
+            // the next output of each height, best first
+            private final PriorityQueue<Cursor> cursors = new PriorityQueue<>();
+
+            {
+                for (TreeSet<TransactionOutput> outputs : byHeight.values())
+                    new Cursor(outputs.iterator()).advance(cursors);
+            }
+
+            @Override
+            public boolean hasNext() {
+                return !cursors.isEmpty();
+            }
+
+            @Override
+            public TransactionOutput next() {
+                Cursor cursor = cursors.poll();
+                if (cursor == null)
+                    throw new NoSuchElementException();
+                TransactionOutput output = cursor.head;
+                cursor.advance(cursors);
+                return output;
+            }
+        };
+    }
+
+    private static final class Cursor implements Comparable<Cursor> {
+        private final Iterator<TransactionOutput> outputs;
+        private TransactionOutput head;
+        private BigInteger coinDepth;
+
+        Cursor(Iterator<TransactionOutput> outputs) {
+            this.outputs = outputs;
+        }
+
+        // Moves to the next output and puts this cursor back into the queue, unless there are no more outputs.
+        void advance(PriorityQueue<Cursor> queue) {
+            if (!outputs.hasNext())
+                return;
+            head = outputs.next();
+            coinDepth = BigInteger.valueOf(head.getValue().value)
+                    .multiply(BigInteger.valueOf(head.getParentTransactionDepthInBlocks()));
+            queue.add(this);
+        }
+
+        @Override
+        public int compareTo(Cursor other) {
+            int c1 = other.coinDepth.compareTo(coinDepth);
+            if (c1 != 0) return c1;
+            int c2 = other.head.getValue().compareTo(head.getValue());
+            if (c2 != 0) return c2;
+            return BY_HASH_AND_INDEX.compare(head, other.head);
+        }
+    }
+
+    private static int heightOf(Transaction tx) {
+        TransactionConfidence confidence = tx.getConfidence();
+        if (confidence.getConfidenceType() != TransactionConfidence.ConfidenceType.BUILDING)
+            return NOT_BUILDING;
+        return confidence.getAppearedAtChainHeight();
+    }
+
+    // Compares like BigInteger does for the unsigned numbers, i.e. like DefaultCoinSelector compares hashes.
+    private static int compareUnsigned(byte[] a, byte[] b) {
+        for (int i = 0; i < a.length; i++) {
+            int c = Integer.compare(a[i] & 0xff, b[i] & 0xff);
+            if (c != 0)
+                return c;
+        }
+        return 0;
+    }
+}
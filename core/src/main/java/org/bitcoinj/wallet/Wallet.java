@@ -28,6 +28,7 @@ import org.bitcoinj.base.Network;
 import org.bitcoinj.base.exceptions.AddressFormatException;
 import org.bitcoinj.base.internal.ByteUtils;
 import org.bitcoinj.base.internal.PlatformUtils;
+import org.bitcoinj.base.internal.Stopwatch;
 import org.bitcoinj.base.internal.TimeUtils;
 import org.bitcoinj.base.internal.StreamUtils;
 import org.bitcoinj.crypto.AesKey;
@@ -114,11 +115,15 @@ import java.math.RoundingMode;
 import java.nio.ByteBuffer;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.Deque;
+import java.util.EnumMap;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -129,15 +134,25 @@ import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.PriorityQueue;
 import java.util.Random;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
+import java.util.stream.StreamSupport;
 
 import static org.bitcoinj.base.internal.Preconditions.checkArgument;
 import static org.bitcoinj.base.internal.Preconditions.checkState;
@@ -187,10 +202,17 @@ public class Wallet extends BaseTaggableObject
 
     // Ordering: lock > keyChainGroupLock. KeyChainGroup is protected separately to allow fast querying of current receive address
     // even if the wallet itself is busy e.g. saving or processing a big reorg. Useful for reducing UI latency.
+    // For the same reason, the read-only queries answer from a ReadSnapshot without taking any lock. A snapshot is only
+    // rebuilt with lock.tryLock(), so a reader never waits behind a block being processed; it gets the previous
+    // snapshot instead. Only a part of a snapshot that no reader asked for yet is waited for, as it is taken on first
+    // use. Code holding the lock doesn't use snapshots, as it may be in the middle of a change.
+    // Saving only holds the lock to take a WalletProtobufSerializer.Snapshot, and writes it out under saveLock.
     protected final ReentrantLock lock = Threading.lock(Wallet.class);
     protected final ReentrantLock keyChainGroupLock = Threading.lock("Wallet-KeyChainGroup lock");
 
     private static final int MINIMUM_BLOOM_DATA_LENGTH = 8;
+    // Size of an input without its script: outpoint, script length and sequence number.
+    private static final int SPEND_INPUT_VSIZE = TransactionOutPoint.BYTES + 1 + 4;
 
     // The various pools below give quick access to wallet-relevant transactions by the state they're in:
     //
@@ -216,12 +238,45 @@ public class Wallet extends BaseTaggableObject
     private final Map<Sha256Hash, Transaction> spent;
     private final Map<Sha256Hash, Transaction> dead;
 
-    // All transactions together.
+    // All transactions together. Changed only with the lock held, but concurrent so getTransaction() can read it
+    // without the lock.
     protected final Map<Sha256Hash, Transaction> transactions;
+    // The same transactions, most recently updated first, for reading the history a page at a time.
+    @GuardedBy("lock") private final TransactionTimeIndex transactionsByTime = new TransactionTimeIndex();
+
+    // All transactions (except coinbases) by the outpoints they spend, so that double spends can be found without
+    // scanning the whole wallet. Follows the contents of the transactions map, which is why moving a transaction from
+    // one pool to another doesn't touch it.
+    private final Map<TransactionOutPoint, Set<Transaction>> spendIndex = new HashMap<>();
 
     // All the TransactionOutput objects that we could spend (ignoring whether we have the private key or not).
     // Used to speed up various calculations.
+    // Only change it through addUnspent() and removeUnspent(), which keep the balances below up to date.
     protected final HashSet<TransactionOutput> myUnspents = new HashSet<>();
+    // The same outputs in the order the DefaultCoinSelector prefers, so that coins can be selected without sorting.
+    @GuardedBy("lock") private final UnspentOutputIndex myUnspentsIndex = new UnspentOutputIndex();
+    // The total value of myUnspents, which is the ESTIMATED balance.
+    @GuardedBy("lock") private Coin myUnspentsValue = Coin.ZERO;
+    // The other balance types, calculated on demand and dropped whenever something they depend on changes.
+    @GuardedBy("lock") private final EnumMap<BalanceType, Coin> balanceCache = new EnumMap<>(BalanceType.class);
+    // Set when keys are added, as that changes which outputs the SPENDABLE balances include. Not guarded by the wallet
+    // lock, as keys are added with only the key chain group lock held.
+    private volatile boolean spendableBalancesStale;
+    // Counts the changes to transactions, unspent outputs and balances. Only changed with the lock held.
+    private volatile long stateVersion;
+    // What the read-only queries return as of some stateVersion, see readPart().
+    @Nullable private volatile ReadSnapshot readSnapshot;
+    // The stateVersion after the last change made by the current thread, so that its reads see its own changes.
+    private final ThreadLocal<long[]> versionWrittenByThisThread = ThreadLocal.withInitial(() -> new long[1]);
+    // The transactions a WalletJournal has to save again, see takeChangedTransactions(). Null until a journal asks,
+    // so that wallets without one don't collect anything.
+    @GuardedBy("lock") @Nullable private Set<Sha256Hash> changedTransactions;
+    // Set when transactions were removed or changed too broadly to track, e.g. by a re-org. The journal then has to
+    // save the whole wallet.
+    @GuardedBy("lock") private boolean changesUnknown;
+    // Set whenever the keys may have changed. Not guarded by the wallet lock, as keys change with only the key chain
+    // group lock held.
+    private final AtomicBoolean keysChanged = new AtomicBoolean();
 
     // Transactions that were dropped by the risk analysis system. These are not in any pools and not serialized
     // to disk. We have to keep them around because if we ignore a tx because we think it will never confirm, but
@@ -250,7 +305,8 @@ public class Wallet extends BaseTaggableObject
 
 
     @Nullable private Sha256Hash lastBlockSeenHash;
-    private int lastBlockSeenHeight;
+    // Volatile so that transaction confidences can read it without taking the wallet lock, see bestChainHeight.
+    private volatile int lastBlockSeenHeight;
     @Nullable private Instant lastBlockSeenTime;
 
     private final List<ListenerRegistration<WalletChangeEventListener>> changeListeners
@@ -276,6 +332,15 @@ public class Wallet extends BaseTaggableObject
     private HashSet<Sha256Hash> ignoreNextNewBlock;
     // Whether to ignore pending transactions that are considered risky by the configured risk analyzer.
     private boolean acceptRiskyTransactions;
+
+    // Whether the depth of BUILDING transactions is derived from lastBlockSeenHeight rather than counted per block.
+    private boolean depthFromChainHeight;
+    private final IntSupplier bestChainHeight = () -> lastBlockSeenHeight;
+    // Depths at which transactions raise a DEPTH event in that mode.
+    private final TreeSet<Integer> depthThresholds = new TreeSet<>(Arrays.asList(1, 6));
+    // BUILDING transactions by the height they appeared at, as long as they haven't crossed the last threshold yet.
+    // Entries may be stale after a re-org or a removal, so they are checked against the confidence when looked up.
+    private final TreeMap<Integer, Set<Transaction>> recentlyConfirmed = new TreeMap<>();
     // Object that performs risk analysis of pending transactions. We might reject transactions that seem like
     // a high risk of being a double spending attack.
     private RiskAnalysis.Analyzer riskAnalyzer = DefaultRiskAnalysis.FACTORY;
@@ -287,6 +352,10 @@ public class Wallet extends BaseTaggableObject
     private boolean insideReorg;
     private final Map<Transaction, TransactionConfidence.Listener.ChangeReason> confidenceChanged;
     protected volatile WalletFiles vFileManager;
+    // Orders saves to files, which write out snapshots after releasing the lock. Taken after the lock, if at all.
+    private final Object saveLock = new Object();
+    private long snapshotSequence; // guarded by lock
+    private long savedSequence; // guarded by saveLock
     // Object that is used to send transactions asynchronously when the wallet requires it.
     protected volatile TransactionBroadcaster vTransactionBroadcaster;
     // Money controlled by keys created before this time will be automatically respent to a key
@@ -630,12 +699,14 @@ public class Wallet extends BaseTaggableObject
         this.addressParser = AddressParser.getDefault(network);
         this.coinSelector = DefaultCoinSelector.get(network);
         this.keyChainGroup = Objects.requireNonNull(keyChainGroup);
+        this.keyChainGroup.addEventListener(keys -> keysChanged.set(true), Threading.SAME_THREAD);
+        this.keyChainGroup.addCurrentKeyChangeEventListener(() -> keysChanged.set(true), Threading.SAME_THREAD);
         watchedScripts = new HashSet<>();
         unspent = new HashMap<>();
         spent = new HashMap<>();
         pending = new HashMap<>();
         dead = new HashMap<>();
-        transactions = new HashMap<>();
+        transactions = new ConcurrentHashMap<>();
         extensions = new HashMap<>();
         // Use a linked hash map to ensure ordering of event listeners is correct.
         confidenceChanged = new LinkedHashMap<>();
@@ -664,8 +735,11 @@ public class Wallet extends BaseTaggableObject
             if (reason == Listener.ChangeReason.SEEN_PEERS) {
                 lock.lock();
                 try {
+                    stateChanged(); // pending transactions become available once they are seen by peers
                     checkBalanceFuturesLocked();
                     Transaction tx = getTransaction(confidence.getTransactionHash());
+                    if (tx != null)
+                        transactionChanged(tx);
                     queueOnTransactionConfidenceChanged(tx);
                     maybeQueueOnWalletChanged();
                 } finally {
@@ -820,6 +894,7 @@ public class Wallet extends BaseTaggableObject
         keyChainGroupLock.lock();
         try {
             keys = keyChainGroup.freshKeys(purpose, numberOfKeys);
+            keysChanged.set(true);
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -845,6 +920,7 @@ public class Wallet extends BaseTaggableObject
         keyChainGroupLock.lock();
         try {
             address = keyChainGroup.freshAddress(purpose);
+            keysChanged.set(true);
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -872,6 +948,7 @@ public class Wallet extends BaseTaggableObject
         try {
             Instant keyRotationTime = vKeyRotationTime;
             address = keyChainGroup.freshAddress(KeyChain.KeyPurpose.RECEIVE_FUNDS, scriptType, keyRotationTime);
+            keysChanged.set(true);
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -941,6 +1018,8 @@ public class Wallet extends BaseTaggableObject
         try {
             Instant keyRotationTime = vKeyRotationTime;
             keyChainGroup.upgradeToDeterministic(outputScriptType, structure, keyRotationTime, aesKey);
+            keysChanged.set(true);
+            spendableBalancesStale = true;
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -981,6 +1060,8 @@ public class Wallet extends BaseTaggableObject
     public boolean removeKey(ECKey key) {
         keyChainGroupLock.lock();
         try {
+            keysChanged.set(true);
+            spendableBalancesStale = true;
             return keyChainGroup.removeImportedKey(key);
         } finally {
             keyChainGroupLock.unlock();
@@ -1050,6 +1131,7 @@ public class Wallet extends BaseTaggableObject
         keyChainGroupLock.lock();
         try {
             result = keyChainGroup.importKeys(keys);
+            spendableBalancesStale = true;
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -1080,7 +1162,9 @@ public class Wallet extends BaseTaggableObject
         keyChainGroupLock.lock();
         try {
             checkNoDeterministicKeys(keys);
-            return keyChainGroup.importKeysAndEncrypt(keys, aesKey);
+            int result = keyChainGroup.importKeysAndEncrypt(keys, aesKey);
+            spendableBalancesStale = true;
+            return result;
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -1094,6 +1178,8 @@ public class Wallet extends BaseTaggableObject
         keyChainGroupLock.lock();
         try {
             keyChainGroup.addAndActivateHDChain(chain);
+            keysChanged.set(true);
+            spendableBalancesStale = true;
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -1436,6 +1522,7 @@ public class Wallet extends BaseTaggableObject
     private void markKeysAsUsed(Transaction tx) {
         keyChainGroupLock.lock();
         try {
+            keysChanged.set(true);
             for (TransactionOutput o : tx.getOutputs()) {
                 try {
                     Script script = o.getScriptPubKey();
@@ -1502,6 +1589,7 @@ public class Wallet extends BaseTaggableObject
         try {
             final KeyCrypterScrypt scrypt = new KeyCrypterScrypt();
             keyChainGroup.encrypt(scrypt, scrypt.deriveKey(password));
+            keysChanged.set(true);
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -1520,6 +1608,7 @@ public class Wallet extends BaseTaggableObject
         keyChainGroupLock.lock();
         try {
             keyChainGroup.encrypt(keyCrypter, aesKey);
+            keysChanged.set(true);
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -1538,6 +1627,7 @@ public class Wallet extends BaseTaggableObject
             checkState(crypter != null, () ->
                     "not encrypted");
             keyChainGroup.decrypt(crypter.deriveKey(password));
+            keysChanged.set(true);
         } catch (KeyCrypterException.InvalidCipherText | KeyCrypterException.PublicPrivateMismatch e) {
             throw new BadWalletEncryptionKeyException(e);
         } finally {
@@ -1557,6 +1647,7 @@ public class Wallet extends BaseTaggableObject
         keyChainGroupLock.lock();
         try {
             keyChainGroup.decrypt(aesKey);
+            keysChanged.set(true);
         } catch (KeyCrypterException.InvalidCipherText | KeyCrypterException.PublicPrivateMismatch e) {
             throw new BadWalletEncryptionKeyException(e);
         } finally {
@@ -1693,6 +1784,15 @@ public class Wallet extends BaseTaggableObject
      * @throws IOException           if an error occurs while saving
      */
     public void saveToFile(File tempFile, File destFile) throws IOException {
+        saveToFile(tempFile, destFile, null);
+    }
+
+    /**
+     * Like {@link #saveToFile(File, File)}, and tells the given callback how long the wallet was locked to take a
+     * snapshot of it, and how long the snapshot took to be written out after releasing the lock.
+     */
+    void saveToFile(File tempFile, File destFile, @Nullable BiConsumer<Duration, Duration> durations)
+            throws IOException {
         File tempParentFile = tempFile.getParentFile();
         if (!tempParentFile.exists()) {
             throw new FileNotFoundException(tempParentFile.getPath() + " (wallet directory not found)");
@@ -1701,40 +1801,62 @@ public class Wallet extends BaseTaggableObject
         if (!destParentFile.exists()) {
             throw new FileNotFoundException(destParentFile.getPath() + " (wallet directory not found)");
         }
-        FileOutputStream stream = null;
+        WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+        WalletProtobufSerializer.Snapshot snapshot;
+        long sequence;
+        Stopwatch lockWatch;
         lock.lock();
         try {
-            stream = new FileOutputStream(tempFile);
-            saveToFileStream(stream);
-            // Attempt to force the bits to hit the disk. In reality the OS or hard disk itself may still decide
-            // to not write through to physical media for at least a few seconds, but this is the best we can do.
-            stream.flush();
-            stream.getFD().sync();
-            stream.close();
-            stream = null;
-            if (PlatformUtils.isWindows()) {
-                // Work around an issue on Windows whereby you can't rename over existing files.
-                File canonical = destFile.getCanonicalFile();
-                if (canonical.exists() && !canonical.delete())
-                    throw new IOException("Failed to delete canonical wallet file for replacement with autosave");
-                if (tempFile.renameTo(canonical))
-                    return;  // else fall through.
-                throw new IOException("Failed to rename " + tempFile + " to " + canonical);
-            } else if (!tempFile.renameTo(destFile)) {
-                throw new IOException("Failed to rename " + tempFile + " to " + destFile);
-            }
-        } catch (RuntimeException e) {
-            log.error("Failed whilst saving wallet", e);
-            throw e;
+            lockWatch = Stopwatch.start();
+            snapshot = serializer.snapshot(this);
+            sequence = ++snapshotSequence;
         } finally {
             lock.unlock();
-            if (stream != null) {
+        }
+        lockWatch.stop();
+        Stopwatch writeWatch = Stopwatch.start();
+        FileOutputStream stream = null;
+        synchronized (saveLock) {
+            try {
+                if (sequence < savedSequence) {
+                    // A newer snapshot was saved while we waited, writing this one would lose changes.
+                    if (!tempFile.delete())
+                        log.warn("Failed to delete temp file of outdated save: {}", tempFile);
+                    return;
+                }
+                stream = new FileOutputStream(tempFile);
+                serializer.writeWallet(snapshot, stream);
+                // Attempt to force the bits to hit the disk. In reality the OS or hard disk itself may still decide
+                // to not write through to physical media for at least a few seconds, but this is the best we can do.
+                stream.flush();
+                stream.getFD().sync();
                 stream.close();
-            }
-            if (tempFile.exists()) {
-                log.warn("Temp file still exists after failed save.");
+                stream = null;
+                if (PlatformUtils.isWindows()) {
+                    // Work around an issue on Windows whereby you can't rename over existing files.
+                    File canonical = destFile.getCanonicalFile();
+                    if (canonical.exists() && !canonical.delete())
+                        throw new IOException("Failed to delete canonical wallet file for replacement with autosave");
+                    if (!tempFile.renameTo(canonical))
+                        throw new IOException("Failed to rename " + tempFile + " to " + canonical);
+                } else if (!tempFile.renameTo(destFile)) {
+                    throw new IOException("Failed to rename " + tempFile + " to " + destFile);
+                }
+                savedSequence = sequence;
+            } catch (RuntimeException e) {
+                log.error("Failed whilst saving wallet", e);
+                throw e;
+            } finally {
+                if (stream != null) {
+                    stream.close();
+                }
+                if (tempFile.exists()) {
+                    log.warn("Temp file still exists after failed save.");
+                }
             }
         }
+        if (durations != null)
+            durations.accept(lockWatch.elapsed(), writeWatch.stop().elapsed());
     }
 
     /**
@@ -1785,6 +1907,78 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    /**
+     * <p>Whether the depth of transactions on the best chain is derived from the height of the chain on demand, rather
+     * than counted up for every wallet transaction on every block. With this mode, a new block only touches the
+     * transactions that reach one of the depths added via {@link #addDepthThreshold(int)} (1 and 6 by default) or the
+     * event horizon, so the cost of a block no longer grows with the number of transactions in the wallet.</p>
+     *
+     * <p>The flip side is that DEPTH changes are only reported to confidence listeners, and
+     * {@link TransactionConfidence#getDepthFuture(int)} only completes, at these thresholds. Reading the depth via
+     * {@link TransactionConfidence#getDepthInBlocks()} always gives the current value. Transaction confidences are
+     * shared by all wallets using the same {@link org.bitcoinj.core.TxConfidenceTable}, so if several wallets hold the
+     * same transaction, they should agree on this setting and be synced to the same chain.</p>
+     *
+     * <p>Note that this property is not serialized. You have to set it each time a Wallet object is constructed,
+     * even if it's loaded from a protocol buffer.</p>
+     */
+    public void setDepthFromChainHeight(boolean depthFromChainHeight) {
+        lock.lock();
+        try {
+            if (depthFromChainHeight == this.depthFromChainHeight)
+                return;
+            this.depthFromChainHeight = depthFromChainHeight;
+            recentlyConfirmed.clear();
+            for (Transaction tx : transactions.values()) {
+                TransactionConfidence confidence = tx.getConfidence();
+                if (depthFromChainHeight) {
+                    trackConfirmation(tx);
+                } else {
+                    // go back to counting, starting from the current depth
+                    int depth = confidence.getDepthInBlocks();
+                    confidence.setBestChainHeightSource(null);
+                    confidence.setDepthInBlocks(depth);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * See {@link Wallet#setDepthFromChainHeight(boolean)} for an explanation of this property.
+     */
+    public boolean isDepthFromChainHeight() {
+        lock.lock();
+        try {
+            return depthFromChainHeight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds a depth at which transactions raise a DEPTH event if {@link #setDepthFromChainHeight(boolean)} is enabled,
+     * e.g. the depth your application considers final.
+     *
+     * @param depth depth in blocks, at least one
+     */
+    public void addDepthThreshold(int depth) {
+        checkArgument(depth >= 1, () -> "depth must be at least one: " + depth);
+        lock.lock();
+        try {
+            depthThresholds.add(depth);
+            if (depthFromChainHeight) {
+                // transactions that were already dropped could still need to cross the new threshold
+                recentlyConfirmed.clear();
+                for (Transaction tx : transactions.values())
+                    trackConfirmation(tx);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * Sets the {@link RiskAnalysis} implementation to use for deciding whether received pending transactions are risky
      * or not. If the analyzer says a transaction is risky, by default it will be dropped. You can customize this
@@ -1900,12 +2094,8 @@ public class Wallet extends BaseTaggableObject
      * {@link WalletProtobufSerializer}.
      */
     public void saveToFileStream(OutputStream f) throws IOException {
-        lock.lock();
-        try {
-            new WalletProtobufSerializer().writeWallet(this, f);
-        } finally {
-            lock.unlock();
-        }
+        // only takes the lock for a snapshot of the wallet
+        new WalletProtobufSerializer().writeWallet(this, f);
     }
 
     /** Returns the parameters this wallet was created with. */
@@ -2000,6 +2190,29 @@ public class Wallet extends BaseTaggableObject
                     throw new IllegalStateException("Inconsistent spent tx: " + tx.getTxId());
                 }
             }
+
+            Map<TransactionOutPoint, Set<Transaction>> expectedSpendIndex = new HashMap<>();
+            for (Transaction tx : transactions) {
+                if (tx.isCoinBase())
+                    continue;
+                for (TransactionInput input : tx.getInputs())
+                    expectedSpendIndex.computeIfAbsent(input.getOutpoint(), outpoint -> new HashSet<>()).add(tx);
+            }
+            if (!expectedSpendIndex.equals(spendIndex)) {
+                throw new IllegalStateException("Inconsistent spend index");
+            }
+
+            Coin expectedUnspentsValue = myUnspents.stream().map(TransactionOutput::getValue).reduce(Coin.ZERO, Coin::add);
+            if (!expectedUnspentsValue.equals(myUnspentsValue)) {
+                throw new IllegalStateException("Inconsistent unspents value: " + myUnspentsValue + " vs " +
+                        expectedUnspentsValue);
+            }
+            if (myUnspentsIndex.size() != myUnspents.size()) {
+                throw new IllegalStateException("Inconsistent unspents index");
+            }
+            if (transactionsByTime.size() != size1) {
+                throw new IllegalStateException("Inconsistent transactions by time index");
+            }
         } finally {
             lock.unlock();
         }
@@ -2296,29 +2509,60 @@ public class Wallet extends BaseTaggableObject
     private Set<Transaction> findDoubleSpendsAgainst(Transaction tx, Map<Sha256Hash, Transaction> candidates) {
         checkState(lock.isHeldByCurrentThread());
         if (tx.isCoinBase()) return new HashSet<>();
-        // Compile a set of outpoints that are spent by tx.
-        HashSet<TransactionOutPoint> outpoints = new HashSet<>();
-        for (TransactionInput input : tx.getInputs()) {
-            outpoints.add(input.getOutpoint());
-        }
-        // Now for each pending transaction, see if it shares any outpoints with this tx.
         Set<Transaction> doubleSpendTxns = new HashSet<>();
-        for (Transaction p : candidates.values()) {
-            if (p.equals(tx))
+        for (TransactionInput input : tx.getInputs()) {
+            // This relies on the fact that TransactionOutPoint equality is defined at the protocol not object
+            // level - outpoints from two different inputs that point to the same output compare the same.
+            Set<Transaction> spenders = spendIndex.get(input.getOutpoint());
+            if (spenders == null)
                 continue;
-            for (TransactionInput input : p.getInputs()) {
-                // This relies on the fact that TransactionOutPoint equality is defined at the protocol not object
-                // level - outpoints from two different inputs that point to the same output compare the same.
-                TransactionOutPoint outpoint = input.getOutpoint();
-                if (outpoints.contains(outpoint)) {
-                    // It does, it's a double spend against the candidates, which makes it relevant.
-                    doubleSpendTxns.add(p);
-                }
+            for (Transaction p : spenders) {
+                if (p.equals(tx))
+                    continue;
+                // The index covers all pools, so only keep the ones among the candidates.
+                Transaction candidate = candidates.get(p.getTxId());
+                if (candidate != null)
+                    doubleSpendTxns.add(candidate);
             }
         }
         return doubleSpendTxns;
     }
 
+    private void addToSpendIndex(Transaction tx) {
+        if (tx.isCoinBase())
+            return;
+        for (TransactionInput input : tx.getInputs())
+            spendIndex.computeIfAbsent(input.getOutpoint(), outpoint -> new HashSet<>(2)).add(tx);
+    }
+
+    private void removeFromSpendIndex(Transaction tx) {
+        for (TransactionInput input : tx.getInputs()) {
+            Set<Transaction> spenders = spendIndex.get(input.getOutpoint());
+            if (spenders != null && spenders.remove(tx) && spenders.isEmpty())
+                spendIndex.remove(input.getOutpoint());
+        }
+    }
+
+    /**
+     * Adds to txSet all the txns in the wallet spending outputs of txns in txSet, and all txns spending the outputs of
+     * those txns, recursively. Finds them through the spend index rather than by looking at every transaction.
+     */
+    private void addTransactionsDependingOn(Set<Transaction> txSet) {
+        checkState(lock.isHeldByCurrentThread());
+        Deque<Transaction> txQueue = new ArrayDeque<>(txSet);
+        while (!txQueue.isEmpty()) {
+            Transaction tx = txQueue.poll();
+            for (TransactionOutput output : tx.getOutputs()) {
+                Set<Transaction> spenders = spendIndex.get(output.getOutPointFor());
+                if (spenders == null)
+                    continue;
+                for (Transaction spender : spenders)
+                    if (!spender.equals(tx) && txSet.add(spender))
+                        txQueue.add(spender);
+            }
+        }
+    }
+
     /**
      * Adds to txSet all the txns in txPool spending outputs of txns in txSet,
      * and all txns spending the outputs of those txns, recursively.
@@ -2376,15 +2620,91 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    /**
+     * Does the same as {@link #receiveFromBlock(Transaction, StoredBlock, BlockChain.NewBlockType, int)} for each of
+     * the given transactions, but takes the lock only once, and does the work that only depends on the end result
+     * once for the whole batch: calculating the balance, checking the wallet is consistent and scheduling an auto
+     * save. The coins received and coins sent events are still sent for each transaction, in block order, but all of
+     * them carry the balances from before and after the batch. Transactions with scripts that can't be parsed are
+     * skipped.
+     */
+    @Override
+    public void receiveFromBlock(List<Transaction> txns, StoredBlock block,
+                                 BlockChain.NewBlockType blockType,
+                                 int relativityOffset) throws VerificationException {
+        lock.lock();
+        try {
+            // Relevance is checked just before receiving each transaction, as one may only be relevant because it
+            // spends an earlier one of the batch.
+            for (Transaction tx : txns) {
+                try {
+                    if (isTransactionRelevant(tx)) {
+                        if (receivedInBatch == null) {
+                            batchPrevBalance = getBalance();
+                            receivedInBatch = new LinkedHashMap<>();
+                            onWalletChangedSuppressions++;
+                        }
+                        receive(tx, block, blockType, relativityOffset);
+                    }
+                } catch (ScriptException e) {
+                    // We don't want scripts we don't understand to break the block chain so just note that this tx
+                    // was not scanned here and continue.
+                    log.warn("Failed to parse a script: " + e.toString());
+                }
+                relativityOffset++;
+            }
+            if (receivedInBatch != null)
+                finishReceivingBatch(blockType == BlockChain.NewBlockType.BEST_CHAIN);
+        } finally {
+            if (receivedInBatch != null) {
+                // receiving failed, so the batch wasn't finished
+                receivedInBatch = null;
+                onWalletChangedSuppressions--;
+            }
+            lock.unlock();
+        }
+    }
+
+    // The part of receive() that is left out while receiving a batch.
+    private void finishReceivingBatch(boolean bestChain) {
+        checkState(lock.isHeldByCurrentThread());
+        Map<Transaction, Coin> received = receivedInBatch;
+        receivedInBatch = null;
+        onWalletChangedSuppressions--;
+        if (!insideReorg && bestChain) {
+            Coin newBalance = getBalance();
+            log.info("Balance is now: " + newBalance.toFriendlyString());
+            received.forEach((tx, valueDifference) -> {
+                // We pick one callback based on the value difference, though a tx can of course both send and receive
+                // coins from the wallet.
+                if (valueDifference.signum() > 0)
+                    queueOnCoinsReceived(tx, batchPrevBalance, newBalance);
+                else if (valueDifference.signum() < 0)
+                    queueOnCoinsSent(tx, batchPrevBalance, newBalance);
+            });
+            checkBalanceFuturesLocked();
+        } else if (!bestChain) {
+            maybeQueueOnWalletChanged();
+        }
+        isConsistentOrThrow();
+        saveLater();
+    }
+
     // Whether to do a saveNow or saveLater when we are notified of the next best block.
     private boolean hardSaveOnNextBlock = false;
 
+    // While receiving a batch of transactions, the ones to send coins received or sent events for at the end, with
+    // the value they moved, and the balance before the batch.
+    @Nullable private Map<Transaction, Coin> receivedInBatch;
+    private Coin batchPrevBalance;
+
     private void receive(Transaction tx, StoredBlock block, BlockChain.NewBlockType blockType,
                          int relativityOffset) throws VerificationException {
         // Runs in a peer thread.
         checkState(lock.isHeldByCurrentThread());
 
-        Coin prevBalance = getBalance();
+        boolean inBatch = receivedInBatch != null;
+        Coin prevBalance = inBatch ? null : getBalance();
         Sha256Hash txHash = tx.getTxId();
         boolean bestChain = blockType == BlockChain.NewBlockType.BEST_CHAIN;
         boolean sideChain = blockType == BlockChain.NewBlockType.SIDE_CHAIN;
@@ -2425,7 +2745,7 @@ public class Wallet extends BaseTaggableObject
                 for (TransactionOutput output : tx.getOutputs()) {
                     final TransactionInput spentBy = output.getSpentBy();
                     if (spentBy != null) {
-                        checkState(myUnspents.add(output));
+                        checkState(addUnspent(output));
                         spentBy.disconnect();
                     }
                 }
@@ -2456,18 +2776,23 @@ public class Wallet extends BaseTaggableObject
             // Mark the tx as appearing in this block so we can find it later after a re-org. This also tells the tx
             // confidence object about the block and sets its depth appropriately.
             tx.setBlockAppearance(block, bestChain, relativityOffset);
+            transactionChanged(tx);
+            myUnspentsIndex.update(tx);
+            transactionsByTime.update(tx); // the block may have given it an earlier update time
             if (bestChain) {
                 // Don't notify this tx of work done in notifyNewBestBlock which will be called immediately after
                 // this method has been called by BlockChain for all relevant transactions. Otherwise we'd double
                 // count.
                 ignoreNextNewBlock.add(txHash);
+                if (depthFromChainHeight)
+                    trackConfirmation(tx);
 
                 // When a tx is received from the best chain, if other txns that spend this tx are IN_CONFLICT,
                 // change its confidence to PENDING (Unless they are also spending other txns IN_CONFLICT).
                 // Consider dependency chains.
                 Set<Transaction> currentTxDependencies = new HashSet<>();
                 currentTxDependencies.add(tx);
-                addTransactionsDependingOn(currentTxDependencies, getTransactions(true));
+                addTransactionsDependingOn(currentTxDependencies);
                 currentTxDependencies.remove(tx);
                 List<Transaction> currentTxDependenciesSorted = sortTxnsByDependency(currentTxDependencies);
                 for (Transaction txDependency : currentTxDependenciesSorted) {
@@ -2487,7 +2812,7 @@ public class Wallet extends BaseTaggableObject
         if (bestChain) {
             // notifyNewBestBlock will be invoked next and will then call maybeQueueOnWalletChanged for us.
             confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
-        } else {
+        } else if (!inBatch) {
             maybeQueueOnWalletChanged();
         }
 
@@ -2498,7 +2823,10 @@ public class Wallet extends BaseTaggableObject
         //  - We have not already informed the user about the coins when we received the tx broadcast, or for our
         //    own spends. If users want to know when a broadcast tx becomes confirmed, they need to use tx confidence
         //    listeners.
-        if (!insideReorg && bestChain) {
+        if (inBatch) {
+            if (!insideReorg && bestChain && !wasPending)
+                receivedInBatch.put(tx, valueDifference);
+        } else if (!insideReorg && bestChain) {
             Coin newBalance = getBalance();  // This is slow.
             log.info("Balance is now: " + newBalance.toFriendlyString());
             if (!wasPending) {
@@ -2515,9 +2843,11 @@ public class Wallet extends BaseTaggableObject
         }
 
         informConfidenceListenersIfNotReorganizing();
-        isConsistentOrThrow();
-        // Optimization for the case where a block has tons of relevant transactions.
-        saveLater();
+        if (!inBatch) {
+            isConsistentOrThrow();
+            // Optimization for the case where a block has tons of relevant transactions.
+            saveLater();
+        }
         hardSaveOnNextBlock = true;
     }
 
@@ -2569,6 +2899,14 @@ public class Wallet extends BaseTaggableObject
     }
 
     private void informConfidenceListenersIfNotReorganizing() {
+        if (!confidenceChanged.isEmpty())
+            stateChanged();
+        confidenceChanged.forEach((tx, reason) -> {
+            if (reason != TransactionConfidence.Listener.ChangeReason.DEPTH) {
+                myUnspentsIndex.update(tx); // the height the outputs are filed under may have changed
+                transactionChanged(tx); // a WalletJournal replays depth changes itself
+            }
+        });
         if (insideReorg)
             return;
         for (Map.Entry<Transaction, TransactionConfidence.Listener.ChangeReason> entry : confidenceChanged.entrySet()) {
@@ -2599,27 +2937,37 @@ public class Wallet extends BaseTaggableObject
             setLastBlockSeenHash(newBlockHash);
             setLastBlockSeenHeight(block.getHeight());
             setLastBlockSeenTime(block.getHeader().time());
-            // Notify all the BUILDING transactions of the new block.
-            // This is so that they can update their depth.
-            Set<Transaction> transactions = getTransactions(true);
-            for (Transaction tx : transactions) {
-                if (ignoreNextNewBlock.contains(tx.getTxId())) {
-                    // tx was already processed in receive() due to it appearing in this block, so we don't want to
-                    // increment the tx confidence depth twice, it'd result in miscounting.
-                    ignoreNextNewBlock.remove(tx.getTxId());
-                } else {
-                    TransactionConfidence confidence = tx.getConfidence();
-                    if (confidence.getConfidenceType() == ConfidenceType.BUILDING) {
-                        // Erase the set of seen peers once the tx is so deep that it seems unlikely to ever go
-                        // pending again. We could clear this data the moment a tx is seen in the block chain, but
-                        // in cases where the chain re-orgs, this would mean that wallets would perceive a newly
-                        // pending tx has zero confidence at all, which would not be right: we expect it to be
-                        // included once again. We could have a separate was-in-chain-and-now-isn't confidence type
-                        // but this way is backwards compatible with existing software, and the new state probably
-                        // wouldn't mean anything different to just remembering peers anyway.
-                        if (confidence.incrementDepthInBlocks() > Context.getOrCreate().getEventHorizon())
-                            confidence.clearBroadcastBy();
-                        confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
+            stateChanged(); // coinbases mature with depth
+            if (depthFromChainHeight) {
+                // Depths follow from the new height, so only the transactions crossing a threshold need attention.
+                ignoreNextNewBlock.clear();
+                notifyDepthThresholdsCrossed(block.getHeight());
+            } else {
+                // Notify all the BUILDING transactions of the new block.
+                // This is so that they can update their depth.
+                Set<Transaction> transactions = getTransactions(true);
+                for (Transaction tx : transactions) {
+                    if (ignoreNextNewBlock.contains(tx.getTxId())) {
+                        // tx was already processed in receive() due to it appearing in this block, so we don't want to
+                        // increment the tx confidence depth twice, it'd result in miscounting.
+                        ignoreNextNewBlock.remove(tx.getTxId());
+                    } else {
+                        TransactionConfidence confidence = tx.getConfidence();
+                        if (confidence.getConfidenceType() == ConfidenceType.BUILDING) {
+                            // Erase the set of seen peers once the tx is so deep that it seems unlikely to ever go
+                            // pending again. We could clear this data the moment a tx is seen in the block chain, but
+                            // in cases where the chain re-orgs, this would mean that wallets would perceive a newly
+                            // pending tx has zero confidence at all, which would not be right: we expect it to be
+                            // included once again. We could have a separate was-in-chain-and-now-isn't confidence type
+                            // but this way is backwards compatible with existing software, and the new state probably
+                            // wouldn't mean anything different to just remembering peers anyway.
+                            if (confidence.incrementDepthInBlocks() > Context.getOrCreate().getEventHorizon()
+                                    && confidence.numBroadcastPeers() > 0) {
+                                confidence.clearBroadcastBy();
+                                transactionChanged(tx);
+                            }
+                            confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
+                        }
                     }
                 }
             }
@@ -2639,6 +2987,67 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    // The depth after which the set of peers that announced a transaction is forgotten, as in the block counting mode.
+    private int forgetBroadcastDepth() {
+        return Context.getOrCreate().getEventHorizon() + 1;
+    }
+
+    /**
+     * Lets the confidence of the given transaction derive its depth from our chain height and, if it is BUILDING and
+     * still has a threshold to cross, remembers it under the height it appeared at.
+     */
+    private void trackConfirmation(Transaction tx) {
+        checkState(lock.isHeldByCurrentThread());
+        TransactionConfidence confidence = tx.getConfidence();
+        confidence.setBestChainHeightSource(bestChainHeight);
+        if (confidence.getConfidenceType() != ConfidenceType.BUILDING)
+            return;
+        int appearedAtHeight = confidence.getAppearedAtChainHeight();
+        if (appearedAtHeight < 0) {
+            // Wallets from before heights were saved only have the depth counted so far. Derive the height from it,
+            // or the depth would stay where it is.
+            int depth = confidence.getDepthInBlocks();
+            if (lastBlockSeenHeight >= 0 && depth >= 1 && depth <= lastBlockSeenHeight + 1) {
+                appearedAtHeight = lastBlockSeenHeight - depth + 1;
+                confidence.setAppearedAtChainHeight(appearedAtHeight);
+            }
+        }
+        int maxDepth = Math.max(depthThresholds.last(), forgetBroadcastDepth());
+        if (appearedAtHeight >= 0 && confidence.getDepthInBlocks(lastBlockSeenHeight) < maxDepth)
+            recentlyConfirmed.computeIfAbsent(appearedAtHeight, h -> new HashSet<>()).add(tx);
+    }
+
+    /**
+     * Queues DEPTH changes for the transactions that reach a depth threshold with a best chain of the given height, and
+     * forgets about those that have crossed all of them.
+     */
+    private void notifyDepthThresholdsCrossed(int height) {
+        checkState(lock.isHeldByCurrentThread());
+        int forgetBroadcastDepth = forgetBroadcastDepth();
+        Set<Integer> depths = new TreeSet<>(depthThresholds);
+        depths.add(forgetBroadcastDepth);
+        for (int depth : depths) {
+            int appearedAtHeight = height - depth + 1;
+            Set<Transaction> candidates = recentlyConfirmed.get(appearedAtHeight);
+            if (candidates == null)
+                continue;
+            for (Transaction tx : candidates) {
+                TransactionConfidence confidence = tx.getConfidence();
+                if (confidence.getConfidenceType() != ConfidenceType.BUILDING
+                        || confidence.getAppearedAtChainHeight() != appearedAtHeight
+                        || transactions.get(tx.getTxId()) != tx)
+                    continue; // stale
+                if (depth == forgetBroadcastDepth && confidence.numBroadcastPeers() > 0) {
+                    confidence.clearBroadcastBy();
+                    transactionChanged(tx);
+                }
+                // A transaction that appeared in this block already has its TYPE change queued by receive().
+                confidenceChanged.putIfAbsent(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
+            }
+        }
+        recentlyConfirmed.headMap(height - Math.max(depthThresholds.last(), forgetBroadcastDepth) + 1).clear();
+    }
+
     /**
      * Handle when a transaction becomes newly active on the best chain, either due to receiving a new block or a
      * re-org. Places the tx into the right pool, handles coinbase transactions, handles double-spends and so on.
@@ -2707,6 +3116,7 @@ public class Wallet extends BaseTaggableObject
             for (TransactionInput input : tx.getInputs()) {
                 TransactionOutput output = input.getConnectedOutput();
                 if (output != null && !output.isMineOrWatched(this)) {
+                    transactionChanged(output.getParentTransaction());
                     input.disconnect();
                 }
             }
@@ -2778,7 +3188,7 @@ public class Wallet extends BaseTaggableObject
                 maybeMovePool(connected, "prevtx");
                 // Just because it's connected doesn't mean it's actually ours: sometimes we have total visibility.
                 if (output.isMineOrWatched(this)) {
-                    checkState(myUnspents.remove(output));
+                    checkState(removeUnspent(output));
                 }
             }
         }
@@ -2797,11 +3207,12 @@ public class Wallet extends BaseTaggableObject
                     checkState(result != TransactionInput.ConnectionResult.ALREADY_SPENT);
                 }
                 if (result == TransactionInput.ConnectionResult.SUCCESS) {
+                    transactionChanged(tx);
                     log.info("Connected pending tx input {}:{}",
                             pendingTx.getTxId(), pendingTx.getInputs().indexOf(input));
                     // The unspents map might not have it if we never saw this tx until it was included in the chain
                     // and thus becomes spent the moment we become aware of it.
-                    if (myUnspents.remove(input.getConnectedOutput()))
+                    if (removeUnspent(input.getConnectedOutput()))
                         log.info("Removed from UNSPENTS: {}", input.getConnectedOutput());
                 }
             }
@@ -2831,7 +3242,7 @@ public class Wallet extends BaseTaggableObject
                 Transaction connected = deadInput.getConnectedTransaction();
                 if (connected == null) continue;
                 if (connected.getConfidence().getConfidenceType() != ConfidenceType.DEAD && deadInput.getConnectedOutput().getSpentBy() != null && deadInput.getConnectedOutput().getSpentBy().equals(deadInput)) {
-                    checkState(myUnspents.add(deadInput.getConnectedOutput()));
+                    checkState(addUnspent(deadInput.getConnectedOutput()));
                     log.info("Added to UNSPENTS: {} in {}", deadInput.getConnectedOutput(), deadInput.getConnectedOutput().getParentTransaction().getTxId());
                 }
                 deadInput.disconnect();
@@ -2841,7 +3252,7 @@ public class Wallet extends BaseTaggableObject
             confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
             // Now kill any transactions we have that depended on this one.
             for (TransactionOutput deadOutput : tx.getOutputs()) {
-                if (myUnspents.remove(deadOutput))
+                if (removeUnspent(deadOutput))
                     log.info("XX Removed from UNSPENTS: {}", deadOutput);
                 TransactionInput connected = deadOutput.getSpentBy();
                 if (connected == null) continue;
@@ -2857,13 +3268,13 @@ public class Wallet extends BaseTaggableObject
             TransactionInput.ConnectionResult result = input.connect(unspent, TransactionInput.ConnectMode.DISCONNECT_ON_CONFLICT);
             if (result == TransactionInput.ConnectionResult.SUCCESS) {
                 maybeMovePool(input.getConnectedTransaction(), "kill");
-                myUnspents.remove(input.getConnectedOutput());
+                removeUnspent(input.getConnectedOutput());
                 log.info("Removing from UNSPENTS: {}", input.getConnectedOutput());
             } else {
                 result = input.connect(spent, TransactionInput.ConnectMode.DISCONNECT_ON_CONFLICT);
                 if (result == TransactionInput.ConnectionResult.SUCCESS) {
                     maybeMovePool(input.getConnectedTransaction(), "kill");
-                    myUnspents.remove(input.getConnectedOutput());
+                    removeUnspent(input.getConnectedOutput());
                     log.info("Removing from UNSPENTS: {}", input.getConnectedOutput());
                 }
             }
@@ -2876,6 +3287,7 @@ public class Wallet extends BaseTaggableObject
      */
     private void maybeMovePool(Transaction tx, String context) {
         checkState(lock.isHeldByCurrentThread());
+        transactionChanged(tx); // its spent flags changed
         if (tx.isEveryOwnedOutputSpent(this)) {
             // There's nothing left I can spend in this transaction.
             if (unspent.remove(tx.getTxId()) != null) {
@@ -3273,10 +3685,14 @@ public class Wallet extends BaseTaggableObject
     //region Vending transactions and other internal state
 
     /**
-     * Returns a set of all transactions in the wallet.
+     * Returns a set of all transactions in the wallet. Like the other read-only queries, this doesn't wait while
+     * another thread is changing the wallet, e.g. processing a block; the result is then from before that change.
      * @param includeDead     If true, transactions that were overridden by a double spend are included.
      */
     public Set<Transaction> getTransactions(boolean includeDead) {
+        ByTime byTime = readPart(s -> s.byTime(includeDead), () -> takeByTime(includeDead));
+        if (byTime != null)
+            return new HashSet<>(byTime.transactions);
         lock.lock();
         try {
             Set<Transaction> all = new HashSet<>();
@@ -3308,6 +3724,27 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    /**
+     * Returns those of the given transactions that are still in the wallet, with their pools.
+     */
+    List<WalletTransaction> getWalletTransactions(Collection<Sha256Hash> txIds) {
+        lock.lock();
+        try {
+            List<WalletTransaction> result = new ArrayList<>(txIds.size());
+            for (Sha256Hash txId : txIds) {
+                Transaction tx = transactions.get(txId);
+                if (tx == null)
+                    continue;
+                Pool pool = unspent.containsKey(txId) ? Pool.UNSPENT : spent.containsKey(txId) ? Pool.SPENT
+                        : pending.containsKey(txId) ? Pool.PENDING : Pool.DEAD;
+                result.add(new WalletTransaction(pool, tx));
+            }
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     private static void addWalletTransactionsToSet(Set<WalletTransaction> txns,
                                                    Pool poolType, Collection<Transaction> pool) {
         for (Transaction tx : pool) {
@@ -3335,6 +3772,12 @@ public class Wallet extends BaseTaggableObject
     private void addWalletTransaction(Pool pool, Transaction tx) {
         checkState(lock.isHeldByCurrentThread());
         transactions.put(tx.getTxId(), tx);
+        transactionsByTime.update(tx);
+        transactionChanged(tx);
+        stateChanged();
+        addToSpendIndex(tx);
+        if (depthFromChainHeight)
+            trackConfirmation(tx);
         switch (pool) {
         case UNSPENT:
             checkState(unspent.put(tx.getTxId(), tx) == null);
@@ -3354,7 +3797,7 @@ public class Wallet extends BaseTaggableObject
         if (pool == Pool.UNSPENT || pool == Pool.PENDING) {
             for (TransactionOutput output : tx.getOutputs()) {
                 if (output.isAvailableForSpending() && output.isMineOrWatched(this))
-                    myUnspents.add(output);
+                    addUnspent(output);
             }
         }
         // This is safe even if the listener has been added before, as TransactionConfidence ignores duplicate
@@ -3377,41 +3820,92 @@ public class Wallet extends BaseTaggableObject
      * depending on how the wallet is implemented (eg if backed by a database).</p>
      */
     public List<Transaction> getRecentTransactions(int numTransactions, boolean includeDead) {
+        checkArgument(numTransactions >= 0);
+        ByTime byTime = readPart(s -> s.byTime(includeDead), () -> takeByTime(includeDead));
+        if (byTime != null) {
+            int size = byTime.liveCount;
+            if (numTransactions > size || numTransactions == 0)
+                numTransactions = size;
+            return new ArrayList<>(byTime.transactions.subList(0, numTransactions));
+        }
         lock.lock();
         try {
-            checkArgument(numTransactions >= 0);
-            // Firstly, put all transactions into an array.
             int size = unspent.size() + spent.size() + pending.size();
             if (numTransactions > size || numTransactions == 0) {
                 numTransactions = size;
             }
-            List<Transaction> all = new ArrayList<>(getTransactions(includeDead));
-            // Order by update time.
-            Collections.sort(all, Transaction.SORT_TX_BY_UPDATE_TIME);
-            if (numTransactions == all.size()) {
-                return all;
-            } else {
-                all.subList(numTransactions, all.size()).clear();
-                return all;
-            }
+            return collectByTime(transactionsByTime.iterator(), numTransactions, includeDead);
         } finally {
             lock.unlock();
         }
     }
 
     /**
-     * Returns a transaction object given its hash, if it exists in this wallet, or null otherwise.
+     * <p>Returns a page of the transaction history: up to limit transactions, most recently updated first, like
+     * {@link #getTransactionsByTime()}. The first page is returned for a null cursor. For the next page, pass the id
+     * of the last transaction of the previous page. The cost depends on the size of the page, not of the wallet.</p>
+     *
+     * <p>If transactions are added or change their update time between the calls for two pages, the pages may
+     * overlap or miss them.</p>
+     *
+     * @param before id of the transaction after which the page starts, or null for the first page
+     * @param limit  maximum number of transactions to return
+     * @return the page, empty if there are no more transactions
+     * @throws IllegalArgumentException if the transaction given as cursor is not in the wallet
      */
-    @Nullable
-    public Transaction getTransaction(Sha256Hash hash) {
+    public List<Transaction> getTransactionsPage(@Nullable Sha256Hash before, int limit) {
+        checkArgument(limit > 0, () -> "limit must be positive: " + limit);
         lock.lock();
         try {
-            return transactions.get(hash);
+            return collectByTime(transactionsByTime.iteratorAfter(before), limit, false);
         } finally {
             lock.unlock();
         }
     }
 
+    /**
+     * Sets the update time of a transaction in this wallet and moves it to its new place in
+     * {@link #getTransactionsByTime()}, {@link #getRecentTransactions(int, boolean)} and
+     * {@link #getTransactionsPage(Sha256Hash, int)}. Setting it on the transaction directly does not move it there.
+     *
+     * @param txId       id of the transaction
+     * @param updateTime new update time
+     * @throws IllegalArgumentException if the transaction is not in the wallet
+     */
+    public void setTransactionUpdateTime(Sha256Hash txId, Instant updateTime) {
+        Objects.requireNonNull(updateTime);
+        lock.lock();
+        try {
+            Transaction tx = transactions.get(txId);
+            checkArgument(tx != null, () -> "transaction not in wallet: " + txId);
+            tx.setUpdateTime(updateTime);
+            transactionsByTime.update(tx);
+            transactionChanged(tx);
+            stateChanged();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private List<Transaction> collectByTime(Iterator<Transaction> byTime, int limit, boolean includeDead) {
+        checkState(lock.isHeldByCurrentThread());
+        List<Transaction> result = new ArrayList<>(limit);
+        while (result.size() < limit && byTime.hasNext()) {
+            Transaction tx = byTime.next();
+            if (includeDead || !dead.containsKey(tx.getTxId()))
+                result.add(tx);
+        }
+        return result;
+    }
+
+    /**
+     * Returns a transaction object given its hash, if it exists in this wallet, or null otherwise.
+     */
+    @Nullable
+    public Transaction getTransaction(Sha256Hash hash) {
+        return transactions.get(hash);
+    }
+
     @Override
     public Map<Sha256Hash, Transaction> getTransactionPool(Pool pool) {
         lock.lock();
@@ -3477,9 +3971,75 @@ public class Wallet extends BaseTaggableObject
         pending.clear();
         dead.clear();
         transactions.clear();
+        transactionsByTime.clear();
+        spendIndex.clear();
+        recentlyConfirmed.clear();
         myUnspents.clear();
+        myUnspentsIndex.clear();
+        myUnspentsValue = Coin.ZERO;
+        changesUnknown = true;
+        stateChanged();
+    }
+
+    private boolean addUnspent(TransactionOutput output) {
+        checkState(lock.isHeldByCurrentThread());
+        if (!myUnspents.add(output))
+            return false;
+        myUnspentsIndex.add(output);
+        myUnspentsValue = myUnspentsValue.add(output.getValue());
+        transactionChanged(output.getParentTransaction());
+        stateChanged();
+        return true;
+    }
+
+    private boolean removeUnspent(@Nullable TransactionOutput output) {
+        checkState(lock.isHeldByCurrentThread());
+        if (output == null || !myUnspents.remove(output))
+            return false;
+        myUnspentsIndex.remove(output);
+        myUnspentsValue = myUnspentsValue.subtract(output.getValue());
+        transactionChanged(output.getParentTransaction());
+        stateChanged();
+        return true;
+    }
+
+    // Called with the lock held whenever transactions, unspent outputs or anything the balances depend on change.
+    private void stateChanged() {
+        balanceCache.clear();
+        stateVersion++;
+        versionWrittenByThisThread.get()[0] = stateVersion;
+    }
+
+    // Called with the lock held whenever something that is saved with the transaction changes, except its depth.
+    private void transactionChanged(@Nullable Transaction tx) {
+        if (changedTransactions != null && tx != null)
+            changedTransactions.add(tx.getTxId());
     }
 
+    /**
+     * Returns the ids of the transactions that were added or changed since the last call, for {@link WalletJournal}.
+     * Returns null if that isn't known, because this is the first call or transactions were removed since the last
+     * one: then the whole wallet has to be saved. Changes a caller makes directly to a transaction, like
+     * {@link Transaction#setMemo(String)}, aren't tracked and are saved with the next full save. Only one journal may
+     * call this for a wallet.
+     */
+    @Nullable
+    Set<Sha256Hash> takeChangedTransactions() {
+        checkState(lock.isHeldByCurrentThread());
+        Set<Sha256Hash> changed = changesUnknown ? null : changedTransactions;
+        changedTransactions = new HashSet<>();
+        changesUnknown = false;
+        return changed;
+    }
+
+    /**
+     * Returns whether the keys may have changed since the last call, for {@link WalletJournal}.
+     */
+    boolean takeKeysChanged() {
+        return keysChanged.getAndSet(false);
+    }
+
+
     /**
      * Returns all the outputs that match addresses or scripts added via {@link #addWatchedAddress(Address)} or
      * {@link #addWatchedScripts(java.util.List)}.
@@ -3528,14 +4088,18 @@ public class Wallet extends BaseTaggableObject
                             TransactionOutput output = input.getConnectedOutput();
                             if (output == null) continue;
                             if (output.isMineOrWatched(this))
-                                checkState(myUnspents.add(output));
+                                checkState(addUnspent(output));
                             input.disconnect();
                         }
                         for (TransactionOutput output : tx.getOutputs())
-                            myUnspents.remove(output);
+                            removeUnspent(output);
 
                         i.remove();
                         transactions.remove(tx.getTxId());
+                        transactionsByTime.remove(tx.getTxId());
+                        changesUnknown = true;
+                        stateChanged();
+                        removeFromSpendIndex(tx);
                         dirty = true;
                         log.info("Removed transaction {} from pending pool during cleanup.", tx.getTxId());
                     } else {
@@ -3621,6 +4185,10 @@ public class Wallet extends BaseTaggableObject
 
     /** Returns a copy of the internal unspent outputs list */
     public List<TransactionOutput> getUnspents() {
+        List<TransactionOutput> unspents = readPart(s -> s.unspents,
+                () -> Collections.unmodifiableList(new ArrayList<>(myUnspents)));
+        if (unspents != null)
+            return new ArrayList<>(unspents);
         lock.lock();
         try {
             return new ArrayList<>(myUnspents);
@@ -3629,6 +4197,120 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    // What getTransactions(), getRecentTransactions(), getUnspents() and getBalance() return as of one stateVersion,
+    // so that these queries can run without the lock. Each part is only taken when it is first asked for, with the
+    // lock held and the wallet still at that version, so a snapshot costs nothing for the parts nobody reads.
+    private static final class ReadSnapshot {
+        final long version;
+        final Part<ByTime> byTime; // not dead
+        final Part<ByTime> byTimeWithDead;
+        final Part<List<TransactionOutput>> unspents;
+        final EnumMap<BalanceType, Part<Coin>> balances = new EnumMap<>(BalanceType.class);
+
+        ReadSnapshot(Wallet wallet, @Nullable ReadSnapshot previous) {
+            checkState(wallet.lock.isHeldByCurrentThread());
+            this.version = wallet.stateVersion;
+            this.byTime = new Part<>(version, previous != null ? previous.byTime : null);
+            this.byTimeWithDead = new Part<>(version, previous != null ? previous.byTimeWithDead : null);
+            this.unspents = new Part<>(version, previous != null ? previous.unspents : null);
+            for (BalanceType balanceType : BalanceType.values())
+                balances.put(balanceType, new Part<>(version, previous != null ? previous.balances.get(balanceType)
+                        : null));
+        }
+
+        Part<ByTime> byTime(boolean includeDead) {
+            return includeDead ? byTimeWithDead : byTime;
+        }
+
+        boolean isCurrent(Wallet wallet) {
+            return version == wallet.stateVersion && !wallet.spendableBalancesStale;
+        }
+    }
+
+    // One part of a ReadSnapshot. Until it is taken, the latest value taken for an older snapshot is carried forward,
+    // so that readers that don't get the lock have something to return.
+    private static final class Part<T> {
+        final long version;
+        final AtomicReference<T> value = new AtomicReference<>(); // as of version, once taken
+        @Nullable final T older;
+        final long olderVersion;
+
+        Part(long version, @Nullable Part<T> previous) {
+            this.version = version;
+            T previousValue = previous != null ? previous.value.get() : null;
+            this.older = previousValue != null ? previousValue : previous != null ? previous.older : null;
+            this.olderVersion = previousValue != null ? previous.version : previous != null ? previous.olderVersion : -1;
+        }
+    }
+
+    // The transactions most recently updated first, and how many of the transactions in the wallet are not dead.
+    private static final class ByTime {
+        final List<Transaction> transactions;
+        final int liveCount;
+
+        ByTime(List<Transaction> transactions, int liveCount) {
+            this.transactions = transactions;
+            this.liveCount = liveCount;
+        }
+    }
+
+    /**
+     * Returns a part of the wallet for the read-only queries, or null if they have to read the live state under the
+     * lock. That is the case when the lock is already held by this thread, which may be in the middle of changing the
+     * wallet, and when a {@link UTXOProvider} is set, as its balances aren't known to the wallet. If the wallet has
+     * changed since the part was last taken, it is taken again, unless another thread holds the lock; then the part
+     * as last taken is returned, which may lag behind by whatever that thread is doing. Only if nothing was taken yet,
+     * or what was taken is older than a change made by the calling thread itself, this waits for the lock.
+     */
+    @Nullable
+    private <T> T readPart(Function<ReadSnapshot, Part<T>> partOf, Supplier<T> take) {
+        if (lock.isHeldByCurrentThread() || vUTXOProvider != null)
+            return null;
+        ReadSnapshot snapshot = readSnapshot;
+        if (snapshot != null && snapshot.isCurrent(this)) {
+            T value = partOf.apply(snapshot).value.get();
+            if (value != null)
+                return value;
+        }
+        if (!lock.tryLock()) {
+            if (snapshot != null) {
+                Part<T> part = partOf.apply(snapshot);
+                T value = part.value.get();
+                long version = part.version;
+                if (value == null) {
+                    value = part.older;
+                    version = part.olderVersion;
+                }
+                if (value != null && version >= versionWrittenByThisThread.get()[0])
+                    return value;
+            }
+            lock.lock(); // nothing to return
+        }
+        try {
+            if (vUTXOProvider != null)
+                return null;
+            snapshot = readSnapshot;
+            if (snapshot == null || !snapshot.isCurrent(this)) {
+                dropStaleSpendableBalances();
+                snapshot = new ReadSnapshot(this, snapshot);
+                readSnapshot = snapshot;
+            }
+            AtomicReference<T> value = partOf.apply(snapshot).value;
+            if (value.get() == null)
+                value.set(take.get());
+            return value.get();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // The transactions most recently updated first, for a ReadSnapshot.
+    private ByTime takeByTime(boolean includeDead) {
+        return new ByTime(Collections.unmodifiableList(
+                collectByTime(transactionsByTime.iterator(), transactionsByTime.size(), includeDead)),
+                unspent.size() + spent.size() + pending.size());
+    }
+
     @Override
     public String toString() {
         return toString(false, false, null, true, true, null);
@@ -3967,28 +4649,59 @@ public class Wallet extends BaseTaggableObject
     }
 
     /**
-     * Returns the balance of this wallet as calculated by the provided balanceType.
+     * Returns the balance of this wallet as calculated by the provided balanceType. Unless a {@link UTXOProvider} is
+     * set, balances are kept between changes to the wallet, so calling this repeatedly is cheap, and calls don't
+     * wait for the wallet lock. If another thread is in the middle of changing the wallet, the balance from before
+     * that change is returned.
      */
     public Coin getBalance(BalanceType balanceType) {
+        Coin balance = readPart(s -> s.balances.get(balanceType), () -> getBalanceLocked(balanceType));
+        if (balance != null)
+            return balance;
         lock.lock();
         try {
-            if (balanceType == BalanceType.AVAILABLE || balanceType == BalanceType.AVAILABLE_SPENDABLE) {
-                List<TransactionOutput> candidates = calculateAllSpendCandidates(true, balanceType == BalanceType.AVAILABLE_SPENDABLE);
-                CoinSelection selection = coinSelector.select(BitcoinNetwork.MAX_MONEY, candidates);
-                return selection.totalValue();
-            } else if (balanceType == BalanceType.ESTIMATED || balanceType == BalanceType.ESTIMATED_SPENDABLE) {
-                List<TransactionOutput> all = calculateAllSpendCandidates(false, balanceType == BalanceType.ESTIMATED_SPENDABLE);
-                Coin value = Coin.ZERO;
-                for (TransactionOutput out : all) value = value.add(out.getValue());
-                return value;
-            } else {
-                throw new AssertionError("Unknown balance type");  // Unreachable.
-            }
+            return getBalanceLocked(balanceType);
         } finally {
             lock.unlock();
         }
     }
 
+    private Coin getBalanceLocked(BalanceType balanceType) {
+        checkState(lock.isHeldByCurrentThread());
+        if (vUTXOProvider != null)
+            return calculateBalance(balanceType);
+        if (balanceType == BalanceType.ESTIMATED)
+            return myUnspentsValue;
+        dropStaleSpendableBalances();
+        return balanceCache.computeIfAbsent(balanceType, this::calculateBalance);
+    }
+
+    // Forgets the SPENDABLE balances if keys were added since they were calculated.
+    private void dropStaleSpendableBalances() {
+        checkState(lock.isHeldByCurrentThread());
+        if (spendableBalancesStale) {
+            spendableBalancesStale = false;
+            balanceCache.remove(BalanceType.ESTIMATED_SPENDABLE);
+            balanceCache.remove(BalanceType.AVAILABLE_SPENDABLE);
+        }
+    }
+
+    private Coin calculateBalance(BalanceType balanceType) {
+        checkState(lock.isHeldByCurrentThread());
+        if (balanceType == BalanceType.AVAILABLE || balanceType == BalanceType.AVAILABLE_SPENDABLE) {
+            List<TransactionOutput> candidates = calculateAllSpendCandidates(true, balanceType == BalanceType.AVAILABLE_SPENDABLE);
+            CoinSelection selection = coinSelector.select(BitcoinNetwork.MAX_MONEY, candidates);
+            return selection.totalValue();
+        } else if (balanceType == BalanceType.ESTIMATED || balanceType == BalanceType.ESTIMATED_SPENDABLE) {
+            List<TransactionOutput> all = calculateAllSpendCandidates(false, balanceType == BalanceType.ESTIMATED_SPENDABLE);
+            Coin value = Coin.ZERO;
+            for (TransactionOutput out : all) value = value.add(out.getValue());
+            return value;
+        } else {
+            throw new AssertionError("Unknown balance type");  // Unreachable.
+        }
+    }
+
     /**
      * Returns the balance that would be considered spendable by the given coin selector, including watched outputs
      * (i.e. balance includes outputs we don't have the private keys for). Just asks it to select as many coins as
@@ -4009,15 +4722,15 @@ public class Wallet extends BaseTaggableObject
     private static class BalanceFutureRequest {
         public final CompletableFuture<Coin> future;
         public final Coin value;
-        public final BalanceType type;
 
-        private BalanceFutureRequest(CompletableFuture<Coin> future, Coin value, BalanceType type) {
+        private BalanceFutureRequest(CompletableFuture<Coin> future, Coin value) {
             this.future = future;
             this.value = value;
-            this.type = type;
         }
     }
-    @GuardedBy("lock") private final List<BalanceFutureRequest> balanceFutureRequests = new LinkedList<>();
+    // Pending requests by balance type, the smallest value first.
+    @GuardedBy("lock") private final EnumMap<BalanceType, PriorityQueue<BalanceFutureRequest>> balanceFutureRequests =
+            new EnumMap<>(BalanceType.class);
 
     /**
      * <p>Returns a future that will complete when the balance of the given type has becom equal or larger to the given
@@ -4036,8 +4749,8 @@ public class Wallet extends BaseTaggableObject
     public ListenableCompletableFuture<Coin> getBalanceFuture(final Coin value, final BalanceType type) {
         lock.lock();
         try {
-            final CompletableFuture<Coin> future = new CompletableFuture<>();
-            final Coin current = getBalance(type);
+            final ListenableCompletableFuture<Coin> future = new ListenableCompletableFuture<>();
+            final Coin current = getBalanceLocked(type);
             if (current.compareTo(value) >= 0) {
                 // Already have enough.
                 future.complete(current);
@@ -4045,9 +4758,23 @@ public class Wallet extends BaseTaggableObject
                 // Will be checked later in checkBalanceFutures. We don't just add an event listener for ourselves
                 // here so that running getBalanceFuture().get() in the user code thread works - generally we must
                 // avoid giving the user back futures that require the user code thread to be free.
-                balanceFutureRequests.add(new BalanceFutureRequest(future, value, type));
+                PriorityQueue<BalanceFutureRequest> requests = balanceFutureRequests.computeIfAbsent(type,
+                        t -> new PriorityQueue<>(Comparator.comparing((BalanceFutureRequest req) -> req.value)));
+                BalanceFutureRequest request = new BalanceFutureRequest(future, value);
+                requests.add(request);
+                // Drop the request when it is cancelled, so they don't pile up while the balance isn't reached.
+                future.whenComplete((balance, ex) -> {
+                    if (ex == null)
+                        return;
+                    lock.lock();
+                    try {
+                        requests.remove(request);
+                    } finally {
+                        lock.unlock();
+                    }
+                });
             }
-            return ListenableCompletableFuture.of(future);
+            return future;
         } finally {
             lock.unlock();
         }
@@ -4057,15 +4784,17 @@ public class Wallet extends BaseTaggableObject
     @SuppressWarnings("FieldAccessNotGuarded")
     private void checkBalanceFuturesLocked() {
         checkState(lock.isHeldByCurrentThread());
-        balanceFutureRequests.forEach(req -> {
-            Coin current = getBalance(req.type);   // This could be slow for lots of futures.
-            if (current.compareTo(req.value) >= 0) {
-                // Found one that's finished.
+        balanceFutureRequests.forEach((type, requests) -> {
+            if (requests.isEmpty())
+                return;
+            Coin current = getBalanceLocked(type);
+            // Only requests at the head of the queue can have been reached.
+            while (!requests.isEmpty() && current.compareTo(requests.peek().value) >= 0) {
+                BalanceFutureRequest req = requests.poll();
                 // Don't run any user-provided future listeners with our lock held.
                 Threading.USER_THREAD.execute(() -> req.future.complete(current));
             }
         });
-        balanceFutureRequests.removeIf(req -> req.future.isDone());
     }
 
     /**
@@ -4555,7 +5284,15 @@ public class Wallet extends BaseTaggableObject
             // with the actual outputs that'll be used to gather the required amount of value. In this way, users
             // can customize coin selection policies. The call below will ignore immature coinbases and outputs
             // we don't have the keys for.
-            List<TransactionOutput> prelimCandidates = calculateAllSpendCandidates(true, req.missingSigsMode == MissingSigsMode.THROW);
+            // The default selector can instead read our unspent outputs in its preferred order straight from the
+            // index, and stop as soon as it has enough, which matters for wallets with lots of them. Subclasses may
+            // select differently, so only the exact class qualifies.
+            CoinSelector selector = req.coinSelector == null ? coinSelector : req.coinSelector;
+            boolean excludeUnsignable = req.missingSigsMode == MissingSigsMode.THROW;
+            boolean selectFromIndex = vUTXOProvider == null && selector.getClass() == DefaultCoinSelector.class
+                    && req.tx.getInputs().isEmpty() && !req.emptyWallet;
+            List<TransactionOutput> prelimCandidates = selectFromIndex ? Collections.emptyList()
+                    : calculateAllSpendCandidates(true, excludeUnsignable);
 
             // Connect (add a value amount) unconnected inputs
             List<TransactionInput> inputs = connectInputs(prelimCandidates, req.tx.getInputs());
@@ -4595,8 +5332,23 @@ public class Wallet extends BaseTaggableObject
             TransactionOutput bestChangeOutput = null;
             List<Coin> updatedOutputValues = null;
             if (!req.emptyWallet) {
-                // This can throw InsufficientMoneyException.
-                FeeCalculation feeCalculation = calculateFee(req, valueNeeded, req.ensureMinRequiredFee, candidates);
+                FeeCalculation feeCalculation = null;
+                if (selector instanceof BranchAndBoundCoinSelector && !req.recipientsPayFees)
+                    feeCalculation = calculateChangelessFee(req, valueNeeded, req.ensureMinRequiredFee,
+                            (BranchAndBoundCoinSelector) selector, candidates);
+                if (feeCalculation == null) {
+                    Function<Coin, CoinSelection> selectCoins;
+                    if (selectFromIndex) {
+                        selectCoins = target -> ((DefaultCoinSelector) selector).selectFromSorted(target,
+                                spendCandidatesFromIndex(excludeUnsignable));
+                    } else {
+                        // selector is allowed to modify candidates list.
+                        List<TransactionOutput> selectorCandidates = candidates;
+                        selectCoins = target -> selector.select(target, new LinkedList<>(selectorCandidates));
+                    }
+                    // This can throw InsufficientMoneyException.
+                    feeCalculation = calculateFee(req, valueNeeded, req.ensureMinRequiredFee, selectCoins);
+                }
                 bestCoinSelection = feeCalculation.bestCoinSelection;
                 bestChangeOutput = feeCalculation.bestChangeOutput;
                 updatedOutputValues = feeCalculation.updatedOutputValues;
@@ -4605,7 +5357,6 @@ public class Wallet extends BaseTaggableObject
                 // of the total value we can currently spend as determined by the selector, and then subtracting the fee.
                 checkState(req.tx.getOutputs().size() == 1, () ->
                         "empty wallet TX must have a single output only");
-                CoinSelector selector = req.coinSelector == null ? coinSelector : req.coinSelector;
                 bestCoinSelection = selector.select((Coin) network.maxMoney(), candidates);
                 candidates = null;  // Selector took ownership and might have changed candidates. Don't access again.
                 req.tx.getOutput(0).setValue(bestCoinSelection.totalValue());
@@ -4800,6 +5551,15 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    // Like calculateAllSpendCandidates(true, excludeUnsignable), but highest coin*depth first and checked lazily.
+    private Iterator<TransactionOutput> spendCandidatesFromIndex(boolean excludeUnsignable) {
+        checkState(lock.isHeldByCurrentThread());
+        return StreamSupport.stream(myUnspentsIndex.spliterator(), false)
+                .filter(output -> (!excludeUnsignable || canSignFor(output.getScriptPubKey())) &&
+                                  isTransactionMature(output.getParentTransaction()))
+                .iterator();
+    }
+
     /**
      * Returns true if this wallet has at least one of the private keys needed to sign for this scriptPubKey. Returns
      * false if the form of the script is not known or if the script is OP_RETURN.
@@ -5028,6 +5788,7 @@ public class Wallet extends BaseTaggableObject
             checkState(confidenceChanged.size() == 0);
             checkState(!insideReorg);
             insideReorg = true;
+            changesUnknown = true; // depths and pools change all over the wallet
             checkState(onWalletChangedSuppressions == 0);
             onWalletChangedSuppressions++;
 
@@ -5078,7 +5839,7 @@ public class Wallet extends BaseTaggableObject
                             TransactionInput input = output.getSpentBy();
                             if (input != null) {
                                 if (output.isMineOrWatched(this))
-                                    checkState(myUnspents.add(output));
+                                    checkState(addUnspent(output));
                                 input.disconnect();
                             }
                         }
@@ -5428,7 +6189,7 @@ public class Wallet extends BaseTaggableObject
 
     //region Fee calculation code
 
-    private FeeCalculation calculateFee(SendRequest req, Coin value, boolean needAtLeastReferenceFee, List<TransactionOutput> candidates) throws InsufficientMoneyException {
+    private FeeCalculation calculateFee(SendRequest req, Coin value, boolean needAtLeastReferenceFee, Function<Coin, CoinSelection> selectCoins) throws InsufficientMoneyException {
         checkState(lock.isHeldByCurrentThread());
         FeeCalculation result;
         Coin fee = Coin.ZERO;
@@ -5459,9 +6220,7 @@ public class Wallet extends BaseTaggableObject
                 }
                 tx.addOutput(output);
             }
-            CoinSelector selector = req.coinSelector == null ? coinSelector : req.coinSelector;
-            // selector is allowed to modify candidates list.
-            CoinSelection selection = selector.select(valueNeeded, new LinkedList<>(candidates));
+            CoinSelection selection = selectCoins.apply(valueNeeded);
             result.bestCoinSelection = selection;
             // Can we afford this?
             if (selection.totalValue().compareTo(valueNeeded) < 0) {
@@ -5509,9 +6268,7 @@ public class Wallet extends BaseTaggableObject
                 checkState(!input.hasWitness());
             }
 
-            Coin feePerKb = (needAtLeastReferenceFee && req.feePerKb.compareTo(Transaction.REFERENCE_DEFAULT_MIN_TX_FEE) < 0)
-                    ? Transaction.REFERENCE_DEFAULT_MIN_TX_FEE
-                    : req.feePerKb;
+            Coin feePerKb = feePerKb(req, needAtLeastReferenceFee);
 
             final int vsize = tx.getVsize() + estimateVirtualBytesForSigning(selection);
             Coin feeNeeded = feePerKb.multiply(vsize).divide(1000);
@@ -5528,6 +6285,55 @@ public class Wallet extends BaseTaggableObject
 
     }
 
+    /**
+     * Tries to pay for the outputs of the request with coins that need no change, see
+     * {@link BranchAndBoundCoinSelector}. Returns null if there are no such coins, or if they turn out not to pay
+     * enough fee after all, in which case {@link #calculateFee} should be used.
+     */
+    @Nullable
+    private FeeCalculation calculateChangelessFee(SendRequest req, Coin value, boolean needAtLeastReferenceFee,
+                                                  BranchAndBoundCoinSelector selector,
+                                                  List<TransactionOutput> candidates) {
+        checkState(lock.isHeldByCurrentThread());
+        Transaction tx = new Transaction();
+        addSuppliedInputs(tx, req.tx.getInputs());
+        for (TransactionOutput output : req.tx.getOutputs())
+            tx.addOutput(TransactionOutput.read(ByteBuffer.wrap(output.serialize()), tx));
+        Coin feePerKb = feePerKb(req, needAtLeastReferenceFee);
+        Coin baseFee = feePerKb.multiply(tx.getVsize()).divide(1000);
+
+        // Giving away less than this is cheaper than creating the change output and spending it later.
+        Address changeAddress = (req.changeAddress != null) ? req.changeAddress : currentChangeAddress();
+        TransactionOutput changeOutput = new TransactionOutput(tx, Coin.ZERO, changeAddress);
+        int changeVsize = changeOutput.serialize().length;
+        if (changeOutput.isMine(this))
+            changeVsize += SPEND_INPUT_VSIZE + estimateVirtualBytesForSigning(changeOutput);
+        Coin costOfChange = feePerKb.multiply(changeVsize).divide(1000);
+        if (costOfChange.isLessThan(changeOutput.getMinNonDustValue()))
+            costOfChange = changeOutput.getMinNonDustValue(); // such change would be given away anyway
+
+        CoinSelection selection = selector.selectChangeless(value.add(baseFee), feePerKb, costOfChange, candidates,
+                output -> SPEND_INPUT_VSIZE + estimateVirtualBytesForSigning(output));
+        if (selection == null)
+            return null;
+
+        // Check the fee the same way as calculateFee() does.
+        for (TransactionOutput output : selection.outputs())
+            tx.addInput(output);
+        Coin feeNeeded = feePerKb.multiply(tx.getVsize() + estimateVirtualBytesForSigning(selection)).divide(1000);
+        if (selection.totalValue().subtract(value).isLessThan(feeNeeded))
+            return null;
+        FeeCalculation result = new FeeCalculation();
+        result.bestCoinSelection = selection;
+        return result;
+    }
+
+    private static Coin feePerKb(SendRequest req, boolean needAtLeastReferenceFee) {
+        return (needAtLeastReferenceFee && req.feePerKb.compareTo(Transaction.REFERENCE_DEFAULT_MIN_TX_FEE) < 0)
+                ? Transaction.REFERENCE_DEFAULT_MIN_TX_FEE
+                : req.feePerKb;
+    }
+
     private void addSuppliedInputs(Transaction tx, List<TransactionInput> originalInputs) {
         for (TransactionInput input : originalInputs)
             tx.addInput(TransactionInput.read(ByteBuffer.wrap(input.bitcoinSerialize()), tx));
@@ -5535,34 +6341,37 @@ public class Wallet extends BaseTaggableObject
 
     private int estimateVirtualBytesForSigning(CoinSelection selection) {
         int vsize = 0;
-        for (TransactionOutput output : selection.outputs()) {
-            try {
-                Script script = output.getScriptPubKey();
-                ECKey key = null;
-                Script redeemScript = null;
-                if (ScriptPattern.isP2PKH(script)) {
-                    key = findKeyFromPubKeyHash(ScriptPattern.extractHashFromP2PKH(script), ScriptType.P2PKH);
-                    Objects.requireNonNull(key, "Coin selection includes unspendable outputs");
-                    vsize += script.getNumberOfBytesRequiredToSpend(key, redeemScript);
-                } else if (ScriptPattern.isP2WPKH(script)) {
-                    key = findKeyFromPubKeyHash(ScriptPattern.extractHashFromP2WH(script), ScriptType.P2WPKH);
-                    Objects.requireNonNull(key, "Coin selection includes unspendable outputs");
-                    vsize += IntMath.divide(script.getNumberOfBytesRequiredToSpend(key, redeemScript), 4,
-                            RoundingMode.CEILING); // round up
-                } else if (ScriptPattern.isP2SH(script)) {
-                    redeemScript = findRedeemDataFromScriptHash(ScriptPattern.extractHashFromP2SH(script)).redeemScript;
-                    Objects.requireNonNull(redeemScript, "Coin selection includes unspendable outputs");
-                    vsize += script.getNumberOfBytesRequiredToSpend(key, redeemScript);
-                } else {
-                    vsize += script.getNumberOfBytesRequiredToSpend(key, redeemScript);
-                }
-            } catch (ScriptException e) {
-                // If this happens it means an output script in a wallet tx could not be understood. That should never
-                // happen, if it does it means the wallet has got into an inconsistent state.
-                throw new IllegalStateException(e);
+        for (TransactionOutput output : selection.outputs())
+            vsize += estimateVirtualBytesForSigning(output);
+        return vsize;
+    }
+
+    private int estimateVirtualBytesForSigning(TransactionOutput output) {
+        try {
+            Script script = output.getScriptPubKey();
+            ECKey key = null;
+            Script redeemScript = null;
+            if (ScriptPattern.isP2PKH(script)) {
+                key = findKeyFromPubKeyHash(ScriptPattern.extractHashFromP2PKH(script), ScriptType.P2PKH);
+                Objects.requireNonNull(key, "Coin selection includes unspendable outputs");
+                return script.getNumberOfBytesRequiredToSpend(key, redeemScript);
+            } else if (ScriptPattern.isP2WPKH(script)) {
+                key = findKeyFromPubKeyHash(ScriptPattern.extractHashFromP2WH(script), ScriptType.P2WPKH);
+                Objects.requireNonNull(key, "Coin selection includes unspendable outputs");
+                return IntMath.divide(script.getNumberOfBytesRequiredToSpend(key, redeemScript), 4,
+                        RoundingMode.CEILING); // round up
+            } else if (ScriptPattern.isP2SH(script)) {
+                redeemScript = findRedeemDataFromScriptHash(ScriptPattern.extractHashFromP2SH(script)).redeemScript;
+                Objects.requireNonNull(redeemScript, "Coin selection includes unspendable outputs");
+                return script.getNumberOfBytesRequiredToSpend(key, redeemScript);
+            } else {
+                return script.getNumberOfBytesRequiredToSpend(key, redeemScript);
             }
+        } catch (ScriptException e) {
+            // If this happens it means an output script in a wallet tx could not be understood. That should never
+            // happen, if it does it means the wallet has got into an inconsistent state.
+            throw new IllegalStateException(e);
         }
-        return vsize;
     }
 
     //endregion
@@ -5781,6 +6590,7 @@ public class Wallet extends BaseTaggableObject
             }
         }
         if (allChainsRotating) {
+            keysChanged.set(true);
             try {
                 if (keyChainGroup.getImportedKeys().isEmpty()) {
                     log.info(
@@ -24,6 +24,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -37,6 +38,8 @@ import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import static org.bitcoinj.base.internal.Preconditions.checkArgument;
+
 /**
  * A class that handles atomic and optionally delayed writing of the wallet file to disk. In future: backups too.
  * It can be useful to delay writing of a wallet file to disk on slow devices where disk and serialization overhead
@@ -54,6 +57,8 @@ public class WalletFiles {
     private final Callable<Void> saver;
 
     private volatile Listener vListener;
+    @Nullable
+    private volatile WalletJournal vJournal;
 
     /**
      * Implementors can do pre/post treatment of the wallet file. Useful for adjusting permissions and other things.
@@ -69,6 +74,17 @@ public class WalletFiles {
          * Called on the auto-save thread after the newly created temporary file has been filled with data and renamed.
          */
         void onAfterAutoSave(File newlySavedFile);
+
+        /**
+         * Called on the auto-save thread after a save, with how long the wallet was locked to take a snapshot of it
+         * and how long the snapshot then took to be serialized and written to disk. Only the former holds up other
+         * work on the wallet, like receiving blocks. Does nothing by default.
+         *
+         * @param lockHeld  time the wallet lock was held for the snapshot
+         * @param serialize time spent building, encoding and syncing the file after releasing the lock
+         */
+        default void onAutoSaveDurations(Duration lockHeld, Duration serialize) {
+        }
     }
 
     /**
@@ -123,10 +139,25 @@ public class WalletFiles {
         this.vListener = Objects.requireNonNull(listener);
     }
 
+    /**
+     * Saves the wallet through the given journal from now on, so that only what changed is written most of the time.
+     * The listener is then only told about a temporary file when the journal is compacted. Pass null to go back to
+     * rewriting the whole wallet file on every save.
+     *
+     * @param journal journal for the same file, usually the one the wallet was loaded with
+     */
+    public void setJournal(@Nullable WalletJournal journal) {
+        if (journal != null)
+            checkArgument(journal.getFile().equals(file), () ->
+                    "journal is for another file: " + journal.getFile());
+        this.vJournal = journal;
+    }
+
     /** Actually write the wallet file to disk, using an atomic rename when possible. Runs on the current thread. */
     public void saveNow() throws IOException {
-        // Can be called by any thread. However the wallet is locked whilst saving, so we can have two saves in flight
-        // but they will serialize (using different temp files).
+        // Can be called by any thread. Only taking a snapshot of the wallet locks it, so we can have two saves in
+        // flight; the wallet writes them out one after the other (using different temp files) and drops a snapshot
+        // that is older than the last one written.
         if (executor.isShutdown())
             return;
         log.info("Saving wallet; last seen block is height {}, date {}, hash {}", wallet.getLastBlockSeenHeight(),
@@ -143,11 +174,20 @@ public class WalletFiles {
         if (!directory.exists()) {
             throw new FileNotFoundException(directory.getPath() + " (wallet directory not found)");
         }
-        File temp = File.createTempFile("wallet", null, directory);
         final Listener listener = vListener;
+        WalletJournal journal = vJournal;
+        if (journal != null) {
+            journal.save(wallet, false, listener != null ? listener::onBeforeAutoSave : null,
+                    listener != null ? listener::onAutoSaveDurations : null);
+            if (listener != null)
+                listener.onAfterAutoSave(file);
+            log.info("Save completed in {}", watch);
+            return;
+        }
+        File temp = File.createTempFile("wallet", null, directory);
         if (listener != null)
             listener.onBeforeAutoSave(temp);
-        wallet.saveToFile(temp, file);
+        wallet.saveToFile(temp, file, listener != null ? listener::onAutoSaveDurations : null);
         if (listener != null)
             listener.onAfterAutoSave(file);
         log.info("Save completed in {}", watch);
@@ -0,0 +1,623 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import com.google.common.primitives.Ints;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.MessageLite;
+import org.bitcoinj.base.BitcoinNetwork;
+import org.bitcoinj.base.Network;
+import org.bitcoinj.base.Sha256Hash;
+import org.bitcoinj.base.internal.PlatformUtils;
+import org.bitcoinj.base.internal.Stopwatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+import static org.bitcoinj.base.internal.Preconditions.checkArgument;
+import static org.bitcoinj.base.internal.Preconditions.checkState;
+
+/**
+ * <p>Saves a wallet incrementally. Instead of rewriting the whole wallet file whenever something changes, only the
+ * transactions that are new or have changed since the last save, the keys that changed, and the last seen block are
+ * appended to a journal next to the wallet file. The wallet keeps track of what changed, so a save serializes only
+ * that. From time to time the journal is compacted: the wallet file is
+ * rewritten and the journal starts over. Set it on the {@link WalletFiles} of a wallet to make autosaving use it.</p>
+ *
+ * <p>The wallet file itself stays in the usual format, so {@link Wallet#loadFromFile(File, WalletExtension...)} can
+ * read it, though without the changes in the journal. After {@link #compact(Wallet)} it is complete. The other way
+ * round, an existing wallet file can be loaded with {@link #load(WalletExtension...)}, which starts a journal for
+ * it.</p>
+ *
+ * <p>The journal is a sequence of length delimited {@link Protos.Wallet} messages. The first one identifies the wallet
+ * file by its hash, so a journal left behind by an interrupted compaction, or by saving the wallet file some other
+ * way, is ignored. Each further message holds the parts of the wallet that changed. A message that wasn't completely
+ * written because of a crash is ignored on load, and removed before the next one is appended. Anything else that
+ * changes, like the removal of transactions or new watched scripts, is saved by compacting. So are changes made
+ * directly to a transaction, like {@link org.bitcoinj.core.Transaction#setMemo(String)}, which the wallet can't
+ * track.</p>
+ */
+public class WalletJournal {
+    private static final Logger log = LoggerFactory.getLogger(WalletJournal.class);
+
+    /** Suffix appended to the name of the wallet file to get the name of its journal. */
+    public static final String JOURNAL_SUFFIX = ".journal";
+    /** Default maximum number of changes in the journal before it is compacted. */
+    public static final int DEFAULT_MAX_CHANGES = 1000;
+    /** Default maximum size of the journal before it is compacted, relative to the size of the wallet file. */
+    public static final double DEFAULT_MAX_RELATIVE_SIZE = 0.5;
+
+    private static final String BASE_HASH_TAG = "org.bitcoinj.wallet.journal.base";
+    // Marks a change whose keys replace only some of the keys: holds the new number of keys followed by the position
+    // of each key of the change, as varints. Without it, the keys of a change replace all of them.
+    private static final String KEY_POSITIONS_TAG = "org.bitcoinj.wallet.journal.keys";
+    // same as the limit for whole wallet files
+    private static final int MAX_MESSAGE_SIZE = 512 * 1024 * 1024;
+
+    private final File file;
+    private final File journalFile;
+    private final int maxChanges;
+    private final double maxRelativeSize;
+    // Orders the states taken from the wallet, so that an older state is never written after a newer one.
+    private final AtomicLong stateSequence = new AtomicLong();
+    // The transactions that changed but haven't been written yet, with the sequence of the state they were taken
+    // into. Added to with the wallet lock held, removed from once written.
+    private final Map<Sha256Hash, Long> unsavedTransactions = new ConcurrentHashMap<>();
+    // The sequence of the latest state with changed keys that haven't been written yet, or 0.
+    private final AtomicLong unsavedKeys = new AtomicLong();
+    // The sequence of the latest state that has to be written in full, or 0. Later states are taken in full, too,
+    // until one is written, so that skipping an older state doesn't lose what only it had.
+    private final AtomicLong unsavedFull = new AtomicLong();
+    // Whether the next save should compact, as the journal has grown past its thresholds.
+    private volatile boolean compactNext = true;
+
+    // What is on disk. Guarded by this.
+    @Nullable private Written written; // null until loaded or compacted
+    private long writtenSequence;
+    private long baseSize;
+    private long journalSize;
+    private int changes;
+
+    /**
+     * Creates a journal for the given wallet file with the default compaction thresholds. Nothing is read or written
+     * until the wallet is loaded or saved.
+     *
+     * @param file wallet file; the journal is kept in the same directory
+     */
+    public WalletJournal(File file) {
+        this(file, DEFAULT_MAX_CHANGES, DEFAULT_MAX_RELATIVE_SIZE);
+    }
+
+    /**
+     * Creates a journal for the given wallet file. Nothing is read or written until the wallet is loaded or saved.
+     *
+     * @param file            wallet file; the journal is kept in the same directory
+     * @param maxChanges      maximum number of changes in the journal before it is compacted
+     * @param maxRelativeSize maximum size of the journal before it is compacted, relative to the size of the wallet
+     *                        file
+     */
+    public WalletJournal(File file, int maxChanges, double maxRelativeSize) {
+        checkArgument(maxChanges > 0, () -> "maxChanges must be positive: " + maxChanges);
+        checkArgument(maxRelativeSize > 0, () -> "maxRelativeSize must be positive: " + maxRelativeSize);
+        this.file = Objects.requireNonNull(file);
+        this.journalFile = new File(file.getPath() + JOURNAL_SUFFIX);
+        this.maxChanges = maxChanges;
+        this.maxRelativeSize = maxRelativeSize;
+    }
+
+    /** Returns the wallet file. */
+    public File getFile() {
+        return file;
+    }
+
+    /** Returns the file the changes are appended to. */
+    public File getJournalFile() {
+        return journalFile;
+    }
+
+    /**
+     * Loads the wallet from the wallet file and the changes in the journal, if there is one.
+     *
+     * @param walletExtensions extensions possibly added to the wallet
+     * @return the wallet
+     * @throws UnreadableWalletException if there was a problem loading or parsing the wallet file
+     */
+    public Wallet load(@Nullable WalletExtension... walletExtensions) throws UnreadableWalletException {
+        return load(new WalletProtobufSerializer(), walletExtensions);
+    }
+
+    /**
+     * Loads the wallet from the wallet file and the changes in the journal, if there is one. If the journal ends in an
+     * incomplete change, it is cut off, and if it doesn't belong to the wallet file, a new one is started. From then
+     * on, the wallet keeps track of what changed for the next save.
+     *
+     * @param loader           serializer to create the wallet with
+     * @param walletExtensions extensions possibly added to the wallet
+     * @return the wallet
+     * @throws UnreadableWalletException if there was a problem loading or parsing the wallet file
+     */
+    public Wallet load(WalletProtobufSerializer loader, @Nullable WalletExtension... walletExtensions)
+            throws UnreadableWalletException {
+        Protos.Wallet walletProto;
+        try {
+            walletProto = read();
+        } catch (IOException | IllegalArgumentException | IllegalStateException e) {
+            throw new UnreadableWalletException("Could not read wallet journal", e);
+        }
+        String networkId = walletProto.getNetworkIdentifier();
+        Network network = BitcoinNetwork.fromIdString(networkId).orElseThrow(() ->
+                new UnreadableWalletException("Unknown network parameters ID " + networkId));
+        Wallet wallet = loader.readWallet(network, walletExtensions, walletProto);
+        if (!wallet.isConsistent()) {
+            log.error("Loaded an inconsistent wallet");
+        }
+        wallet.lock.lock();
+        try {
+            // what is loaded is written already
+            wallet.takeChangedTransactions();
+            wallet.takeKeysChanged();
+        } finally {
+            wallet.lock.unlock();
+        }
+        return wallet;
+    }
+
+    /**
+     * Saves what has changed in the wallet since it was loaded or last saved. Only a snapshot of the changed
+     * transactions and keys is taken under the wallet lock; they are serialized and written after releasing it.
+     * Compacts the journal if it has grown past its thresholds, if the change can't be expressed in the journal, or if
+     * the wallet hasn't been loaded through this journal.
+     */
+    public void save(Wallet wallet) throws IOException {
+        save(wallet, false, null, null);
+    }
+
+    /**
+     * Rewrites the wallet file with the whole wallet and starts a new, empty journal. Afterwards the wallet file can be
+     * read on its own. The wallet is locked while doing so.
+     */
+    public void compact(Wallet wallet) throws IOException {
+        wallet.lock.lock();
+        try {
+            // nothing newer can be taken while we hold the lock, so this state is always written
+            save(wallet, true, null, null);
+        } finally {
+            wallet.lock.unlock();
+        }
+    }
+
+    /**
+     * Saves the wallet, passing the temporary wallet file to the given callback if the journal is compacted, and how
+     * long the wallet was locked and how long writing took to the other.
+     */
+    void save(Wallet wallet, boolean compact, @Nullable Consumer<File> onTempFile,
+              @Nullable BiConsumer<Duration, Duration> durations) throws IOException {
+        WalletProtobufSerializer.Snapshot snapshot;
+        boolean full;
+        boolean withKeys;
+        long sequence;
+        Stopwatch lockWatch;
+        wallet.lock.lock();
+        try {
+            lockWatch = Stopwatch.start();
+            sequence = stateSequence.incrementAndGet();
+            Set<Sha256Hash> changed = wallet.takeChangedTransactions();
+            if (changed != null)
+                for (Sha256Hash txId : changed)
+                    unsavedTransactions.put(txId, sequence);
+            if (wallet.takeKeysChanged())
+                unsavedKeys.set(sequence);
+            full = compact || changed == null || compactNext || unsavedFull.get() != 0;
+            withKeys = full || unsavedKeys.get() != 0;
+            if (full) {
+                unsavedFull.set(sequence);
+                snapshot = new WalletProtobufSerializer().snapshot(wallet);
+            } else {
+                snapshot = new WalletProtobufSerializer().snapshot(wallet, unsavedTransactions.keySet(), withKeys);
+            }
+        } finally {
+            wallet.lock.unlock();
+        }
+        lockWatch.stop();
+        Stopwatch watch = Stopwatch.start();
+        boolean again = false;
+        synchronized (this) {
+            if (sequence < writtenSequence)
+                return; // a newer state was already written
+            Protos.Wallet walletProto = snapshot.toProto();
+            try {
+                if (full) {
+                    writeBase(walletProto, onTempFile);
+                    written = new Written(walletProto, walletProto.getKeyList());
+                    log.info("Compacted wallet journal in {}", watch);
+                } else {
+                    Written next = written != null ? new Written(walletProto,
+                            withKeys ? walletProto.getKeyList() : written.keys) : null;
+                    Protos.Wallet change = next != null ? change(written, next, walletProto, withKeys) : null;
+                    if (change == null) {
+                        // Only a full save can express this. As this state wasn't taken in full, take another.
+                        unsavedFull.accumulateAndGet(sequence, Math::max);
+                        again = true;
+                    } else {
+                        if (change.getTransactionCount() > 0 || change.getKeyCount() > 0
+                                || change.getTagsCount() > 0 || change.getExtensionCount() > 0
+                                || !next.lastSeenBlock.equals(written.lastSeenBlock)) {
+                            append(change);
+                            log.info("Appended {} transactions to wallet journal in {}",
+                                    change.getTransactionCount(), watch);
+                        }
+                        written = next;
+                    }
+                }
+            } catch (IOException x) {
+                // The journal may now end in part of a change, or not match the wallet file, either of which would
+                // hide anything appended to it. Compact on the next save.
+                written = null;
+                compactNext = true;
+                throw x;
+            }
+            if (!again) {
+                writtenSequence = sequence;
+                for (Map.Entry<Sha256Hash, Long> entry : unsavedTransactions.entrySet())
+                    if (entry.getValue() <= sequence) // unless it changed again meanwhile
+                        unsavedTransactions.remove(entry.getKey(), entry.getValue());
+                unsavedKeys.updateAndGet(keys -> keys <= sequence ? 0 : keys);
+                unsavedFull.updateAndGet(fullSequence -> fullSequence <= sequence ? 0 : fullSequence);
+                compactNext = changes >= maxChanges || journalSize > baseSize * maxRelativeSize;
+            }
+        }
+        if (again) {
+            // outside the monitor, as it takes the wallet lock
+            save(wallet, false, onTempFile, durations);
+            return;
+        }
+        if (durations != null)
+            durations.accept(lockWatch.elapsed(), watch.stop().elapsed());
+    }
+
+    // Reads the wallet file and applies the changes from the journal. Repairs the journal if needed.
+    private synchronized Protos.Wallet read() throws IOException {
+        MessageDigest digest = Sha256Hash.newDigest();
+        Protos.Wallet base;
+        try (InputStream input = new DigestInputStream(new BufferedInputStream(new FileInputStream(file)), digest)) {
+            base = WalletProtobufSerializer.parseToProto(input);
+        }
+        baseSize = file.length();
+        ByteString baseHash = ByteString.copyFrom(digest.digest());
+
+        Protos.Wallet.Builder merged = base.toBuilder();
+        Map<ByteString, Integer> txIndex = new HashMap<>();
+        for (int i = 0; i < merged.getTransactionCount(); i++)
+            txIndex.put(merged.getTransaction(i).getHash(), i);
+        boolean belongsToBase = false;
+        long validSize = 0;
+        changes = 0;
+        if (journalFile.exists()) {
+            try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)))) {
+                int firstByte;
+                while ((firstByte = input.read()) != -1) {
+                    Protos.Wallet message;
+                    int size;
+                    try {
+                        size = CodedInputStream.readRawVarint32(firstByte, input);
+                        if (size < 0 || size > MAX_MESSAGE_SIZE)
+                            throw new InvalidProtocolBufferException("Invalid message size " + size);
+                        byte[] bytes = new byte[size];
+                        input.readFully(bytes);
+                        message = Protos.Wallet.parseFrom(bytes);
+                    } catch (EOFException | InvalidProtocolBufferException x) {
+                        log.warn("Ignoring incomplete end of wallet journal {} after {} bytes: {}", journalFile,
+                                validSize, x.getMessage());
+                        break;
+                    }
+                    if (!message.getNetworkIdentifier().equals(base.getNetworkIdentifier())) {
+                        log.warn("Ignoring end of wallet journal {} after {} bytes: wrong network", journalFile,
+                                validSize);
+                        break;
+                    }
+                    if (validSize == 0) {
+                        belongsToBase = baseHash.equals(tagOf(message, BASE_HASH_TAG));
+                        if (!belongsToBase) {
+                            log.warn("Ignoring wallet journal {}, it belongs to an older wallet file", journalFile);
+                            break;
+                        }
+                    } else {
+                        apply(merged, txIndex, message);
+                        changes++;
+                    }
+                    validSize += delimitedSize(size);
+                }
+            }
+        }
+        if (!belongsToBase) {
+            startJournal(baseHash, base.getNetworkIdentifier());
+        } else if (validSize < journalFile.length()) {
+            try (RandomAccessFile journal = new RandomAccessFile(journalFile, "rw")) {
+                journal.setLength(validSize);
+                journal.getFD().sync();
+            }
+            journalSize = validSize;
+        } else {
+            journalSize = validSize;
+        }
+        if (changes > 0) {
+            log.info("Replayed {} changes from wallet journal {}", changes, journalFile);
+            updateDepths(merged);
+        }
+        Protos.Wallet walletProto = merged.build();
+        written = new Written(walletProto, walletProto.getKeyList());
+        writtenSequence = stateSequence.get();
+        unsavedTransactions.clear();
+        unsavedKeys.set(0);
+        unsavedFull.set(0);
+        compactNext = changes >= maxChanges || journalSize > baseSize * maxRelativeSize;
+        return walletProto;
+    }
+
+    // Writes the wallet file and starts a new journal for it.
+    private void writeBase(Protos.Wallet walletProto, @Nullable Consumer<File> onTempFile) throws IOException {
+        File directory = file.getAbsoluteFile().getParentFile();
+        if (!directory.exists()) {
+            throw new FileNotFoundException(directory.getPath() + " (wallet directory not found)");
+        }
+        File temp = File.createTempFile("wallet", null, directory);
+        if (onTempFile != null)
+            onTempFile.accept(temp);
+        MessageDigest digest = Sha256Hash.newDigest();
+        try (FileOutputStream stream = new FileOutputStream(temp)) {
+            CodedOutputStream output = CodedOutputStream.newInstance(new DigestOutputStream(stream, digest));
+            walletProto.writeTo(output);
+            output.flush();
+            stream.getFD().sync();
+        }
+        replace(temp, file);
+        baseSize = file.length();
+        // A crash before this leaves the old journal, which no longer matches the wallet file and is ignored.
+        startJournal(ByteString.copyFrom(digest.digest()), walletProto.getNetworkIdentifier());
+    }
+
+    private void startJournal(ByteString baseHash, String networkId) throws IOException {
+        Protos.Wallet header = Protos.Wallet.newBuilder()
+                .setNetworkIdentifier(networkId)
+                .addTags(Protos.Tag.newBuilder().setTag(BASE_HASH_TAG).setData(baseHash))
+                .build();
+        File temp = File.createTempFile("wallet", JOURNAL_SUFFIX, file.getAbsoluteFile().getParentFile());
+        try (FileOutputStream stream = new FileOutputStream(temp)) {
+            header.writeDelimitedTo(stream);
+            stream.getFD().sync();
+        }
+        replace(temp, journalFile);
+        journalSize = delimitedSize(header);
+        changes = 0;
+    }
+
+    private void append(Protos.Wallet change) throws IOException {
+        try (FileOutputStream stream = new FileOutputStream(journalFile, true)) {
+            change.writeDelimitedTo(stream);
+            stream.getFD().sync();
+        }
+        journalSize += delimitedSize(change);
+        changes++;
+    }
+
+    private static void replace(File temp, File dest) throws IOException {
+        if (PlatformUtils.isWindows()) {
+            // Work around an issue on Windows whereby you can't rename over existing files.
+            File canonical = dest.getCanonicalFile();
+            if (canonical.exists() && !canonical.delete())
+                throw new IOException("Failed to delete " + canonical + " for replacement");
+            if (!temp.renameTo(canonical))
+                throw new IOException("Failed to rename " + temp + " to " + canonical);
+        } else if (!temp.renameTo(dest)) {
+            throw new IOException("Failed to rename " + temp + " to " + dest);
+        }
+    }
+
+    /**
+     * Returns what changed between the written state and the next, or null if that can only be saved by compacting.
+     * The given wallet holds only the changed transactions, and the keys only if they may have changed.
+     */
+    @Nullable
+    private static Protos.Wallet change(Written written, Written next, Protos.Wallet walletProto, boolean withKeys)
+            throws IOException {
+        if (!next.header.equals(written.header))
+            return null;
+        if (written.lastSeenBlock.hasLastSeenBlockHash() && !next.lastSeenBlock.hasLastSeenBlockHash())
+            return null;
+        Protos.Wallet.Builder change = next.lastSeenBlock.toBuilder();
+        change.addAllTransaction(walletProto.getTransactionList());
+        if (withKeys)
+            addKeyChanges(change, written.keys, next.keys);
+        if (!next.extensions.equals(written.extensions)) {
+            if (walletProto.getExtensionCount() == 0)
+                return null;
+            change.addAllExtension(walletProto.getExtensionList());
+        }
+        return change.build();
+    }
+
+    // Adds the keys that differ from the written ones, and where they go, see KEY_POSITIONS_TAG.
+    private static void addKeyChanges(Protos.Wallet.Builder change, List<Protos.Key> written, List<Protos.Key> next)
+            throws IOException {
+        ByteString.Output positions = ByteString.newOutput();
+        CodedOutputStream output = CodedOutputStream.newInstance(positions);
+        output.writeUInt32NoTag(next.size());
+        for (int i = 0; i < next.size(); i++) {
+            if (i < written.size() && next.get(i).equals(written.get(i)))
+                continue;
+            output.writeUInt32NoTag(i);
+            change.addKey(next.get(i));
+        }
+        if (change.getKeyCount() == 0 && next.size() == written.size())
+            return; // nothing changed after all
+        output.flush();
+        change.addTags(Protos.Tag.newBuilder().setTag(KEY_POSITIONS_TAG).setData(positions.toByteString()));
+    }
+
+    private static void apply(Protos.Wallet.Builder wallet, Map<ByteString, Integer> txIndex, Protos.Wallet change)
+            throws IOException {
+        for (Protos.Transaction tx : change.getTransactionList()) {
+            Integer index = txIndex.get(tx.getHash());
+            if (index != null) {
+                wallet.setTransaction(index, tx);
+            } else {
+                txIndex.put(tx.getHash(), wallet.getTransactionCount());
+                wallet.addTransaction(tx);
+            }
+        }
+        ByteString keyPositions = tagOf(change, KEY_POSITIONS_TAG);
+        if (keyPositions != null) {
+            CodedInputStream positions = keyPositions.newCodedInput();
+            int size = positions.readUInt32();
+            List<Protos.Key> keys = new ArrayList<>(wallet.getKeyList());
+            while (keys.size() > size)
+                keys.remove(keys.size() - 1);
+            for (Protos.Key key : change.getKeyList()) {
+                int position = positions.readUInt32();
+                checkState(position <= keys.size() && position < size, () ->
+                        "invalid key position " + position);
+                if (position < keys.size())
+                    keys.set(position, key);
+                else
+                    keys.add(key);
+            }
+            checkState(keys.size() == size, () -> "missing keys");
+            wallet.clearKey().addAllKey(keys);
+        } else if (change.getKeyCount() > 0) {
+            wallet.clearKey().addAllKey(change.getKeyList());
+        }
+        if (change.getExtensionCount() > 0)
+            wallet.clearExtension().addAllExtension(change.getExtensionList());
+        if (change.hasLastSeenBlockHash()) {
+            wallet.setLastSeenBlockHash(change.getLastSeenBlockHash());
+            if (change.hasLastSeenBlockHeight())
+                wallet.setLastSeenBlockHeight(change.getLastSeenBlockHeight());
+            else
+                wallet.clearLastSeenBlockHeight();
+            if (change.hasLastSeenBlockTimeSecs())
+                wallet.setLastSeenBlockTimeSecs(change.getLastSeenBlockTimeSecs());
+            else
+                wallet.clearLastSeenBlockTimeSecs();
+        }
+    }
+
+    // Depths aren't journaled, as they change with every block. They follow from the height the transactions appeared
+    // at and the height of the last seen block.
+    private static void updateDepths(Protos.Wallet.Builder wallet) {
+        if (!wallet.hasLastSeenBlockHeight())
+            return;
+        int height = wallet.getLastSeenBlockHeight();
+        for (int i = 0; i < wallet.getTransactionCount(); i++) {
+            Protos.Transaction tx = wallet.getTransaction(i);
+            Protos.TransactionConfidence confidence = tx.getConfidence();
+            if (confidence.getType() != Protos.TransactionConfidence.Type.BUILDING
+                    || !confidence.hasAppearedAtHeight())
+                continue;
+            int depth = height - confidence.getAppearedAtHeight() + 1;
+            if (depth >= 1 && depth != confidence.getDepth())
+                wallet.setTransaction(i, tx.toBuilder().setConfidence(confidence.toBuilder().setDepth(depth)).build());
+        }
+    }
+
+    @Nullable
+    private static ByteString tagOf(Protos.Wallet message, String name) {
+        for (Protos.Tag tag : message.getTagsList())
+            if (tag.getTag().equals(name))
+                return tag.getData();
+        return null;
+    }
+
+    private static long delimitedSize(MessageLite message) {
+        return delimitedSize(message.getSerializedSize());
+    }
+
+    private static long delimitedSize(int size) {
+        return CodedOutputStream.computeUInt32SizeNoTag(size) + size;
+    }
+
+    /** What was written of the parts of a wallet that are journaled separately, to find out what changed. */
+    private static final class Written {
+        // hash of everything that isn't journaled
+        final Sha256Hash header;
+        final List<Protos.Key> keys;
+        final Sha256Hash extensions;
+        // only the network and the last seen block fields
+        final Protos.Wallet lastSeenBlock;
+
+        // The transactions of the given wallet are ignored, as the wallet tracks which of them changed.
+        Written(Protos.Wallet wallet, List<Protos.Key> keys) {
+            this.header = hashOf(Collections.singletonList(wallet.toBuilder()
+                    .clearTransaction()
+                    .clearKey()
+                    .clearExtension()
+                    .clearLastSeenBlockHash()
+                    .clearLastSeenBlockHeight()
+                    .clearLastSeenBlockTimeSecs()
+                    .build()));
+            this.keys = keys;
+            this.extensions = hashOf(wallet.getExtensionList());
+            Protos.Wallet.Builder lastSeenBlock = Protos.Wallet.newBuilder()
+                    .setNetworkIdentifier(wallet.getNetworkIdentifier());
+            if (wallet.hasLastSeenBlockHash())
+                lastSeenBlock.setLastSeenBlockHash(wallet.getLastSeenBlockHash());
+            if (wallet.hasLastSeenBlockHeight())
+                lastSeenBlock.setLastSeenBlockHeight(wallet.getLastSeenBlockHeight());
+            if (wallet.hasLastSeenBlockTimeSecs())
+                lastSeenBlock.setLastSeenBlockTimeSecs(wallet.getLastSeenBlockTimeSecs());
+            this.lastSeenBlock = lastSeenBlock.build();
+        }
+
+        private static Sha256Hash hashOf(List<? extends MessageLite> messages) {
+            MessageDigest digest = Sha256Hash.newDigest();
+            for (MessageLite message : messages) {
+                byte[] bytes = message.toByteArray();
+                digest.update(Ints.toByteArray(bytes.length));
+                digest.update(bytes);
+            }
+            return Sha256Hash.wrap(digest.digest());
+        }
+    }
+}
@@ -59,6 +59,7 @@ import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -157,7 +158,15 @@ public class WalletProtobufSerializer {
      * Equivalent to {@code walletToProto(wallet).writeTo(output);}
      */
     public void writeWallet(Wallet wallet, OutputStream output) throws IOException {
-        Protos.Wallet walletProto = walletToProto(wallet);
+        writeWallet(walletToProto(wallet), output);
+    }
+
+    /** Formats the wallet the given snapshot was taken of to the given output stream. Doesn't need the wallet lock. */
+    void writeWallet(Snapshot snapshot, OutputStream output) throws IOException {
+        writeWallet(snapshot.toProto(), output);
+    }
+
+    private void writeWallet(Protos.Wallet walletProto, OutputStream output) throws IOException {
         final CodedOutputStream codedOutput = CodedOutputStream.newInstance(output, this.walletWriteBufferSize);
         walletProto.writeTo(codedOutput);
         codedOutput.flush();
@@ -179,18 +188,52 @@ public class WalletProtobufSerializer {
      * additional data fields set, before serialization takes place.
      */
     public Protos.Wallet walletToProto(Wallet wallet) {
+        return snapshot(wallet).toProto();
+    }
+
+    /**
+     * Takes what {@link #walletToProto(Wallet)} needs from the wallet, holding its lock. Everything but the
+     * transactions goes into the protobuf right away, as it's small. Of the transactions, only the state that can
+     * still change is copied; the rest of a transaction doesn't change once it is in a wallet, so its protobuf can be
+     * built from the snapshot after releasing the lock.
+     */
+    Snapshot snapshot(Wallet wallet) {
+        wallet.lock.lock();
+        try {
+            List<TransactionState> transactions = new ArrayList<>();
+            for (WalletTransaction wtx : wallet.getWalletTransactions())
+                transactions.add(new TransactionState(wtx));
+            return new Snapshot(walletToProtoWithoutTransactions(wallet, true), transactions);
+        } finally {
+            wallet.lock.unlock();
+        }
+    }
+
+    /**
+     * Like {@link #snapshot(Wallet)}, but takes only the given transactions that are still in the wallet, and the keys
+     * only if asked to. For {@link WalletJournal}, which saves what changed.
+     */
+    Snapshot snapshot(Wallet wallet, Collection<Sha256Hash> txIds, boolean withKeys) {
+        wallet.lock.lock();
+        try {
+            List<TransactionState> transactions = new ArrayList<>(txIds.size());
+            for (WalletTransaction wtx : wallet.getWalletTransactions(txIds))
+                transactions.add(new TransactionState(wtx));
+            return new Snapshot(walletToProtoWithoutTransactions(wallet, withKeys), transactions);
+        } finally {
+            wallet.lock.unlock();
+        }
+    }
+
+    private Protos.Wallet walletToProtoWithoutTransactions(Wallet wallet, boolean withKeys) {
         Protos.Wallet.Builder walletBuilder = Protos.Wallet.newBuilder();
         walletBuilder.setNetworkIdentifier(wallet.network().id());
         if (wallet.getDescription() != null) {
             walletBuilder.setDescription(wallet.getDescription());
         }
 
-        for (WalletTransaction wtx : wallet.getWalletTransactions()) {
-            Protos.Transaction txProto = makeTxProto(wtx);
-            walletBuilder.addTransaction(txProto);
-        }
-
-        walletBuilder.addAllKey(wallet.serializeKeyChainGroupToProtobufInternal());
+        if (withKeys)
+            walletBuilder.addAllKey(wallet.serializeKeyChainGroupToProtobufInternal());
 
         for (Script script : wallet.getWatchedScripts()) {
             Protos.Script protoScript =
@@ -257,16 +300,69 @@ public class WalletProtobufSerializer {
         }
     }
 
-    private static Protos.Transaction makeTxProto(WalletTransaction wtx) {
-        Transaction tx = wtx.getTransaction();
+    /** A wallet taken by {@link #snapshot(Wallet)}, to be turned into a protobuf without holding the wallet lock. */
+    static final class Snapshot {
+        private final Protos.Wallet withoutTransactions;
+        private final List<TransactionState> transactions;
+
+        private Snapshot(Protos.Wallet withoutTransactions, List<TransactionState> transactions) {
+            this.withoutTransactions = withoutTransactions;
+            this.transactions = transactions;
+        }
+
+        Protos.Wallet toProto() {
+            Protos.Wallet.Builder walletBuilder = withoutTransactions.toBuilder();
+            for (TransactionState state : transactions)
+                walletBuilder.addTransaction(makeTxProto(state));
+            return walletBuilder.build();
+        }
+    }
+
+    /** The pool of a wallet transaction and the parts of it that can change while it is in the wallet. */
+    private static final class TransactionState {
+        final Transaction tx;
+        final Protos.Transaction.Pool pool;
+        @Nullable final Instant updateTime;
+        // the input spending each output, if any
+        final TransactionInput[] spentBy;
+        @Nullable final Map<Sha256Hash, Integer> appearsInHashes;
+        @Nullable final TransactionConfidence confidence;
+        final Transaction.Purpose purpose;
+        @Nullable final ExchangeRate exchangeRate;
+        @Nullable final String memo;
+
+        TransactionState(WalletTransaction wtx) {
+            this.tx = wtx.getTransaction();
+            this.pool = getProtoPool(wtx);
+            this.updateTime = tx.updateTime().orElse(null);
+            List<TransactionOutput> outputs = tx.getOutputs();
+            this.spentBy = new TransactionInput[outputs.size()];
+            for (int i = 0; i < spentBy.length; i++)
+                spentBy[i] = outputs.get(i).getSpentBy();
+            this.appearsInHashes = tx.getAppearsInHashes();
+            if (tx.hasConfidence()) {
+                TransactionConfidence confidence = tx.getConfidence();
+                this.confidence = confidence.duplicate();
+                this.confidence.setSource(confidence.getSource());
+            } else {
+                this.confidence = null;
+            }
+            this.purpose = tx.getPurpose();
+            this.exchangeRate = tx.getExchangeRate();
+            this.memo = tx.getMemo();
+        }
+    }
+
+    private static Protos.Transaction makeTxProto(TransactionState state) {
+        Transaction tx = state.tx;
         Protos.Transaction.Builder txBuilder = Protos.Transaction.newBuilder();
 
-        txBuilder.setPool(getProtoPool(wtx))
+        txBuilder.setPool(state.pool)
                  .setHash(hashToByteString(tx.getTxId()))
                  .setVersion((int) tx.getVersion());
 
-        tx.updateTime().ifPresent(
-                time -> txBuilder.setUpdatedAt(time.toEpochMilli()));
+        if (state.updateTime != null)
+            txBuilder.setUpdatedAt(state.updateTime.toEpochMilli());
 
         LockTime locktime = tx.lockTime();
         if (locktime.isSet()) {
@@ -295,11 +391,13 @@ public class WalletProtobufSerializer {
         }
 
         // Handle outputs.
-        for (TransactionOutput output : tx.getOutputs()) {
+        List<TransactionOutput> outputs = tx.getOutputs();
+        for (int i = 0; i < outputs.size(); i++) {
+            TransactionOutput output = outputs.get(i);
             Protos.TransactionOutput.Builder outputBuilder = Protos.TransactionOutput.newBuilder()
                 .setScriptBytes(ByteString.copyFrom(output.getScriptBytes()))
                 .setValue(output.getValue().value);
-            final TransactionInput spentBy = output.getSpentBy();
+            final TransactionInput spentBy = state.spentBy[i];
             if (spentBy != null) {
                 Sha256Hash spendingHash = spentBy.getParentTransaction().getTxId();
                 outputBuilder.setSpentByTransactionHash(hashToByteString(spendingHash))
@@ -309,7 +407,7 @@ public class WalletProtobufSerializer {
         }
 
         // Handle which blocks tx was seen in.
-        final Map<Sha256Hash, Integer> appearsInHashes = tx.getAppearsInHashes();
+        final Map<Sha256Hash, Integer> appearsInHashes = state.appearsInHashes;
         if (appearsInHashes != null) {
             for (Map.Entry<Sha256Hash, Integer> entry : appearsInHashes.entrySet()) {
                 txBuilder.addBlockHash(hashToByteString(entry.getKey()));
@@ -317,14 +415,13 @@ public class WalletProtobufSerializer {
             }
         }
 
-        if (tx.hasConfidence()) {
-            TransactionConfidence confidence = tx.getConfidence();
+        if (state.confidence != null) {
             Protos.TransactionConfidence.Builder confidenceBuilder = Protos.TransactionConfidence.newBuilder();
-            writeConfidence(txBuilder, confidence, confidenceBuilder);
+            writeConfidence(txBuilder, state.confidence, confidenceBuilder);
         }
 
         Protos.Transaction.Purpose purpose;
-        switch (tx.getPurpose()) {
+        switch (state.purpose) {
             case UNKNOWN: purpose = Protos.Transaction.Purpose.UNKNOWN; break;
             case USER_PAYMENT: purpose = Protos.Transaction.Purpose.USER_PAYMENT; break;
             case KEY_ROTATION: purpose = Protos.Transaction.Purpose.KEY_ROTATION; break;
@@ -337,7 +434,7 @@ public class WalletProtobufSerializer {
         }
         txBuilder.setPurpose(purpose);
 
-        ExchangeRate exchangeRate = tx.getExchangeRate();
+        ExchangeRate exchangeRate = state.exchangeRate;
         if (exchangeRate != null) {
             Protos.ExchangeRate.Builder exchangeRateBuilder = Protos.ExchangeRate.newBuilder()
                     .setCoinValue(exchangeRate.coin.value).setFiatValue(exchangeRate.fiat.value)
@@ -345,8 +442,8 @@ public class WalletProtobufSerializer {
             txBuilder.setExchangeRate(exchangeRateBuilder);
         }
 
-        if (tx.getMemo() != null)
-            txBuilder.setMemo(tx.getMemo());
+        if (state.memo != null)
+            txBuilder.setMemo(state.memo);
 
         return txBuilder.build();
     }
@@ -0,0 +1,153 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hashengineering.crypto;
+
+import org.bitcoinj.base.Sha256Hash;
+import org.bitcoinj.base.internal.ByteUtils;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.params.MainNetParams;
+import org.junit.Test;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class GroestlTest {
+    private static final Sha256Hash GENESIS_HASH =
+            Sha256Hash.wrap("00000ac5927c594d49cc0bdb81759d0da8297eb614683d3acb62f0703b639023");
+
+    private static byte[] genesisHeader() {
+        return Arrays.copyOf(MainNetParams.get().getGenesisBlock().serialize(), Block.HEADER_SIZE);
+    }
+
+    @Test
+    public void digestGenesisHeader() {
+        assertEquals(GENESIS_HASH, Sha256Hash.wrapReversed(Groestl.digest(genesisHeader())));
+    }
+
+    @Test
+    public void digestIntoArray() {
+        byte[] header = genesisHeader();
+        byte[] padded = new byte[header.length + 10];
+        System.arraycopy(header, 0, padded, 5, header.length);
+        byte[] out = new byte[Groestl.HASH_LENGTH + 3];
+        Groestl.digestInto(padded, 5, header.length, out, 3);
+        assertEquals(GENESIS_HASH, Sha256Hash.wrapReversed(Arrays.copyOfRange(out, 3, out.length)));
+    }
+
+    @Test
+    public void digestIntoByteBuffer() {
+        byte[] header = genesisHeader();
+        byte[] out = new byte[Groestl.HASH_LENGTH];
+
+        ByteBuffer heap = ByteBuffer.wrap(header);
+        Groestl.digestInto(heap, out, 0);
+        assertEquals(GENESIS_HASH, Sha256Hash.wrapReversed(out));
+        assertEquals(0, heap.remaining());
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(header.length);
+        direct.put(header).flip();
+        Arrays.fill(out, (byte) 0);
+        Groestl.digestInto(direct, out, 0);
+        assertEquals(GENESIS_HASH, Sha256Hash.wrapReversed(out));
+        assertEquals(0, direct.remaining());
+
+        // a slice of a direct buffer, not starting at its position, as when checksumming a message payload
+        ByteBuffer message = ByteBuffer.allocateDirect(header.length + 24);
+        message.position(24);
+        message.put(header).position(20);
+        ByteBuffer payload = message.slice();
+        payload.position(4);
+        Arrays.fill(out, (byte) 0);
+        Groestl.digestInto(payload, out, 0);
+        assertEquals(GENESIS_HASH, Sha256Hash.wrapReversed(out));
+        assertEquals(0, payload.remaining());
+    }
+
+    // Groestl of the bytes 0, 1, 2, ... of the given length, computed with the sph reference implementation. The
+    // lengths are around the 64 byte block size and the 256 byte scratch space of the engine.
+    private static final Object[][] KNOWN_ANSWERS = {
+            { 0, "fdfb14d386c6dff85715c50efb826c43e04205b18410497aa47f121eceb3a65e" },
+            { 1, "e87210b1e1d674e6253f8582059a3bea5161cef1e5b32d5d06c5c31550f9ef2a" },
+            { 63, "7d517863903f7082d4b19745ad0aafcdfcc8bed655b6217cdfa6cc50efef4a86" },
+            { 64, "d503273bffc09653a8492f3497958ac75270ea3e5e875285867cd2b03fbd4404" },
+            { 65, "84e84d3f8c5159dde456ce2261ba33e22389fa2aa140e7df651385a0d3cc1077" },
+            { 255, "a6e2477fa6b62b7faaecbe08b0b384592df3454ee1600b5caf0d275d68b4a3b5" },
+            { 256, "a8b005087f5acd5a6d442d12fb785f966cae67b8b61d3fa863b6fbb933e1baab" },
+            { 257, "f1451bcbcf1c9c374cec3a90bed502452712d260edc6b2742d95b5b1ecb5f2cb" },
+            { 1000, "a494e7b94019859b500146d816936b1114f2e1ad4b03d173fb33192350925071" },
+    };
+
+    @Test
+    public void knownAnswers() {
+        Groestl.Engine engine = Groestl.engine();
+        byte[] out = new byte[Groestl.HASH_LENGTH];
+        for (Object[] knownAnswer : KNOWN_ANSWERS) {
+            int length = (Integer) knownAnswer[0];
+            byte[] expected = ByteUtils.parseHex((String) knownAnswer[1]);
+            byte[] input = new byte[length];
+            for (int i = 0; i < length; i++)
+                input[i] = (byte) i;
+
+            assertArrayEquals(expected, Groestl.digest(input));
+            Arrays.fill(out, (byte) 0);
+            engine.digestInto(input, 0, length, out, 0);
+            assertArrayEquals(expected, out);
+            ByteBuffer direct = ByteBuffer.allocateDirect(length);
+            direct.put(input).flip();
+            Arrays.fill(out, (byte) 0);
+            engine.digestInto(direct, out, 0);
+            assertArrayEquals(expected, out);
+        }
+    }
+
+    @Test
+    public void digestMany() {
+        Random random = new Random(7);
+        int count = 5, length = Block.HEADER_SIZE, stride = Block.HEADER_SIZE + 1;
+        byte[] records = new byte[3 + (count - 1) * stride + length];
+        random.nextBytes(records);
+        byte[] expected = new byte[count * Groestl.HASH_LENGTH];
+        for (int i = 0; i < count; i++)
+            System.arraycopy(Groestl.digest(records, 3 + i * stride, length), 0, expected, i * Groestl.HASH_LENGTH,
+                    Groestl.HASH_LENGTH);
+
+        ByteBuffer heap = ByteBuffer.wrap(records);
+        heap.position(3);
+        byte[] out = new byte[count * Groestl.HASH_LENGTH];
+        Groestl.digestMany(heap, count, length, stride, out);
+        assertArrayEquals(expected, out);
+        assertEquals(3, heap.position());
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(records.length);
+        direct.put(records).position(3);
+        out = new byte[count * Groestl.HASH_LENGTH];
+        Groestl.digestMany(direct, count, length, stride, out);
+        assertArrayEquals(expected, out);
+        assertEquals(3, direct.position());
+    }
+
+    @Test(expected = BufferUnderflowException.class)
+    public void digestMany_underflow() {
+        ByteBuffer buf = ByteBuffer.allocate(Block.HEADER_SIZE * 2 - 1);
+        Groestl.digestMany(buf, 2, Block.HEADER_SIZE, new byte[2 * Groestl.HASH_LENGTH]);
+    }
+}
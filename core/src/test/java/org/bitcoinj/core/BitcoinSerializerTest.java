@@ -18,8 +18,10 @@
 package org.bitcoinj.core;
 
 import com.google.common.io.BaseEncoding;
+import org.bitcoinj.base.Sha256Hash;
 import org.bitcoinj.base.internal.ByteUtils;
 import org.bitcoinj.base.internal.TimeUtils;
+import org.bitcoinj.net.ByteBufferPool;
 import org.bitcoinj.params.MainNetParams;
 import org.bitcoinj.params.TestNet3Params;
 import org.junit.Test;
@@ -29,6 +31,7 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.math.BigInteger;
 import java.net.InetAddress;
+import java.nio.Buffer;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.time.temporal.ChronoUnit;
@@ -39,6 +42,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class BitcoinSerializerTest {
     private static final BaseEncoding HEX = BaseEncoding.base16().lowerCase();
@@ -242,6 +246,57 @@ public class BitcoinSerializerTest {
         serializer.serialize(unknownMessage, bos);
     }
 
+    @Test
+    public void testSerializeIntoPooledBuffer() throws Exception {
+        MessageSerializer serializer = MAINNET.getDefaultSerializer();
+        ByteBufferPool pool = new ByteBufferPool(true, 1024 * 1024, 1024 * 1024);
+        Transaction transaction = (Transaction) serializer.deserialize(ByteBuffer.wrap(TRANSACTION_MESSAGE_BYTES));
+
+        ByteBuffer buffer = serializer.serialize(transaction, pool);
+        assertTrue(buffer.isDirect());
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        assertArrayEquals(TRANSACTION_MESSAGE_BYTES, bytes);
+        pool.release(buffer);
+
+        // Larger than the smallest buffer, and written into a reused one
+        InventoryMessage inv = new InventoryMessage();
+        for (int i = 0; i < 1000; i++)
+            inv.addItem(new InventoryItem(InventoryItem.Type.TRANSACTION, Sha256Hash.of(new byte[] { (byte) i })));
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        serializer.serialize(inv, bos);
+        buffer = serializer.serialize(inv, pool);
+        bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        assertArrayEquals(bos.toByteArray(), bytes);
+        assertEquals(inv, serializer.deserialize(ByteBuffer.wrap(bytes)));
+    }
+
+    @Test
+    public void testDeserializeFromDirectBuffer() throws Exception {
+        MessageSerializer serializer = MAINNET.getDefaultSerializer();
+        // as in a read buffer, with the message not at the start
+        ByteBuffer buffer = ByteBuffer.allocateDirect(TRANSACTION_MESSAGE_BYTES.length + 10);
+        ((Buffer) buffer).position(10);
+        buffer.put(TRANSACTION_MESSAGE_BYTES);
+        ((Buffer) buffer).position(10);
+        Transaction transaction = (Transaction) serializer.deserialize(buffer);
+        assertEquals(0, buffer.remaining());
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        serializer.serialize(transaction, bos);
+        assertArrayEquals(TRANSACTION_MESSAGE_BYTES, bos.toByteArray());
+
+        // a corrupted payload fails the checksum
+        buffer.put(buffer.limit() - 1, (byte) (buffer.get(buffer.limit() - 1) ^ 1));
+        ((Buffer) buffer).position(10);
+        try {
+            serializer.deserialize(buffer);
+            fail();
+        } catch (ProtocolException e) {
+            assertTrue(e.getMessage().startsWith("Checksum failed"));
+        }
+    }
+
     @Test
     public void testEquals() {
         assertTrue(MAINNET.getDefaultSerializer().equals(MAINNET.getDefaultSerializer()));
@@ -161,6 +161,29 @@ public class BlockTest {
         assertArrayEquals(block1084745Bytes, block1084745.serialize());
     }
 
+    @Test
+    public void lazyParsing() {
+        MessageSerializer serializer = TESTNET.getDefaultSerializer().withLazyParsing(true);
+        ByteBuffer payload = ByteBuffer.wrap(block1084745Bytes.clone());
+        Block block = serializer.makeBlock(payload);
+        assertFalse(payload.hasRemaining());
+        // The transactions refer to a copy of the payload.
+        Arrays.fill(payload.array(), (byte) 0);
+
+        List<Transaction> transactions = block.getTransactions();
+        assertEquals(block1084745.getTransactions().size(), transactions.size());
+        for (int i = 0; i < transactions.size(); i++) {
+            assertEquals(block1084745.getTransactions().get(i).getTxId(), transactions.get(i).getTxId());
+            assertFalse(transactions.get(i).isParsed());
+        }
+        assertArrayEquals(block1084745Bytes, block.serialize());
+        assertFalse(transactions.get(0).isParsed());
+
+        Block.verify(TESTNET, block, Block.BLOCK_HEIGHT_GENESIS, EnumSet.noneOf(Block.VerifyFlag.class));
+        assertTrue(transactions.get(0).isParsed());
+        assertEquals(block1084745, block);
+    }
+
     @Test
     public void testCoinbaseHeightTestnet() throws Exception {
         // Testnet block 21066 (hash 00000066fa4e4b46505aa9cd4155084bc6e9febffd74f5a5f7cb61162e581435)
@@ -0,0 +1,155 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.net.ByteBufferPool;
+import org.bitcoinj.params.MainNetParams;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class InboundMessagePipelineTest {
+    private static final MessageSerializer SERIALIZER = MainNetParams.get().getDefaultSerializer();
+
+    private final ByteBufferPool pool = new ByteBufferPool(false, 65536, 65536);
+
+    // Runs tasks only when asked to, so the test controls when messages are processed.
+    private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+    private final List<Long> processed = new ArrayList<>();
+    private final List<Boolean> pauses = new ArrayList<>();
+    private Exception error;
+    private InboundMessagePipeline pipeline;
+
+    @Before
+    public void setUp() {
+        pipeline = new InboundMessagePipeline(tasks::add, SERIALIZER, pool, new Context(), this::process,
+                e -> error = e, pauses::add, 4, 1024 * 1024);
+    }
+
+    private void process(Message message) {
+        long nonce = ((Ping) message).nonce();
+        if (nonce < 0)
+            throw new IllegalStateException("bad message");
+        processed.add(nonce);
+    }
+
+    private void add(long nonce) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SERIALIZER.serialize(Ping.of(nonce), out);
+        ByteBuffer buf = ByteBuffer.wrap(out.toByteArray());
+        SERIALIZER.seekPastMagicBytes(buf);
+        BitcoinSerializer.BitcoinPacketHeader header = SERIALIZER.deserializeHeader(buf);
+        ByteBuffer payload = pool.acquire(header.size);
+        payload.put(buf);
+        ((Buffer) payload).flip();
+        pipeline.add(header, payload);
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null)
+            task.run();
+    }
+
+    @Test
+    public void processesInOrder() throws Exception {
+        add(1);
+        add(2);
+        add(3);
+        // Only one task processes the queue at a time.
+        assertEquals(1, tasks.size());
+        assertTrue(processed.isEmpty());
+        runTasks();
+        assertEquals(Arrays.asList(1L, 2L, 3L), processed);
+        assertEquals(0, pipeline.size());
+
+        add(4);
+        runTasks();
+        assertEquals(Arrays.asList(1L, 2L, 3L, 4L), processed);
+        assertTrue(pauses.isEmpty());
+        assertEquals(0, pool.getAcquiredBytes());
+    }
+
+    @Test
+    public void pausesReadingWhenFull() throws Exception {
+        for (long i = 0; i < 3; i++)
+            add(i);
+        assertTrue(pauses.isEmpty());
+        add(3);
+        assertEquals(Arrays.asList(true), pauses);
+        // Further messages from the buffer that was already read are still taken.
+        add(4);
+        assertEquals(Arrays.asList(true), pauses);
+        runTasks();
+        assertEquals(Arrays.asList(true, false), pauses);
+        assertEquals(5, processed.size());
+    }
+
+    @Test
+    public void stopsAfterFailure() throws Exception {
+        add(1);
+        add(-1);
+        add(2);
+        runTasks();
+        assertEquals(Arrays.asList(1L), processed);
+        assertTrue(error instanceof IllegalStateException);
+        assertEquals(0, pipeline.size());
+
+        add(3);
+        assertEquals(0, pipeline.size());
+        assertTrue(tasks.isEmpty());
+        assertEquals(0, pool.getAcquiredBytes());
+    }
+
+    @Test
+    public void closeReleasesQueuedBuffers() throws Exception {
+        add(1);
+        add(2);
+        pipeline.close();
+        assertEquals(0, pipeline.size());
+        assertEquals(0, pool.getAcquiredBytes());
+        add(3);
+        runTasks();
+        assertTrue(processed.isEmpty());
+        assertNull(error);
+        assertEquals(0, pool.getAcquiredBytes());
+    }
+
+    @Test
+    public void rejectedExecution() throws Exception {
+        pipeline = new InboundMessagePipeline(task -> {
+            throw new RejectedExecutionException();
+        }, SERIALIZER, pool, new Context(), this::process, e -> error = e, pauses::add);
+        assertNull(error);
+        add(1);
+        assertTrue(error instanceof RejectedExecutionException);
+        assertFalse(processed.contains(1L));
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.base.Coin;
+import org.bitcoinj.base.Sha256Hash;
+import org.bitcoinj.crypto.ECKey;
+import org.bitcoinj.crypto.TransactionSignature;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+import org.bitcoinj.script.ScriptException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class ScriptVerifierTest {
+    private static final int INPUTS = 7;
+
+    private ForkJoinPool pool;
+    private ScriptVerifier verifier;
+    private ECKey key;
+    private Script scriptPubKey;
+
+    @Before
+    public void setUp() {
+        pool = new ForkJoinPool(2);
+        verifier = new ScriptVerifier(pool, 2);
+        key = new ECKey();
+        scriptPubKey = ScriptBuilder.createP2PKHOutputScript(key);
+    }
+
+    @After
+    public void tearDown() {
+        pool.shutdownNow();
+    }
+
+    @Test
+    public void validBlock() {
+        ScriptVerifier.BlockVerification verification = verifier.begin();
+        for (int t = 0; t < 3; t++) {
+            Transaction tx = createSpend(t);
+            for (int i = 0; i < INPUTS; i++)
+                verification.add(tx, i, scriptPubKey, Script.ALL_VERIFY_FLAGS);
+        }
+        verification.complete();
+        assertEquals(0, verifier.getQueueDepth());
+        assertEquals(1, verifier.getBlocksVerified());
+        assertEquals(verifier.getLastBlockVerifyTime(), verifier.getTotalVerifyTime());
+    }
+
+    @Test
+    public void invalidSignature() {
+        ScriptVerifier.BlockVerification verification = verifier.begin();
+        Transaction tx = createSpend(0);
+        // invalidates all signatures
+        tx.getOutput(0).setValue(Coin.CENT);
+        for (int i = 0; i < INPUTS; i++)
+            verification.add(tx, i, scriptPubKey, Script.ALL_VERIFY_FLAGS);
+        try {
+            verification.complete();
+            fail();
+        } catch (ScriptException e) {
+            // expected
+        }
+        assertEquals(0, verifier.getQueueDepth());
+        assertEquals(1, verifier.getBlocksVerified());
+    }
+
+    @Test
+    public void cancel() {
+        ScriptVerifier.BlockVerification verification = verifier.begin();
+        Transaction tx = createSpend(0);
+        for (int i = 0; i < INPUTS; i++)
+            verification.add(tx, i, scriptPubKey, Script.ALL_VERIFY_FLAGS);
+        verification.cancel();
+        pool.awaitQuiescence(1, TimeUnit.MINUTES);
+        assertEquals(0, verifier.getQueueDepth());
+        assertEquals(0, verifier.getBlocksVerified());
+    }
+
+    private Transaction createSpend(int n) {
+        Transaction tx = new Transaction();
+        tx.addOutput(Coin.COIN, scriptPubKey);
+        for (int i = 0; i < INPUTS; i++)
+            tx.addInput(Sha256Hash.of(new byte[] { (byte) n }), i, new ScriptBuilder().build());
+        for (int i = 0; i < INPUTS; i++) {
+            TransactionSignature signature = tx.calculateSignature(i, key, scriptPubKey, Transaction.SigHash.ALL,
+                    false);
+            tx.getInput(i).setScriptSig(ScriptBuilder.createInputScript(signature, key));
+        }
+        return tx;
+    }
+}
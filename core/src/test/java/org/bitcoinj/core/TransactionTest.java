@@ -46,6 +46,8 @@ import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.Iterator;
@@ -62,10 +64,13 @@ import org.bitcoinj.base.internal.ByteUtils;
 import static org.bitcoinj.base.internal.ByteUtils.writeInt32LE;
 import static org.easymock.EasyMock.createMock;
 import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -285,6 +290,106 @@ public class TransactionTest {
         assertEquals(hex.length() / 2, tx.messageSize());
     }
 
+    @Test
+    public void txIdsAreInvalidatedOnMutation() {
+        Transaction tx = FakeTxBuilder.createFakeTx(TESTNET.network());
+        assertTxIdsUpToDate(tx);
+        tx.setVersion(2);
+        assertTxIdsUpToDate(tx);
+        tx.setLockTime(123456);
+        assertTxIdsUpToDate(tx);
+        tx.getInput(0).setSequenceNumber(0);
+        assertTxIdsUpToDate(tx);
+        tx.getInput(0).setScriptBytes(new byte[] { 0x51 });
+        assertTxIdsUpToDate(tx);
+        tx.getInput(0).setWitness(TransactionWitness.of(new byte[] { 1, 2, 3 }));
+        assertTxIdsUpToDate(tx);
+        tx.getOutput(0).setValue(Coin.COIN);
+        assertTxIdsUpToDate(tx);
+        tx.addOutput(Coin.CENT, ADDRESS);
+        assertTxIdsUpToDate(tx);
+        tx.shuffleOutputs();
+        assertTxIdsUpToDate(tx);
+        tx.clearOutputs();
+        assertTxIdsUpToDate(tx);
+        tx.addInput(Sha256Hash.ZERO_HASH, 1, new ScriptBuilder().build());
+        assertTxIdsUpToDate(tx);
+        tx.clearInputs();
+        assertTxIdsUpToDate(tx);
+    }
+
+    private static void assertTxIdsUpToDate(Transaction tx) {
+        Sha256Hash txId = tx.getTxId(), wTxId = tx.getWTxId(); // cache them
+        Transaction copy = Transaction.read(ByteBuffer.wrap(tx.serialize()));
+        assertEquals(copy.getTxId(), txId);
+        assertEquals(copy.getWTxId(), wTxId);
+        assertEquals(Sha256Hash.wrapReversed(Sha256Hash.hash(tx.serialize())), wTxId);
+    }
+
+    @Test
+    public void txIdOfNonCanonicalEncoding() {
+        // The same transaction as in witnessTransaction(), but with the input count encoded in three bytes.
+        String hex = "01000000fd0300362c10b042d48378b428d60c5c98d8b8aca7a03e1a2ca1048bfd469934bbda95010000008b483045022046c8bc9fb0e063e2fc8c6b1084afe6370461c16cbf67987d97df87827917d42d022100c807fa0ab95945a6e74c59838cc5f9e850714d8850cec4db1e7f3bcf71d5f5ef0141044450af01b4cc0d45207bddfb47911744d01f768d23686e9ac784162a5b3a15bc01e6653310bdd695d8c35d22e9bb457563f8de116ecafea27a0ec831e4a3e9feffffffffc19529a54ae15c67526cc5e20e535973c2d56ef35ff51bace5444388331c4813000000008b48304502201738185959373f04cc73dbbb1d061623d51dc40aac0220df56dabb9b80b72f49022100a7f76bde06369917c214ee2179e583fefb63c95bf876eb54d05dfdf0721ed772014104e6aa2cf108e1c650e12d8dd7ec0a36e478dad5a5d180585d25c30eb7c88c3df0c6f5fd41b3e70b019b777abd02d319bf724de184001b3d014cb740cb83ed21a6ffffffffbaae89b5d2e3ca78fd3f13cf0058784e7c089fb56e1e596d70adcfa486603967010000008b483045022055efbaddb4c67c1f1a46464c8f770aab03d6b513779ad48735d16d4c5b9907c2022100f469d50a5e5556fc2c932645f6927ac416aa65bc83d58b888b82c3220e1f0b73014104194b3f8aa08b96cae19b14bd6c32a92364bea3051cb9f018b03e3f09a57208ff058f4b41ebf96b9911066aef3be22391ac59175257af0984d1432acb8f2aefcaffffffff0340420f00000000001976a914c0fbb13eb10b57daa78b47660a4ffb79c29e2e6b88ac204e0000000000001976a9142cae94ffdc05f8214ccb2b697861c9c07e3948ee88ac1c2e0100000000001976a9146e03561cd4d6033456cc9036d409d2bf82721e9888ac00000000";
+        Transaction tx = Transaction.read(ByteBuffer.wrap(ByteUtils.parseHex(hex)));
+        assertEquals("909bc29350b9e1d2f5246f704a210b27cb1c2985a9ceff090df1c6dcf3187bbd", tx.getTxId().toString());
+    }
+
+    @Test
+    public void readLazily() {
+        Transaction tx = FakeTxBuilder.createFakeTx(TESTNET.network());
+        assertLazilyReadMatches(tx);
+        tx.getInput(0).setWitness(TransactionWitness.of(new byte[] { 1, 2, 3 }));
+        assertLazilyReadMatches(tx);
+    }
+
+    private static void assertLazilyReadMatches(Transaction tx) {
+        byte[] bytes = tx.serialize();
+        ByteBuffer payload = ByteBuffer.wrap(bytes);
+        Transaction lazy = Transaction.readLazily(payload, ProtocolVersion.CURRENT.intValue());
+        assertFalse(payload.hasRemaining());
+        assertFalse(lazy.isParsed());
+        assertEquals(tx.getTxId(), lazy.getTxId());
+        assertEquals(tx.getWTxId(), lazy.getWTxId());
+        assertEquals(tx.hasWitnesses(), lazy.hasWitnesses());
+        assertEquals(tx.getOutPoints(), lazy.getOutPoints());
+        List<byte[]> scripts = lazy.getOutputScriptBytes();
+        assertEquals(tx.getOutputs().size(), scripts.size());
+        for (int i = 0; i < scripts.size(); i++)
+            assertArrayEquals(tx.getOutput(i).getScriptBytes(), scripts.get(i));
+        assertEquals(bytes.length, lazy.messageSize());
+        assertArrayEquals(bytes, lazy.serialize());
+        assertFalse(lazy.isParsed());
+
+        assertEquals(tx.getInputs().size(), lazy.getInputs().size());
+        assertTrue(lazy.isParsed());
+        assertEquals(tx.getTxId(), lazy.getTxId());
+        assertEquals(tx.getWTxId(), lazy.getWTxId());
+        assertEquals(tx.getOutPoints(), lazy.getOutPoints());
+        assertArrayEquals(bytes, lazy.serialize());
+    }
+
+    @Test
+    public void readLazilyNonCanonicalEncoding() {
+        Transaction tx = FakeTxBuilder.createFakeTx(TESTNET.network());
+        byte[] bytes = tx.serialize();
+        // The input count encoded in three bytes rather than one
+        byte[] nonCanonical = new byte[bytes.length + 2];
+        System.arraycopy(bytes, 0, nonCanonical, 0, 4);
+        nonCanonical[4] = (byte) 0xfd;
+        nonCanonical[5] = bytes[4];
+        System.arraycopy(bytes, 5, nonCanonical, 7, bytes.length - 5);
+        Transaction lazy = Transaction.readLazily(ByteBuffer.wrap(nonCanonical), ProtocolVersion.CURRENT.intValue());
+        assertTrue(lazy.isParsed());
+        assertEquals(tx.getTxId(), lazy.getTxId());
+    }
+
+    @Test(expected = BufferUnderflowException.class)
+    public void readLazilyTruncated() {
+        byte[] bytes = FakeTxBuilder.createFakeTx(TESTNET.network()).serialize();
+        Transaction.readLazily(ByteBuffer.wrap(Arrays.copyOf(bytes, bytes.length - 1)),
+                ProtocolVersion.CURRENT.intValue());
+    }
+
     @Test
     public void testWitnessSignatureP2WPKH() {
         // test vector P2WPKH from:
@@ -655,6 +760,103 @@ public class TransactionTest {
         CompletableFuture.allOf(results).get();  // we're just interested in the exception, if any
     }
 
+    @Test
+    public void hashForSignatureMatchesModifiedCopy() {
+        Transaction tx = new Transaction();
+        for (int i = 0; i < 3; i++)
+            tx.addInput(Sha256Hash.of(new byte[] { (byte) i }), i, new ScriptBuilder().data(new byte[] { 1, 2 }).build());
+        tx.getInput(1).setSequenceNumber(5);
+        tx.addOutput(Coin.COIN, ADDRESS);
+        tx.addOutput(Coin.CENT, ADDRESS);
+        tx.setLockTime(1000);
+        byte[] connectedScript = ScriptBuilder.createOutputScript(ADDRESS).program();
+        for (int inputIndex = 0; inputIndex < tx.getInputs().size(); inputIndex++) {
+            for (Transaction.SigHash type : new Transaction.SigHash[] { Transaction.SigHash.ALL,
+                    Transaction.SigHash.NONE, Transaction.SigHash.SINGLE }) {
+                for (boolean anyoneCanPay : new boolean[] { false, true }) {
+                    byte sigHashType = (byte) TransactionSignature.calcSigHashValue(type, anyoneCanPay);
+                    assertEquals(type + " " + anyoneCanPay,
+                            hashForSignatureOfModifiedCopy(tx, inputIndex, connectedScript, sigHashType),
+                            tx.hashForSignature(inputIndex, connectedScript, sigHashType));
+                }
+            }
+        }
+    }
+
+    // The way hashForSignature() used to work: modify a copy of the transaction and hash its serialization.
+    private static Sha256Hash hashForSignatureOfModifiedCopy(Transaction tx, int inputIndex, byte[] connectedScript,
+                                                             byte sigHashType) {
+        int basicSigHashType = sigHashType & 0x1f;
+        boolean anyoneCanPay = (sigHashType & Transaction.SigHash.ANYONECANPAY.value) != 0;
+        if (basicSigHashType == Transaction.SigHash.SINGLE.value && inputIndex >= tx.getOutputs().size())
+            return Sha256Hash.wrap("0100000000000000000000000000000000000000000000000000000000000000");
+        Transaction copy = Transaction.read(ByteBuffer.wrap(tx.serialize()));
+        for (int i = 0; i < copy.getInputs().size(); i++) {
+            TransactionInput input = copy.getInput(i);
+            input.clearScriptBytes();
+            if (i == inputIndex)
+                input.setScriptBytes(connectedScript);
+            else if (basicSigHashType != Transaction.SigHash.ALL.value)
+                input.setSequenceNumber(0);
+        }
+        if (anyoneCanPay) {
+            TransactionInput input = copy.getInput(inputIndex);
+            copy.clearInputs();
+            copy.addInput(input);
+        }
+        List<TransactionOutput> outputs = new ArrayList<>(copy.getOutputs());
+        copy.clearOutputs();
+        if (basicSigHashType == Transaction.SigHash.ALL.value) {
+            outputs.forEach(output -> copy.addOutput(new TransactionOutput(copy, output.getValue(),
+                    output.getScriptBytes())));
+        } else if (basicSigHashType == Transaction.SigHash.SINGLE.value) {
+            for (int i = 0; i < inputIndex; i++)
+                copy.addOutput(new TransactionOutput(copy, Coin.NEGATIVE_SATOSHI, new byte[0]));
+            TransactionOutput output = outputs.get(inputIndex);
+            copy.addOutput(new TransactionOutput(copy, output.getValue(), output.getScriptBytes()));
+        }
+        byte[] serialized = copy.serialize();
+        ByteBuffer buf = ByteBuffer.allocate(serialized.length + 4).put(serialized);
+        writeInt32LE(0xff & sigHashType, buf);
+        return Sha256Hash.of(buf.array());
+    }
+
+    @Test
+    public void witnessSigHashCacheIsInvalidatedOnMutation() {
+        Transaction tx = new Transaction();
+        for (int i = 0; i < 3; i++)
+            tx.addInput(Sha256Hash.of(new byte[] { (byte) i }), i, new ScriptBuilder().build());
+        tx.addOutput(Coin.COIN, ADDRESS);
+        tx.addOutput(Coin.CENT, ADDRESS);
+        byte[] scriptCode = ScriptBuilder.createOutputScript(ADDRESS).program();
+        assertWitnessSigHashesUpToDate(tx, scriptCode);
+        SigHashCache cache = tx.getSigHashCache();
+        assertSame(cache, tx.getSigHashCache());
+        tx.getInput(2).setSequenceNumber(7);
+        assertNotSame(cache, tx.getSigHashCache());
+        assertWitnessSigHashesUpToDate(tx, scriptCode);
+        tx.getOutput(1).setValue(Coin.MILLICOIN);
+        assertWitnessSigHashesUpToDate(tx, scriptCode);
+        tx.addOutput(Coin.CENT, ADDRESS);
+        assertWitnessSigHashesUpToDate(tx, scriptCode);
+        tx.addInput(Sha256Hash.ZERO_HASH, 3, new ScriptBuilder().build());
+        assertWitnessSigHashesUpToDate(tx, scriptCode);
+    }
+
+    private static void assertWitnessSigHashesUpToDate(Transaction tx, byte[] scriptCode) {
+        tx.getSigHashCache(); // make sure the midstates are cached
+        Transaction copy = Transaction.read(ByteBuffer.wrap(tx.serialize()));
+        for (int inputIndex = 0; inputIndex < tx.getInputs().size(); inputIndex++) {
+            for (Transaction.SigHash type : new Transaction.SigHash[] { Transaction.SigHash.ALL,
+                    Transaction.SigHash.NONE, Transaction.SigHash.SINGLE }) {
+                for (boolean anyoneCanPay : new boolean[] { false, true }) {
+                    assertEquals(copy.hashForWitnessSignature(inputIndex, scriptCode, Coin.COIN, type, anyoneCanPay),
+                            tx.hashForWitnessSignature(inputIndex, scriptCode, Coin.COIN, type, anyoneCanPay));
+                }
+            }
+        }
+    }
+
     /**
      * Function used to create/cast generic array to expected type. Using this function prevents us from
      * needing a {@code @SuppressWarnings("unchecked")} in the calling code.
@@ -0,0 +1,153 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.crypto;
+
+import org.bitcoinj.base.Sha256Hash;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SignatureCacheTest {
+    private SignatureCache originalCache;
+    private SignatureCache cache;
+
+    @Before
+    public void setUp() {
+        originalCache = SignatureCache.get();
+        cache = new SignatureCache(16);
+        SignatureCache.set(cache);
+    }
+
+    @After
+    public void tearDown() {
+        SignatureCache.set(originalCache);
+    }
+
+    @Test
+    public void capacity() {
+        assertEquals(16, new SignatureCache(16).capacity());
+        assertEquals(32, new SignatureCache(17).capacity());
+        assertEquals(1, new SignatureCache(1).capacity());
+        assertFalse(new SignatureCache(0).isEnabled());
+    }
+
+    @Test
+    public void entries() {
+        byte[] hash = Sha256Hash.ZERO_HASH.getBytes();
+        Sha256Hash entry = cache.entryFor(hash, new byte[] { 2, 3 }, new byte[] { 4 });
+        assertEquals(entry, cache.entryFor(hash, new byte[] { 2, 3 }, new byte[] { 4 }));
+        assertNotEquals(entry, cache.entryFor(hash, new byte[] { 2 }, new byte[] { 3, 4 }));
+        assertNotEquals(entry, new SignatureCache(16).entryFor(hash, new byte[] { 2, 3 }, new byte[] { 4 }));
+
+        assertFalse(cache.contains(entry));
+        cache.add(entry);
+        assertTrue(cache.contains(entry));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        cache.clear();
+        assertFalse(cache.contains(entry));
+    }
+
+    @Test
+    public void bounded() {
+        SignatureCache small = new SignatureCache(4);
+        Sha256Hash[] entries = new Sha256Hash[100];
+        for (int i = 0; i < entries.length; i++) {
+            entries[i] = small.entryFor(new byte[] { (byte) i }, new byte[0], new byte[0]);
+            small.add(entries[i]);
+            assertTrue(small.contains(entries[i]));
+        }
+        int found = 0;
+        for (Sha256Hash entry : entries)
+            if (small.contains(entry))
+                found++;
+        assertTrue(found <= 4);
+    }
+
+    @Test
+    public void replacesOlderEntry() {
+        Sha256Hash first = entry(1, 2, 0);
+        Sha256Hash second = entry(1, 3, 1);
+        Sha256Hash third = entry(1, 3, 2);
+        cache.add(first);
+        cache.add(second);
+        cache.add(third);
+        assertFalse(cache.contains(first));
+        assertTrue(cache.contains(second));
+        assertTrue(cache.contains(third));
+    }
+
+    @Test
+    public void keepsRecentEntries() {
+        Random random = new Random(1);
+        Sha256Hash[] entries = new Sha256Hash[1000];
+        for (int i = 0; i < entries.length; i++) {
+            byte[] bytes = new byte[Sha256Hash.LENGTH];
+            random.nextBytes(bytes);
+            entries[i] = Sha256Hash.wrap(bytes);
+            cache.add(entries[i]);
+        }
+        for (int i = entries.length - 4; i < entries.length; i++)
+            assertTrue(cache.contains(entries[i]));
+        int found = 0;
+        for (int i = entries.length - cache.capacity(); i < entries.length; i++)
+            if (cache.contains(entries[i]))
+                found++;
+        assertTrue("found " + found, found >= cache.capacity() / 2);
+    }
+
+    @Test
+    public void verifyUsesCache() throws Exception {
+        ECKey key = new ECKey();
+        Sha256Hash hash = Sha256Hash.of(new byte[] { 1 });
+        ECKey.ECDSASignature signature = key.sign(hash);
+        assertTrue(key.verify(hash, signature));
+        assertEquals(0, cache.getHits());
+        assertTrue(key.verify(hash, signature));
+        assertEquals(1, cache.getHits());
+        // the same signature in its encoded form
+        assertTrue(key.verify(hash.getBytes(), signature.encodeToDER()));
+        assertEquals(2, cache.getHits());
+    }
+
+    @Test
+    public void invalidSignaturesAreNotCached() {
+        ECKey key = new ECKey();
+        ECKey.ECDSASignature signature = key.sign(Sha256Hash.of(new byte[] { 1 }));
+        Sha256Hash otherHash = Sha256Hash.of(new byte[] { 2 });
+        assertFalse(key.verify(otherHash, signature));
+        assertFalse(key.verify(otherHash, signature));
+        assertEquals(0, cache.getHits());
+        assertEquals(2, cache.getMisses());
+    }
+
+    // an entry that lives in the given slots of a cache with 16 slots
+    private static Sha256Hash entry(int slot1, int slot2, int n) {
+        byte[] bytes = new byte[Sha256Hash.LENGTH];
+        bytes[3] = (byte) slot2;
+        bytes[4] = (byte) n;
+        bytes[Sha256Hash.LENGTH - 1] = (byte) slot1;
+        return Sha256Hash.wrap(bytes);
+    }
+}
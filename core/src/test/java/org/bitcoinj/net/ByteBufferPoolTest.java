@@ -0,0 +1,101 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.net;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ByteBufferPoolTest {
+    @Test
+    public void sizeClasses() {
+        ByteBufferPool pool = new ByteBufferPool(false, 65536, 1024 * 1024);
+        assertEquals(ByteBufferPool.MIN_CAPACITY, pool.acquire(0).capacity());
+        assertEquals(ByteBufferPool.MIN_CAPACITY, pool.acquire(ByteBufferPool.MIN_CAPACITY).capacity());
+        assertEquals(8192, pool.acquire(ByteBufferPool.MIN_CAPACITY + 1).capacity());
+        assertEquals(65536, pool.acquire(65536).capacity());
+        // Beyond the largest size class, exactly the requested size
+        assertEquals(65537, pool.acquire(65537).capacity());
+    }
+
+    @Test
+    public void reuse() {
+        ByteBufferPool pool = new ByteBufferPool(true, 65536, 1024 * 1024);
+        ByteBuffer buffer = pool.acquire(5000);
+        assertTrue(buffer.isDirect());
+        buffer.putInt(42);
+        pool.release(buffer);
+        assertEquals(8192, pool.getRetainedBytes());
+
+        ByteBuffer reused = pool.acquire(6000);
+        assertSame(buffer, reused);
+        assertEquals(0, reused.position());
+        assertEquals(reused.capacity(), reused.limit());
+        assertEquals(0, pool.getRetainedBytes());
+        // Another size class
+        pool.release(reused);
+        assertNotSame(reused, pool.acquire(100));
+    }
+
+    @Test
+    public void retainedBytesAreCapped() {
+        ByteBufferPool pool = new ByteBufferPool(false, 65536, 10000);
+        ByteBuffer first = pool.acquire(8192);
+        ByteBuffer second = pool.acquire(8192);
+        pool.release(first);
+        pool.release(second);
+        assertEquals(8192, pool.getRetainedBytes());
+        // Beyond the largest size class
+        pool.release(pool.acquire(65537));
+        assertEquals(8192, pool.getRetainedBytes());
+        assertFalse(pool.isDirect());
+    }
+
+    @Test
+    public void acquiredBytesAreLimited() {
+        ByteBufferPool pool = new ByteBufferPool(false, 65536, 1024 * 1024);
+        pool.setMaxAcquiredBytes(10000);
+        int[] notified = new int[1];
+        ByteBuffer first = pool.tryAcquire(8192, () -> notified[0]++);
+        assertEquals(8192, pool.getAcquiredBytes());
+        assertNull(pool.tryAcquire(4096, () -> notified[0]++));
+        // Not limited
+        ByteBuffer second = pool.acquire(4096);
+        assertEquals(12288, pool.getAcquiredBytes());
+
+        pool.release(second);
+        assertEquals(1, notified[0]);
+        assertNull(pool.tryAcquire(100, () -> notified[0]++));
+        pool.discard(first);
+        assertEquals(0, pool.getAcquiredBytes());
+        assertEquals(2, notified[0]);
+        assertNotNull(pool.tryAcquire(100, () -> notified[0]++));
+
+        // A buffer larger than the limit is handed out if nothing else is acquired
+        ByteBufferPool empty = new ByteBufferPool(false, 65536, 0);
+        empty.setMaxAcquiredBytes(10000);
+        assertNotNull(empty.tryAcquire(65536, () -> notified[0]++));
+    }
+}
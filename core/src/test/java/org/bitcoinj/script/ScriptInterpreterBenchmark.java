@@ -0,0 +1,110 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.script;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.script.Script.VerifyFlag;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Measures the script interpreter over the scripts of {@code script_tests.json}, which are mostly non-standard and
+ * therefore exercise the interpreter rather than the shortcuts for standard scripts. Run it with
+ * {@code gradle groestlcoinj-core:benchmark_script_interpreter}, optionally passing the number of rounds to warm up
+ * and to measure, e.g. {@code -PappArgs="20 50"}.
+ */
+public class ScriptInterpreterBenchmark {
+    private static class Case {
+        final Script scriptSig;
+        final Script scriptPubKey;
+        final Transaction tx;
+        final Set<VerifyFlag> verifyFlags;
+
+        Case(Script scriptSig, Script scriptPubKey, Set<VerifyFlag> verifyFlags) {
+            this.scriptSig = scriptSig;
+            this.scriptPubKey = scriptPubKey;
+            this.tx = ScriptTest.buildSpendingTransaction(ScriptTest.buildCreditingTransaction(scriptPubKey), scriptSig);
+            this.verifyFlags = verifyFlags;
+        }
+
+        void run() {
+            ScriptStack stack = new ScriptStack();
+            try {
+                Script.executeScript(tx, 0, scriptSig, stack, verifyFlags);
+                Script.executeScript(tx, 0, scriptPubKey, stack, verifyFlags);
+            } catch (RuntimeException e) {
+                // many of the scripts are meant to fail
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int warmupRounds = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        int measuredRounds = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+
+        List<Case> cases = loadCases();
+        System.out.println("Loaded " + cases.size() + " script pairs");
+
+        for (int i = 0; i < warmupRounds; i++)
+            runRound(cases);
+        long[] roundNanos = new long[measuredRounds];
+        for (int i = 0; i < measuredRounds; i++)
+            roundNanos[i] = runRound(cases);
+
+        long totalNanos = 0;
+        long bestNanos = Long.MAX_VALUE;
+        for (long nanos : roundNanos) {
+            totalNanos += nanos;
+            bestNanos = Math.min(bestNanos, nanos);
+        }
+        double averageNanos = (double) totalNanos / measuredRounds;
+        System.out.printf("%d rounds: average %.2f ms, best %.2f ms per round, %.0f ns per script pair%n",
+                measuredRounds, averageNanos / 1e6, bestNanos / 1e6, averageNanos / cases.size());
+    }
+
+    private static long runRound(List<Case> cases) {
+        long start = System.nanoTime();
+        for (Case c : cases)
+            c.run();
+        return System.nanoTime() - start;
+    }
+
+    private static List<Case> loadCases() throws IOException {
+        JsonNode json = new ObjectMapper().readTree(new InputStreamReader(
+                ScriptInterpreterBenchmark.class.getResourceAsStream("script_tests.json"), StandardCharsets.UTF_8));
+        List<Case> cases = new ArrayList<>();
+        for (JsonNode test : json) {
+            if (test.size() == 1)
+                continue; // skip comment
+            try {
+                cases.add(new Case(ScriptTest.parseScriptString(test.get(0).asText()),
+                        ScriptTest.parseScriptString(test.get(1).asText()),
+                        ScriptTest.parseVerifyFlags(test.get(2).asText())));
+            } catch (RuntimeException e) {
+                // not parseable, skip
+            }
+        }
+        return cases;
+    }
+}
@@ -39,6 +39,7 @@ import org.bitcoinj.core.Transaction.SigHash;
 import org.bitcoinj.core.TransactionInput;
 import org.bitcoinj.core.TransactionOutPoint;
 import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.core.Utils;
 import org.bitcoinj.core.VerificationException;
 import org.bitcoinj.crypto.TransactionSignature;
 import org.bitcoinj.params.MainNetParams;
@@ -245,6 +246,58 @@ public class ScriptTest {
         }
     }
 
+    @Test
+    public void numbers() {
+        long[] values = { 0, 1, -1, 127, -127, 128, -128, 255, -255, 256, 32767, -32768, 0x7fffffffL, -0x7fffffffL,
+                0xfffffffeL, 0x7fffffffffL, -0x7fffffffffL };
+        for (long value : values) {
+            byte[] encoded = Script.encodeNumber(value);
+            assertArrayEquals(ByteUtils.reverseBytes(ByteUtils.encodeMPI(BigInteger.valueOf(value), false)), encoded);
+            assertEquals(value, Script.castToLong(encoded, 5, true));
+        }
+        // negative zero
+        assertEquals(0, Script.castToLong(new byte[] { (byte) 0x80 }, 4, false));
+        assertEquals(0, Script.castToLong(new byte[] { 0, 0, (byte) 0x80 }, 4, false));
+        try {
+            Script.castToLong(new byte[] { (byte) 0x80 }, 4, true);
+            fail();
+        } catch (ScriptException e) {
+            // expected, not minimal
+        }
+        try {
+            Script.castToLong(new byte[5], 4, false);
+            fail();
+        } catch (ScriptException e) {
+            // expected, too long
+        }
+    }
+
+    @Test
+    public void stackOperations() throws IOException {
+        assertStackAfter("1 2 3 4 5 6 2ROT", "3 4 5 6 1 2");
+        assertStackAfter("1 2 3 4 2SWAP", "3 4 1 2");
+        assertStackAfter("1 2 3 4 2OVER", "1 2 3 4 1 2");
+        assertStackAfter("1 2 3 3DUP", "1 2 3 1 2 3");
+        assertStackAfter("1 2 3 ROT", "2 3 1");
+        assertStackAfter("1 2 TUCK", "2 1 2");
+        assertStackAfter("1 2 3 NIP", "1 3");
+        assertStackAfter("1 2 3 4 2 ROLL", "1 3 4 2");
+        assertStackAfter("1 2 3 4 2 PICK", "1 2 3 4 2");
+        assertStackAfter("1 2 TOALTSTACK 3 FROMALTSTACK", "1 3 2");
+        assertStackAfter("2147483647 DUP ADD", "4294967294");
+        assertStackAfter("-5 ABS 3 SUB 7 2 WITHIN", "0");
+        assertStackAfter("0 IF 1 ELSE 1 IF 2 ELSE 3 ENDIF ENDIF", "2");
+        assertStackAfter("1 NOTIF 0 IF 1 ENDIF ELSE 0 NOTIF 4 ENDIF ENDIF", "4");
+    }
+
+    private static void assertStackAfter(String script, String expectedStack) throws IOException {
+        LinkedList<byte[]> stack = new LinkedList<>();
+        Script.executeScript(null, 0, parseScriptString(script), stack, Script.ALL_VERIFY_FLAGS);
+        LinkedList<byte[]> expected = new LinkedList<>();
+        Script.executeScript(null, 0, parseScriptString(expectedStack), expected, Script.ALL_VERIFY_FLAGS);
+        assertEquals(script, Utils.toString(expected), Utils.toString(stack));
+    }
+
     @Test
     public void testOp0() {
         // Check that OP_0 doesn't NPE and pushes an empty stack frame.
@@ -257,7 +310,7 @@ public class ScriptTest {
         assertEquals("OP_0 push length", 0, stack.get(0).length);
     }
 
-    private Script parseScriptString(String string) throws IOException {
+    static Script parseScriptString(String string) throws IOException {
         String[] words = string.split("[ \\t\\n]");
         
         ByteArrayOutputStream out = new ByteArrayOutputStream();
@@ -293,7 +346,7 @@ public class ScriptTest {
         return Script.parse(out.toByteArray());
     }
 
-    private Set<VerifyFlag> parseVerifyFlags(String str) {
+    static Set<VerifyFlag> parseVerifyFlags(String str) {
         Set<VerifyFlag> flags = EnumSet.noneOf(VerifyFlag.class);
         if (!"NONE".equals(str)) {
             for (String flag : str.split(",")) {
@@ -349,7 +402,7 @@ public class ScriptTest {
         return scriptPubKeys;
     }
 
-    private Transaction buildCreditingTransaction(Script scriptPubKey) {
+    static Transaction buildCreditingTransaction(Script scriptPubKey) {
         Transaction tx = new Transaction();
         tx.setVersion(1);
         tx.setLockTime(0);
@@ -365,7 +418,7 @@ public class ScriptTest {
         return tx;
     }
 
-    private Transaction buildSpendingTransaction(Transaction creditingTransaction, Script scriptSig) {
+    static Transaction buildSpendingTransaction(Transaction creditingTransaction, Script scriptSig) {
         Transaction tx = new Transaction();
         tx.setVersion(1);
         tx.setLockTime(0);
@@ -467,6 +520,136 @@ public class ScriptTest {
         }
     }
 
+    @Test
+    public void templatesOnlyAcceptWhatTheInterpreterAccepts() throws Exception {
+        JsonNode scriptTests = new ObjectMapper()
+                .readTree(new InputStreamReader(getClass().getResourceAsStream("script_tests.json"), StandardCharsets.UTF_8));
+        for (JsonNode test : scriptTests) {
+            if (test.size() == 1)
+                continue; // skip comment
+            Script scriptSig, scriptPubKey;
+            try {
+                scriptSig = parseScriptString(test.get(0).asText());
+                scriptPubKey = parseScriptString(test.get(1).asText());
+            } catch (RuntimeException | IOException e) {
+                continue; // not parseable
+            }
+            Transaction txSpend = buildSpendingTransaction(buildCreditingTransaction(scriptPubKey), scriptSig);
+            assertInterpreterAgreesWithTemplates(test, txSpend, 0, scriptPubKey, parseVerifyFlags(test.get(2).asText()));
+        }
+        for (String file : new String[] { "tx_valid.json", "tx_invalid.json" }) {
+            JsonNode txTests = new ObjectMapper()
+                    .readTree(new InputStreamReader(getClass().getResourceAsStream(file), StandardCharsets.UTF_8));
+            for (JsonNode test : txTests) {
+                if (test.isArray() && test.size() == 1 && test.get(0).isTextual())
+                    continue; // This is a comment.
+                Map<TransactionOutPoint, Script> scriptPubKeys = parseScriptPubKeys(test.get(0));
+                Transaction transaction;
+                try {
+                    transaction = TESTNET.getDefaultSerializer().makeTransaction(
+                            ByteBuffer.wrap(ByteUtils.parseHex(test.get(1).asText().toLowerCase())));
+                } catch (ProtocolException e) {
+                    continue;
+                }
+                Set<VerifyFlag> verifyFlags = parseVerifyFlags(test.get(2).asText());
+                for (int i = 0; i < transaction.getInputs().size(); i++) {
+                    Script scriptPubKey = scriptPubKeys.get(transaction.getInput(i).getOutpoint());
+                    if (scriptPubKey != null)
+                        assertInterpreterAgreesWithTemplates(test, transaction, i, scriptPubKey, verifyFlags);
+                }
+            }
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private static void assertInterpreterAgreesWithTemplates(JsonNode test, Transaction tx, int index,
+                                                             Script scriptPubKey, Set<VerifyFlag> verifyFlags) {
+        Script scriptSig = tx.getInput(index).getScriptSig();
+        if (!ScriptTemplates.correctlySpends(scriptSig, tx, index, scriptPubKey, verifyFlags))
+            return;
+        try {
+            scriptSig.correctlySpends(tx, index, scriptPubKey, verifyFlags);
+        } catch (ScriptException e) {
+            throw new AssertionError("Accepted by template, but not by interpreter: " + test, e);
+        }
+    }
+
+    @Test
+    public void p2pkhTemplate() {
+        ECKey key = new ECKey();
+        Script scriptPubKey = ScriptBuilder.createP2PKHOutputScript(key);
+        Transaction tx = buildSpendingTransaction(buildCreditingTransaction(scriptPubKey), ScriptBuilder.createEmpty());
+        TransactionSignature signature = tx.calculateSignature(0, key, scriptPubKey, SigHash.ALL, false);
+        tx.getInput(0).setScriptSig(ScriptBuilder.createInputScript(signature, key));
+        Script scriptSig = tx.getInput(0).getScriptSig();
+        assertTrue(ScriptTemplates.correctlySpends(scriptSig, tx, 0, scriptPubKey, Script.ALL_VERIFY_FLAGS));
+        scriptSig.correctlySpends(tx, 0, null, null, scriptPubKey, Script.ALL_VERIFY_FLAGS);
+
+        // a valid signature, but by a key that doesn't match the output
+        ECKey otherKey = new ECKey();
+        TransactionSignature otherSignature = tx.calculateSignature(0, otherKey, scriptPubKey, SigHash.ALL, false);
+        tx.getInput(0).setScriptSig(ScriptBuilder.createInputScript(otherSignature, otherKey));
+        Script otherScriptSig = tx.getInput(0).getScriptSig();
+        assertFalse(ScriptTemplates.correctlySpends(otherScriptSig, tx, 0, scriptPubKey, Script.ALL_VERIFY_FLAGS));
+        try {
+            otherScriptSig.correctlySpends(tx, 0, null, null, scriptPubKey, Script.ALL_VERIFY_FLAGS);
+            fail();
+        } catch (ScriptException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void p2shMultisigTemplate() {
+        List<ECKey> keys = Arrays.asList(new ECKey(), new ECKey(), new ECKey());
+        Script redeemScript = ScriptBuilder.createRedeemScript(2, keys);
+        Script scriptPubKey = ScriptBuilder.createP2SHOutputScript(redeemScript);
+        Transaction tx = buildSpendingTransaction(buildCreditingTransaction(scriptPubKey), ScriptBuilder.createEmpty());
+        // createRedeemScript() sorts the keys
+        List<ECKey> sortedKeys = new ArrayList<>(keys);
+        sortedKeys.sort(ECKey.PUBKEY_COMPARATOR);
+        TransactionSignature sig1 = tx.calculateSignature(0, sortedKeys.get(0), redeemScript, SigHash.ALL, false);
+        TransactionSignature sig3 = tx.calculateSignature(0, sortedKeys.get(2), redeemScript, SigHash.ALL, false);
+
+        Script scriptSig = ScriptBuilder.createP2SHMultiSigInputScript(Arrays.asList(sig1, sig3), redeemScript);
+        assertTrue(ScriptTemplates.correctlySpends(scriptSig, tx, 0, scriptPubKey, Script.ALL_VERIFY_FLAGS));
+        scriptSig.correctlySpends(tx, 0, null, null, scriptPubKey, Script.ALL_VERIFY_FLAGS);
+
+        // signatures must be in the order of the keys
+        Script wrongOrder = ScriptBuilder.createP2SHMultiSigInputScript(Arrays.asList(sig3, sig1), redeemScript);
+        assertFalse(ScriptTemplates.correctlySpends(wrongOrder, tx, 0, scriptPubKey, Script.ALL_VERIFY_FLAGS));
+        try {
+            wrongOrder.correctlySpends(tx, 0, null, null, scriptPubKey, Script.ALL_VERIFY_FLAGS);
+            fail();
+        } catch (ScriptException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void templatesAcceptBuilderMadeEmptyPushes() {
+        // ScriptBuilder makes OP_0 chunks without data, unlike parsing
+        List<ECKey> keys = Arrays.asList(new ECKey(), new ECKey());
+        Script redeemScript = ScriptBuilder.createRedeemScript(1, keys);
+        Script scriptPubKey = ScriptBuilder.createP2SHOutputScript(redeemScript);
+        Transaction tx = buildSpendingTransaction(buildCreditingTransaction(scriptPubKey), ScriptBuilder.createEmpty());
+        TransactionSignature sig = tx.calculateSignature(0, keys.get(0), redeemScript, SigHash.ALL, false);
+        Script scriptSig = new ScriptBuilder()
+                .smallNum(0)
+                .data(sig.encodeToBitcoin())
+                .data(redeemScript.program())
+                .build();
+        assertTrue(ScriptTemplates.correctlySpends(scriptSig, tx, 0, scriptPubKey, Script.ALL_VERIFY_FLAGS));
+
+        // an empty signature where one is expected
+        ECKey key = new ECKey();
+        Script p2pkh = ScriptBuilder.createP2PKHOutputScript(key);
+        Script emptySig = new ScriptBuilder().smallNum(0).data(key.getPubKey()).build();
+        assertFalse(ScriptTemplates.correctlySpends(emptySig, tx, 0, p2pkh, Script.ALL_VERIFY_FLAGS));
+        Script emptyMultisigSig = new ScriptBuilder().smallNum(0).smallNum(0).data(redeemScript.program()).build();
+        assertFalse(ScriptTemplates.correctlySpends(emptyMultisigSig, tx, 0, scriptPubKey, Script.ALL_VERIFY_FLAGS));
+    }
+
     @Test
     public void getToAddress() {
         // P2PK
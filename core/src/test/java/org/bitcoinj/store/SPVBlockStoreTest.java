@@ -39,7 +39,9 @@ import java.io.File;
 import java.math.BigInteger;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
@@ -162,6 +164,51 @@ public class SPVBlockStoreTest {
         store.close();
     }
 
+    @Test
+    public void ringWrapsAround() throws Exception {
+        final int capacity = 10;
+        SPVBlockStore store = new SPVBlockStore(TESTNET, blockStoreFile, capacity, false);
+        List<StoredBlock> blocks = new ArrayList<>();
+        for (int i = 0; i < capacity * 2 + 5; i++) {
+            Block block = new Block(0, Sha256Hash.ZERO_HASH, Sha256Hash.ZERO_HASH, 0, 0, i,
+                    Collections.emptyList());
+            StoredBlock b = new StoredBlock(block, BigInteger.ZERO, i);
+            blocks.add(b);
+            store.put(b);
+            store.setChainHead(b);
+        }
+        store.close();
+
+        // Reopen, so that lookups go to the ring rather than the cache.
+        store = new SPVBlockStore(TESTNET, blockStoreFile, capacity, false);
+        for (int i = 0; i < blocks.size() - capacity; i++)
+            assertNull(store.get(blocks.get(i).getHeader().getHash()));
+        for (int i = blocks.size() - capacity; i < blocks.size(); i++)
+            assertEquals(blocks.get(i), store.get(blocks.get(i).getHeader().getHash()));
+
+        // Overwrite the ring once more; the index and the cache, which now holds the surviving blocks, must forget
+        // about the overwritten blocks.
+        List<StoredBlock> moreBlocks = new ArrayList<>();
+        for (int i = 0; i < capacity; i++) {
+            Block block = new Block(0, Sha256Hash.ZERO_HASH, Sha256Hash.ZERO_HASH, 0, 0, 1000 + i,
+                    Collections.emptyList());
+            StoredBlock b = new StoredBlock(block, BigInteger.ZERO, 1000 + i);
+            moreBlocks.add(b);
+            store.put(b);
+        }
+        for (StoredBlock b : blocks)
+            assertNull(store.get(b.getHeader().getHash()));
+        for (StoredBlock b : moreBlocks)
+            assertEquals(b, store.get(b.getHeader().getHash()));
+        store.close();
+        store = new SPVBlockStore(TESTNET, blockStoreFile, capacity, false);
+        for (StoredBlock b : blocks)
+            assertNull(store.get(b.getHeader().getHash()));
+        for (StoredBlock b : moreBlocks)
+            assertEquals(b, store.get(b.getHeader().getHash()));
+        store.close();
+    }
+
     @Test
     public void clear() throws Exception {
         Context.propagate(new Context(100, Transaction.DEFAULT_TX_FEE, false, true));
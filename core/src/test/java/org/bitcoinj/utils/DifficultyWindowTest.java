@@ -0,0 +1,168 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.utils;
+
+import org.bitcoinj.base.Sha256Hash;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.VerificationException;
+import org.bitcoinj.params.MainNetParams;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.MemoryBlockStore;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.annotation.Nullable;
+import java.math.BigInteger;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DifficultyWindowTest {
+    private static final NetworkParameters MAINNET = MainNetParams.get();
+    private static final int FIRST_HEIGHT = 100000;
+    private static final long[] TARGETS = { 0x1b0404cbL, 0x1b0a1b2cL, 0x1c00ffffL, 0x1b7fffffL };
+
+    private final Random random = new Random(1);
+    private BlockStore store;
+    private List<StoredBlock> chain;
+
+    @Before
+    public void setUp() throws Exception {
+        store = new MemoryBlockStore(MAINNET.getGenesisBlock());
+        chain = new ArrayList<>();
+        // The block preceding the first block of the chain is not in the store, as if we started from a checkpoint.
+        Sha256Hash prevHash = Sha256Hash.wrap("00000000000000000000000000000000000000000000000000000000000000ff");
+        long time = 1500000000;
+        for (int i = 0; i < 60; i++) {
+            StoredBlock block = createBlock(prevHash, time, FIRST_HEIGHT + i);
+            store.put(block);
+            chain.add(block);
+            prevHash = block.getHeader().getHash();
+            time += 10 + random.nextInt(110);
+        }
+    }
+
+    private StoredBlock createBlock(Sha256Hash prevHash, long time, int height) {
+        Block header = new Block(Block.BLOCK_VERSION_BIP66, prevHash, Sha256Hash.ZERO_HASH, Instant.ofEpochSecond(time),
+                TARGETS[random.nextInt(TARGETS.length)], random.nextInt(), null);
+        return new StoredBlock(header, BigInteger.ONE, height);
+    }
+
+    @Test
+    public void updatesInPlace() throws Exception {
+        DifficultyWindow window = new DifficultyWindow();
+        window.update(chain.get(30), store, 24);
+        assertEquals(1, window.getStoreReloads());
+        for (int i = 31; i < chain.size(); i++) {
+            window.update(chain.get(i), store, 24);
+            window.update(chain.get(i), store, 24); // same block again
+            assertEquals(1, window.getStoreReloads());
+            assertWindow(window, i);
+        }
+    }
+
+    @Test
+    public void reloadsAfterReorg() throws Exception {
+        DifficultyWindow window = new DifficultyWindow();
+        window.update(chain.get(40), store, 24);
+        StoredBlock fork = createBlock(chain.get(39).getHeader().getHash(), 1600000000, chain.get(40).getHeight());
+        store.put(fork);
+        window.update(fork, store, 24);
+        assertEquals(2, window.getStoreReloads());
+        assertEquals(fork.getHeader().getTimeSeconds(), window.getTimeSeconds(0));
+        assertEquals(chain.get(39).getHeader().getTimeSeconds(), window.getTimeSeconds(1));
+        assertEquals(24, window.size());
+    }
+
+    @Test
+    public void incompleteIfStoreDoesNotReachBackFarEnough() throws Exception {
+        DifficultyWindow window = new DifficultyWindow();
+        window.update(chain.get(23), store, 24);
+        assertEquals(24, window.size());
+        assertFalse(window.isComplete());
+        window.update(chain.get(24), store, 24);
+        assertTrue(window.isComplete());
+
+        window = new DifficultyWindow();
+        window.update(chain.get(10), store, 24);
+        assertEquals(11, window.size());
+        assertFalse(window.isComplete());
+        for (int i = 11; i < 24; i++) {
+            window.update(chain.get(i), store, 24);
+            assertFalse(window.isComplete());
+        }
+        window.update(chain.get(24), store, 24);
+        assertTrue(window.isComplete());
+        assertWindow(window, 24);
+    }
+
+    @Test
+    public void darkGravityWave3MatchesStoreWalk() throws Exception {
+        DifficultyWindow window = new DifficultyWindow();
+        for (int i = 0; i < chain.size(); i++) {
+            StoredBlock storedPrev = chain.get(i);
+            Block next = createBlock(storedPrev.getHeader().getHash(),
+                    storedPrev.getHeader().getTimeSeconds() + 60, storedPrev.getHeight() + 1).getHeader();
+            assertEquals(checkDifficulty(storedPrev, next, null), checkDifficulty(storedPrev, next, window));
+        }
+    }
+
+    @Test
+    public void overrideWithoutWindowStillApplies() throws Exception {
+        List<StoredBlock> checked = new ArrayList<>();
+        NetworkParameters params = new MainNetParams() {
+            @Override
+            public void checkDifficultyTransitions(StoredBlock storedPrev, Block nextBlock, BlockStore blockStore) {
+                checked.add(storedPrev);
+            }
+        };
+        StoredBlock storedPrev = chain.get(30);
+        Block next = createBlock(storedPrev.getHeader().getHash(), storedPrev.getHeader().getTimeSeconds() + 60,
+                storedPrev.getHeight() + 1).getHeader();
+        params.checkDifficultyTransitions(storedPrev, next, store, new DifficultyWindow());
+        assertEquals(1, checked.size());
+        assertEquals(storedPrev, checked.get(0));
+    }
+
+    @Nullable
+    private String checkDifficulty(StoredBlock storedPrev, Block next, @Nullable DifficultyWindow window)
+            throws BlockStoreException {
+        try {
+            MAINNET.checkDifficultyTransitions(storedPrev, next, store, window);
+            return null;
+        } catch (VerificationException e) {
+            return e.getMessage();
+        }
+    }
+
+    private void assertWindow(DifficultyWindow window, int newest) {
+        assertEquals(24, window.size());
+        for (int age = 0; age < window.size(); age++) {
+            Block header = chain.get(newest - age).getHeader();
+            assertEquals(header.getTimeSeconds(), window.getTimeSeconds(age));
+            assertEquals(header.getDifficultyTargetAsInteger(), window.getDifficultyTarget(age));
+        }
+    }
+}
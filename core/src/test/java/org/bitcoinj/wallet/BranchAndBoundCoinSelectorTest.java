@@ -0,0 +1,144 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.base.Address;
+import org.bitcoinj.base.Coin;
+import org.bitcoinj.base.ScriptType;
+import org.bitcoinj.base.internal.TimeUtils;
+import org.bitcoinj.core.AbstractBlockChain;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionConfidence;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.crypto.ECKey;
+import org.bitcoinj.testing.TestWithWallet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.bitcoinj.base.BitcoinNetwork.TESTNET;
+import static org.bitcoinj.base.Coin.CENT;
+import static org.bitcoinj.base.Coin.COIN;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class BranchAndBoundCoinSelectorTest extends TestWithWallet {
+    private static final Address OTHER_ADDRESS = new ECKey().toAddress(ScriptType.P2PKH, TESTNET);
+    // at 1000 sat/kB, spending any of the outputs below costs 100 sat
+    private static final Coin FEE_PER_KB = Coin.valueOf(1000);
+    private static final int SPEND_VSIZE = 100;
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        TimeUtils.setMockClock(); // Use mock clock
+    }
+
+    @After
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    @Test
+    public void exactMatch() {
+        List<TransactionOutput> outputs = outputs(10_100, 3_100, 5_100, 2_100, 7_100);
+        BranchAndBoundCoinSelector selector = new BranchAndBoundCoinSelector(TESTNET);
+        CoinSelection selection = selector.selectChangeless(Coin.valueOf(12_000), FEE_PER_KB, Coin.valueOf(500),
+                outputs, output -> SPEND_VSIZE);
+        // 10000 + 2000 and 7000 + 5000 both match; the fewest inputs wins on equal excess
+        assertEquals(2, selection.outputs().size());
+        assertEquals(Coin.valueOf(12_200), selection.totalValue());
+    }
+
+    @Test
+    public void smallestExcess() {
+        List<TransactionOutput> outputs = outputs(10_100, 3_400, 2_250);
+        BranchAndBoundCoinSelector selector = new BranchAndBoundCoinSelector(TESTNET);
+        CoinSelection selection = selector.selectChangeless(Coin.valueOf(12_000), FEE_PER_KB, Coin.valueOf(2_000),
+                outputs, output -> SPEND_VSIZE);
+        // 10000 + 2150 is closer than 10000 + 3300
+        assertEquals(new HashSet<>(Arrays.asList(outputs.get(0), outputs.get(2))),
+                new HashSet<>(selection.outputs()));
+    }
+
+    @Test
+    public void noMatch() {
+        List<TransactionOutput> outputs = outputs(10_100, 5_100, 3_100);
+        BranchAndBoundCoinSelector selector = new BranchAndBoundCoinSelector(TESTNET);
+        // more than there is
+        assertNull(selector.selectChangeless(Coin.valueOf(20_000), FEE_PER_KB, Coin.valueOf(500), outputs,
+                output -> SPEND_VSIZE));
+        // in between all sums
+        assertNull(selector.selectChangeless(Coin.valueOf(11_000), FEE_PER_KB, Coin.valueOf(500), outputs,
+                output -> SPEND_VSIZE));
+        // only matches before the fee for spending the outputs
+        assertNull(selector.selectChangeless(Coin.valueOf(15_100), FEE_PER_KB, Coin.valueOf(50), outputs,
+                output -> SPEND_VSIZE));
+    }
+
+    @Test
+    public void budget() {
+        List<TransactionOutput> outputs = outputs(10_100, 5_100, 3_100, 2_100);
+        BranchAndBoundCoinSelector selector = new BranchAndBoundCoinSelector(TESTNET, 1, Duration.ofSeconds(10));
+        assertNull(selector.selectChangeless(Coin.valueOf(12_000), FEE_PER_KB, Coin.valueOf(500), outputs,
+                output -> SPEND_VSIZE));
+    }
+
+    @Test
+    public void completeTxWithoutChange() throws Exception {
+        Transaction t1 = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        Transaction t2 = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, CENT);
+
+        // The default selector spends the older, larger coin and needs change.
+        SendRequest req = SendRequest.to(OTHER_ADDRESS, CENT.subtract(Coin.valueOf(5_000)));
+        wallet.completeTx(req);
+        assertEquals(t1.getOutput(0), req.tx.getInput(0).getConnectedOutput());
+        assertEquals(2, req.tx.getOutputs().size());
+
+        // Paying with the small coin leaves less than it would cost to add change, which goes to the fee instead.
+        req = SendRequest.to(OTHER_ADDRESS, CENT.subtract(Coin.valueOf(5_000)));
+        req.coinSelector = new BranchAndBoundCoinSelector(TESTNET);
+        req.feePerKb = Transaction.REFERENCE_DEFAULT_MIN_TX_FEE;
+        wallet.completeTx(req);
+        assertEquals(1, req.tx.getInputs().size());
+        assertEquals(t2.getOutput(0), req.tx.getInput(0).getConnectedOutput());
+        assertEquals(1, req.tx.getOutputs().size());
+        assertEquals(Coin.valueOf(5_000), req.tx.getFee());
+
+        // Nothing pays this without change, so it is selected like the default selector does.
+        req = SendRequest.to(OTHER_ADDRESS, CENT.multiply(50));
+        req.coinSelector = new BranchAndBoundCoinSelector(TESTNET);
+        wallet.completeTx(req);
+        assertEquals(t1.getOutput(0), req.tx.getInput(0).getConnectedOutput());
+        assertEquals(2, req.tx.getOutputs().size());
+    }
+
+    private List<TransactionOutput> outputs(long... values) {
+        Transaction tx = new Transaction();
+        for (long value : values)
+            tx.addOutput(Coin.valueOf(value), myAddress);
+        tx.getConfidence().setConfidenceType(TransactionConfidence.ConfidenceType.BUILDING);
+        return tx.getOutputs();
+    }
+}
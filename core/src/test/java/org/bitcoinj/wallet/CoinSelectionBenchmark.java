@@ -0,0 +1,121 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.base.Address;
+import org.bitcoinj.base.BitcoinNetwork;
+import org.bitcoinj.base.Coin;
+import org.bitcoinj.base.ScriptType;
+import org.bitcoinj.core.AbstractBlockChain;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.crypto.ECKey;
+import org.bitcoinj.store.MemoryBlockStore;
+import org.bitcoinj.testing.FakeTxBuilder;
+
+import java.util.Random;
+
+/**
+ * Compares the {@link BranchAndBoundCoinSelector} to the {@link DefaultCoinSelector} by completing the same payments
+ * from a wallet with many coins of random value. Run it with {@code gradle groestlcoinj-core:benchmark_coin_selection},
+ * optionally passing the number of coins and of payments, e.g. {@code -PappArgs="2000 500"}.
+ */
+public class CoinSelectionBenchmark {
+    private static final int COINS_PER_BLOCK = 20;
+    private static final Coin FEE_PER_KB = Coin.valueOf(20_000);
+    private static final long MIN_VALUE = Coin.COIN.value / 10_000;
+
+    public static void main(String[] args) throws Exception {
+        int numCoins = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int numPayments = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+        Context.propagate(new Context(100, Coin.ZERO, false, true));
+        Wallet wallet = Wallet.createDeterministic(BitcoinNetwork.TESTNET, ScriptType.P2PKH,
+                KeyChainGroupStructure.BIP32);
+        Address to = new ECKey().toAddress(ScriptType.P2PKH, BitcoinNetwork.TESTNET);
+        Random random = new Random(42);
+        fund(wallet, numCoins, random);
+        System.out.println("Wallet has " + wallet.getUnspents().size() + " coins worth "
+                + wallet.getBalance().toFriendlyString());
+
+        Coin[] payments = new Coin[numPayments];
+        for (int i = 0; i < numPayments; i++)
+            payments[i] = randomValue(random);
+
+        CoinSelector[] selectors = {
+                DefaultCoinSelector.get(BitcoinNetwork.TESTNET),
+                new BranchAndBoundCoinSelector(BitcoinNetwork.TESTNET)
+        };
+        for (CoinSelector selector : selectors)
+            run(wallet, selector, payments, to); // warm up
+        for (CoinSelector selector : selectors) {
+            Result result = run(wallet, selector, payments, to);
+            System.out.printf("%-26s %8.3f ms per payment, %5.2f inputs, %6.1f%% without change, %8d sat fee per payment%n",
+                    selector.getClass().getSimpleName(), result.nanos / 1e6 / numPayments,
+                    (double) result.inputs / numPayments, 100.0 * result.changeless / numPayments,
+                    result.fees / numPayments);
+        }
+    }
+
+    private static class Result {
+        long nanos;
+        long inputs;
+        int changeless;
+        long fees;
+    }
+
+    private static Result run(Wallet wallet, CoinSelector selector, Coin[] payments, Address to) throws Exception {
+        Result result = new Result();
+        for (Coin payment : payments) {
+            SendRequest req = SendRequest.to(to, payment);
+            req.coinSelector = selector;
+            req.feePerKb = FEE_PER_KB;
+            req.signInputs = false;
+            req.shuffleOutputs = false;
+            long start = System.nanoTime();
+            wallet.completeTx(req);
+            result.nanos += System.nanoTime() - start;
+            result.inputs += req.tx.getInputs().size();
+            if (req.tx.getOutputs().size() == 1)
+                result.changeless++;
+            result.fees += req.tx.getFee().value;
+        }
+        return result;
+    }
+
+    // Receives coins in blocks, so they have different depths.
+    private static void fund(Wallet wallet, int numCoins, Random random) {
+        NetworkParameters params = NetworkParameters.of(BitcoinNetwork.TESTNET);
+        MemoryBlockStore blockStore = new MemoryBlockStore(params.getGenesisBlock());
+        for (int i = 0; i < numCoins; i += COINS_PER_BLOCK) {
+            Transaction[] txs = new Transaction[Math.min(COINS_PER_BLOCK, numCoins - i)];
+            for (int j = 0; j < txs.length; j++)
+                txs[j] = FakeTxBuilder.createFakeTx(BitcoinNetwork.TESTNET, randomValue(random),
+                        wallet.freshReceiveAddress());
+            FakeTxBuilder.BlockPair bp = FakeTxBuilder.createFakeBlock(blockStore, i / COINS_PER_BLOCK + 1, txs);
+            for (int j = 0; j < txs.length; j++)
+                wallet.receiveFromBlock(txs[j], bp.storedBlock, AbstractBlockChain.NewBlockType.BEST_CHAIN, j);
+            wallet.notifyNewBestBlock(bp.storedBlock);
+        }
+    }
+
+    // Between 0.0001 and 1 coin, evenly spread on a log scale.
+    private static Coin randomValue(Random random) {
+        return Coin.valueOf((long) (MIN_VALUE * Math.pow(10, 4 * random.nextDouble())));
+    }
+}
@@ -123,6 +123,49 @@ public class DefaultCoinSelectorTest extends TestWithWallet {
         assertEquals(t3.getOutput(0), candidates.get(2));
     }
 
+    @Test
+    public void indexOrdering() {
+        Coin[] values = { COIN, CENT, COIN.multiply(3), CENT.multiply(50), COIN, COIN.multiply(2) };
+        for (int i = 0; i < values.length; i++) {
+            // two at a time, so some have the same depth
+            if (i % 2 == 0)
+                sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, values[i]);
+            else
+                sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, values[i], values[i - 1]);
+        }
+        Transaction pending1 = sendMoneyToWallet(wallet, null, COIN, myAddress);
+        Transaction pending2 = sendMoneyToWallet(wallet, null, CENT, myAddress);
+        UnspentOutputIndex index = new UnspentOutputIndex();
+        wallet.getUnspents().forEach(index::add);
+        assertIndexOrder(index);
+
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, pending1);
+        index.update(pending1);
+        assertIndexOrder(index);
+
+        index.remove(pending2.getOutput(0));
+        assertEquals(wallet.getUnspents().size() - 1, index.size());
+        assertIndexOrder(index);
+    }
+
+    private void sendMoneyToWallet(AbstractBlockChain.NewBlockType type, Coin value1, Coin value2) {
+        sendMoneyToWallet(type, FakeTxBuilder.createFakeTx(TESTNET, value1, myAddress),
+                FakeTxBuilder.createFakeTx(TESTNET, value2, myAddress));
+    }
+
+    private static void assertIndexOrder(UnspentOutputIndex index) {
+        ArrayList<TransactionOutput> sorted = new ArrayList<>();
+        index.forEach(sorted::add);
+        assertEquals(index.size(), sorted.size());
+        ArrayList<TransactionOutput> expected = new ArrayList<>(sorted);
+        DefaultCoinSelector.sortOutputs(expected);
+        assertEquals(expected, sorted);
+        // selecting from the index gives the same as selecting from a list
+        DefaultCoinSelector selector = (DefaultCoinSelector) DefaultCoinSelector.get(TESTNET);
+        assertEquals(selector.select(COIN.multiply(2), sorted).outputs(),
+                selector.selectFromSorted(COIN.multiply(2), index.iterator()).outputs());
+    }
+
     @Test
     public void identicalInputs() {
         // Add four outputs to a transaction with same value and destination. Select them all.
@@ -0,0 +1,172 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.base.Address;
+import org.bitcoinj.base.BitcoinNetwork;
+import org.bitcoinj.base.Coin;
+import org.bitcoinj.base.ScriptType;
+import org.bitcoinj.base.Sha256Hash;
+import org.bitcoinj.core.AbstractBlockChain;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.crypto.ECKey;
+import org.bitcoinj.testing.TestWithWallet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+
+import static org.bitcoinj.base.Coin.COIN;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class WalletJournalTest extends TestWithWallet {
+    @Rule
+    public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+    private File file;
+    private WalletJournal journal;
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        file = new File(tmpFolder.getRoot(), "test.wallet");
+        // never compact by size, to see the journal grow
+        journal = new WalletJournal(file, 1000, 1000);
+    }
+
+    @After
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    @Test
+    public void appendAndReplay() throws Exception {
+        journal.save(wallet); // nothing was loaded, so this writes the wallet file
+        Sha256Hash baseHash = Sha256Hash.of(file);
+        long journalSize = journal.getJournalFile().length();
+
+        Transaction tx = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        journal.save(wallet);
+        assertEquals(baseHash, Sha256Hash.of(file));
+        assertNotEquals(journalSize, journal.getJournalFile().length());
+        // a block without our transactions only appends the last seen block
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN, new ECKey());
+        journal.save(wallet);
+        assertEquals(baseHash, Sha256Hash.of(file));
+
+        Wallet loaded = new WalletJournal(file).load();
+        assertEquals(COIN, loaded.getBalance());
+        assertEquals(wallet.getLastBlockSeenHash(), loaded.getLastBlockSeenHash());
+        assertEquals(2, loaded.getTransaction(tx.getTxId()).getConfidence().getDepthInBlocks());
+        assertEquals(wallet.currentReceiveAddress(), loaded.currentReceiveAddress());
+
+        // the wallet file alone doesn't have the changes, until the journal is compacted
+        assertEquals(Coin.ZERO, Wallet.loadFromFile(file).getBalance());
+        journal.compact(wallet);
+        assertEquals(COIN, Wallet.loadFromFile(file).getBalance());
+    }
+
+    @Test
+    public void appendOnlyChanges() throws Exception {
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        journal.save(wallet);
+        long journalSize = journal.getJournalFile().length();
+
+        Address address = wallet.freshReceiveAddress();
+        Transaction tx = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        journal.save(wallet);
+        Protos.Wallet change;
+        try (FileInputStream stream = new FileInputStream(journal.getJournalFile())) {
+            assertEquals(journalSize, stream.skip(journalSize));
+            change = Protos.Wallet.parseDelimitedFrom(stream);
+        }
+        assertEquals(1, change.getTransactionCount());
+        assertEquals(tx.getTxId(), WalletProtobufSerializer.byteStringToHash(change.getTransaction(0).getHash()));
+        assertTrue(change.getKeyCount() > 0);
+        assertTrue(change.getKeyCount() < wallet.serializeKeyChainGroupToProtobuf().size());
+
+        Wallet loaded = new WalletJournal(file).load();
+        assertEquals(COIN.multiply(2), loaded.getBalance());
+        assertTrue(loaded.isAddressMine(address));
+        assertEquals(wallet.currentReceiveAddress(), loaded.currentReceiveAddress());
+    }
+
+    @Test
+    public void compactOnRemoval() throws Exception {
+        Transaction tx = sendMoneyToWallet(null, COIN);
+        journal.save(wallet);
+        Sha256Hash baseHash = Sha256Hash.of(file);
+
+        wallet.reset();
+        journal.save(wallet);
+        assertNotEquals(baseHash, Sha256Hash.of(file));
+        assertNull(new WalletJournal(file).load().getTransaction(tx.getTxId()));
+    }
+
+    @Test
+    public void ignoreIncompleteChange() throws Exception {
+        journal.save(wallet);
+        Transaction tx1 = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        journal.save(wallet);
+        long journalSize = journal.getJournalFile().length();
+        Transaction tx2 = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        journal.save(wallet);
+
+        // cut off the last change, as if the process died while writing it
+        byte[] bytes = Files.readAllBytes(journal.getJournalFile().toPath());
+        try (FileOutputStream stream = new FileOutputStream(journal.getJournalFile())) {
+            stream.write(bytes, 0, bytes.length - 10);
+        }
+        WalletJournal reopened = new WalletJournal(file, 1000, 1000);
+        Wallet loaded = reopened.load();
+        assertNotNull(loaded.getTransaction(tx1.getTxId()));
+        assertNull(loaded.getTransaction(tx2.getTxId()));
+        assertEquals(journalSize, reopened.getJournalFile().length());
+
+        // appending after the repair is read back
+        Transaction tx3 = sendMoneyToWallet(loaded, AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN, myAddress);
+        reopened.save(loaded);
+        assertNotNull(new WalletJournal(file).load().getTransaction(tx3.getTxId()));
+    }
+
+    @Test
+    public void ignoreJournalOfOtherWalletFile() throws Exception {
+        journal.save(wallet);
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        journal.save(wallet);
+
+        // replacing the wallet file the usual way leaves the journal behind
+        Wallet other = Wallet.createDeterministic(BitcoinNetwork.TESTNET, ScriptType.P2PKH,
+                KeyChainGroupStructure.BIP32);
+        other.saveToFile(file);
+        Wallet loaded = new WalletJournal(file).load();
+        assertEquals(other.currentReceiveAddress(), loaded.currentReceiveAddress());
+        assertEquals(Coin.ZERO, loaded.getBalance());
+    }
+}
@@ -81,6 +81,8 @@ import org.junit.runner.RunWith;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.math.BigInteger;
 import java.net.InetAddress;
@@ -252,6 +254,22 @@ public class WalletTest extends TestWithWallet {
         }
     }
 
+    @Test
+    public void completeTxUsesSubclassOfDefaultCoinSelector() throws Exception {
+        receiveATransaction(wallet, myAddress);
+        AtomicBoolean selected = new AtomicBoolean();
+        SendRequest req = SendRequest.to(OTHER_ADDRESS, CENT);
+        req.coinSelector = new DefaultCoinSelector() {
+            @Override
+            public CoinSelection select(Coin target, List<TransactionOutput> candidates) {
+                selected.set(true);
+                return super.select(target, candidates);
+            }
+        };
+        wallet.completeTx(req);
+        assertTrue(selected.get());
+    }
+
     private Transaction cleanupCommon(Address destination) throws Exception {
         receiveATransaction(wallet, myAddress);
 
@@ -659,6 +677,169 @@ public class WalletTest extends TestWithWallet {
         assertEquals(ZERO.subtract(valueOf(0, 10)), send2.getValue(wallet));
     }
 
+    @Test
+    public void balanceFutures() throws Exception {
+        CompletableFuture<Coin> small = wallet.getBalanceFuture(CENT, Wallet.BalanceType.AVAILABLE);
+        CompletableFuture<Coin> large = wallet.getBalanceFuture(COIN, Wallet.BalanceType.AVAILABLE);
+        CompletableFuture<Coin> medium = wallet.getBalanceFuture(CENT.multiply(10), Wallet.BalanceType.AVAILABLE);
+        CompletableFuture<Coin> estimated = wallet.getBalanceFuture(CENT.multiply(20), Wallet.BalanceType.ESTIMATED);
+
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, CENT.multiply(15));
+        Threading.waitForUserCode();
+        assertEquals(CENT.multiply(15), small.get());
+        assertEquals(CENT.multiply(15), medium.get());
+        assertFalse(large.isDone());
+        assertFalse(estimated.isDone());
+
+        sendMoneyToWallet(null, CENT.multiply(10), myAddress);
+        Threading.waitForUserCode();
+        assertEquals(CENT.multiply(25), estimated.get());
+        assertFalse(large.isDone());
+
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        Threading.waitForUserCode();
+        assertTrue(large.isDone());
+    }
+
+    @Test
+    public void spendableBalanceFollowsKeys() throws Exception {
+        ECKey key = new ECKey();
+        Address address = key.toAddress(ScriptType.P2PKH, TESTNET);
+        wallet.addWatchedAddress(address);
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN, address);
+        assertEquals(COIN, wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertEquals(ZERO, wallet.getBalance(Wallet.BalanceType.ESTIMATED_SPENDABLE));
+        assertEquals(ZERO, wallet.getBalance(Wallet.BalanceType.AVAILABLE_SPENDABLE));
+        wallet.importKey(key);
+        assertEquals(COIN, wallet.getBalance(Wallet.BalanceType.ESTIMATED_SPENDABLE));
+        assertEquals(COIN, wallet.getBalance(Wallet.BalanceType.AVAILABLE_SPENDABLE));
+        wallet.removeKey(key);
+        assertEquals(ZERO, wallet.getBalance(Wallet.BalanceType.ESTIMATED_SPENDABLE));
+        assertEquals(ZERO, wallet.getBalance(Wallet.BalanceType.AVAILABLE_SPENDABLE));
+    }
+
+    @Test
+    public void readsDoNotWaitForLock() throws Exception {
+        Transaction tx1 = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        // The parts of a snapshot are taken when they are first read.
+        assertEquals(COIN, wallet.getBalance());
+        assertEquals(1, wallet.getTransactions(true).size());
+        assertEquals(1, wallet.getUnspents().size());
+        wallet.lock.lock();
+        try {
+            Transaction tx2 = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, CENT);
+            // This thread is changing the wallet, so it sees the change.
+            assertEquals(COIN.add(CENT), wallet.getBalance());
+            assertEquals(2, wallet.getUnspents().size());
+            // Other threads see the wallet as it was before, instead of waiting.
+            assertEquals(COIN, CompletableFuture.supplyAsync(() -> wallet.getBalance()).get(10, TimeUnit.SECONDS));
+            assertEquals(Collections.singleton(tx1),
+                    CompletableFuture.supplyAsync(() -> wallet.getTransactions(true)).get(10, TimeUnit.SECONDS));
+            assertEquals(Collections.singletonList(tx1.getOutput(0)),
+                    CompletableFuture.supplyAsync(() -> wallet.getUnspents()).get(10, TimeUnit.SECONDS));
+            assertEquals(tx2, CompletableFuture.supplyAsync(() -> wallet.getTransaction(tx2.getTxId()))
+                    .get(10, TimeUnit.SECONDS));
+        } finally {
+            wallet.lock.unlock();
+        }
+        assertEquals(COIN.add(CENT), CompletableFuture.supplyAsync(() -> wallet.getBalance()).get(10, TimeUnit.SECONDS));
+        assertEquals(2, wallet.getRecentTransactions(0, false).size());
+    }
+
+    @Test
+    public void readsDoNotWaitForLockForPartNotYetRead() throws Exception {
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        assertEquals(COIN, wallet.getBalance());
+        Transaction tx2 = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, CENT);
+        // The balance isn't taken for the wallet as it is now, only the transactions are.
+        assertEquals(2, wallet.getTransactions(true).size());
+        wallet.lock.lock();
+        try {
+            // Another thread gets the balance last taken, instead of waiting.
+            assertEquals(COIN, CompletableFuture.supplyAsync(() -> wallet.getBalance()).get(10, TimeUnit.SECONDS));
+        } finally {
+            wallet.lock.unlock();
+        }
+        assertEquals(COIN.add(CENT), wallet.getBalance());
+    }
+
+    @Test
+    public void readsSeeOwnCommit() throws Exception {
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        assertEquals(COIN, wallet.getBalance(BalanceType.ESTIMATED));
+        assertEquals(1, wallet.getTransactions(true).size());
+        Transaction send = wallet.createSend(OTHER_ADDRESS, CENT);
+        wallet.commitTx(send);
+        CountDownLatch locked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread holder = new Thread(() -> {
+            wallet.lock.lock();
+            try {
+                locked.countDown();
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                wallet.lock.unlock();
+            }
+        });
+        holder.start();
+        assertTrue(locked.await(10, TimeUnit.SECONDS));
+        // Another thread still sees the wallet as it was before the commit.
+        assertEquals(COIN, CompletableFuture.supplyAsync(() -> wallet.getBalance(BalanceType.ESTIMATED))
+                .get(10, TimeUnit.SECONDS));
+        // The thread that committed waits for the lock rather than not seeing its own commit.
+        Thread releaser = new Thread(() -> {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            release.countDown();
+        });
+        releaser.start();
+        assertEquals(COIN.subtract(CENT).subtract(send.getFee()), wallet.getBalance(BalanceType.ESTIMATED));
+        assertEquals(2, wallet.getTransactions(true).size());
+        holder.join();
+    }
+
+    @Test
+    public void receiveBatchFromBlock() throws Exception {
+        List<Transaction> received = new ArrayList<>();
+        List<Coin> balances = new ArrayList<>();
+        wallet.addCoinsReceivedEventListener((wallet, tx, prevBalance, newBalance) -> {
+            received.add(tx);
+            balances.add(prevBalance);
+            balances.add(newBalance);
+        });
+        wallet.addCoinsSentEventListener((wallet, tx, prevBalance, newBalance) -> received.add(tx));
+        AtomicInteger walletChanged = new AtomicInteger();
+        wallet.addChangeEventListener(wallet -> walletChanged.incrementAndGet());
+
+        // The second one is only relevant because it spends the first one.
+        Transaction tx1 = createFakeTx(TESTNET, COIN, myAddress);
+        Transaction tx2 = new Transaction();
+        tx2.addInput(tx1.getOutput(0));
+        tx2.addOutput(valueOf(0, 60), OTHER_ADDRESS);
+        tx2.addOutput(valueOf(0, 40), myAddress);
+        Transaction irrelevant = createFakeTx(TESTNET, COIN, OTHER_ADDRESS);
+        FakeTxBuilder.BlockPair bp = createFakeBlock(blockStore, Block.BLOCK_HEIGHT_GENESIS, tx1, irrelevant, tx2);
+        wallet.receiveFromBlock(Arrays.asList(tx1, irrelevant, tx2), bp.storedBlock,
+                AbstractBlockChain.NewBlockType.BEST_CHAIN, 0);
+        wallet.notifyNewBestBlock(bp.storedBlock);
+        Threading.waitForUserCode();
+
+        assertEquals(2, wallet.getTransactions(true).size());
+        assertNull(wallet.getTransaction(irrelevant.getTxId()));
+        assertEquals(Integer.valueOf(2), tx2.getAppearsInHashes().get(bp.block.getHash()));
+        assertEquals(valueOf(0, 40), wallet.getBalance());
+        // one event per transaction, all with the balances around the whole batch
+        assertEquals(Arrays.asList(tx1, tx2), received);
+        assertEquals(Arrays.asList(ZERO, valueOf(0, 40)), balances);
+        assertEquals(1, walletChanged.get());
+        assertTrue(wallet.isConsistent());
+    }
+
     @Test
     public void isConsistent_duplicates() {
         // This test ensures that isConsistent catches duplicate transactions, eg, because we submitted the same block
@@ -1129,6 +1310,23 @@ public class WalletTest extends TestWithWallet {
         assertDead(t1b);
     }
 
+    @Test
+    public void doubleSpendOfOutputThatIsNotOurs() throws Exception {
+        FakeTxBuilder.DoubleSpends doubleSpends = FakeTxBuilder.createFakeDoubleSpendTxns(myAddress);
+        // doubleSpends.t1 spends an output that isn't ours to our wallet, doubleSpends.t2 spends it somewhere else.
+        assertFalse(wallet.isTransactionRelevant(doubleSpends.t2));
+        wallet.receivePending(doubleSpends.t1, null);
+        assertTrue(wallet.isTransactionRelevant(doubleSpends.t2));
+        wallet.receivePending(doubleSpends.t2, null);
+        assertInConflict(doubleSpends.t1);
+        assertTrue(wallet.isConsistent());
+
+        // the spend index survives a round trip
+        wallet = roundTrip(wallet);
+        assertTrue(wallet.isConsistent());
+        assertTrue(wallet.isTransactionRelevant(doubleSpends.t2));
+    }
+
     @Test
     public void doubleSpendForBuildingTx() throws Exception {
         sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, valueOf(2, 0));
@@ -1439,6 +1637,39 @@ public class WalletTest extends TestWithWallet {
         assertEquals(3, transactions.size());
     }
 
+    @Test
+    public void transactionsPage() throws Exception {
+        TimeUtils.setMockClock();
+        List<Transaction> received = new ArrayList<>();
+        for (int i = 0; i < 7; i++) {
+            received.add(0, sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN));
+            TimeUtils.rollMockClock(Duration.ofMinutes(10));
+        }
+        assertEquals(received, wallet.getTransactionsByTime());
+
+        // read it in pages of three
+        List<Transaction> page1 = wallet.getTransactionsPage(null, 3);
+        assertEquals(received.subList(0, 3), page1);
+        List<Transaction> page2 = wallet.getTransactionsPage(page1.get(2).getTxId(), 3);
+        assertEquals(received.subList(3, 6), page2);
+        List<Transaction> page3 = wallet.getTransactionsPage(page2.get(2).getTxId(), 3);
+        assertEquals(received.subList(6, 7), page3);
+        assertTrue(wallet.getTransactionsPage(page3.get(0).getTxId(), 3).isEmpty());
+
+        // a transaction that is given a new update time moves
+        Transaction oldest = received.get(6);
+        wallet.setTransactionUpdateTime(oldest.getTxId(), TimeUtils.currentTime());
+        assertEquals(oldest, wallet.getTransactionsPage(null, 1).get(0));
+        assertEquals(received.get(0), wallet.getTransactionsPage(oldest.getTxId(), 1).get(0));
+
+        try {
+            wallet.getTransactionsPage(createFakeTx(TESTNET, COIN, OTHER_ADDRESS).getTxId(), 3);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
     @Test
     public void keyCreationTime() {
         Instant now = TimeUtils.currentTime().truncatedTo(ChronoUnit.SECONDS);
@@ -1787,6 +2018,52 @@ public class WalletTest extends TestWithWallet {
         assertNull(results[1]);
     }
 
+    @Test
+    public void autosaveDurations() throws Exception {
+        File f = File.createTempFile("groestlcoinj-unit-test", null);
+        List<Duration> durations = new ArrayList<>();
+        wallet.autosaveToFile(f, Duration.ZERO, new WalletFiles.Listener() {
+            @Override
+            public void onBeforeAutoSave(File tempFile) {
+            }
+
+            @Override
+            public void onAfterAutoSave(File newlySavedFile) {
+            }
+
+            @Override
+            public void onAutoSaveDurations(Duration lockHeld, Duration serialize) {
+                durations.add(lockHeld);
+                durations.add(serialize);
+            }
+        });
+        wallet.freshReceiveKey(); // saved right away
+        assertEquals(2, durations.size());
+    }
+
+    @Test
+    public void saveWritesOutsideLock() throws Exception {
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        AtomicBoolean lockedWhileWriting = new AtomicBoolean();
+        ByteArrayOutputStream output = new ByteArrayOutputStream() {
+            @Override
+            public synchronized void write(int b) {
+                lockedWhileWriting.compareAndSet(false, wallet.lock.isLocked());
+                super.write(b);
+            }
+
+            @Override
+            public synchronized void write(byte[] b, int off, int len) {
+                lockedWhileWriting.compareAndSet(false, wallet.lock.isLocked());
+                super.write(b, off, len);
+            }
+        };
+        wallet.saveToFileStream(output);
+        assertFalse(lockedWhileWriting.get());
+        Wallet loaded = Wallet.loadFromFileStream(new ByteArrayInputStream(output.toByteArray()));
+        assertEquals(COIN, loaded.getBalance());
+    }
+
     @Test
     public void spendOutputFromPendingTransaction() throws Exception {
         // We'll set up a wallet that receives a coin, then sends a coin of lesser value and keeps the change.
@@ -2282,6 +2559,58 @@ public class WalletTest extends TestWithWallet {
         assertEquals(COIN, spend3.getInput(0).getValue());
     }
 
+    @Test
+    public void depthFromChainHeight() throws Exception {
+        Transaction tx1 = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        assertEquals(2, tx1.getConfidence().getDepthInBlocks());
+        // switching keeps the depth of transactions that are already in the wallet
+        wallet.setDepthFromChainHeight(true);
+        wallet.addDepthThreshold(3);
+        assertEquals(2, tx1.getConfidence().getDepthInBlocks());
+
+        final List<Integer> eventDepths = new ArrayList<>();
+        wallet.addTransactionConfidenceEventListener(Threading.SAME_THREAD, (wallet, tx) -> {
+            if (tx.equals(tx1))
+                eventDepths.add(tx.getConfidence().getDepthInBlocks());
+        });
+        CompletableFuture<TransactionConfidence> depthFuture = tx1.getConfidence().getDepthFuture(6);
+        Transaction tx2 = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, CENT);
+        assertEquals(1, tx2.getConfidence().getDepthInBlocks());
+        for (int depth = 4; depth <= 8; depth++) {
+            sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN);
+            assertEquals(depth, tx1.getConfidence().getDepthInBlocks());
+        }
+        assertEquals(6, tx2.getConfidence().getDepthInBlocks());
+        // only the thresholds raise events
+        assertEquals(Arrays.asList(3, 6), eventDepths);
+        Threading.waitForUserCode();
+        assertTrue(depthFuture.isDone());
+
+        // switching back continues counting from the current depth
+        wallet.setDepthFromChainHeight(false);
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        assertEquals(9, tx1.getConfidence().getDepthInBlocks());
+        assertEquals(7, tx2.getConfidence().getDepthInBlocks());
+    }
+
+    @Test
+    public void depthFromChainHeightWithoutAppearedAtHeight() throws Exception {
+        Transaction tx = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        // as loaded from a wallet that only saved the counted depth
+        TransactionConfidence confidence = tx.getConfidence();
+        confidence.setConfidenceType(ConfidenceType.PENDING);
+        confidence.setConfidenceType(ConfidenceType.BUILDING);
+        confidence.setDepthInBlocks(2);
+        assertEquals(-1, confidence.getAppearedAtChainHeight());
+
+        wallet.setDepthFromChainHeight(true);
+        assertEquals(2, confidence.getDepthInBlocks());
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        assertEquals(3, confidence.getDepthInBlocks());
+    }
+
     @Test
     public void feeSolverAndCoinSelectionTests2() throws Exception {
         Transaction tx5 = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, CENT);
@@ -373,6 +373,77 @@ public class PeerGroupTest extends TestWithPeerGroup {
         assertNull(message == null ? "" : message.toString(), message);
     }
 
+    @Test
+    public void parallelBlockDownload() throws Exception {
+        // Check that headers come from the download peer, and the blocks from all peers in chain order.
+        peerGroup.setParallelBlockDownload(true);
+        peerGroup.start();
+        remoteVersionMessage.bestHeight = 4;
+        InboundMessageQueuer p1 = connectPeer(1);
+        InboundMessageQueuer p2 = connectPeer(2);
+
+        Block b1 = FakeTxBuilder.makeSolvedTestBlock(blockStore.getChainHead().getHeader());
+        Block b2 = FakeTxBuilder.makeSolvedTestBlock(b1);
+        Block b3 = FakeTxBuilder.makeSolvedTestBlock(b2);
+        Block b4 = FakeTxBuilder.makeSolvedTestBlock(b3);
+        Sha256Hash genesisHash = blockChain.getChainHead().getHeader().getHash();
+
+        peerGroup.startBlockChainDownload(new DownloadProgressTracker());
+        peerGroup.startBlockChainDownloadFromPeer(peerOf(p1));
+        assertNextMessageIs(p1, GetHeadersMessage.class);
+        inbound(p1, new HeadersMessage(b1.cloneAsHeader(), b2.cloneAsHeader(), b3.cloneAsHeader(),
+                b4.cloneAsHeader()));
+
+        // The blocks are spread across both peers.
+        GetDataMessage getdata1 = assertNextMessageIs(p1, GetDataMessage.class);
+        GetDataMessage getdata2 = assertNextMessageIs(p2, GetDataMessage.class);
+        assertEquals(Arrays.asList(b1.getHash(), b3.getHash()),
+                Arrays.asList(getdata1.getHashOf(0), getdata1.getHashOf(1)));
+        assertEquals(Arrays.asList(b2.getHash(), b4.getHash()),
+                Arrays.asList(getdata2.getHashOf(0), getdata2.getHashOf(1)));
+
+        // The later blocks wait for the earlier ones.
+        inbound(p2, b2);
+        inbound(p2, b4);
+        pingAndWait(p2);
+        assertEquals(genesisHash, blockChain.getChainHead().getHeader().getHash());
+        inbound(p1, b1);
+        inbound(p1, b3);
+        pingAndWait(p1);
+        assertEquals(b4.getHash(), blockChain.getChainHead().getHeader().getHash());
+    }
+
+    @Test
+    public void parallelBlockDownloadPeerDeath() throws Exception {
+        // Check that the blocks requested from a peer that disconnects are requested from another one.
+        peerGroup.setParallelBlockDownload(true);
+        peerGroup.start();
+        remoteVersionMessage.bestHeight = 2;
+        InboundMessageQueuer p1 = connectPeer(1);
+        InboundMessageQueuer p2 = connectPeer(2);
+
+        Block b1 = FakeTxBuilder.makeSolvedTestBlock(blockStore.getChainHead().getHeader());
+        Block b2 = FakeTxBuilder.makeSolvedTestBlock(b1);
+
+        peerGroup.startBlockChainDownload(new DownloadProgressTracker());
+        peerGroup.startBlockChainDownloadFromPeer(peerOf(p1));
+        assertNextMessageIs(p1, GetHeadersMessage.class);
+        inbound(p1, new HeadersMessage(b1.cloneAsHeader(), b2.cloneAsHeader()));
+        assertEquals(b1.getHash(), assertNextMessageIs(p1, GetDataMessage.class).getHashOf(0));
+        assertEquals(b2.getHash(), assertNextMessageIs(p2, GetDataMessage.class).getHashOf(0));
+        assertNextMessageIs(p1, Ping.class);
+
+        final CompletableFuture<Void> p2CloseFuture = new CompletableFuture<>();
+        peerOf(p2).addDisconnectedEventListener((peer, peerCount) -> p2CloseFuture.complete(null));
+        closePeer(peerOf(p2));
+        p2CloseFuture.get();
+        assertEquals(b2.getHash(), assertNextMessageIs(p1, GetDataMessage.class).getHashOf(0));
+        inbound(p1, b1);
+        inbound(p1, b2);
+        pingAndWait(p1);
+        assertEquals(b2.getHash(), blockChain.getChainHead().getHeader().getHash());
+    }
+
     @Test
     public void transactionConfidence() throws Exception {
         // Checks that we correctly count how many peers broadcast a transaction, so we can establish some measure of
@@ -3,6 +3,7 @@
  */
 #include "hashblock.h"
 #include <inttypes.h>
+#include <string.h>
 
 #include <jni.h>
 
@@ -51,8 +52,50 @@ jbyteArray JNICALL groestld_native(JNIEnv *env, jclass cls, jbyteArray header, j
     return DK;
 }
 
+/*
+ * Hashes count records of length bytes, stride bytes apart, and writes the 32 byte results one after
+ * another into out. Bounds are checked on the Java side, in Groestl.digestMany.
+ */
+void JNICALL groestld_native_many(JNIEnv *env, jclass cls, jbyteArray input, jint offset, jint count, jint length, jint stride, jbyteArray out)
+{
+    jbyte *P = (jbyte *) (env)->GetPrimitiveArrayCritical(input, NULL);
+    if (P)
+    {
+        jbyte *O = (jbyte *) (env)->GetPrimitiveArrayCritical(out, NULL);
+        if (O)
+        {
+            for (jint i = 0; i < count; i++)
+            {
+                const jbyte *record = P + offset + (ptrdiff_t) i * stride;
+                uint256 result = HashGroestl(record, record + length);
+                memcpy(O + (ptrdiff_t) i * 32, result.begin(), 32);
+            }
+            (env)->ReleasePrimitiveArrayCritical(out, O, 0);
+        }
+        (env)->ReleasePrimitiveArrayCritical(input, P, JNI_ABORT);
+    }
+}
+
+/*
+ * Hashes length bytes of the direct buffer input, starting at offset, in place and writes the 32 byte result into
+ * out at outOffset. Bounds are checked on the Java side, in Groestl.digestInto.
+ */
+void JNICALL groestld_native_direct(JNIEnv *env, jclass cls, jobject input, jint offset, jint length, jbyteArray out, jint outOffset)
+{
+    const jbyte *P = (const jbyte *) (env)->GetDirectBufferAddress(input);
+    if (P == NULL)
+    {
+        (env)->ThrowNew((env)->FindClass("java/lang/IllegalArgumentException"), "not a direct buffer");
+        return;
+    }
+    uint256 result = HashGroestl(P + offset, P + offset + length);
+    (env)->SetByteArrayRegion(out, outOffset, 32, (const jbyte *) result.begin());
+}
+
 static const JNINativeMethod methods[] = {
-    { "groestld_native", "([BII)[B", (void *) groestld_native }
+    { "groestld_native", "([BII)[B", (void *) groestld_native },
+    { "groestld_native_many", "([BIIII[B)V", (void *) groestld_native_many },
+    { "groestld_native_direct", "(Ljava/nio/ByteBuffer;II[BI)V", (void *) groestld_native_direct }
 };
 
 jint JNI_OnLoad(JavaVM *vm, void *reserved) {
@@ -63,7 +106,7 @@ jint JNI_OnLoad(JavaVM *vm, void *reserved) {
     }
 
     jclass cls = (env)->FindClass("com/hashengineering/crypto/Groestl");
-    int r = (env)->RegisterNatives(cls, methods, 1);
+    int r = (env)->RegisterNatives(cls, methods, sizeof(methods) / sizeof(methods[0]));
 
     return (r == JNI_OK) ? JNI_VERSION_1_6 : -1;
 }
\ No newline at end of file